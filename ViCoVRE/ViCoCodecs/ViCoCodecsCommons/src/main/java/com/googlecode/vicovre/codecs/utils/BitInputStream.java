@@ -77,13 +77,23 @@ public class BitInputStream {
 
         this.input = new QuickArrayWrapper(input);
         currentOffset = offset;
-        endInput = length;
+        endInput = offset + length;
+    }
+
+    // Reads the next byte, or 0 if past the end of the data
+    private int nextByte() {
+        int b = 0;
+        if (currentOffset < endInput) {
+            b = input.getByte(currentOffset) & BYTE_MASK;
+        }
+        currentOffset++;
+        return b;
     }
 
     private void huffRQ() {
         bb <<= SHORT_SHIFT;
-        bb |= (input.getByte(currentOffset++) & BYTE_MASK) << BYTE_SHIFT;
-        bb |=  input.getByte(currentOffset++) & BYTE_MASK;
+        bb |= nextByte() << BYTE_SHIFT;
+        bb |= nextByte();
     }
 
     /**
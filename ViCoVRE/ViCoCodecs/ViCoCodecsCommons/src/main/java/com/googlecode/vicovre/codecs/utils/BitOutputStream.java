@@ -55,6 +55,11 @@ public class BitOutputStream {
 
     private static final int TIMES_8_SHIFT = 3;
 
+    private static final int BYTE_POSITION_MASK = 0x7;
+
+    // The most bits that are copied from an array at a time
+    private static final int MAX_COPY_BITS = 24;
+
     // The bit buffer
     private int bb = 0;
 
@@ -112,6 +117,33 @@ public class BitOutputStream {
         }
     }
 
+    /**
+     * Writes count bits from an array of bytes.
+     * The most significant bit of each byte is written first
+     * @param bits The bytes to write the bits from
+     * @param offset The bit in the array at which to start
+     * @param count The number of bits to write
+     */
+    public void add(byte[] bits, int offset, int count) {
+        int pos = offset;
+        int remaining = count;
+        while (remaining > 0) {
+            int n = Math.min(remaining, MAX_COPY_BITS);
+            int bytePos = pos >> TIMES_8_SHIFT;
+            int word = 0;
+            for (int i = 0; i < 4; i++) {
+                word <<= BYTE_SIZE;
+                if ((bytePos + i) < bits.length) {
+                    word |= bits[bytePos + i] & BYTE_MASK;
+                }
+            }
+            int shift = INT_SIZE - (pos & BYTE_POSITION_MASK) - n;
+            add((word >>> shift) & ((1 << n) - 1), n);
+            pos += n;
+            remaining -= n;
+        }
+    }
+
     /**
      * Returns the number of bits written
      * @return the number of bits written
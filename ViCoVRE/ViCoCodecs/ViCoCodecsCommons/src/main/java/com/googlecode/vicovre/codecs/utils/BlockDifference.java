@@ -0,0 +1,366 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.codecs.utils;
+
+import java.nio.ByteOrder;
+
+/**
+ * Finds the 16x16 blocks of an image that differ from a reference image.
+ * Two scan lines of each block are compared, eight lines apart.  Each line
+ * is split into a left edge of four pixels, a middle of eight and a right
+ * edge of four, and the differences of the bytes of each part are summed
+ * eight at a time from longs.  When an edge differs by at least the
+ * threshold, the block and its neighbour across that edge are marked.
+ *
+ * Large images can be split into bands of block rows that are compared by
+ * several threads at once.  A band may mark the first row of the band
+ * below or the last row of the band above, but only ever with the same
+ * value, so the result does not depend on the order of the bands.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class BlockDifference {
+
+    /**
+     * The size of a block in pixels
+     */
+    public static final int BLOCK_SIZE = 16;
+
+    /**
+     * The default number of threads to compare large images with
+     */
+    public static final int DEFAULT_THREADS = Math.max(1,
+            Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    // The fewest blocks worth giving to another thread
+    private static final int MIN_BAND_BLOCKS = 1024;
+
+    // The number of lines between the two lines compared in a block
+    private static final int LINE_SEPARATION = 8;
+
+    // The number of bytes in a long
+    private static final int LONG_BYTES = 8;
+
+    // Masks alternate bytes of a long
+    private static final long BYTES_MASK = 0x00FF00FF00FF00FFL;
+
+    // Masks alternate shorts of a long
+    private static final long SHORTS_MASK = 0x0000FFFF0000FFFFL;
+
+    // Masks the lower int of a long
+    private static final long INT_MASK = 0xFFFFFFFFL;
+
+    private static final int BYTE_SHIFT = 8;
+
+    private static final int SHORT_SHIFT = 16;
+
+    private static final int INT_SHIFT = 32;
+
+    // True if the first byte in memory is the least significant in a long
+    private static final boolean LITTLE_ENDIAN =
+        ByteOrder.nativeOrder().equals(ByteOrder.LITTLE_ENDIAN);
+
+    // The width of the images in pixels
+    private int width = 0;
+
+    // The width of the images in blocks
+    private int blkw = 0;
+
+    // The height of the images in blocks
+    private int blkh = 0;
+
+    // The number of threads to compare with
+    private int threads = 1;
+
+    // The threads that compare bands alongside the calling thread
+    private WorkerPool workers = null;
+
+    // A synchronization object for the band workers
+    private Integer bandSync = new Integer(0);
+
+    // The number of bands in the current comparison
+    private int nBands = 0;
+
+    // The image being compared
+    private QuickArrayAbstract in = null;
+
+    // The reference image
+    private QuickArrayAbstract ref = null;
+
+    // The offset of the first scan line compared in each block
+    private int scan = 0;
+
+    // The difference at which a block is marked
+    private int threshold = 0;
+
+    // The marks of the blocks
+    private int[] crvec = null;
+
+    // The value to mark a block with
+    private int mark = 0;
+
+    // The blocks that may have changed, or null if not known
+    private ChangedBlocks changed = null;
+
+    // Compares bands of each image alongside the calling thread
+    private class BandWorker implements WorkerPool.Worker {
+
+        // The band compared by the worker
+        private int band = 0;
+
+        private BandWorker(int band) {
+            this.band = band;
+        }
+
+        /**
+         * Compares the band of the current image
+         *
+         * @see WorkerPool.Worker#work()
+         */
+        public void work() {
+            boolean compare = false;
+            synchronized (bandSync) {
+                compare = band < nBands;
+            }
+            if (compare) {
+                compareBand(band);
+            }
+        }
+
+        /**
+         *
+         * @see WorkerPool.Worker#close()
+         */
+        public void close() {
+            // Does Nothing
+        }
+    }
+
+    /**
+     * Creates a new BlockDifference
+     * @param width The width of the images in pixels
+     * @param height The height of the images in pixels
+     */
+    public BlockDifference(int width, int height) {
+        this.width = width;
+        blkw = width / BLOCK_SIZE;
+        blkh = height / BLOCK_SIZE;
+    }
+
+    /**
+     * Sets the number of threads that compare large images
+     * @param threads The number of threads
+     */
+    public void setThreads(int threads) {
+        stopWorkers();
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Gets the number of threads that compare large images
+     * @return The number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Compares an image with a reference image, marking the blocks that
+     * differ.  Blocks that are not marked are left as they are.
+     *
+     * @param in The image to compare, with a stride of the width
+     * @param ref The reference image, with a stride of the width
+     * @param scan The first line of each block to compare (0 to 7)
+     * @param threshold The difference at which a block is marked
+     * @param crvec The marks of the blocks, one per block
+     * @param mark The value to mark a block with
+     * @param changed The blocks that may have changed, or null if not
+     *     known; blocks not in this are not compared
+     */
+    public void compare(QuickArrayAbstract in, QuickArrayAbstract ref,
+            int scan, int threshold, int[] crvec, int mark,
+            ChangedBlocks changed) {
+        if ((changed != null) && ((changed.getWidth() != blkw)
+                || (changed.getHeight() != blkh))) {
+            changed = null;
+        }
+
+        int bands = Math.min(threads,
+                Math.max(1, (blkw * blkh) / MIN_BAND_BLOCKS));
+        bands = Math.min(bands, Math.max(1, blkh));
+        synchronized (bandSync) {
+            this.in = in;
+            this.ref = ref;
+            this.scan = scan;
+            this.threshold = threshold;
+            this.crvec = crvec;
+            this.mark = mark;
+            this.changed = changed;
+            nBands = bands;
+        }
+        if (bands == 1) {
+            compareRows(0, blkh);
+        } else {
+            compareBands();
+        }
+        synchronized (bandSync) {
+            this.in = null;
+            this.ref = null;
+            this.crvec = null;
+            this.changed = null;
+        }
+    }
+
+    // Compares the bands of the image across the workers and this thread
+    private void compareBands() {
+        if (workers == null) {
+            BandWorker[] bandWorkers = new BandWorker[threads - 1];
+            for (int i = 0; i < bandWorkers.length; i++) {
+                bandWorkers[i] = new BandWorker(i + 1);
+            }
+            workers = new WorkerPool("BlockDifference", bandWorkers);
+        }
+        workers.start();
+        try {
+            compareBand(0);
+        } finally {
+            workers.waitForWorkers();
+        }
+    }
+
+    // Compares the block rows of a band
+    private void compareBand(int band) {
+        int firstRow = (blkh * band) / nBands;
+        int lastRow = (blkh * (band + 1)) / nBands;
+        compareRows(firstRow, lastRow);
+    }
+
+    // Sums the bytes of each half of a long, giving the sum of the first
+    // four bytes in memory in the lower int and of the others in the upper
+    private static long sumHalves(long bytes) {
+        long sums = (bytes & BYTES_MASK)
+            + ((bytes >>> BYTE_SHIFT) & BYTES_MASK);
+        sums = (sums & SHORTS_MASK)
+            + ((sums >>> SHORT_SHIFT) & SHORTS_MASK);
+        if (!LITTLE_ENDIAN) {
+            sums = (sums >>> INT_SHIFT) | (sums << INT_SHIFT);
+        }
+        return sums;
+    }
+
+    // Compares the blocks of the rows from firstRow to before lastRow
+    private void compareRows(int firstRow, int lastRow) {
+        int w = blkw;
+        int lineOffset = width * LINE_SEPARATION;
+        for (int y = firstRow; y < lastRow; y++) {
+            int crv = y * w;
+            int db = ((y * BLOCK_SIZE) + scan) * width;
+            for (int x = 0; x < w; x++, crv++, db += BLOCK_SIZE) {
+
+                // A block that has not changed cannot show any motion
+                if ((changed != null) && !changed.isChanged(crv)) {
+                    continue;
+                }
+
+                // The first line; the differences of each four pixels
+                long inSums = sumHalves(in.getBytesAsLong(db));
+                long refSums = sumHalves(ref.getBytesAsLong(db));
+                int left = (int) (inSums & INT_MASK)
+                    - (int) (refSums & INT_MASK);
+                int top = (int) (inSums >>> INT_SHIFT)
+                    - (int) (refSums >>> INT_SHIFT);
+                inSums = sumHalves(in.getBytesAsLong(db + LONG_BYTES));
+                refSums = sumHalves(ref.getBytesAsLong(db + LONG_BYTES));
+                top += (int) (inSums & INT_MASK) - (int) (refSums & INT_MASK);
+                int right = (int) (inSums >>> INT_SHIFT)
+                    - (int) (refSums >>> INT_SHIFT);
+                right = Math.abs(right);
+                left = Math.abs(left);
+                top = Math.abs(top);
+
+                // The second line
+                int db2 = db + lineOffset;
+                inSums = sumHalves(in.getBytesAsLong(db2));
+                refSums = sumHalves(ref.getBytesAsLong(db2));
+                left += (int) (inSums & INT_MASK) - (int) (refSums & INT_MASK);
+                int bottom = (int) (inSums >>> INT_SHIFT)
+                    - (int) (refSums >>> INT_SHIFT);
+                inSums = sumHalves(in.getBytesAsLong(db2 + LONG_BYTES));
+                refSums = sumHalves(ref.getBytesAsLong(db2 + LONG_BYTES));
+                bottom += (int) (inSums & INT_MASK)
+                    - (int) (refSums & INT_MASK);
+                right += (int) (inSums >>> INT_SHIFT)
+                    - (int) (refSums >>> INT_SHIFT);
+                right = Math.abs(right);
+                left = Math.abs(left);
+                bottom = Math.abs(bottom);
+
+                int center = 0;
+                if (left >= threshold && x > 0) {
+                    crvec[crv - 1] = mark;
+                    center = 1;
+                }
+                if (right >= threshold && x < w - 1) {
+                    crvec[crv + 1] = mark;
+                    center = 1;
+                }
+                if (bottom >= threshold && y < blkh - 1) {
+                    crvec[crv + w] = mark;
+                    center = 1;
+                }
+                if (top >= threshold && y > 0) {
+                    crvec[crv - w] = mark;
+                    center = 1;
+                }
+                if (center > 0) {
+                    crvec[crv + 0] = mark;
+                }
+            }
+        }
+    }
+
+    private void stopWorkers() {
+        if (workers != null) {
+            workers.close();
+            workers = null;
+        }
+    }
+
+    /**
+     * Stops any threads in use
+     */
+    public void close() {
+        stopWorkers();
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.codecs.utils;
+
+import java.util.Arrays;
+
+/**
+ * Records which 16x16 macroblocks of a frame have changed since the
+ * previous frame.  A producer of frames can attach this to each buffer
+ * as the header so that an encoder can avoid looking at blocks that
+ * have not changed.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class ChangedBlocks {
+
+    /**
+     * The size of a block in pixels
+     */
+    public static final int BLOCK_SIZE = 16;
+
+    private boolean[] changed = null;
+
+    private int width = 0;
+
+    private int height = 0;
+
+    /**
+     * Creates a new ChangedBlocks with every block changed
+     * @param width The width of the frame in pixels
+     * @param height The height of the frame in pixels
+     */
+    public ChangedBlocks(int width, int height) {
+        this.width = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.height = (height + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        changed = new boolean[this.width * this.height];
+        setAllChanged();
+    }
+
+    /**
+     * Gets the width of the frame
+     * @return The width in blocks
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the frame
+     * @return The height in blocks
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Marks all the blocks as unchanged
+     */
+    public void clear() {
+        Arrays.fill(changed, false);
+    }
+
+    /**
+     * Marks all the blocks as changed
+     */
+    public void setAllChanged() {
+        Arrays.fill(changed, true);
+    }
+
+    /**
+     * Marks the blocks covering an area as changed
+     * @param x The left of the area in pixels
+     * @param y The top of the area in pixels
+     * @param w The width of the area in pixels
+     * @param h The height of the area in pixels
+     */
+    public void setChanged(int x, int y, int w, int h) {
+        if ((w <= 0) || (h <= 0)) {
+            return;
+        }
+        int startX = Math.max(0, x / BLOCK_SIZE);
+        int startY = Math.max(0, y / BLOCK_SIZE);
+        int endX = Math.min(width - 1, (x + w - 1) / BLOCK_SIZE);
+        int endY = Math.min(height - 1, (y + h - 1) / BLOCK_SIZE);
+        for (int by = startY; by <= endY; by++) {
+            int block = (by * width) + startX;
+            for (int bx = startX; bx <= endX; bx++) {
+                changed[block++] = true;
+            }
+        }
+    }
+
+    /**
+     * Marks a block as changed
+     * @param block The number of the block, counting across then down
+     */
+    public void setChanged(int block) {
+        changed[block] = true;
+    }
+
+    /**
+     * Determines if a block has changed
+     * @param block The number of the block, counting across then down
+     * @return True if the block has changed
+     */
+    public boolean isChanged(int block) {
+        return changed[block];
+    }
+
+    /**
+     * Determines if any block has changed
+     * @return True if at least one block has changed
+     */
+    public boolean isChanged() {
+        for (int i = 0; i < changed.length; i++) {
+            if (changed[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
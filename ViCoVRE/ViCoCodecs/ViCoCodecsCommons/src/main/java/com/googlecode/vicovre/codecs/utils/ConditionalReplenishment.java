@@ -62,10 +62,6 @@ public class ConditionalReplenishment {
 
     private static final int TIMES_16_SHIFT = 4;
 
-    private static final int TIMES_8_SHIFT = 3;
-
-    private static final int BYTE_MASK = 0xFF;
-
     private static final int BLOCK_SIZE = 16;
 
     private static final int INIT_THRESHOLD = 48;
@@ -74,6 +70,9 @@ public class ConditionalReplenishment {
 
     private static final int SCAN_MASK = 7;
 
+    // The number of frames for the scan line to cover every line of a block
+    private static final int SCANS_TO_COVER = SCAN_MASK + 1;
+
     private static int crState(int s) {
         return ((s) & CR_STATE_MASK);
     }
@@ -96,6 +95,15 @@ public class ConditionalReplenishment {
 
     private int width = 0;
 
+    private BlockDifference difference = null;
+
+    // The number of frames that each block is still to be scanned for,
+    // having been marked as changed
+    private int[] scansLeft = null;
+
+    // The blocks to be scanned in the current frame
+    private ChangedBlocks scanBlocks = null;
+
     /**
      * Creates a new ConditionalReplenishment
      *
@@ -112,9 +120,11 @@ public class ConditionalReplenishment {
         blkh = height >> DIV_16_SHIFT;
         nblk = blkw * blkh;
         crvec = new int[nblk];
+        scansLeft = new int[nblk];
         refbuf = new QuickArray(byte[].class, width * height);
         reset();
         this.width = width;
+        difference = new BlockDifference(width, height);
     }
 
     /**
@@ -135,133 +145,29 @@ public class ConditionalReplenishment {
      * @throws QuickArrayException
      */
     public void replenish(byte[] devbuf) throws QuickArrayException {
+        replenish(devbuf, null);
+    }
 
+    /**
+     * Updates the replenishment, only looking for motion in the blocks
+     * that are known to have changed
+     *
+     * @param devbuf
+     *            The buffer to update with
+     * @param changed
+     *            The blocks that have changed since the last update, or
+     *            null if not known
+     * @throws QuickArrayException
+     */
+    public void replenish(byte[] devbuf, ChangedBlocks changed)
+            throws QuickArrayException {
         /*
          * First age the blocks from the previous frame.
          */
         ageBlocks();
         QuickArrayWrapper in = new QuickArrayWrapper(devbuf);
-
-        int ds = width;
-        int rs = width;
-        int db = scan * ds;
-        int rb = scan * rs;
-        int w = blkw;
-        int crv = 0;
-
-        for (int y = 0; y < blkh; ++y) {
-            int ndb = db;
-            int nrb = rb;
-            int ncrv = crv;
-            for (int x = 0; x < blkw; x++) {
-                int left = 0;
-                int right = 0;
-                int top = 0;
-                int bottom = 0;
-                left += (in.getByte(db + 0) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 0) & BYTE_MASK);
-                left += (in.getByte(db + 1) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 1) & BYTE_MASK);
-                left += (in.getByte(db + 2) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 2) & BYTE_MASK);
-                left += (in.getByte(db + 3) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 3) & BYTE_MASK);
-                top += (in.getByte(db + 0 + 1 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 0 + 1 * 4) & BYTE_MASK);
-                top += (in.getByte(db + 1 + 1 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 1 + 1 * 4) & BYTE_MASK);
-                top += (in.getByte(db + 2 + 1 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 2 + 1 * 4) & BYTE_MASK);
-                top += (in.getByte(db + 3 + 1 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 3 + 1 * 4) & BYTE_MASK);
-                top += (in.getByte(db + 0 + 2 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 0 + 2 * 4) & BYTE_MASK);
-                top += (in.getByte(db + 1 + 2 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 1 + 2 * 4) & BYTE_MASK);
-                top += (in.getByte(db + 2 + 2 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 2 + 2 * 4) & BYTE_MASK);
-                top += (in.getByte(db + 3 + 2 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 3 + 2 * 4) & BYTE_MASK);
-                right += (in.getByte(db + 0 + 3 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 0 + 3 * 4) & BYTE_MASK);
-                right += (in.getByte(db + 1 + 3 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 1 + 3 * 4) & BYTE_MASK);
-                right += (in.getByte(db + 2 + 3 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 2 + 3 * 4) & BYTE_MASK);
-                right += (in.getByte(db + 3 + 3 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 3 + 3 * 4) & BYTE_MASK);
-                right = Math.abs(right);
-                left = Math.abs(left);
-                top = Math.abs(top);
-                db += ds << TIMES_8_SHIFT;
-                rb += rs << TIMES_8_SHIFT;
-                left += (in.getByte(db + 0) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 0) & BYTE_MASK);
-                left += (in.getByte(db + 1) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 1) & BYTE_MASK);
-                left += (in.getByte(db + 2) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 2) & BYTE_MASK);
-                left += (in.getByte(db + 3) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 3) & BYTE_MASK);
-                bottom += (in.getByte(db + 0 + 1 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 0 + 1 * 4) & BYTE_MASK);
-                bottom += (in.getByte(db + 1 + 1 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 1 + 1 * 4) & BYTE_MASK);
-                bottom += (in.getByte(db + 2 + 1 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 2 + 1 * 4) & BYTE_MASK);
-                bottom += (in.getByte(db + 3 + 1 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 3 + 1 * 4) & BYTE_MASK);
-                bottom += (in.getByte(db + 0 + 2 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 0 + 2 * 4) & BYTE_MASK);
-                bottom += (in.getByte(db + 1 + 2 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 1 + 2 * 4) & BYTE_MASK);
-                bottom += (in.getByte(db + 2 + 2 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 2 + 2 * 4) & BYTE_MASK);
-                bottom += (in.getByte(db + 3 + 2 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 3 + 2 * 4) & BYTE_MASK);
-                right += (in.getByte(db + 0 + 3 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 0 + 3 * 4) & BYTE_MASK);
-                right += (in.getByte(db + 1 + 3 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 1 + 3 * 4) & BYTE_MASK);
-                right += (in.getByte(db + 2 + 3 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 2 + 3 * 4) & BYTE_MASK);
-                right += (in.getByte(db + 3 + 3 * 4) & BYTE_MASK)
-                        - (refbuf.getByte(rb + 3 + 3 * 4) & BYTE_MASK);
-                right = Math.abs(right);
-                left = Math.abs(left);
-                bottom = Math.abs(bottom);
-                db -= ds << TIMES_8_SHIFT;
-                rb -= rs << TIMES_8_SHIFT;
-
-                int center = 0;
-                if (left >= threshold && x > 0) {
-                    crvec[crv - 1] = CR_MOTION | CR_SEND;
-                    center = 1;
-                }
-                if (right >= threshold && x < w - 1) {
-                    crvec[crv + 1] = CR_MOTION | CR_SEND;
-                    center = 1;
-                }
-                if (bottom >= threshold && y < blkh - 1) {
-                    crvec[crv + w] = CR_MOTION | CR_SEND;
-                    center = 1;
-                }
-                if (top >= threshold && y > 0) {
-                    crvec[crv - w] = CR_MOTION | CR_SEND;
-                    center = 1;
-                }
-                if (center > 0) {
-                    crvec[crv + 0] = CR_MOTION | CR_SEND;
-                }
-
-                db += BLOCK_SIZE;
-                rb += BLOCK_SIZE;
-                ++crv;
-            }
-            db = ndb + (ds << TIMES_16_SHIFT);
-            rb = nrb + (rs << TIMES_16_SHIFT);
-            crv = ncrv + w;
-        }
+        difference.compare(in, refbuf, scan, threshold, crvec,
+                CR_MOTION | CR_SEND, getScanBlocks(changed));
         saveblks(in);
 
         /*
@@ -273,6 +179,34 @@ public class ConditionalReplenishment {
         scan = (scan + SCAN_LINE_SKIP) & SCAN_MASK;
     }
 
+    /*
+     * Only two lines of each block are compared in each frame, so a change
+     * can be missed by the lines compared when it happens.  A block that
+     * has changed is therefore scanned until the scan line has covered all
+     * of it, rather than only in the frame in which it changed.
+     */
+    private ChangedBlocks getScanBlocks(ChangedBlocks changed) {
+        if ((changed == null) || (changed.getWidth() != blkw)
+                || (changed.getHeight() != blkh)) {
+            return null;
+        }
+        if (scanBlocks == null) {
+            scanBlocks = new ChangedBlocks(blkw * BLOCK_SIZE,
+                    blkh * BLOCK_SIZE);
+        }
+        scanBlocks.clear();
+        for (int i = 0; i < nblk; i++) {
+            if (changed.isChanged(i)) {
+                scansLeft[i] = SCANS_TO_COVER;
+            }
+            if (scansLeft[i] > 0) {
+                scansLeft[i] -= 1;
+                scanBlocks.setChanged(i);
+            }
+        }
+        return scanBlocks;
+    }
+
     private void ageBlocks() {
         for (int i = 0; i < nblk; ++i) {
             int s = crState(crvec[i]);
@@ -374,5 +308,6 @@ public class ConditionalReplenishment {
      */
     public void close() {
         refbuf.free();
+        difference.close();
     }
 }
@@ -32,78 +32,49 @@
 
 package com.googlecode.vicovre.codecs.utils;
 
+import java.lang.reflect.Array;
+
 /**
- * An array that is quick to access but unsafe (uses sun.misc.Unsafe)
+ * An array that is quick to access as bytes, shorts, ints or longs
  * @author Andrew G D Rowley
  * @version 1.0
  */
-@SuppressWarnings("restriction")
 public class QuickArray extends QuickArrayAbstract {
 
-    private long address = 0;
-
     private int initSize = 0;
 
     private int size = 0;
 
-    private boolean freed = false;
-
     private Class<?> type = null;
 
     /**
      * Creates a new QuickArray
-     * @param type The type of the array
+     * @param type The type of the array (byte[], short[], int[] or long[])
      * @param size The number of elements in the array
-     * @throws QuickArrayException
+     * @throws QuickArrayException if the type is not supported
      */
     public QuickArray(Class< ? > type, int size) throws QuickArrayException {
         super();
         this.type = type;
-        int elementSize = getUnsafe().arrayIndexScale(type);
-        address = getUnsafe().allocateMemory(elementSize * size);
+        int elementSize = getElementSize(type);
+        Object data = Array.newInstance(type.getComponentType(), size);
         this.size = size * elementSize;
         this.initSize = size;
-    }
-
-    /**
-     *
-     * @see com.googlecode.vicovre.codecs.utils.QuickArrayAbstract#
-     *     getDataAddress()
-     */
-    protected long getDataAddress() {
-        return address;
+        setData(data, 0, this.size);
     }
 
     /**
      * Clears the array to all 0s
      */
     public void clear() {
-        if (DEBUG) {
-            check(0, size);
-        }
-        getUnsafe().setMemory(address, size, (byte) 0);
+        fill(0, size, (byte) 0);
     }
 
     /**
      * Frees the array
      */
     public synchronized void free() {
-        if (!freed) {
-            freed = true;
-            getUnsafe().freeMemory(address);
-        }
-    }
-
-    protected void finalize() throws Throwable {
-        free();
-    }
-
-    protected synchronized boolean freed() {
-        return freed;
-    }
-
-    protected long getLength() {
-        return size;
+        releaseData();
     }
 
     public int getSize() {
@@ -32,73 +32,209 @@
 
 package com.googlecode.vicovre.codecs.utils;
 
-import java.lang.reflect.Field;
-
-import sun.misc.Unsafe;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
- * Abstract class for quick but unsafe (using sun.misc.Unsafe) arrays
+ * Abstract class for quick arrays.  The values are held in a Java array of
+ * bytes, shorts, ints or longs, which can be read and written as any of
+ * these types with positions given as if it were an array of that type.
+ * Reading a type other than that of the array puts the bytes together in
+ * the native byte order, as if the array were a block of memory.
+ *
  * @author Andrew G D Rowley
  * @version 1.0
  */
-@SuppressWarnings("restriction")
 public abstract class QuickArrayAbstract {
 
-    protected static final boolean DEBUG = false;
+    /**
+     * The number of bytes in a byte
+     */
+    protected static final int BYTE_SIZE = 1;
+
+    /**
+     * The number of bytes in a short
+     */
+    protected static final int SHORT_SIZE = 2;
+
+    /**
+     * The number of bytes in an int
+     */
+    protected static final int INT_SIZE = 4;
+
+    /**
+     * The number of bytes in a long
+     */
+    protected static final int LONG_SIZE = 8;
+
+    private static final int BITS_PER_BYTE = 8;
+
+    private static final int BYTE_MASK = 0xFF;
 
-    private Unsafe unsafe = null;
+    // True if the first byte of a value in memory is the least significant
+    private static final boolean LITTLE_ENDIAN =
+        ByteOrder.nativeOrder().equals(ByteOrder.LITTLE_ENDIAN);
 
-    private long byteSize = 0;
+    // The array, if it holds bytes
+    private byte[] bytes = null;
 
-    private long intSize = 0;
+    // The array as a buffer in the native byte order, if it holds bytes
+    private ByteBuffer byteBuffer = null;
 
-    private long shortSize = 0;
+    // The array, if it holds shorts
+    private short[] shorts = null;
 
-    private long longSize = 0;
+    // The array, if it holds ints
+    private int[] ints = null;
+
+    // The array, if it holds longs
+    private long[] longs = null;
+
+    // The size of each element of the array in bytes
+    private int elementSize = 0;
+
+    // The element of the array at which this array starts
+    private int start = 0;
+
+    // The number of bytes in this array
+    private int length = 0;
 
     /**
-     * Creates a new QuickArrayAbstract
-     * @throws QuickArrayException
+     * Gets the size of the elements of an array type
+     * @param type The type of the array e.g. int[].class
+     * @return The size of the elements in bytes
+     * @throws QuickArrayException if the type is not supported
      */
-    public QuickArrayAbstract() throws QuickArrayException {
-        try {
-            Field field = Unsafe.class.getDeclaredField("theUnsafe");
-            field.setAccessible(true);
-            unsafe = (Unsafe) field.get(null);
-
-            byteSize = unsafe.arrayIndexScale(byte[].class);
-            shortSize = unsafe.arrayIndexScale(short[].class);
-            intSize = unsafe.arrayIndexScale(int[].class);
-            longSize = unsafe.arrayIndexScale(long[].class);
-        } catch (Exception e) {
-            throw new QuickArrayException(e);
+    protected static int getElementSize(Class< ? > type)
+            throws QuickArrayException {
+        if (type.equals(byte[].class)) {
+            return BYTE_SIZE;
+        } else if (type.equals(short[].class)) {
+            return SHORT_SIZE;
+        } else if (type.equals(int[].class)) {
+            return INT_SIZE;
+        } else if (type.equals(long[].class)) {
+            return LONG_SIZE;
         }
+        throw new QuickArrayException(new IllegalArgumentException(
+                "Unsupported array type " + type));
     }
 
-    protected Unsafe getUnsafe() {
-        return unsafe;
+    /**
+     * Sets the array that holds the values
+     * @param data The array (byte[], short[], int[] or long[])
+     * @param offset The offset into the array to start from in bytes
+     * @param length The length of this array in bytes
+     * @throws QuickArrayException if the type is not supported
+     */
+    protected void setData(Object data, int offset, int length)
+            throws QuickArrayException {
+        elementSize = getElementSize(data.getClass());
+        bytes = null;
+        byteBuffer = null;
+        shorts = null;
+        ints = null;
+        longs = null;
+        if (elementSize == BYTE_SIZE) {
+            bytes = (byte[]) data;
+            byteBuffer = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+        } else if (elementSize == SHORT_SIZE) {
+            shorts = (short[]) data;
+        } else if (elementSize == INT_SIZE) {
+            ints = (int[]) data;
+        } else {
+            longs = (long[]) data;
+        }
+        start = offset / elementSize;
+        this.length = length;
     }
 
-    protected abstract long getDataAddress();
+    /**
+     * Releases the array that holds the values
+     */
+    protected void releaseData() {
+        bytes = null;
+        byteBuffer = null;
+        shorts = null;
+        ints = null;
+        longs = null;
+    }
 
-    protected abstract boolean freed();
+    /**
+     * Gets the length of the array
+     * @return The length in bytes
+     */
+    protected long getLength() {
+        return length;
+    }
 
-    protected abstract long getLength();
+    // Gets a byte of the array as if it were a block of memory
+    private byte byteAt(int pos) {
+        if (bytes != null) {
+            return bytes[start + pos];
+        }
+        int element = start + (pos / elementSize);
+        int byteN = pos % elementSize;
+        if (!LITTLE_ENDIAN) {
+            byteN = elementSize - 1 - byteN;
+        }
+        int shift = byteN * BITS_PER_BYTE;
+        if (shorts != null) {
+            return (byte) (shorts[element] >> shift);
+        } else if (ints != null) {
+            return (byte) (ints[element] >> shift);
+        }
+        return (byte) (longs[element] >> shift);
+    }
 
-    protected synchronized void check(long pos, long length) {
-        String error = null;
-        if (freed()) {
-            error = "Array has already been freed!";
-        } else if ((pos + length) > getLength()) {
-            error = "Access will go out of bounds: starting at " + pos + " for "
-                    + length + " bytes of " + getLength();
+    // Sets a byte of the array as if it were a block of memory
+    private void setByteAt(int pos, byte b) {
+        if (bytes != null) {
+            bytes[start + pos] = b;
+            return;
         }
-        if (error != null) {
-            Throwable t = new Throwable(error);
-            t.fillInStackTrace();
-            t.printStackTrace();
+        int element = start + (pos / elementSize);
+        int byteN = pos % elementSize;
+        if (!LITTLE_ENDIAN) {
+            byteN = elementSize - 1 - byteN;
         }
+        int shift = byteN * BITS_PER_BYTE;
+        if (shorts != null) {
+            shorts[element] = (short) ((shorts[element] & ~(BYTE_MASK << shift))
+                    | ((b & BYTE_MASK) << shift));
+        } else if (ints != null) {
+            ints[element] = (ints[element] & ~(BYTE_MASK << shift))
+                    | ((b & BYTE_MASK) << shift);
+        } else {
+            longs[element] = (longs[element] & ~((long) BYTE_MASK << shift))
+                    | ((long) (b & BYTE_MASK) << shift);
+        }
+    }
 
+    // Gets count bytes starting at a byte position in the native order
+    private long readBytes(int pos, int count) {
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            long b = byteAt(pos + i) & BYTE_MASK;
+            if (LITTLE_ENDIAN) {
+                value |= b << (i * BITS_PER_BYTE);
+            } else {
+                value = (value << BITS_PER_BYTE) | b;
+            }
+        }
+        return value;
+    }
+
+    // Sets count bytes starting at a byte position in the native order
+    private void writeBytes(int pos, int count, long value) {
+        for (int i = 0; i < count; i++) {
+            int shift = i * BITS_PER_BYTE;
+            if (!LITTLE_ENDIAN) {
+                shift = (count - 1 - i) * BITS_PER_BYTE;
+            }
+            setByteAt(pos + i, (byte) (value >> shift));
+        }
     }
 
     /**
@@ -107,10 +243,10 @@ public abstract class QuickArrayAbstract {
      * @return The byte at the given position
      */
     public byte getByte(int pos) {
-        if (DEBUG) {
-            check(pos * byteSize, 1);
+        if (bytes != null) {
+            return bytes[start + pos];
         }
-        return unsafe.getByte(getDataAddress() + (pos * byteSize));
+        return byteAt(pos);
     }
 
     /**
@@ -119,10 +255,13 @@ public abstract class QuickArrayAbstract {
      * @return The short at the given position
      */
     public short getShort(int pos) {
-        if (DEBUG) {
-            check(pos * shortSize, 2);
+        if (shorts != null) {
+            return shorts[start + pos];
         }
-        return unsafe.getShort(getDataAddress() + (pos * shortSize));
+        if (byteBuffer != null) {
+            return byteBuffer.getShort(start + (pos * SHORT_SIZE));
+        }
+        return (short) readBytes(pos * SHORT_SIZE, SHORT_SIZE);
     }
 
     /**
@@ -131,10 +270,13 @@ public abstract class QuickArrayAbstract {
      * @return The int at the given position
      */
     public int getInt(int pos) {
-        if (DEBUG) {
-            check(pos * intSize, 4);
+        if (ints != null) {
+            return ints[start + pos];
+        }
+        if (byteBuffer != null) {
+            return byteBuffer.getInt(start + (pos * INT_SIZE));
         }
-        return unsafe.getInt(getDataAddress() + (pos * intSize));
+        return (int) readBytes(pos * INT_SIZE, INT_SIZE);
     }
 
     /**
@@ -143,10 +285,23 @@ public abstract class QuickArrayAbstract {
      * @return The long at the given position
      */
     public long getLong(int pos) {
-        if (DEBUG) {
-            check(pos * longSize, 8);
+        if (longs != null) {
+            return longs[start + pos];
         }
-        return unsafe.getLong(getDataAddress() + (pos * longSize));
+        return getBytesAsLong(pos * LONG_SIZE);
+    }
+
+    /**
+     * Gets eight bytes from the array as a long in the native byte order.
+     * The bytes do not have to be aligned to a long
+     * @param pos The position in the array as if it were a byte array
+     * @return The eight bytes starting at the given position
+     */
+    public long getBytesAsLong(int pos) {
+        if (byteBuffer != null) {
+            return byteBuffer.getLong(start + pos);
+        }
+        return readBytes(pos, LONG_SIZE);
     }
 
     /**
@@ -155,10 +310,11 @@ public abstract class QuickArrayAbstract {
      * @param b The byte to set
      */
     public void setByte(int pos, byte b) {
-        if (DEBUG) {
-            check(pos * byteSize, 1);
+        if (bytes != null) {
+            bytes[start + pos] = b;
+            return;
         }
-        unsafe.putByte(getDataAddress() + (pos * byteSize), b);
+        setByteAt(pos, b);
     }
 
     /**
@@ -167,10 +323,15 @@ public abstract class QuickArrayAbstract {
      * @param s The short to set
      */
     public void setShort(int pos, short s) {
-        if (DEBUG) {
-            check(pos * shortSize, 2);
+        if (shorts != null) {
+            shorts[start + pos] = s;
+            return;
+        }
+        if (byteBuffer != null) {
+            byteBuffer.putShort(start + (pos * SHORT_SIZE), s);
+            return;
         }
-        unsafe.putShort(getDataAddress() + (pos * shortSize), s);
+        writeBytes(pos * SHORT_SIZE, SHORT_SIZE, s);
     }
 
     /**
@@ -179,10 +340,15 @@ public abstract class QuickArrayAbstract {
      * @param i The int to set
      */
     public void setInt(int pos, int i) {
-        if (DEBUG) {
-            check(pos * intSize, 4);
+        if (ints != null) {
+            ints[start + pos] = i;
+            return;
         }
-        unsafe.putInt(getDataAddress() + (pos * intSize), i);
+        if (byteBuffer != null) {
+            byteBuffer.putInt(start + (pos * INT_SIZE), i);
+            return;
+        }
+        writeBytes(pos * INT_SIZE, INT_SIZE, i);
     }
 
     /**
@@ -191,10 +357,27 @@ public abstract class QuickArrayAbstract {
      * @param l The long to set
      */
     public void setLong(int pos, long l) {
-        if (DEBUG) {
-            check(pos * longSize, 8);
+        if (longs != null) {
+            longs[start + pos] = l;
+            return;
+        }
+        if (byteBuffer != null) {
+            byteBuffer.putLong(start + (pos * LONG_SIZE), l);
+            return;
+        }
+        writeBytes(pos * LONG_SIZE, LONG_SIZE, l);
+    }
+
+    // Gets the array holding the values
+    private Object getData() {
+        if (bytes != null) {
+            return bytes;
+        } else if (shorts != null) {
+            return shorts;
+        } else if (ints != null) {
+            return ints;
         }
-        unsafe.putLong(getDataAddress() + (pos * longSize), l);
+        return longs;
     }
 
     /**
@@ -206,11 +389,42 @@ public abstract class QuickArrayAbstract {
      */
     public void copy(QuickArrayAbstract in, int inOffset, int offset,
             int length) {
-        if (DEBUG) {
-            in.check(inOffset, length);
-            check(offset, length);
+        if ((in.elementSize == elementSize)
+                && (((inOffset | offset | length) % elementSize) == 0)) {
+            System.arraycopy(in.getData(), in.start + (inOffset / elementSize),
+                    getData(), start + (offset / elementSize),
+                    length / elementSize);
+        } else {
+            for (int i = 0; i < length; i++) {
+                setByteAt(offset + i, in.byteAt(inOffset + i));
+            }
+        }
+    }
+
+    /**
+     * Fills part of the array with a byte value
+     * @param offset The offset to start filling at in bytes
+     * @param length The number of bytes to fill
+     * @param value The value to fill with
+     */
+    public void fill(int offset, int length, byte value) {
+        if ((elementSize == BYTE_SIZE) || ((value == 0)
+                && (((offset | length) % elementSize) == 0))) {
+            int from = start + (offset / elementSize);
+            int to = from + (length / elementSize);
+            if (bytes != null) {
+                Arrays.fill(bytes, from, to, value);
+            } else if (shorts != null) {
+                Arrays.fill(shorts, from, to, (short) 0);
+            } else if (ints != null) {
+                Arrays.fill(ints, from, to, 0);
+            } else {
+                Arrays.fill(longs, from, to, 0);
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                setByteAt(offset + i, value);
+            }
         }
-        unsafe.copyMemory(in.getDataAddress() + inOffset,
-                getDataAddress() + offset, length);
     }
 }
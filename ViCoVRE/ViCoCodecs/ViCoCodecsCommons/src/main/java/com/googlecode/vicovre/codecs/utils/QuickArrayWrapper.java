@@ -35,24 +35,13 @@ package com.googlecode.vicovre.codecs.utils;
 import java.lang.reflect.Array;
 
 /**
- * An wrapper for an array that is quick but unsafe (uses sun.misc.Unsafe)
+ * A wrapper for an array that is quick to access as bytes, shorts, ints or
+ * longs
  * @author Andrew G D Rowley
  * @version 1.0
  */
-@SuppressWarnings("restriction")
 public class QuickArrayWrapper extends QuickArrayAbstract {
 
-    @SuppressWarnings("unused")
-    private Object data = null;
-
-    private long dataOffset = 0;
-
-    private long arrayOffset = 0;
-
-    private long length = 0;
-
-    private long elementSize = 0;
-
     /**
      * Creates a new QuickArrayWrapper
      * @param data The array to wrap
@@ -60,40 +49,19 @@ public class QuickArrayWrapper extends QuickArrayAbstract {
      */
     public QuickArrayWrapper(Object data) throws QuickArrayException {
         this(data, 0, Array.getLength(data));
-        length *= getUnsafe().arrayIndexScale(data.getClass());
     }
 
     /**
      * Creates a new QuickArrayWrapper
      * @param data The array to wrap
-     * @param offset The offset into the data to start from
+     * @param offset The offset into the data to start from in bytes
+     * @param length The number of elements of the data to use
      * @throws QuickArrayException
      */
     public QuickArrayWrapper(Object data, long offset, long length)
             throws QuickArrayException {
         super();
-        try {
-            dataOffset = getUnsafe().objectFieldOffset(
-                QuickArrayWrapper.class.getDeclaredField("data"));
-            arrayOffset = getUnsafe().arrayBaseOffset(data.getClass()) + offset;
-            elementSize = getUnsafe().arrayIndexScale(data.getClass());
-        } catch (Exception e) {
-            throw new QuickArrayException(e);
-        }
-
-        this.data = data;
-        this.length = length * elementSize;
-    }
-
-    protected long getDataAddress() {
-        return getUnsafe().getLong(this, dataOffset) + arrayOffset;
-    }
-
-    protected boolean freed() {
-        return false;
-    }
-
-    protected long getLength() {
-        return length;
+        int elementSize = getElementSize(data.getClass());
+        setData(data, (int) offset, (int) (length * elementSize));
     }
 }
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.codecs.utils;
+
+/**
+ * A set of threads that each do a share of some work alongside the calling
+ * thread.  The calling thread starts each run of the workers, does its own
+ * share, and then waits for the workers to finish theirs.  The workers
+ * wait between runs until the pool is closed.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class WorkerPool {
+
+    /**
+     * The share of the work done by one thread of a pool
+     */
+    public interface Worker {
+
+        /**
+         * Does the share of the work of the current run
+         */
+        void work();
+
+        /**
+         * Frees any resources of the worker once its thread has stopped
+         */
+        void close();
+    }
+
+    // A synchronization object for the threads
+    private Integer sync = new Integer(0);
+
+    // The threads of the pool
+    private WorkerThread[] threads = null;
+
+    // The number of the current run
+    private long runNumber = 0;
+
+    // The number of threads still working on the current run
+    private int running = 0;
+
+    // True when the threads are to stop
+    private boolean done = false;
+
+    // Runs a worker once for each run of the pool until closed
+    private class WorkerThread extends Thread {
+
+        // The worker run by the thread
+        private Worker worker = null;
+
+        // The number of the last run done by the thread
+        private long lastRun = 0;
+
+        private WorkerThread(String name, Worker worker) {
+            super(name);
+            setDaemon(true);
+            this.worker = worker;
+            lastRun = runNumber;
+        }
+
+        /**
+         * Runs the worker for each run of the pool until closed
+         *
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            while (true) {
+                synchronized (sync) {
+                    while (!done && (lastRun == runNumber)) {
+                        try {
+                            sync.wait();
+                        } catch (InterruptedException e) {
+                            // Do Nothing
+                        }
+                    }
+                    if (done) {
+                        break;
+                    }
+                    lastRun = runNumber;
+                }
+                try {
+                    worker.work();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                } finally {
+                    synchronized (sync) {
+                        running -= 1;
+                        sync.notifyAll();
+                    }
+                }
+            }
+            worker.close();
+        }
+    }
+
+    /**
+     * Creates a new WorkerPool, starting a thread for each worker
+     * @param name The name of the pool; threads are named after it
+     * @param workers The workers to run
+     */
+    public WorkerPool(String name, Worker[] workers) {
+        threads = new WorkerThread[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            threads[i] = new WorkerThread(name + "-" + i, workers[i]);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Gets the number of threads in the pool
+     * @return The number of threads
+     */
+    public int getSize() {
+        return threads.length;
+    }
+
+    /**
+     * Starts a run of all the workers.  Anything that the workers read must
+     * be set up before this is called
+     */
+    public void start() {
+        synchronized (sync) {
+            runNumber += 1;
+            running = threads.length;
+            sync.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for all the workers to finish the current run.  An interrupt
+     * does not stop the wait, as the workers may still be using anything
+     * given to them, but the interrupt is kept for the caller
+     */
+    public void waitForWorkers() {
+        boolean interrupted = false;
+        synchronized (sync) {
+            while (running > 0) {
+                try {
+                    sync.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the threads once they have finished any current run, and waits
+     * for them to stop
+     */
+    public void close() {
+        synchronized (sync) {
+            done = true;
+            sync.notifyAll();
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < threads.length; i++) {
+            while (threads[i].isAlive()) {
+                try {
+                    threads[i].join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.codecs.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the reading of bits and huffman codes
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class BitInputStreamTest {
+
+    // The codes of the huffman table, and their values
+    private static final String[] CODES = new String[]{"1", "01", "001",
+        "0001", "0000"};
+
+    private static final int[] VALUES = new int[]{3, 10, 200, 1, 77};
+
+    private static final int MAX_CODE_LENGTH = 4;
+
+    // Gets a bit of an array, most significant first
+    private static int getBit(byte[] data, int bit) {
+        return (data[bit / 8] >> (7 - (bit % 8))) & 0x1;
+    }
+
+    /**
+     * Tests reading runs of bits of different lengths
+     * @throws Exception
+     */
+    @Test
+    public void testReadBits() throws Exception {
+        Random random = new Random(1);
+        byte[] data = new byte[512];
+        random.nextBytes(data);
+        int offset = 3;
+        int length = 400;
+        BitInputStream in = new BitInputStream(data, offset, length);
+        int bit = offset * 8;
+        int end = (offset + length) * 8;
+        while (bit < end) {
+            int n = 1 + random.nextInt(16);
+            int expected = 0;
+            for (int i = 0; i < n; i++) {
+                int b = 0;
+                if (bit < end) {
+                    b = getBit(data, bit);
+                }
+                expected = (expected << 1) | b;
+                bit += 1;
+            }
+            assertEquals(expected, in.readBits(n));
+        }
+
+        // Past the end of the data there are only zeros
+        assertEquals(0, in.readBits(16));
+    }
+
+    /**
+     * Tests that the bits remaining count down as bits are read
+     * @throws Exception
+     */
+    @Test
+    public void testBitsRemaining() throws Exception {
+        byte[] data = new byte[10];
+        BitInputStream in = new BitInputStream(data, 2, 8);
+        assertEquals(64, in.bitsRemaining());
+        in.readBits(5);
+        assertEquals(59, in.bitsRemaining());
+        in.readBits(16);
+        assertEquals(43, in.bitsRemaining());
+    }
+
+    /**
+     * Tests decoding huffman codes
+     * @throws Exception
+     */
+    @Test
+    public void testHuffDecode() throws Exception {
+
+        // Each entry of the table is indexed by the next bits of the input
+        // and holds the value and the length of the code they start with
+        QuickArray table = new QuickArray(short[].class,
+                1 << MAX_CODE_LENGTH);
+        for (int c = 0; c < CODES.length; c++) {
+            int len = CODES[c].length();
+            int code = Integer.parseInt(CODES[c], 2);
+            int first = code << (MAX_CODE_LENGTH - len);
+            for (int i = 0; i < (1 << (MAX_CODE_LENGTH - len)); i++) {
+                table.setShort(first + i, (short) ((VALUES[c] << 5) | len));
+            }
+        }
+
+        Random random = new Random(2);
+        int[] symbols = new int[500];
+        StringBuffer bits = new StringBuffer();
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = random.nextInt(CODES.length);
+            bits.append(CODES[symbols[i]]);
+        }
+        byte[] data = new byte[(bits.length() + 7) / 8];
+        for (int i = 0; i < bits.length(); i++) {
+            if (bits.charAt(i) == '1') {
+                data[i / 8] |= 0x80 >> (i % 8);
+            }
+        }
+
+        BitInputStream in = new BitInputStream(data, 0, data.length);
+        for (int i = 0; i < symbols.length; i++) {
+            assertEquals(VALUES[symbols[i]],
+                    in.huffDecode(table, MAX_CODE_LENGTH));
+            assertEquals(CODES[symbols[i]], in.getLastCode());
+        }
+    }
+}
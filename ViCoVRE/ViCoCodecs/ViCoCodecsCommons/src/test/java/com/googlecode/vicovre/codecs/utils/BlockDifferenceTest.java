@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.codecs.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that the blocks marked by BlockDifference are the same as those
+ * marked by comparing the images one pixel at a time
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class BlockDifferenceTest {
+
+    private static final int BLOCK_SIZE = BlockDifference.BLOCK_SIZE;
+
+    // The thresholds to compare with
+    private static final int[] THRESHOLDS = new int[]{16, 48, 200};
+
+    // The number of areas changed between the images
+    private static final int CHANGES = 200;
+
+    private static final int MARK = 0x80;
+
+    // Marks the blocks that differ one pixel at a time, in the same way as
+    // the conditional replenishment of vic
+    private static void compareByPixel(byte[] in, int inOffset, byte[] ref,
+            int width, int height, int scan, int threshold, int[] crvec,
+            ChangedBlocks changed) {
+        int blkw = width / BLOCK_SIZE;
+        int blkh = height / BLOCK_SIZE;
+        for (int y = 0; y < blkh; y++) {
+            for (int x = 0; x < blkw; x++) {
+                int crv = (y * blkw) + x;
+                if ((changed != null) && !changed.isChanged(crv)) {
+                    continue;
+                }
+                int[] sums = new int[4];
+                int[] lines = new int[]{scan, scan + 8};
+                int top = 0;
+                int bottom = 0;
+                int left = 0;
+                int right = 0;
+                for (int l = 0; l < lines.length; l++) {
+                    int pos = (((y * BLOCK_SIZE) + lines[l]) * width)
+                        + (x * BLOCK_SIZE);
+                    for (int i = 0; i < sums.length; i++) {
+                        sums[i] = 0;
+                    }
+                    for (int i = 0; i < BLOCK_SIZE; i++) {
+                        sums[i / 4] += (in[inOffset + pos + i] & 0xFF)
+                            - (ref[pos + i] & 0xFF);
+                    }
+                    left += sums[0];
+                    right += sums[3];
+                    if (l == 0) {
+                        top = Math.abs(sums[1] + sums[2]);
+                    } else {
+                        bottom = Math.abs(sums[1] + sums[2]);
+                    }
+                    left = Math.abs(left);
+                    right = Math.abs(right);
+                }
+
+                boolean center = false;
+                if ((left >= threshold) && (x > 0)) {
+                    crvec[crv - 1] = MARK;
+                    center = true;
+                }
+                if ((right >= threshold) && (x < blkw - 1)) {
+                    crvec[crv + 1] = MARK;
+                    center = true;
+                }
+                if ((bottom >= threshold) && (y < blkh - 1)) {
+                    crvec[crv + blkw] = MARK;
+                    center = true;
+                }
+                if ((top >= threshold) && (y > 0)) {
+                    crvec[crv - blkw] = MARK;
+                    center = true;
+                }
+                if (center) {
+                    crvec[crv] = MARK;
+                }
+            }
+        }
+    }
+
+    // Creates an image that differs from the reference in a number of
+    // small areas, starting at the given offset of the array
+    private static byte[] change(byte[] ref, int offset, int width,
+            int height, Random random) {
+        byte[] in = new byte[offset + ref.length];
+        System.arraycopy(ref, 0, in, offset, ref.length);
+        for (int i = 0; i < CHANGES; i++) {
+            int w = 1 + random.nextInt(12);
+            int h = 1 + random.nextInt(12);
+            int x = random.nextInt(width - w);
+            int y = random.nextInt(height - h);
+            int delta = random.nextInt(64) - 32;
+            for (int j = y; j < y + h; j++) {
+                for (int k = x; k < x + w; k++) {
+                    int pos = offset + (j * width) + k;
+                    in[pos] = (byte) (in[pos] + delta);
+                }
+            }
+        }
+        return in;
+    }
+
+    // Compares images of a size in every way, checking the marks match
+    private void testSize(int width, int height, int threads, int offset,
+            boolean useChanged) throws Exception {
+        Random random = new Random(width * height);
+        byte[] ref = new byte[width * height];
+        random.nextBytes(ref);
+        byte[] in = change(ref, offset, width, height, random);
+        ChangedBlocks changed = null;
+        if (useChanged) {
+            changed = new ChangedBlocks(width, height);
+            changed.clear();
+            for (int i = 0; i < (changed.getWidth() * changed.getHeight());
+                    i += 3) {
+                changed.setChanged(i);
+            }
+        }
+
+        BlockDifference difference = new BlockDifference(width, height);
+        difference.setThreads(threads);
+        QuickArrayWrapper inArray = new QuickArrayWrapper(in, offset,
+                ref.length);
+        QuickArrayWrapper refArray = new QuickArrayWrapper(ref);
+        int blocks = (width / BLOCK_SIZE) * (height / BLOCK_SIZE);
+        int marked = 0;
+        for (int t = 0; t < THRESHOLDS.length; t++) {
+            for (int scan = 0; scan < 8; scan++) {
+                int[] expected = new int[blocks];
+                compareByPixel(in, offset, ref, width, height, scan,
+                        THRESHOLDS[t], expected, changed);
+                int[] crvec = new int[blocks];
+                difference.compare(inArray, refArray, scan, THRESHOLDS[t],
+                        crvec, MARK, changed);
+                assertArrayEquals(expected, crvec);
+                for (int i = 0; i < blocks; i++) {
+                    if (crvec[i] != 0) {
+                        marked += 1;
+                    }
+                }
+            }
+        }
+        difference.close();
+        assertTrue("No blocks marked", marked > 0);
+    }
+
+    /**
+     * Tests a CIF image
+     * @throws Exception
+     */
+    @Test
+    public void testCif() throws Exception {
+        testSize(352, 288, 1, 0, false);
+    }
+
+    /**
+     * Tests an image whose width is not a multiple of the block size
+     * @throws Exception
+     */
+    @Test
+    public void testUnevenWidth() throws Exception {
+        testSize(1366, 768, 1, 0, false);
+    }
+
+    /**
+     * Tests an image that does not start on a long boundary
+     * @throws Exception
+     */
+    @Test
+    public void testOffset() throws Exception {
+        testSize(352, 288, 1, 3, false);
+    }
+
+    /**
+     * Tests that only the changed blocks are compared
+     * @throws Exception
+     */
+    @Test
+    public void testChangedBlocks() throws Exception {
+        testSize(352, 288, 1, 0, true);
+    }
+
+    /**
+     * Tests a large image split into bands across several threads
+     * @throws Exception
+     */
+    @Test
+    public void testThreads() throws Exception {
+        testSize(1920, 1080, 4, 0, false);
+        testSize(2560, 1600, 3, 5, true);
+    }
+}
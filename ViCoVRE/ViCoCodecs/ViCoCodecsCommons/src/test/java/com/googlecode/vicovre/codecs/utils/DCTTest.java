@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.codecs.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the forward and reverse DCT
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class DCTTest {
+
+    // The number of random blocks to transform
+    private static final int BLOCKS = 256;
+
+    // The largest difference allowed after a round trip
+    private static final int TOLERANCE = 3;
+
+    // All coefficients present
+    private static final long ALL_COEFFICIENTS = 0xFFFFFFFFFFFFFFFFL;
+
+    // The forward transform leaves the coefficients transposed with respect
+    // to the order that the reverse transform reads them in
+    private QuickArray toBlock(int[] coefficients) throws Exception {
+        QuickArray block = new QuickArray(short[].class, 64);
+        for (int i = 0; i < 64; i++) {
+            block.setShort(((i % 8) * 8) + (i / 8), (short) coefficients[i]);
+        }
+        return block;
+    }
+
+    /**
+     * Tests that a block survives a forward and reverse transform
+     * @throws Exception
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        DCT dct = new DCT();
+        Random random = new Random(42);
+        byte[] in = new byte[64];
+        int[] coefficients = new int[64];
+        byte[] out = new byte[64];
+        int maxError = 0;
+        for (int n = 0; n < BLOCKS; n++) {
+            random.nextBytes(in);
+            dct.fdct(in, coefficients, 0, 0, 0, 8);
+            QuickArray block = toBlock(coefficients);
+            dct.rdct(block, ALL_COEFFICIENTS, out, 0, 8);
+            block.free();
+            for (int i = 0; i < 64; i++) {
+                int error = Math.abs((in[i] & 0xFF) - (out[i] & 0xFF));
+                maxError = Math.max(maxError, error);
+            }
+        }
+        dct.close();
+        assertTrue("Round trip error " + maxError, maxError <= TOLERANCE);
+    }
+
+    /**
+     * Tests that a block within a larger image is transformed in place
+     * @throws Exception
+     */
+    @Test
+    public void testOffsetBlock() throws Exception {
+        DCT dct = new DCT();
+        Random random = new Random(7);
+        int stride = 32;
+        byte[] image = new byte[stride * 24];
+        random.nextBytes(image);
+        byte[] block = new byte[64];
+        for (int y = 0; y < 8; y++) {
+            System.arraycopy(image, ((y + 8) * stride) + 16, block, y * 8, 8);
+        }
+
+        int[] expected = new int[64];
+        dct.fdct(block, expected, 0, 0, 0, 8);
+        int[] coefficients = new int[64];
+        dct.fdct(image, coefficients, 0, 16, 8, stride);
+        for (int i = 0; i < 64; i++) {
+            assertEquals(expected[i], coefficients[i]);
+        }
+
+        byte[] out = new byte[stride * 24];
+        dct.rdct(toBlock(coefficients), ALL_COEFFICIENTS, out,
+                (8 * stride) + 16, stride);
+        for (int y = 0; y < 24; y++) {
+            for (int x = 0; x < stride; x++) {
+                int i = (y * stride) + x;
+                if ((y >= 8) && (y < 16) && (x >= 16) && (x < 24)) {
+                    int error = Math.abs((image[i] & 0xFF) - (out[i] & 0xFF));
+                    assertTrue("Round trip error " + error,
+                            error <= TOLERANCE);
+                } else {
+                    assertEquals(0, out[i]);
+                }
+            }
+        }
+        dct.close();
+    }
+
+    /**
+     * Tests that a flat block only has a DC coefficient
+     * @throws Exception
+     */
+    @Test
+    public void testFlatBlock() throws Exception {
+        DCT dct = new DCT();
+        byte[] in = new byte[64];
+        Arrays.fill(in, (byte) 100);
+        int[] coefficients = new int[64];
+        dct.fdct(in, coefficients, 0, 0, 0, 8);
+        assertTrue(coefficients[0] != 0);
+        for (int i = 1; i < 64; i++) {
+            assertEquals(0, coefficients[i]);
+        }
+
+        byte[] out = new byte[64];
+        dct.rdct(toBlock(coefficients), 0x1L, out, 0, 8);
+        for (int i = 0; i < 64; i++) {
+            assertTrue(Math.abs(100 - (out[i] & 0xFF)) <= TOLERANCE);
+        }
+        dct.close();
+    }
+}
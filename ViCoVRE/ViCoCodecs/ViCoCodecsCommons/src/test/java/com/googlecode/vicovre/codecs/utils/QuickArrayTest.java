@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.codecs.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the reading and writing of QuickArrays of each type
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class QuickArrayTest {
+
+    private static final int SIZE = 64;
+
+    // Wraps bytes in the order that the arrays compose wider values in
+    private static ByteBuffer nativeBuffer(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Tests that values of the type of each array are kept
+     * @throws Exception
+     */
+    @Test
+    public void testOwnType() throws Exception {
+        QuickArray bytes = new QuickArray(byte[].class, SIZE);
+        QuickArray shorts = new QuickArray(short[].class, SIZE);
+        QuickArray ints = new QuickArray(int[].class, SIZE);
+        QuickArray longs = new QuickArray(long[].class, SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            bytes.setByte(i, (byte) (i - 32));
+            shorts.setShort(i, (short) (i * -1000));
+            ints.setInt(i, i * -100000000);
+            longs.setLong(i, i * -1000000000000L);
+        }
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals((byte) (i - 32), bytes.getByte(i));
+            assertEquals((short) (i * -1000), shorts.getShort(i));
+            assertEquals(i * -100000000, ints.getInt(i));
+            assertEquals(i * -1000000000000L, longs.getLong(i));
+        }
+        assertEquals(SIZE, ints.getSize());
+        assertEquals(int[].class, ints.getType());
+    }
+
+    /**
+     * Tests that wider values read from bytes are in the native order
+     * @throws Exception
+     */
+    @Test
+    public void testWiderFromBytes() throws Exception {
+        byte[] data = new byte[SIZE];
+        new Random(1).nextBytes(data);
+        ByteBuffer buffer = nativeBuffer(data);
+        QuickArray bytes = new QuickArray(byte[].class, SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            bytes.setByte(i, data[i]);
+        }
+        for (int i = 0; i < SIZE / 2; i++) {
+            assertEquals(buffer.getShort(i * 2), bytes.getShort(i));
+        }
+        for (int i = 0; i < SIZE / 4; i++) {
+            assertEquals(buffer.getInt(i * 4), bytes.getInt(i));
+        }
+        for (int i = 0; i < SIZE / 8; i++) {
+            assertEquals(buffer.getLong(i * 8), bytes.getLong(i));
+        }
+        for (int i = 0; i <= SIZE - 8; i++) {
+            assertEquals(buffer.getLong(i), bytes.getBytesAsLong(i));
+        }
+    }
+
+    /**
+     * Tests that bytes and other widths read from wider arrays are in the
+     * native order
+     * @throws Exception
+     */
+    @Test
+    public void testNarrowerFromWider() throws Exception {
+        byte[] data = new byte[SIZE * 4];
+        new Random(2).nextBytes(data);
+        ByteBuffer buffer = nativeBuffer(data);
+        QuickArray ints = new QuickArray(int[].class, SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            ints.setInt(i, buffer.getInt(i * 4));
+        }
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], ints.getByte(i));
+        }
+        for (int i = 0; i < data.length / 2; i++) {
+            assertEquals(buffer.getShort(i * 2), ints.getShort(i));
+        }
+        for (int i = 0; i < data.length / 8; i++) {
+            assertEquals(buffer.getLong(i * 8), ints.getLong(i));
+        }
+        for (int i = 0; i <= data.length - 8; i += 3) {
+            assertEquals(buffer.getLong(i), ints.getBytesAsLong(i));
+        }
+    }
+
+    /**
+     * Tests that writing other widths into an array changes only the bytes
+     * written
+     * @throws Exception
+     */
+    @Test
+    public void testMixedWrites() throws Exception {
+        byte[] expected = new byte[SIZE];
+        ByteBuffer buffer = nativeBuffer(expected);
+        QuickArray longs = new QuickArray(long[].class, SIZE / 8);
+        Random random = new Random(3);
+        for (int n = 0; n < 200; n++) {
+            int kind = random.nextInt(4);
+            if (kind == 0) {
+                int pos = random.nextInt(SIZE);
+                byte b = (byte) random.nextInt();
+                buffer.put(pos, b);
+                longs.setByte(pos, b);
+            } else if (kind == 1) {
+                int pos = random.nextInt(SIZE / 2);
+                short s = (short) random.nextInt();
+                buffer.putShort(pos * 2, s);
+                longs.setShort(pos, s);
+            } else if (kind == 2) {
+                int pos = random.nextInt(SIZE / 4);
+                int i = random.nextInt();
+                buffer.putInt(pos * 4, i);
+                longs.setInt(pos, i);
+            } else {
+                int pos = random.nextInt(SIZE / 8);
+                long l = random.nextLong();
+                buffer.putLong(pos * 8, l);
+                longs.setLong(pos, l);
+            }
+        }
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals(expected[i], longs.getByte(i));
+        }
+    }
+
+    /**
+     * Tests that a wrapper starting part way into an array reads and writes
+     * the array itself
+     * @throws Exception
+     */
+    @Test
+    public void testWrapperOffset() throws Exception {
+        byte[] data = new byte[SIZE];
+        new Random(4).nextBytes(data);
+        int offset = 5;
+        QuickArrayWrapper wrapper = new QuickArrayWrapper(data, offset,
+                SIZE - offset);
+        ByteBuffer buffer = nativeBuffer(data);
+        for (int i = 0; i < SIZE - offset; i++) {
+            assertEquals(data[offset + i], wrapper.getByte(i));
+        }
+        assertEquals(buffer.getInt(offset + 4), wrapper.getInt(1));
+        assertEquals(buffer.getLong(offset + 3), wrapper.getBytesAsLong(3));
+
+        wrapper.setByte(0, (byte) 0x12);
+        assertEquals(0x12, data[offset]);
+        wrapper.setInt(2, 0x01020304);
+        assertEquals(0x01020304, buffer.getInt(offset + 8));
+    }
+
+    /**
+     * Tests copying between arrays of the same and different types
+     * @throws Exception
+     */
+    @Test
+    public void testCopy() throws Exception {
+        byte[] data = new byte[SIZE];
+        new Random(5).nextBytes(data);
+        QuickArrayWrapper source = new QuickArrayWrapper(data);
+
+        QuickArray bytes = new QuickArray(byte[].class, SIZE);
+        bytes.copy(source, 8, 16, 32);
+        QuickArray ints = new QuickArray(int[].class, SIZE / 4);
+        ints.copy(source, 8, 16, 32);
+        QuickArray shorts = new QuickArray(short[].class, SIZE / 2);
+        shorts.copy(source, 3, 5, 27);
+        for (int i = 0; i < SIZE; i++) {
+            byte expected = 0;
+            if ((i >= 16) && (i < 48)) {
+                expected = data[i - 8];
+            }
+            assertEquals(expected, bytes.getByte(i));
+            assertEquals(expected, ints.getByte(i));
+
+            expected = 0;
+            if ((i >= 5) && (i < 32)) {
+                expected = data[i - 2];
+            }
+            assertEquals(expected, shorts.getByte(i));
+        }
+
+        QuickArray intCopy = new QuickArray(int[].class, SIZE / 4);
+        intCopy.copy(ints, 0, 0, SIZE);
+        for (int i = 0; i < SIZE / 4; i++) {
+            assertEquals(ints.getInt(i), intCopy.getInt(i));
+        }
+    }
+
+    /**
+     * Tests filling and clearing arrays
+     * @throws Exception
+     */
+    @Test
+    public void testFill() throws Exception {
+        QuickArray bytes = new QuickArray(byte[].class, SIZE);
+        bytes.fill(4, 10, (byte) 7);
+        QuickArray ints = new QuickArray(int[].class, SIZE / 4);
+        ints.fill(4, 10, (byte) 7);
+        for (int i = 0; i < SIZE; i++) {
+            byte expected = 0;
+            if ((i >= 4) && (i < 14)) {
+                expected = 7;
+            }
+            assertEquals(expected, bytes.getByte(i));
+            assertEquals(expected, ints.getByte(i));
+        }
+
+        ints.clear();
+        bytes.clear();
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals(0, bytes.getByte(i));
+            assertEquals(0, ints.getByte(i));
+        }
+    }
+
+    /**
+     * Tests that an unsupported type is refused
+     * @throws Exception
+     */
+    @Test
+    public void testUnsupportedType() throws Exception {
+        try {
+            new QuickArray(float[].class, SIZE);
+            fail("Float array was accepted");
+        } catch (QuickArrayException e) {
+            // Expected
+        }
+    }
+}
@@ -35,7 +35,6 @@ import java.io.IOException;
 
 import javax.media.Buffer;
 import javax.media.Format;
-import javax.media.ResourceUnavailableException;
 import javax.media.format.AudioFormat;
 import javax.media.format.UnsupportedFormatException;
 
@@ -75,15 +74,19 @@ public class AudioMixer {
 
     private long currentTimestamp = 0;
 
-    private double[] samples = new double[SAMPLES_PER_BUFFER];
+    private float[] samples = new float[SAMPLES_PER_BUFFER];
 
-    private byte[] data = new byte[SAMPLES_PER_BUFFER * 2];
+    // The samples read from a single source
+    private float[] sourceSamples = new float[SAMPLES_PER_BUFFER];
+
+    // The samples of a source before resampling
+    private float[] resampleInput = new float[SAMPLES_PER_BUFFER];
 
-    private ResampleCodec[] resample = null;
+    private byte[] data = new byte[SAMPLES_PER_BUFFER * 2];
 
-    private AudioFormat[] resampleInFormat = null;
+    private Buffer buffer = new Buffer();
 
-    private int[] sourceSamplesPerBuffer = null;
+    private Resampler[] resample = null;
 
     private boolean autoGain = true;
 
@@ -99,10 +102,9 @@ public class AudioMixer {
      * Creates a new AudioMixer
      * @param sources The linear audio sources to mix
      * @throws UnsupportedFormatException
-     * @throws ResourceUnavailableException
      */
     public AudioMixer(MemeticFileReader[] sources)
-            throws UnsupportedFormatException, ResourceUnavailableException {
+            throws UnsupportedFormatException {
         this.sources = new AudioSource[sources.length];
         minStartTime = Long.MAX_VALUE;
         for (MemeticFileReader source : sources) {
@@ -111,24 +113,14 @@ public class AudioMixer {
             }
         }
 
-        resample = new ResampleCodec[sources.length];
-        sourceSamplesPerBuffer = new int[sources.length];
-        resampleInFormat = new AudioFormat[sources.length];
+        resample = new Resampler[sources.length];
         for (int i = 0; i < sources.length; i++) {
             this.sources[i] = new AudioSource(sources[i], minStartTime);
             double sampleRate = this.sources[i].getSampleRate();
             if (sampleRate != FORMAT.getSampleRate()) {
-                resample[i] = new ResampleCodec();
-                resampleInFormat[i] = new AudioFormat(
-                        FORMAT.getEncoding(), sampleRate,
-                        FORMAT.getSampleSizeInBits(), FORMAT.getChannels(),
-                        FORMAT.getEndian(), FORMAT.getSigned());
-                resample[i].setInputFormat(resampleInFormat[i]);
-                resample[i].setOutputFormat(FORMAT);
-                resample[i].open();
+                resample[i] = new Resampler((int) sampleRate,
+                        (int) FORMAT.getSampleRate());
             }
-            sourceSamplesPerBuffer[i] = (int) ((SAMPLES_PER_BUFFER * sampleRate)
-                    / SAMPLE_RATE);
         }
 
     }
@@ -140,6 +132,9 @@ public class AudioMixer {
     public void streamSeek(long offset) throws IOException {
         for (int i = 0; i < sources.length; i++) {
             sources[i].seek(offset);
+            if (resample[i] != null) {
+                resample[i].reset();
+            }
         }
     }
 
@@ -180,42 +175,20 @@ public class AudioMixer {
 
         for (int i = 0; i < sources.length; i++) {
             if (resample[i] != null) {
-
-                byte[] sourceSamples = new byte[sourceSamplesPerBuffer[i] * 2];
-                for (int j = 0; j < sourceSamplesPerBuffer[i]; j++) {
-                    double dsample = sources[i].readNextSample();
-                    int sample = (int) (dsample * MAX_SAMPLE);
-                    for (int k = j * 2; k <= ((j * 2) + 1); k++) {
-                        sourceSamples[k] = (byte) (sample & 0xFF);
-                        sample >>= Byte.SIZE;
-                    }
-                }
-                Buffer input = new Buffer();
-                input.setData(sourceSamples);
-                input.setFormat(resampleInFormat[i]);
-                input.setOffset(0);
-                input.setLength(sourceSamples.length);
-                Buffer output = new Buffer();
-                resample[i].process(input, output);
-                byte[] outputData = (byte[]) output.getData();
-                for (int j = 0; j < SAMPLES_PER_BUFFER; j++) {
-                    int sample = 0;
-                    for (int k = 0; k < 2; k++) {
-                        int shift = k * Byte.SIZE;
-                        sample |= (outputData[(j * 2) + k] & 0xFF) << shift;
-                    }
-                    int shift = Integer.SIZE - FORMAT.getSampleSizeInBits();
-                    sample <<= shift;
-                    sample >>= shift;
-                    samples[j] = (samples[j] + ((double) sample / MAX_SAMPLE));
+                int inputs = resample[i].getInputsNeeded(SAMPLES_PER_BUFFER);
+                if (resampleInput.length < inputs) {
+                    resampleInput = new float[inputs];
                 }
+                sources[i].readSamples(resampleInput, 0, inputs);
+                resample[i].resample(resampleInput, 0, sourceSamples, 0,
+                        SAMPLES_PER_BUFFER);
+            } else if (!sources[i].isFinished()) {
+                sources[i].readSamples(sourceSamples, 0, SAMPLES_PER_BUFFER);
             } else {
-                for (int j = 0; j < SAMPLES_PER_BUFFER; j++) {
-                    if (!sources[i].isFinished()) {
-                        double sample = sources[i].readNextSample();
-                        samples[j] = (samples[j] + sample);
-                    }
-                }
+                continue;
+            }
+            for (int j = 0; j < SAMPLES_PER_BUFFER; j++) {
+                samples[j] += sourceSamples[j];
             }
         }
 
@@ -239,19 +212,18 @@ public class AudioMixer {
                     / rollingEnergy);
         }
 
+        float gain = (float) k;
         for (int i = 0; i < SAMPLES_PER_BUFFER; i++) {
-            samples[i] *= k;
-            if (samples[i] > 1.0) {
-                samples[i] = 1.0;
-            }
-            if (samples[i] < -1.0) {
-                samples[i] = -1.0;
+            float value = samples[i] * gain;
+            if (value > 1.0f) {
+                value = 1.0f;
             }
-            int sample = (int) (samples[i] * MAX_SAMPLE);
-            for (int j = i * 2; j <= ((i * 2) + 1); j++) {
-                data[j] = (byte) (sample & 0xFF);
-                sample >>= Byte.SIZE;
+            if (value < -1.0f) {
+                value = -1.0f;
             }
+            int sample = (int) (value * MAX_SAMPLE);
+            data[i * 2] = (byte) sample;
+            data[(i * 2) + 1] = (byte) (sample >> Byte.SIZE);
         }
 
         return true;
@@ -262,11 +234,11 @@ public class AudioMixer {
      * @return The next buffer
      */
     public Buffer getBuffer() {
-        Buffer buffer = new Buffer();
         buffer.setData(data);
         buffer.setOffset(0);
         buffer.setLength(data.length);
         buffer.setFormat(FORMAT);
+        buffer.setFlags(0);
         buffer.setTimeStamp(getTimestamp());
         buffer.setDuration(BUFFER_DURATION);
         currentTimestamp += BUFFER_DURATION;
@@ -73,6 +73,9 @@ public class AudioSource {
 
     private int samplePosition = 0;
 
+    // The position after the last sample in the buffer
+    private int sampleLimit = 0;
+
     public AudioSource(MemeticFileReader source, long minStartTime)
             throws UnsupportedFormatException {
         this.source = source;
@@ -120,6 +123,7 @@ public class AudioSource {
                 / format.getSampleRate();
             bufferEndOffset = bufferStartOffset + durationInMs;
             samplePosition = buffer.getOffset();
+            sampleLimit = buffer.getOffset() + buffer.getLength();
         }
     }
 
@@ -158,6 +162,47 @@ public class AudioSource {
         return sample;
     }
 
+    /**
+     * Reads a block of samples, each between -1.0 and 1.0
+     * @param samples The array to read the samples into
+     * @param offset The position of the first sample
+     * @param count The number of samples to read
+     * @throws IOException
+     */
+    public void readSamples(float[] samples, int offset, int count)
+            throws IOException {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            currentOffset += msPerRead;
+            if (!isFinished && ((buffer == null)
+                    || (currentOffset > bufferEndOffset))) {
+                readBuffer();
+            }
+            if (isFinished || (currentOffset < bufferStartOffset)
+                    || ((samplePosition + sampleSizeInBytes) > sampleLimit)) {
+                samples[i] = 0;
+            } else if ((sampleSizeInBytes == 2)
+                    && (format.getSigned() == AudioFormat.SIGNED)) {
+
+                // The usual case, so avoid the general conversion
+                byte[] data = (byte[]) buffer.getData();
+                int sample = 0;
+                if (format.getEndian() == AudioFormat.LITTLE_ENDIAN) {
+                    sample = (data[samplePosition] & 0xFF)
+                        | (data[samplePosition + 1] << Byte.SIZE);
+                } else {
+                    sample = (data[samplePosition] << Byte.SIZE)
+                        | (data[samplePosition + 1] & 0xFF);
+                }
+                samples[i] = (float) sample / maxSample;
+                samplePosition += sampleSizeInBytes;
+            } else {
+                samples[i] = (float) readSample(samplePosition);
+                samplePosition += sampleSizeInBytes;
+            }
+        }
+    }
+
     public void close() {
         if (processor != null) {
             processor.close();
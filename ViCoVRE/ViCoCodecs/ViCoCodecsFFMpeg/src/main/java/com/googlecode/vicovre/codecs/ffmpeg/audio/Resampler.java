@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.codecs.ffmpeg.audio;
+
+/**
+ * Converts the sample rate of a stream of mono samples using a polyphase
+ * filter.  The rates are reduced to a ratio of whole numbers L / M; the
+ * input is notionally interpolated by L, low-pass filtered and decimated by
+ * M, but only the filter taps that fall on input samples are evaluated.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class Resampler {
+
+    // The taps of each phase of the filter when not reducing the rate
+    private static final int TAPS_PER_PHASE = 16;
+
+    // The fraction of the lower Nyquist frequency that is passed
+    private static final double PASS_BAND = 0.9;
+
+    private int interpolation = 0;
+
+    private int decimation = 0;
+
+    private int taps = 0;
+
+    // The filter taps, stored phase by phase
+    private float[] coefficients = null;
+
+    // The previous inputs, followed by the inputs currently being used
+    private float[] history = null;
+
+    // The input that the next output is centred on, relative to the
+    // first of the current inputs (so -1 is the last of the previous inputs)
+    private int position = 0;
+
+    private int phase = 0;
+
+    /**
+     * Creates a new Resampler
+     *
+     * @param inputRate
+     *            The sample rate of the input
+     * @param outputRate
+     *            The sample rate of the output
+     */
+    public Resampler(int inputRate, int outputRate) {
+        int gcd = gcd(inputRate, outputRate);
+        interpolation = outputRate / gcd;
+        decimation = inputRate / gcd;
+
+        // When reducing the rate, the filter is narrower, so it needs more
+        // taps for the same transition
+        taps = (int) Math.ceil(TAPS_PER_PHASE
+                * Math.max(1.0, (double) decimation / interpolation));
+        int length = taps * interpolation;
+        double cutoff = (PASS_BAND * 0.5)
+            / Math.max(interpolation, decimation);
+        double centre = (length - 1) / 2.0;
+        coefficients = new float[length];
+        for (int i = 0; i < length; i++) {
+            double x = i - centre;
+            double sinc = 2 * cutoff;
+            if (x != 0) {
+                sinc = Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            }
+            double window = 0.42
+                - (0.5 * Math.cos((2 * Math.PI * i) / (length - 1)))
+                + (0.08 * Math.cos((4 * Math.PI * i) / (length - 1)));
+
+            // Tap k of phase p is tap p + (k * L) of the whole filter
+            int p = i % interpolation;
+            int k = i / interpolation;
+            coefficients[(p * taps) + k] =
+                (float) (sinc * window * interpolation);
+        }
+        history = new float[taps];
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Gets the number of inputs needed to produce a number of outputs
+     *
+     * @param outputs
+     *            The number of outputs to be produced
+     * @return The number of inputs that must be given to resample
+     */
+    public int getInputsNeeded(int outputs) {
+        if (outputs <= 0) {
+            return 0;
+        }
+        long last = (((long) phase + ((long) (outputs - 1) * decimation))
+                / interpolation) + position;
+        return (int) Math.max(0, last + 1);
+    }
+
+    /**
+     * Resamples a block of samples
+     *
+     * @param input
+     *            The input samples
+     * @param inputOffset
+     *            The position of the first input; the number of inputs used
+     *            is given by getInputsNeeded(outputs)
+     * @param output
+     *            The array to write the output samples to
+     * @param outputOffset
+     *            The position of the first output
+     * @param outputs
+     *            The number of outputs to produce
+     */
+    public void resample(float[] input, int inputOffset, float[] output,
+            int outputOffset, int outputs) {
+        int inputs = getInputsNeeded(outputs);
+        int keep = taps;
+        if (history.length < (keep + inputs)) {
+            float[] newHistory = new float[keep + inputs];
+            System.arraycopy(history, 0, newHistory, 0, keep);
+            history = newHistory;
+        }
+        System.arraycopy(input, inputOffset, history, keep, inputs);
+
+        for (int n = 0; n < outputs; n++) {
+            int newest = keep + position;
+            int c = phase * taps;
+            float value = 0;
+            for (int k = 0; k < taps; k++) {
+                value += coefficients[c + k] * history[newest - k];
+            }
+            output[outputOffset + n] = value;
+
+            phase += decimation;
+            position += phase / interpolation;
+            phase %= interpolation;
+        }
+
+        // Keep the most recent inputs for the next block
+        System.arraycopy(history, inputs, history, 0, keep);
+        position -= inputs;
+    }
+
+    /**
+     * Forgets the previous inputs, e.g. after a seek
+     */
+    public void reset() {
+        for (int i = 0; i < history.length; i++) {
+            history[i] = 0;
+        }
+        position = 0;
+        phase = 0;
+    }
+}
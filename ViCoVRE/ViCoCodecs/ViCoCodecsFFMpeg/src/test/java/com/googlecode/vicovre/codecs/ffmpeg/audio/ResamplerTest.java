@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.codecs.ffmpeg.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the resampling of a tone between common sample rates
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class ResamplerTest {
+
+    // The rate that the mixer outputs at
+    private static final int OUTPUT_RATE = 44100;
+
+    // The frequency of the test tone
+    private static final double FREQUENCY = 440.0;
+
+    // The number of outputs produced each time
+    private static final int BLOCK_SIZE = 441;
+
+    // The number of blocks to produce
+    private static final int BLOCKS = 40;
+
+    // The number of blocks ignored while the filter fills
+    private static final int SETTLE_BLOCKS = 4;
+
+    // The largest difference from the ideal tone allowed
+    private static final double TOLERANCE = 5e-4;
+
+    // Works out the delay in seconds of the filter that the resampler uses,
+    // which is centred on the middle of its taps
+    private static double getDelay(int inputRate, int outputRate) {
+        int a = inputRate;
+        int b = outputRate;
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        int interpolation = outputRate / a;
+        int decimation = inputRate / a;
+        int taps = (int) Math.ceil(16
+                * Math.max(1.0, (double) decimation / interpolation));
+        double centre = ((taps * interpolation) - 1) / 2.0;
+        return centre / ((double) interpolation * inputRate);
+    }
+
+    // Resamples a tone in blocks, returning the largest difference from
+    // the ideal tone once the filter has filled
+    private double resampleTone(int inputRate) {
+        Resampler resampler = new Resampler(inputRate, OUTPUT_RATE);
+        double delay = getDelay(inputRate, OUTPUT_RATE);
+        float[] input = new float[0];
+        float[] output = new float[BLOCK_SIZE];
+        int inputPosition = 0;
+        double maxError = 0;
+        for (int block = 0; block < BLOCKS; block++) {
+            int inputs = resampler.getInputsNeeded(BLOCK_SIZE);
+            if (input.length < inputs) {
+                input = new float[inputs];
+            }
+            for (int i = 0; i < inputs; i++) {
+                input[i] = (float) Math.sin(2 * Math.PI * FREQUENCY
+                        * (inputPosition + i) / inputRate);
+            }
+            inputPosition += inputs;
+            resampler.resample(input, 0, output, 0, BLOCK_SIZE);
+
+            if (block >= SETTLE_BLOCKS) {
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    double time = (double) ((block * BLOCK_SIZE) + i)
+                        / OUTPUT_RATE;
+                    double expected = Math.sin(2 * Math.PI * FREQUENCY
+                            * (time - delay));
+                    maxError = Math.max(maxError,
+                            Math.abs(expected - output[i]));
+                }
+            }
+        }
+        return maxError;
+    }
+
+    /**
+     * Tests that a tone is resampled accurately from the common rates
+     * @throws Exception
+     */
+    @Test
+    public void testToneAccuracy() throws Exception {
+        int[] rates = new int[]{8000, 11025, 16000, 22050, 32000, 44100,
+                48000};
+        for (int i = 0; i < rates.length; i++) {
+            double error = resampleTone(rates[i]);
+            assertTrue("Error of " + error + " from " + rates[i] + "Hz",
+                    error < TOLERANCE);
+        }
+    }
+
+    /**
+     * Tests that the output does not depend on the size of the blocks
+     * @throws Exception
+     */
+    @Test
+    public void testBlockSizes() throws Exception {
+        int inputRate = 22050;
+        int outputs = 4410;
+        float[] input = new float[outputs];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (float) Math.sin(2 * Math.PI * FREQUENCY * i
+                    / inputRate);
+        }
+
+        Resampler whole = new Resampler(inputRate, OUTPUT_RATE);
+        float[] expected = new float[outputs];
+        int used = whole.getInputsNeeded(outputs);
+        whole.resample(input, 0, expected, 0, outputs);
+
+        Resampler blocks = new Resampler(inputRate, OUTPUT_RATE);
+        float[] output = new float[outputs];
+        int inputPosition = 0;
+        int outputPosition = 0;
+        int blockSize = 1;
+        while (outputPosition < outputs) {
+            int count = Math.min(blockSize, outputs - outputPosition);
+            int inputs = blocks.getInputsNeeded(count);
+            blocks.resample(input, inputPosition, output, outputPosition,
+                    count);
+            inputPosition += inputs;
+            outputPosition += count;
+            blockSize = (blockSize % 97) + 13;
+        }
+        assertEquals(used, inputPosition);
+        for (int i = 0; i < outputs; i++) {
+            assertEquals(expected[i], output[i], 0.0);
+        }
+    }
+
+    /**
+     * Tests that a reset forgets the previous inputs
+     * @throws Exception
+     */
+    @Test
+    public void testReset() throws Exception {
+        Resampler resampler = new Resampler(8000, OUTPUT_RATE);
+        float[] input = new float[1000];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = 1;
+        }
+        float[] output = new float[BLOCK_SIZE];
+        resampler.resample(input, 0, output, 0, BLOCK_SIZE);
+        resampler.reset();
+
+        float[] silence = new float[1000];
+        resampler.resample(silence, 0, output, 0, BLOCK_SIZE);
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            assertEquals(0.0, output[i], 0.0);
+        }
+    }
+}
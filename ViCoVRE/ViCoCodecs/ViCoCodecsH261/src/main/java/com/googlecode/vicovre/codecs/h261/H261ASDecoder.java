@@ -47,6 +47,7 @@ import com.googlecode.vicovre.codecs.utils.QuickArray;
 import com.googlecode.vicovre.codecs.utils.QuickArrayException;
 import com.googlecode.vicovre.codecs.utils.QuickArrayWrapper;
 import com.googlecode.vicovre.media.controls.FrameFillControl;
+import com.googlecode.vicovre.media.controls.ThreadsControl;
 
 /**
  * A decoder for H261AS
@@ -138,17 +139,15 @@ public class H261ASDecoder extends H261AbstractDecoder
             return BUFFER_PROCESSED_FAILED;
         }
 
-        // Read the H261AS header
-        int ebit = in.readBits(3);
-        int quant = in.readBits(5);
+        // Read the size from the H261AS header
+        in.readBits(3);
+        in.readBits(5);
         int width = (in.readBits(12) + 1) << 4;
         int height = (in.readBits(12) + 1) << 4;
         int ysize = width * height;
         int csize = (width / 2) * (height / 2);
         int dataSize = ysize + (2 * csize);
 
-        int qt = quant << 8;
-
         int offset = output.getOffset();
         if (outputObject == null) {
             outputObject = new byte[dataSize];
@@ -203,6 +202,44 @@ public class H261ASDecoder extends H261AbstractDecoder
             cbOffset = ysize + csize;
         }
 
+        int result = decode(input, output.getOffset());
+        if (result != OUTPUT_BUFFER_NOT_FILLED) {
+            return result;
+        }
+        if ((input.getFlags() & Buffer.FLAG_RTP_MARKER) > 0) {
+            output.setData(outputObject);
+            output.setFormat(outputFormat);
+            output.setDiscard(false);
+            output.setTimeStamp(input.getTimeStamp());
+            output.setSequenceNumber(sequence++);
+            return BUFFER_PROCESSED_OK;
+        }
+        return OUTPUT_BUFFER_NOT_FILLED;
+    }
+
+    /**
+     *
+     * @see com.googlecode.vicovre.codecs.h261.H261AbstractDecoder#
+     *     decodePacket(byte[], int, int, int, BlockDecoder)
+     */
+    protected int decodePacket(byte[] data, int offset, int length,
+            int outputOffset, BlockDecoder blocks) {
+        BitInputStream in = null;
+        try {
+            in = new BitInputStream(data, offset, length);
+        } catch (QuickArrayException e) {
+            e.printStackTrace();
+            return BUFFER_PROCESSED_FAILED;
+        }
+
+        // Read the H261AS header
+        int ebit = in.readBits(3);
+        int quant = in.readBits(5);
+        int width = (in.readBits(12) + 1) << 4;
+        in.readBits(12);
+
+        int qt = quant << 8;
+
         int gob = 0;
         int mba = 0;
         while (in.bitsRemaining() > ebit) {
@@ -239,23 +276,23 @@ public class H261ASDecoder extends H261AbstractDecoder
 
                 if ((mtype & MT_TCOEFF) > 0) {
                     try {
-                        readBlock(in, out,
-                                yOffset + y1Offset + output.getOffset(), width,
+                        blocks.readBlock(in, out,
+                                yOffset + y1Offset + outputOffset, width,
                                 true, qt, ebit);
-                        readBlock(in, out,
-                                yOffset + y2Offset + output.getOffset(), width,
+                        blocks.readBlock(in, out,
+                                yOffset + y2Offset + outputOffset, width,
                                 true, qt, ebit);
-                        readBlock(in, out,
-                                yOffset + y3Offset + output.getOffset(), width,
+                        blocks.readBlock(in, out,
+                                yOffset + y3Offset + outputOffset, width,
                                 true, qt, ebit);
-                        readBlock(in, out,
-                                yOffset + y4Offset + output.getOffset(), width,
+                        blocks.readBlock(in, out,
+                                yOffset + y4Offset + outputOffset, width,
                                 true, qt, ebit);
-                        readBlock(in, out,
-                                cOffset + crOffset + output.getOffset(),
+                        blocks.readBlock(in, out,
+                                cOffset + crOffset + outputOffset,
                                 width / 2, true, qt, ebit);
-                        readBlock(in, out,
-                                cOffset + cbOffset + output.getOffset(),
+                        blocks.readBlock(in, out,
+                                cOffset + cbOffset + outputOffset,
                                 width / 2, true, qt, ebit);
                     } catch (QuickArrayException e) {
                         e.printStackTrace();
@@ -269,14 +306,6 @@ public class H261ASDecoder extends H261AbstractDecoder
                 return BUFFER_PROCESSED_FAILED;
             }
         }
-        if ((input.getFlags() & Buffer.FLAG_RTP_MARKER) > 0) {
-            output.setData(outputObject);
-            output.setFormat(outputFormat);
-            output.setDiscard(false);
-            output.setTimeStamp(input.getTimeStamp());
-            output.setSequenceNumber(sequence++);
-            return BUFFER_PROCESSED_OK;
-        }
         return OUTPUT_BUFFER_NOT_FILLED;
     }
 
@@ -349,6 +378,9 @@ public class H261ASDecoder extends H261AbstractDecoder
         if (className.equals("controls.FrameFillControl")) {
             return this;
         }
+        if (className.equals(ThreadsControl.class.getName())) {
+            return this;
+        }
         return null;
     }
 
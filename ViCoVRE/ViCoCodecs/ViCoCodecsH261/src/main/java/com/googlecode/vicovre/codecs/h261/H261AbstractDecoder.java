@@ -32,6 +32,10 @@
 
 package com.googlecode.vicovre.codecs.h261;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.media.Buffer;
 import javax.media.Codec;
 
 import com.googlecode.vicovre.codecs.utils.BitInputStream;
@@ -39,15 +43,28 @@ import com.googlecode.vicovre.codecs.utils.DCT;
 import com.googlecode.vicovre.codecs.utils.QuickArray;
 import com.googlecode.vicovre.codecs.utils.QuickArrayAbstract;
 import com.googlecode.vicovre.codecs.utils.QuickArrayException;
+import com.googlecode.vicovre.codecs.utils.WorkerPool;
 import com.googlecode.vicovre.media.controls.FrameFillControl;
+import com.googlecode.vicovre.media.controls.ThreadsControl;
 
 /**
- * Common H261 Decoding functions
+ * Common H261 Decoding functions.  With more than one thread, the packets
+ * of each frame are held until the last packet of the frame arrives, and
+ * are then decoded at the same time.  Each packet starts on a GOB or
+ * macroblock boundary and carries the state needed to decode it, and the
+ * packets of a frame cover different macroblocks, so they can be decoded
+ * in any order.
  * @author Andrew G D Rowley
  * @version 1.0
  */
 public abstract class H261AbstractDecoder implements Codec,
-        FrameFillControl {
+        FrameFillControl, ThreadsControl {
+
+    /**
+     * The default number of threads that decode the packets of each frame
+     */
+    public static final int DEFAULT_THREADS = Math.max(1,
+            Math.min(Runtime.getRuntime().availableProcessors(), 4));
 
     protected static final int MT_TCOEFF = 0x01;
 
@@ -101,9 +118,45 @@ public abstract class H261AbstractDecoder implements Codec,
 
     private int cbpHuffMaxLen = 0;
 
-    private QuickArray block = null;
+    // The decoder of blocks used by the calling thread
+    private BlockDecoder decoder = null;
+
+    // The number of threads that decode the packets of each frame
+    private int threads = DEFAULT_THREADS;
+
+    // The threads that decode packets alongside the calling thread
+    private WorkerPool workers = null;
+
+    // A synchronization object for the packet workers
+    private Integer packetSync = new Integer(0);
+
+    // The packets of the current frame waiting to be decoded
+    private List<Packet> pending = new ArrayList<Packet>();
+
+    // Packets that have been decoded, kept to hold later packets
+    private List<Packet> freePackets = new ArrayList<Packet>();
+
+    // The timestamp of the packets waiting to be decoded
+    private long pendingTimestamp = 0;
+
+    // The next packet to be decoded
+    private int nextPacket = 0;
+
+    // A packet waiting to be decoded
+    private static class Packet {
 
-    private DCT dct = null;
+        // The data of the packet
+        private byte[] data = null;
+
+        // The length of the packet in the data
+        private int length = 0;
+
+        // The offset of the output at the time the packet arrived
+        private int outputOffset = 0;
+
+        // The result of decoding the packet
+        private int result = OUTPUT_BUFFER_NOT_FILLED;
+    }
 
     /**
      * Creates a new H261AbstractDecoder
@@ -161,8 +214,7 @@ public abstract class H261AbstractDecoder implements Codec,
         cbpHuffMaxLen = 9;
         cbpHuff = makeHuff(H261Constants.CPBHUFF, cbpHuffMaxLen);
 
-        block = new QuickArray(short[].class, 64);
-        dct = new DCT();
+        decoder = new BlockDecoder();
     }
 
 
@@ -207,94 +259,305 @@ public abstract class H261AbstractDecoder implements Codec,
         return maxLen;
     }
 
-    protected boolean readBlock(BitInputStream in, QuickArrayAbstract out,
-            int offset, int stride,  boolean intra, int qt, int ebit)
-            throws QuickArrayException {
+    /**
+     * Decodes the blocks of macroblocks - each thread that decodes at the
+     * same time needs its own, as the coefficients are held during a block
+     */
+    protected class BlockDecoder {
 
-        block.clear();
+        private QuickArray block = null;
 
-        if (in.bitsRemaining() <= ebit) {
-            return true;
+        private DCT dct = null;
+
+        private BlockDecoder() throws QuickArrayException {
+            block = new QuickArray(short[].class, 64);
+            dct = new DCT();
         }
 
-        int nc = 0;
-        int k = 0;
-        int m0 = 0;
-        int dc = 0;
-        if (intra) {
-            dc = in.readBits(8);
-            if (dc == 255) {
-                dc = 128;
+        protected boolean readBlock(BitInputStream in, QuickArrayAbstract out,
+                int offset, int stride,  boolean intra, int qt, int ebit)
+                throws QuickArrayException {
+
+            block.clear();
+
+            if (in.bitsRemaining() <= ebit) {
+                return true;
             }
-            dc = dc << 3;
-            block.setShort(0, (short) (dc & 0xffff));
-            k = 1;
-            m0 = 1;
-        } else if (in.peekNextBit() == 1) {
-            int code = in.readBits(2);
-            int level = (code & 1) > 0 ? 0xFF : 1;
-            short realLevel = qtable.getShort(qt + level);
-            block.setShort(0, realLevel);
-            k = 1;
-            m0 = 1;
-        } else {
-            k = 0;
-        }
-        boolean eob = false;
-        while (!eob && (in.bitsRemaining() > ebit)) {
-            int runLevel = in.huffDecode(runLevelHuff, runLevelHuffMaxLen);
-            int run = 0;
-            int level = 0;
-            if (runLevel == EOB) {
-                eob = true;
-            } else if (runLevel == SYM_ILLEGAL) {
-                if (in.bitsRemaining() > ebit) {
-                    System.err.println("Illegal code "
-                            + in.getLastCode() + " bits remaining = "
-                            + in.bitsRemaining() + " k = " + k);
-                    return false;
+
+            int nc = 0;
+            int k = 0;
+            int m0 = 0;
+            int dc = 0;
+            if (intra) {
+                dc = in.readBits(8);
+                if (dc == 255) {
+                    dc = 128;
                 }
-                eob = true;
-            } else if (runLevel == ESCAPE) {
-                run = in.readBits(6);
-                level = in.readBits(8);
+                dc = dc << 3;
+                block.setShort(0, (short) (dc & 0xffff));
+                k = 1;
+                m0 = 1;
+            } else if (in.peekNextBit() == 1) {
+                int code = in.readBits(2);
+                int level = (code & 1) > 0 ? 0xFF : 1;
+                short realLevel = qtable.getShort(qt + level);
+                block.setShort(0, realLevel);
+                k = 1;
+                m0 = 1;
             } else {
-                level = (runLevel >> 6) & 0xFF;
-                run = runLevel & 0x1f;
+                k = 0;
+            }
+            boolean eob = false;
+            while (!eob && (in.bitsRemaining() > ebit)) {
+                int runLevel = in.huffDecode(runLevelHuff, runLevelHuffMaxLen);
+                int run = 0;
+                int level = 0;
+                if (runLevel == EOB) {
+                    eob = true;
+                } else if (runLevel == SYM_ILLEGAL) {
+                    if (in.bitsRemaining() > ebit) {
+                        System.err.println("Illegal code "
+                                + in.getLastCode() + " bits remaining = "
+                                + in.bitsRemaining() + " k = " + k);
+                        return false;
+                    }
+                    eob = true;
+                } else if (runLevel == ESCAPE) {
+                    run = in.readBits(6);
+                    level = in.readBits(8);
+                } else {
+                    level = (runLevel >> 6) & 0xFF;
+                    run = runLevel & 0x1f;
+                }
+
+                if (!eob) {
+                    k += run;
+                    if (k >= 64) {
+                        System.err.println("Run overflow");
+                        return false;
+                    }
+                    int pos = H261Constants.COLZAG[k++];
+                    short realLevel = qtable.getShort(qt + level);
+                    block.setShort(pos, realLevel);
+                    nc++;
+                    m0 |= 1 << pos;
+                }
             }
 
-            if (!eob) {
-                k += run;
-                if (k >= 64) {
-                    System.err.println("Run overflow");
-                    return false;
+            if (nc == 0) {
+                int dcFillVal = (dc + 4) >> 3;
+                for (int i = 0; i < 8; i++) {
+                    int outPos = offset + (i * stride);
+                    out.setByte(outPos + 0, (byte) (dcFillVal & 0xFF));
+                    out.setByte(outPos + 1, (byte) (dcFillVal & 0xFF));
+                    out.setByte(outPos + 2, (byte) (dcFillVal & 0xFF));
+                    out.setByte(outPos + 3, (byte) (dcFillVal & 0xFF));
+                    out.setByte(outPos + 4, (byte) (dcFillVal & 0xFF));
+                    out.setByte(outPos + 5, (byte) (dcFillVal & 0xFF));
+                    out.setByte(outPos + 6, (byte) (dcFillVal & 0xFF));
+                    out.setByte(outPos + 7, (byte) (dcFillVal & 0xFF));
                 }
-                int pos = H261Constants.COLZAG[k++];
-                short realLevel = qtable.getShort(qt + level);
-                block.setShort(pos, realLevel);
-                nc++;
-                m0 |= 1 << pos;
+            } else {
+                dct.rdct(block, m0, out, offset, stride);
             }
+
+            return true;
+        }
+
+        private void close() {
+            block.free();
+            dct.close();
         }
+    }
+
+    // Decodes packets of each frame alongside the calling thread
+    private class PacketWorker implements WorkerPool.Worker {
+
+        // The decoder of the blocks of this worker
+        private BlockDecoder packetDecoder = null;
 
-        if (nc == 0) {
-            int dcFillVal = (dc + 4) >> 3;
-            for (int i = 0; i < 8; i++) {
-                int outPos = offset + (i * stride);
-                out.setByte(outPos + 0, (byte) (dcFillVal & 0xFF));
-                out.setByte(outPos + 1, (byte) (dcFillVal & 0xFF));
-                out.setByte(outPos + 2, (byte) (dcFillVal & 0xFF));
-                out.setByte(outPos + 3, (byte) (dcFillVal & 0xFF));
-                out.setByte(outPos + 4, (byte) (dcFillVal & 0xFF));
-                out.setByte(outPos + 5, (byte) (dcFillVal & 0xFF));
-                out.setByte(outPos + 6, (byte) (dcFillVal & 0xFF));
-                out.setByte(outPos + 7, (byte) (dcFillVal & 0xFF));
+        private PacketWorker() throws QuickArrayException {
+            packetDecoder = new BlockDecoder();
+        }
+
+        /**
+         * Decodes packets of the current frame until there are none left
+         *
+         * @see WorkerPool.Worker#work()
+         */
+        public void work() {
+            decodePackets(packetDecoder);
+        }
+
+        /**
+         *
+         * @see WorkerPool.Worker#close()
+         */
+        public void close() {
+            packetDecoder.close();
+        }
+    }
+
+    /**
+     * Decodes the macroblocks of a packet into the output
+     * @param data The data of the packet
+     * @param offset The offset of the packet in the data
+     * @param length The length of the packet
+     * @param outputOffset The offset of the frame in the output
+     * @param blocks The decoder of the blocks to use
+     * @return OUTPUT_BUFFER_NOT_FILLED if the packet was decoded, or another
+     *     result to be returned from process without finishing the frame
+     */
+    protected abstract int decodePacket(byte[] data, int offset, int length,
+            int outputOffset, BlockDecoder blocks);
+
+    /**
+     * Decodes a packet, or holds it until the last packet of the frame
+     * arrives when more than one thread is in use
+     * @param input The packet
+     * @param outputOffset The offset of the frame in the output
+     * @return OUTPUT_BUFFER_NOT_FILLED if the packet was decoded or held,
+     *     or another result to be returned from process without finishing
+     *     the frame
+     */
+    protected int decode(Buffer input, int outputOffset) {
+        byte[] data = (byte[]) input.getData();
+        if (threads < 2) {
+            return decodePacket(data, input.getOffset(), input.getLength(),
+                    outputOffset, decoder);
+        }
+
+        // A new timestamp means that the last packet of the previous frame
+        // was lost, so its packets are decoded before this one is held
+        int result = OUTPUT_BUFFER_NOT_FILLED;
+        if (!pending.isEmpty()
+                && (input.getTimeStamp() != pendingTimestamp)) {
+            result = decodePending();
+            if (result != BUFFER_PROCESSED_FAILED) {
+                result = OUTPUT_BUFFER_NOT_FILLED;
             }
+        }
+        Packet packet = null;
+        if (freePackets.isEmpty()) {
+            packet = new Packet();
         } else {
-            dct.rdct(block, m0, out, offset, stride);
+            packet = freePackets.remove(freePackets.size() - 1);
+        }
+        if ((packet.data == null) || (packet.data.length < input.getLength())) {
+            packet.data = new byte[input.getLength()];
+        }
+        System.arraycopy(data, input.getOffset(), packet.data, 0,
+                input.getLength());
+        packet.length = input.getLength();
+        packet.outputOffset = outputOffset;
+        packet.result = OUTPUT_BUFFER_NOT_FILLED;
+        pending.add(packet);
+        pendingTimestamp = input.getTimeStamp();
+
+        if ((input.getFlags() & Buffer.FLAG_RTP_MARKER) > 0) {
+            return decodePending();
         }
+        return result;
+    }
+
+    // Gets the next packet to be decoded, or null if there are none
+    private Packet takePacket() {
+        synchronized (packetSync) {
+            if (nextPacket < pending.size()) {
+                return pending.get(nextPacket++);
+            }
+            return null;
+        }
+    }
 
-        return true;
+    // Decodes packets until there are none left
+    private void decodePackets(BlockDecoder blocks) {
+        Packet packet = takePacket();
+        while (packet != null) {
+            try {
+                packet.result = decodePacket(packet.data, 0,
+                        packet.length, packet.outputOffset, blocks);
+            } catch (Exception e) {
+                e.printStackTrace();
+                packet.result = BUFFER_PROCESSED_FAILED;
+            }
+            packet = takePacket();
+        }
+    }
+
+    // Decodes the held packets across the workers and this thread,
+    // returning BUFFER_PROCESSED_FAILED if any packet failed, or otherwise
+    // the result of the last packet
+    private int decodePending() {
+        synchronized (packetSync) {
+            nextPacket = 0;
+        }
+        if (pending.size() == 1) {
+            decodePackets(decoder);
+            return finishPending();
+        }
+        if (workers == null) {
+            try {
+                PacketWorker[] packetWorkers = new PacketWorker[threads - 1];
+                for (int i = 0; i < packetWorkers.length; i++) {
+                    packetWorkers[i] = new PacketWorker();
+                }
+                workers = new WorkerPool(getName(), packetWorkers);
+            } catch (QuickArrayException e) {
+                e.printStackTrace();
+                threads = 1;
+            }
+        }
+
+        if (workers != null) {
+            workers.start();
+        }
+        decodePackets(decoder);
+        if (workers != null) {
+            workers.waitForWorkers();
+        }
+        return finishPending();
+    }
+
+    // Gets the result of the decoded packets and keeps them for reuse
+    private int finishPending() {
+        int result = OUTPUT_BUFFER_NOT_FILLED;
+        for (Packet packet : pending) {
+            if (result != BUFFER_PROCESSED_FAILED) {
+                result = packet.result;
+            }
+        }
+        freePackets.addAll(pending);
+        pending.clear();
+        return result;
+    }
+
+    private void stopWorkers() {
+        if (workers != null) {
+            workers.close();
+            workers = null;
+        }
+    }
+
+    /**
+     * Sets the number of threads that decode each frame.  With more than
+     * one, the packets of each frame are held until the last one arrives
+     * @param threads The number of threads
+     */
+    public synchronized void setThreads(int threads) {
+        stopWorkers();
+        this.threads = Math.max(1, threads);
+        if ((this.threads < 2) && !pending.isEmpty()) {
+            decodePending();
+        }
+    }
+
+    /**
+     * Gets the number of threads that decode each frame
+     * @return The number of threads
+     */
+    public int getThreads() {
+        return threads;
     }
 
     protected int readMba(BitInputStream in) {
@@ -314,11 +577,13 @@ public abstract class H261AbstractDecoder implements Codec,
      * @see javax.media.PlugIn#close()
      */
     public void close() {
+        stopWorkers();
+        pending.clear();
+        freePackets.clear();
         qtable.free();
         mtypeHuff.free();
-        block.free();
+        decoder.close();
         mbaHuff.free();
         runLevelHuff.free();
-        dct.close();
     }
 }
@@ -46,11 +46,13 @@ import javax.media.format.VideoFormat;
 import javax.media.format.YUVFormat;
 
 import com.googlecode.vicovre.codecs.utils.BitOutputStream;
+import com.googlecode.vicovre.codecs.utils.ChangedBlocks;
 import com.googlecode.vicovre.codecs.utils.ConditionalReplenishment;
 import com.googlecode.vicovre.codecs.utils.DCT;
 import com.googlecode.vicovre.codecs.utils.QuickArray;
 import com.googlecode.vicovre.codecs.utils.QuickArrayException;
 import com.googlecode.vicovre.codecs.utils.QuickArrayWrapper;
+import com.googlecode.vicovre.codecs.utils.WorkerPool;
 import com.googlecode.vicovre.media.controls.KeyFrameForceControl;
 
 /**
@@ -60,6 +62,12 @@ import com.googlecode.vicovre.media.controls.KeyFrameForceControl;
 public abstract class H261AbstractEncoder implements Codec,
         QualityControl, KeyFrameControl, KeyFrameForceControl {
 
+    /**
+     * The default number of threads that encode the GOBs of each frame
+     */
+    public static final int DEFAULT_THREADS = Math.max(1,
+            Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
     // The number of bits in the header
     private static final int HEADER_BITS = 32;
 
@@ -83,23 +91,21 @@ public abstract class H261AbstractEncoder implements Codec,
     // The DC quantization shift
     private static final int DC_QUANT_SHIFT = 3;
 
-    // The DCT values of the first Y block
-    private QuickArray y1DCT = null;
-
-    // The DCT values of the second Y block
-    private QuickArray y2DCT = null;
+    // The number of bits in an escaped run-level code
+    private static final int ESCAPE_BITS = 20;
 
-    // The DCT values of the third Y block
-    private QuickArray y3DCT = null;
+    // The number of macroblocks in a GOB
+    private static final int GOB_MACROBLOCKS = 33;
 
-    // The DCT values of the fourth Y block
-    private QuickArray y4DCT = null;
+    // The most bytes that a GOB can be coded in - each of the six blocks
+    // of each macroblock is at worst a DC, escaped coefficients and an EOB,
+    // plus the word that the bit stream writes at a time
+    private static final int MAX_GOB_BYTES = ((GOB_MACROBLOCKS * 6
+            * (H261Constants.DC_BITS + (63 * ESCAPE_BITS)
+                    + H261Constants.EOB_BITS)) >> 3) + 4;
 
-    // The DCT values of the Cb block
-    private QuickArray cbDCT = null;
-
-    // The DCT values of the Cr block
-    private QuickArray crDCT = null;
+    // The encoder of macroblocks used by the calling thread
+    private MacroblockEncoder encoder = null;
 
     // The level map
     private QuickArray[] levelmap = new QuickArray[31];
@@ -111,10 +117,41 @@ public abstract class H261AbstractEncoder implements Codec,
 
     private QuickArray runLevelEncOffset = null;
 
-    private DCT dct = new DCT();
-
     private ConditionalReplenishment cr = null;
 
+    // The number of threads that encode the GOBs of each frame
+    private int threads = DEFAULT_THREADS;
+
+    // The threads that encode GOBs alongside the calling thread
+    private WorkerPool workers = null;
+
+    // A synchronization object for the GOB workers
+    private Integer gobSync = new Integer(0);
+
+    // The frame whose GOBs are being encoded
+    private byte[] gobFrame = null;
+
+    // The next GOB to be encoded
+    private int nextGob = 0;
+
+    // Any error encountered by a worker
+    private Exception gobError = null;
+
+    // True if the GOBs of the current frame have already been encoded
+    private boolean gobsEncoded = false;
+
+    // The coded macroblock data of each GOB
+    private byte[][] gobData = null;
+
+    // The quantizer of each macroblock
+    private int[] mbQuant = null;
+
+    // The bit in the GOB data at which each macroblock starts
+    private int[] mbBitStart = null;
+
+    // The number of bits in the GOB data of each macroblock
+    private int[] mbBitCount = null;
+
     // The quantizer of the frames
     private int hq = 1;
     private int mq = 2;
@@ -176,18 +213,7 @@ public abstract class H261AbstractEncoder implements Codec,
         outputFormats[0] = new VideoFormat(codecName);
         this.codecName = codecName;
 
-        y1DCT = new QuickArray(int[].class, 64);
-        y2DCT = new QuickArray(int[].class, 64);
-        y3DCT = new QuickArray(int[].class, 64);
-        y4DCT = new QuickArray(int[].class, 64);
-        crDCT = new QuickArray(int[].class, 64);
-        cbDCT = new QuickArray(int[].class, 64);
-        y1DCT.clear();
-        y2DCT.clear();
-        y3DCT.clear();
-        y4DCT.clear();
-        crDCT.clear();
-        cbDCT.clear();
+        encoder = new MacroblockEncoder();
 
         mbaHuffEncOffset = new QuickArray(int[].class,
                 H261Constants.MBAHUFF.length);
@@ -226,6 +252,19 @@ public abstract class H261AbstractEncoder implements Codec,
         return map;
     }
 
+    // Gets the level map for a quantizer, creating it if it doesn't exist
+    private synchronized QuickArray getLevelMap(int quant, boolean colour)
+            throws QuickArrayException {
+        if (levelmap[quant] == null) {
+            levelmap[quant] = makeLevelMap(quant, 1);
+            levelmapc[quant] = makeLevelMap(quant, 2);
+        }
+        if (colour) {
+            return levelmapc[quant];
+        }
+        return levelmap[quant];
+    }
+
     // Adds a block to the BitVector
     protected void addBlock(BitOutputStream outputdata, QuickArray dctVals,
             QuickArray levelmap) {
@@ -278,7 +317,7 @@ public abstract class H261AbstractEncoder implements Codec,
                  }
 
                  if (len == 0) {
-                     len = 20;
+                     len = ESCAPE_BITS;
                      code = (0x4000) | ((run & 0x3f) << 8) | (level & 0xff);
                  }
                  outputdata.add(code, len);
@@ -294,6 +333,264 @@ public abstract class H261AbstractEncoder implements Codec,
             BitOutputStream outputdata, int startMquant, long timestamp)
             throws QuickArrayException;
 
+    // Transforms and codes macroblocks - each thread that encodes at the
+    // same time needs its own, as the coefficients are held between calls
+    private class MacroblockEncoder {
+
+        // The DCT values of the first Y block
+        private QuickArray y1DCT = null;
+
+        // The DCT values of the second Y block
+        private QuickArray y2DCT = null;
+
+        // The DCT values of the third Y block
+        private QuickArray y3DCT = null;
+
+        // The DCT values of the fourth Y block
+        private QuickArray y4DCT = null;
+
+        // The DCT values of the Cb block
+        private QuickArray cbDCT = null;
+
+        // The DCT values of the Cr block
+        private QuickArray crDCT = null;
+
+        private DCT dct = null;
+
+        // The space in which a GOB is coded
+        private byte[] gobScratch = null;
+
+        private MacroblockEncoder() throws QuickArrayException {
+            y1DCT = new QuickArray(int[].class, 64);
+            y2DCT = new QuickArray(int[].class, 64);
+            y3DCT = new QuickArray(int[].class, 64);
+            y4DCT = new QuickArray(int[].class, 64);
+            crDCT = new QuickArray(int[].class, 64);
+            cbDCT = new QuickArray(int[].class, 64);
+            y1DCT.clear();
+            y2DCT.clear();
+            y3DCT.clear();
+            y4DCT.clear();
+            crDCT.clear();
+            cbDCT.clear();
+            dct = new DCT();
+        }
+
+        // Transforms a macroblock and returns the quantizer to code it with
+        private int transform(QuickArrayWrapper yuvw, int blockN,
+                int currentX, int currentY) {
+            int quant = 0;
+            int how = cr.getCrState(blockN);
+            if (how == ConditionalReplenishment.CR_MOTION) {
+                quant = lq;
+            } else if (how == ConditionalReplenishment.CR_BG) {
+                quant = hq;
+            } else {
+                quant = mq;
+            }
+
+            // DCT the blocks
+            dct.fdct(yuvw, y1DCT, yStart, currentX,
+                    currentY, yStride);
+            dct.fdct(yuvw, y2DCT, yStart, currentX + 8,
+                    currentY, yStride);
+            dct.fdct(yuvw, y3DCT, yStart, currentX,
+                    currentY + 8, yStride);
+            dct.fdct(yuvw, y4DCT, yStart, currentX + 8,
+                    currentY + 8,  yStride);
+            dct.fdct(yuvw, cbDCT, cbStart, currentX / 2,
+                    currentY / 2, crcbStride);
+            dct.fdct(yuvw, crDCT, crStart, currentX / 2,
+                    currentY / 2, crcbStride);
+
+            // Check the quantizer is enough for the macroblock
+            int max = 0;
+            int min = 0;
+            for (int z = 1; z < 64; z++) {
+                max = Math.max(max, y1DCT.getInt(z));
+                min = Math.min(min, y1DCT.getInt(z));
+                max = Math.max(max, y2DCT.getInt(z));
+                min = Math.min(min, y2DCT.getInt(z));
+                max = Math.max(max, y3DCT.getInt(z));
+                min = Math.min(min, y3DCT.getInt(z));
+                max = Math.max(max, y4DCT.getInt(z));
+                min = Math.min(min, y4DCT.getInt(z));
+                max = Math.max(max, crDCT.getInt(z));
+                min = Math.min(min, crDCT.getInt(z));
+                max = Math.max(max, cbDCT.getInt(z));
+                min = Math.min(min, cbDCT.getInt(z));
+            }
+
+            // Need to requantize
+            if (-min > max) {
+                max = -min;
+            }
+            if (max / quant >= H261Constants.MAX_LEVEL) {
+                while (max / quant >= H261Constants.MAX_LEVEL) {
+                    quant += 1;
+                }
+            }
+            return quant;
+        }
+
+        // Adds the blocks of the last macroblock transformed
+        private void addBlocks(BitOutputStream outputdata, int quant)
+                throws QuickArrayException {
+
+            // MB Data - Y
+            QuickArray map = getLevelMap(quant, false);
+            addBlock(outputdata, y1DCT, map);
+            addBlock(outputdata, y2DCT, map);
+            addBlock(outputdata, y3DCT, map);
+            addBlock(outputdata, y4DCT, map);
+
+            // MB Data - Cb
+            map = getLevelMap(quant, true);
+            addBlock(outputdata, cbDCT, map);
+
+            // MB Data - Cr
+            addBlock(outputdata, crDCT, map);
+        }
+
+        // Codes the data of the macroblocks of a GOB that are to be sent,
+        // leaving the headers to be added when the GOB is packetized
+        private void encodeGob(QuickArrayWrapper yuvw, int gob)
+                throws QuickArrayException {
+            if (gobScratch == null) {
+                gobScratch = new byte[MAX_GOB_BYTES];
+            }
+            BitOutputStream gobdata = new BitOutputStream(gobScratch, 0);
+            int firstBlock = gob * GOB_MACROBLOCKS;
+            int lastBlock = Math.min(firstBlock + GOB_MACROBLOCKS, nBlocks);
+            for (int blockN = firstBlock; blockN < lastBlock; blockN++) {
+                if (cr.send(blockN)) {
+                    int currentX = (blockN % nBlocksWidth) * 16;
+                    int currentY = (blockN / nBlocksWidth) * 16;
+                    int quant = transform(yuvw, blockN, currentX, currentY);
+                    mbQuant[blockN] = quant;
+                    mbBitStart[blockN] = gobdata.noBits();
+                    addBlocks(gobdata, quant);
+                    mbBitCount[blockN] = gobdata.noBits() - mbBitStart[blockN];
+                }
+            }
+            gobdata.flush();
+
+            int length = gobdata.getLength();
+            if ((gobData[gob] == null) || (gobData[gob].length < length)) {
+                gobData[gob] = new byte[length];
+            }
+            System.arraycopy(gobScratch, 0, gobData[gob], 0, length);
+        }
+
+        private void close() {
+            y1DCT.free();
+            y2DCT.free();
+            y3DCT.free();
+            y4DCT.free();
+            crDCT.free();
+            cbDCT.free();
+            dct.close();
+        }
+    }
+
+    // Encodes GOBs of each frame alongside the calling thread
+    private class GobWorker implements WorkerPool.Worker {
+
+        // The encoder of the macroblocks of this worker
+        private MacroblockEncoder gobEncoder = null;
+
+        private GobWorker() throws QuickArrayException {
+            gobEncoder = new MacroblockEncoder();
+        }
+
+        /**
+         * Encodes GOBs of the current frame until there are none left
+         *
+         * @see WorkerPool.Worker#work()
+         */
+        public void work() {
+            byte[] yuv = null;
+            synchronized (gobSync) {
+                yuv = gobFrame;
+            }
+            encodeGobs(gobEncoder, yuv);
+        }
+
+        /**
+         *
+         * @see WorkerPool.Worker#close()
+         */
+        public void close() {
+            gobEncoder.close();
+        }
+    }
+
+    // Gets the next GOB of the frame to be encoded, or -1 if there are none
+    private int takeGob() {
+        synchronized (gobSync) {
+            if (nextGob < nGobs) {
+                return nextGob++;
+            }
+            return -1;
+        }
+    }
+
+    // Encodes GOBs of a frame until there are none left
+    private void encodeGobs(MacroblockEncoder gobEncoder, byte[] yuv) {
+        try {
+            QuickArrayWrapper yuvw = new QuickArrayWrapper(yuv);
+            int gob = takeGob();
+            while (gob != -1) {
+                gobEncoder.encodeGob(yuvw, gob);
+                gob = takeGob();
+            }
+        } catch (Exception e) {
+            synchronized (gobSync) {
+                gobError = e;
+                nextGob = nGobs;
+            }
+        }
+    }
+
+    // Encodes all the GOBs of a frame across the workers and this thread
+    private void encodeFrameGobs(byte[] yuv) throws Exception {
+        if (gobData == null) {
+            gobData = new byte[nGobs][];
+            mbQuant = new int[nBlocks];
+            mbBitStart = new int[nBlocks];
+            mbBitCount = new int[nBlocks];
+        }
+        if (workers == null) {
+            GobWorker[] gobWorkers = new GobWorker[threads - 1];
+            for (int i = 0; i < gobWorkers.length; i++) {
+                gobWorkers[i] = new GobWorker();
+            }
+            workers = new WorkerPool("H261Encoder", gobWorkers);
+        }
+
+        synchronized (gobSync) {
+            gobFrame = yuv;
+            nextGob = 0;
+            gobError = null;
+        }
+        workers.start();
+        encodeGobs(encoder, yuv);
+        workers.waitForWorkers();
+        synchronized (gobSync) {
+            gobFrame = null;
+            if (gobError != null) {
+                throw gobError;
+            }
+        }
+    }
+
+    private void stopWorkers() {
+        if (workers != null) {
+            workers.close();
+            workers = null;
+        }
+    }
+
 
     /**
      * Processes an RGB frame to convert it to H.261AS
@@ -341,6 +638,14 @@ public abstract class H261AbstractEncoder implements Codec,
                     } else {
                         framesSinceLastKey += 1;
                     }
+
+                    // Encode the GOBs of the frame at the same time; the
+                    // packets are then put together from the coded data
+                    gobsEncoded = false;
+                    if ((threads > 1) && (nGobs > 1)) {
+                        encodeFrameGobs(yuv);
+                        gobsEncoded = true;
+                    }
                 }
 
                 // Find the current gob number and macroblock
@@ -381,68 +686,16 @@ public abstract class H261AbstractEncoder implements Codec,
 
                         if (send) {
 
+                            // Transform the macroblock, unless its GOB has
+                            // already been encoded with the rest of the frame
                             int quant = 0;
-                            int how = cr.getCrState(blockN);
-                            if (how == ConditionalReplenishment.CR_MOTION) {
-                                quant = lq;
-                            } else if (how == ConditionalReplenishment.CR_BG) {
-                                quant = hq;
+                            if (gobsEncoded) {
+                                quant = mbQuant[blockN];
                             } else {
-                                quant = mq;
-                            }
-
-                            // DCT the blocks
-                            QuickArrayWrapper yuvw =
-                                new QuickArrayWrapper(yuv);
-                            dct.fdct(yuvw, y1DCT, yStart, currentX,
-                                    currentY, yStride);
-                            dct.fdct(yuvw, y2DCT, yStart, currentX + 8,
-                                    currentY, yStride);
-                            dct.fdct(yuvw, y3DCT, yStart, currentX,
-                                    currentY + 8, yStride);
-                            dct.fdct(yuvw, y4DCT, yStart, currentX + 8,
-                                    currentY + 8,  yStride);
-                            dct.fdct(yuvw, cbDCT, cbStart, currentX / 2,
-                                    currentY / 2, crcbStride);
-                            dct.fdct(yuvw, crDCT, crStart, currentX / 2,
-                                    currentY / 2, crcbStride);
-
-                            // Check the quantizer is enough for the
-                            // macroblock
-                            int max = 0;
-                            int min = 0;
-                            for (int z = 1; z < 64; z++) {
-                                max = Math.max(max, y1DCT.getInt(z));
-                                min = Math.min(min, y1DCT.getInt(z));
-                                max = Math.max(max, y2DCT.getInt(z));
-                                min = Math.min(min, y2DCT.getInt(z));
-                                max = Math.max(max, y3DCT.getInt(z));
-                                min = Math.min(min, y3DCT.getInt(z));
-                                max = Math.max(max, y4DCT.getInt(z));
-                                min = Math.min(min, y4DCT.getInt(z));
-                                max = Math.max(max, crDCT.getInt(z));
-                                min = Math.min(min, crDCT.getInt(z));
-                                max = Math.max(max, cbDCT.getInt(z));
-                                min = Math.min(min, cbDCT.getInt(z));
-                            }
-
-                            // Need to requantize
-                            if (-min > max) {
-                                max = -min;
-                            }
-                            if (max / quant >= H261Constants.MAX_LEVEL) {
-                                while (max / quant
-                                        >= H261Constants.MAX_LEVEL) {
-                                    quant += 1;
-                                }
-                            }
-
-                            QuickArray map = levelmap[quant];
-
-                            if (map == null) {
-                                levelmap[quant] = makeLevelMap(quant, 1);
-                                levelmapc[quant] = makeLevelMap(quant, 2);
-                                map = levelmap[quant];
+                                QuickArrayWrapper yuvw =
+                                    new QuickArrayWrapper(yuv);
+                                quant = encoder.transform(yuvw, blockN,
+                                        currentX, currentY);
                             }
 
                             // MB Header
@@ -464,18 +717,13 @@ public abstract class H261AbstractEncoder implements Codec,
                                         H261Constants.MTYPE_INTRA_TCOEFF_BITS);
                             }
 
-                            // MB Data - Y
-                            addBlock(outputdata, y1DCT, map);
-                            addBlock(outputdata, y2DCT, map);
-                            addBlock(outputdata, y3DCT, map);
-                            addBlock(outputdata, y4DCT, map);
-
-                            // MB Data - Cb
-                            map = levelmapc[quant];
-                            addBlock(outputdata, cbDCT, map);
-
-                            // MB Data - Cr
-                            addBlock(outputdata, crDCT, map);
+                            // MB Data
+                            if (gobsEncoded) {
+                                outputdata.add(gobData[gobn],
+                                        mbBitStart[blockN], mbBitCount[blockN]);
+                            } else {
+                                encoder.addBlocks(outputdata, quant);
+                            }
 
                         }
 
@@ -503,7 +751,11 @@ public abstract class H261AbstractEncoder implements Codec,
 
                 finishBuffers(output, outputdata,
                         startMquant, input.getTimeStamp());
-                cr.replenish(yuv);
+                ChangedBlocks changed = null;
+                if (input.getHeader() instanceof ChangedBlocks) {
+                    changed = (ChangedBlocks) input.getHeader();
+                }
+                cr.replenish(yuv, changed);
                 output.setFlags(output.getFlags()
                         | Buffer.FLAG_RTP_MARKER);
                 count++;
@@ -644,12 +896,8 @@ public abstract class H261AbstractEncoder implements Codec,
      * @see javax.media.PlugIn#close()
      */
     public void close() {
-        y1DCT.free();
-        y2DCT.free();
-        y3DCT.free();
-        y4DCT.free();
-        crDCT.free();
-        cbDCT.free();
+        stopWorkers();
+        encoder.close();
         mbaHuffEncOffset.free();
         runLevelEncOffset.free();
         for (int quant = 0; quant < levelmap.length; quant++) {
@@ -659,7 +907,6 @@ public abstract class H261AbstractEncoder implements Codec,
             }
         }
         cr.close();
-        dct.close();
     }
 
     /**
@@ -678,6 +925,26 @@ public abstract class H261AbstractEncoder implements Codec,
         // Does Nothing
     }
 
+    /**
+     * Sets the number of threads that encode each frame.  With more than
+     * one, the GOBs of a frame are transformed and coded at the same time,
+     * and the packets are then put together from them in order, so the
+     * packets are the same as those encoded by a single thread
+     * @param threads The number of threads
+     */
+    public void setThreads(int threads) {
+        stopWorkers();
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Gets the number of threads that encode each frame
+     * @return The number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
     /**
      *
      * @see javax.media.control.KeyFrameControl#getKeyFrameInterval()
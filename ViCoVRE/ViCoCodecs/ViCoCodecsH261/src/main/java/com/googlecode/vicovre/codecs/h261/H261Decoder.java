@@ -47,6 +47,7 @@ import com.googlecode.vicovre.codecs.utils.QuickArray;
 import com.googlecode.vicovre.codecs.utils.QuickArrayException;
 import com.googlecode.vicovre.codecs.utils.QuickArrayWrapper;
 import com.googlecode.vicovre.media.controls.FrameFillControl;
+import com.googlecode.vicovre.media.controls.ThreadsControl;
 
 /**
  * A decoder for H261
@@ -56,6 +57,12 @@ import com.googlecode.vicovre.media.controls.FrameFillControl;
 public class H261Decoder extends H261AbstractDecoder
         implements FrameFillControl {
 
+    // The width of an H261 frame
+    private static final int WIDTH = 352;
+
+    // The height of an H261 frame
+    private static final int HEIGHT = 288;
+
     private YUVFormat outputFormat = null;
 
     private long sequence = 0;
@@ -82,8 +89,6 @@ public class H261Decoder extends H261AbstractDecoder
 
     private int cbOffset = 0;
 
-    private int ebit = 0;
-
     private boolean closed = false;
 
     /**
@@ -132,33 +137,12 @@ public class H261Decoder extends H261AbstractDecoder
         if (closed) {
             return BUFFER_PROCESSED_FAILED;
         }
-        BitInputStream in = null;
-        try {
-            in = new BitInputStream((byte[]) input.getData(),
-                    input.getOffset(), input.getLength());
-        } catch (QuickArrayException e) {
-            e.printStackTrace();
-            return BUFFER_PROCESSED_FAILED;
-        }
-
-        // Read the H261 header
-        int sbit = in.readBits(3);
-        ebit = in.readBits(3);
-        in.readBits(1);
-        in.readBits(1);
-        int gob = in.readBits(4);
-        int mba = in.readBits(5) + 1;
-        int quant = in.readBits(5);
-        in.readBits(5);
-        in.readBits(5);
-        int width = 352;
-        int height = 288;
+        int width = WIDTH;
+        int height = HEIGHT;
         int ysize = width * height;
         int csize = (width / 2) * (height / 2);
         int dataSize = ysize + (2 * csize);
 
-        int qt = quant << 8;
-
         int offset = output.getOffset();
         if (outputObject == null) {
             outputObject = new byte[dataSize];
@@ -232,6 +216,49 @@ public class H261Decoder extends H261AbstractDecoder
             cbOffset = ysize + csize;
         }
 
+        int result = decode(input, output.getOffset());
+        if (result != OUTPUT_BUFFER_NOT_FILLED) {
+            return result;
+        }
+        if ((input.getFlags() & Buffer.FLAG_RTP_MARKER) > 0) {
+            output.setFormat(outputFormat);
+            output.setData(outputObject);
+            output.setDiscard(false);
+            output.setTimeStamp(input.getTimeStamp());
+            output.setSequenceNumber(sequence++);
+            return BUFFER_PROCESSED_OK;
+        }
+        return OUTPUT_BUFFER_NOT_FILLED;
+    }
+
+    /**
+     *
+     * @see com.googlecode.vicovre.codecs.h261.H261AbstractDecoder#
+     *     decodePacket(byte[], int, int, int, BlockDecoder)
+     */
+    protected int decodePacket(byte[] data, int offset, int length,
+            int outputOffset, BlockDecoder blocks) {
+        BitInputStream in = null;
+        try {
+            in = new BitInputStream(data, offset, length);
+        } catch (QuickArrayException e) {
+            e.printStackTrace();
+            return BUFFER_PROCESSED_FAILED;
+        }
+
+        // Read the H261 header
+        int sbit = in.readBits(3);
+        int ebit = in.readBits(3);
+        in.readBits(1);
+        in.readBits(1);
+        int gob = in.readBits(4);
+        int mba = in.readBits(5) + 1;
+        int quant = in.readBits(5);
+        in.readBits(5);
+        in.readBits(5);
+        int width = WIDTH;
+        int qt = quant << 8;
+
         in.readBits(sbit);
         while ((in.bitsRemaining() > ebit) && (gob <= 12)) {
             int mbadiff = readMba(in);
@@ -285,33 +312,33 @@ public class H261Decoder extends H261AbstractDecoder
                 boolean intra = (mtype & MT_INTRA) > 0;
                 if ((mtype & MT_TCOEFF) > 0) {
                     try {
-                        if (((cbp & CBP_Y1) > 0) && !readBlock(in, out,
-                                yOffset + y1Offset + output.getOffset(), width,
+                        if (((cbp & CBP_Y1) > 0) && !blocks.readBlock(in, out,
+                                yOffset + y1Offset + outputOffset, width,
                                 intra, qt, ebit)) {
                             return BUFFER_PROCESSED_FAILED;
                         }
-                        if (((cbp & CBP_Y2) > 0) && !readBlock(in, out,
-                                yOffset + y2Offset + output.getOffset(), width,
+                        if (((cbp & CBP_Y2) > 0) && !blocks.readBlock(in, out,
+                                yOffset + y2Offset + outputOffset, width,
                                 intra, qt, ebit)) {
                             return BUFFER_PROCESSED_FAILED;
                         }
-                        if (((cbp & CBP_Y3) > 0) && !readBlock(in, out,
-                                yOffset + y3Offset + output.getOffset(), width,
+                        if (((cbp & CBP_Y3) > 0) && !blocks.readBlock(in, out,
+                                yOffset + y3Offset + outputOffset, width,
                                 intra, qt, ebit)) {
                             return BUFFER_PROCESSED_FAILED;
                         }
-                        if (((cbp & CBP_Y4) > 0) && !readBlock(in, out,
-                                yOffset + y4Offset + output.getOffset(), width,
+                        if (((cbp & CBP_Y4) > 0) && !blocks.readBlock(in, out,
+                                yOffset + y4Offset + outputOffset, width,
                                 intra, qt, ebit)) {
                             return BUFFER_PROCESSED_FAILED;
                         }
-                        if (((cbp & CBP_CB) > 0) && !readBlock(in, out,
-                              cOffset + crOffset + output.getOffset(),
+                        if (((cbp & CBP_CB) > 0) && !blocks.readBlock(in, out,
+                              cOffset + crOffset + outputOffset,
                               width / 2, intra, qt, ebit)) {
                             return BUFFER_PROCESSED_FAILED;
                         }
-                        if (((cbp & CBP_CR) > 0) && !readBlock(in, out,
-                              cOffset + cbOffset + output.getOffset(),
+                        if (((cbp & CBP_CR) > 0) && !blocks.readBlock(in, out,
+                              cOffset + cbOffset + outputOffset,
                               width / 2, intra, qt, ebit)) {
                             return BUFFER_PROCESSED_FAILED;
                         }
@@ -327,14 +354,6 @@ public class H261Decoder extends H261AbstractDecoder
                 return BUFFER_PROCESSED_FAILED;
             }
         }
-        if ((input.getFlags() & Buffer.FLAG_RTP_MARKER) > 0) {
-            output.setFormat(outputFormat);
-            output.setData(outputObject);
-            output.setDiscard(false);
-            output.setTimeStamp(input.getTimeStamp());
-            output.setSequenceNumber(sequence++);
-            return BUFFER_PROCESSED_OK;
-        }
         return OUTPUT_BUFFER_NOT_FILLED;
     }
 
@@ -408,6 +427,9 @@ public class H261Decoder extends H261AbstractDecoder
         if (className.equals("controls.FrameFillControl")) {
             return this;
         }
+        if (className.equals(ThreadsControl.class.getName())) {
+            return this;
+        }
         return null;
     }
 
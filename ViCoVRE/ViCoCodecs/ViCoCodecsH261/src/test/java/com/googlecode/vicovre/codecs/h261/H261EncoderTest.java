@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.codecs.h261;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Dimension;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.PlugIn;
+import javax.media.format.VideoFormat;
+import javax.media.format.YUVFormat;
+
+import org.junit.Test;
+
+/**
+ * Tests that encoding with several threads gives the same packets as
+ * encoding with one
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class H261EncoderTest {
+
+    private static final int WIDTH = 352;
+
+    private static final int HEIGHT = 288;
+
+    // The number of frames to encode
+    private static final int FRAMES = 20;
+
+    // The number of frames between key frames
+    private static final int KEY_INTERVAL = 10;
+
+    // The number of pixels changed between frames
+    private static final int CHANGES = 4000;
+
+    private static final YUVFormat INPUT_FORMAT = new YUVFormat(
+            new Dimension(WIDTH, HEIGHT), -1, Format.byteArray, -1,
+            YUVFormat.YUV_420, WIDTH, WIDTH / 2, 0, WIDTH * HEIGHT,
+            (WIDTH * HEIGHT * 5) / 4);
+
+    // Encodes a moving test picture, changing the number of threads to
+    // the next of the given numbers at each key frame
+    private List<byte[]> encode(int[] threads) throws Exception {
+        H261Encoder encoder = new H261Encoder();
+        encoder.setInputFormat(INPUT_FORMAT);
+        encoder.setOutputFormat(new VideoFormat("h261/rtp"));
+
+        Random random = new Random(3);
+        byte[] yuv = new byte[(WIDTH * HEIGHT * 3) / 2];
+        for (int i = 0; i < yuv.length; i++) {
+            yuv[i] = (byte) ((i % WIDTH) + ((i / WIDTH) / 3)
+                    + random.nextInt(8));
+        }
+
+        List<byte[]> packets = new Vector<byte[]>();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            for (int i = 0; i < CHANGES; i++) {
+                int pos = random.nextInt(yuv.length);
+                yuv[pos] = (byte) (yuv[pos] + random.nextInt(40));
+            }
+            if ((frame % KEY_INTERVAL) == 0) {
+                encoder.setThreads(threads[(frame / KEY_INTERVAL)
+                        % threads.length]);
+                encoder.nextFrameKey();
+            }
+
+            Buffer input = new Buffer();
+            input.setData(yuv);
+            input.setFormat(INPUT_FORMAT);
+            input.setOffset(0);
+            input.setLength(yuv.length);
+            input.setTimeStamp(frame * 40000000L);
+            int result = PlugIn.INPUT_BUFFER_NOT_CONSUMED;
+            while (result == PlugIn.INPUT_BUFFER_NOT_CONSUMED) {
+                Buffer output = new Buffer();
+                result = encoder.process(input, output);
+                assertEquals(0, result & PlugIn.BUFFER_PROCESSED_FAILED);
+                byte[] data = (byte[]) output.getData();
+                packets.add(Arrays.copyOfRange(data, output.getOffset(),
+                        output.getOffset() + output.getLength()));
+            }
+        }
+        encoder.close();
+        return packets;
+    }
+
+    private void assertSamePackets(List<byte[]> expected,
+            List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    /**
+     * Tests that several threads give the same packets as one thread
+     * @throws Exception
+     */
+    @Test
+    public void testThreadsGiveSamePackets() throws Exception {
+        List<byte[]> expected = encode(new int[]{1});
+        assertSamePackets(expected, encode(new int[]{2}));
+        assertSamePackets(expected, encode(new int[]{4}));
+    }
+
+    /**
+     * Tests that the number of threads can be changed while encoding
+     * @throws Exception
+     */
+    @Test
+    public void testChangingThreads() throws Exception {
+        List<byte[]> expected = encode(new int[]{1});
+        assertSamePackets(expected, encode(new int[]{4, 1}));
+        assertSamePackets(expected, encode(new int[]{1, 3}));
+    }
+}
@@ -37,8 +37,6 @@ import java.awt.Dimension;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.Vector;
 
 import javax.media.Buffer;
 import javax.media.Format;
@@ -48,15 +46,23 @@ import javax.media.format.VideoFormat;
 import javax.media.protocol.ContentDescriptor;
 
 import com.googlecode.vicovre.codecs.utils.ByteArrayOutputStream;
+import com.googlecode.vicovre.codecs.utils.HeaderOutputStream;
+import com.googlecode.vicovre.media.controls.FragmentControl;
 import com.googlecode.vicovre.media.controls.SetDurationControl;
 import com.googlecode.vicovre.media.format.BitRateFormat;
 import com.googlecode.vicovre.media.multiplexer.BasicMultiplexer;
 
 public class JavaMultiplexer extends BasicMultiplexer
-        implements SetDurationControl {
+        implements SetDurationControl, FragmentControl {
 
     public static final String CONTENT_TYPE = "video/mp4";
 
+    // Sample flags of a sample that does not depend on any other
+    private static final int SYNC_SAMPLE = 0x02000000;
+
+    // Sample flags of a sample that depends on others and is not a sync sample
+    private static final int NON_SYNC_SAMPLE = 0x01010000;
+
     private boolean headerWritten = false;
 
     private long duration = 0;
@@ -71,19 +77,25 @@ public class JavaMultiplexer extends BasicMultiplexer
 
     private double[] lastTimestamp = null;
 
-    private Vector<Long>[] chunkOffsets = null;
+    private LongArray[] chunkOffsets = null;
 
     private long maxOffset = 0;
 
-    private LinkedList<Chunk>[] chunkNoSamples = null;
+    // The first chunk of each run of chunks with the same number of samples
+    private IntArray[] chunkFirst = null;
 
-    private Vector<Integer>[] sampleSize = null;
+    private IntArray[] chunkNoSamples = null;
+
+    private IntArray[] sampleSize = null;
 
     private int[] allSampleSize = null;
 
-    private LinkedList<Duration>[] durations = null;
+    // The number of samples in each run of samples with the same duration
+    private IntArray[] durationCounts = null;
+
+    private IntArray[] durations = null;
 
-    private Vector<Integer>[] keyFrames = null;
+    private IntArray[] keyFrames = null;
 
     private int[] noSamples = null;
 
@@ -95,6 +107,29 @@ public class JavaMultiplexer extends BasicMultiplexer
 
     private int moovSize = 0;
 
+    private boolean fragmented = false;
+
+    // The minimum duration of each fragment in ns, 0 for a single fragment
+    private long fragmentDuration = 0;
+
+    private int sequenceNumber = 1;
+
+    // The samples of the fragment being built, per track
+    private byte[][] fragmentData = null;
+
+    private int[] fragmentDataLength = null;
+
+    private IntArray[] fragmentSizes = null;
+
+    private LongArray[] fragmentTimestamps = null;
+
+    private IntArray[] fragmentFlags = null;
+
+    // Output waiting to be read
+    private byte[] pending = null;
+
+    private int pendingSize = 0;
+
     public JavaMultiplexer() {
         super(new ContentDescriptor[]{new ContentDescriptor(CONTENT_TYPE)},
             new Format[]{
@@ -108,20 +143,33 @@ public class JavaMultiplexer extends BasicMultiplexer
         int tracks = super.setNumTracks(numtracks);
         trackHeader = new byte[tracks][];
         lastTimestamp = new double[tracks];
-        chunkOffsets = new Vector[tracks];
-        chunkNoSamples = new LinkedList[tracks];
-        sampleSize = new Vector[tracks];
+        chunkOffsets = new LongArray[tracks];
+        chunkFirst = new IntArray[tracks];
+        chunkNoSamples = new IntArray[tracks];
+        sampleSize = new IntArray[tracks];
         allSampleSize = new int[tracks];
-        durations = new LinkedList[tracks];
-        keyFrames = new Vector[tracks];
+        durationCounts = new IntArray[tracks];
+        durations = new IntArray[tracks];
+        keyFrames = new IntArray[tracks];
         noSamples = new int[tracks];
         noChunks = new int[tracks];
+        fragmentData = new byte[tracks][];
+        fragmentDataLength = new int[tracks];
+        fragmentSizes = new IntArray[tracks];
+        fragmentTimestamps = new LongArray[tracks];
+        fragmentFlags = new IntArray[tracks];
         for (int i = 0; i < tracks; i++) {
-            chunkOffsets[i] = new Vector<Long>();
-            chunkNoSamples[i] = new LinkedList<Chunk>();
-            sampleSize[i] = new Vector<Integer>();
-            durations[i] = new LinkedList<Duration>();
-            keyFrames[i] = new Vector<Integer>();
+            chunkOffsets[i] = new LongArray();
+            chunkFirst[i] = new IntArray();
+            chunkNoSamples[i] = new IntArray();
+            sampleSize[i] = new IntArray();
+            durationCounts[i] = new IntArray();
+            durations[i] = new IntArray();
+            keyFrames[i] = new IntArray();
+            fragmentData[i] = new byte[0];
+            fragmentSizes[i] = new IntArray();
+            fragmentTimestamps[i] = new LongArray();
+            fragmentFlags[i] = new IntArray();
         }
         return tracks;
     }
@@ -133,9 +181,21 @@ public class JavaMultiplexer extends BasicMultiplexer
         ftyp.writeBytes("isom");
         ftyp.writeBytes("iso2");
         ftyp.writeBytes("mp41");
+        if (fragmented) {
+            ftyp.writeBytes("iso6");
+            ftyp.writeBytes("dash");
+        }
         return ftyp;
     }
 
+    // The durations of a fragmented file are in the fragments
+    private long getMovieDuration() {
+        if (fragmented) {
+            return 0;
+        }
+        return duration;
+    }
+
     private Atom getMvhd(long time, int version) throws IOException {
         Atom mvhd = new Atom("mvhd");
         mvhd.write(version);
@@ -149,9 +209,9 @@ public class JavaMultiplexer extends BasicMultiplexer
         }
         mvhd.writeInt(1000); // Timescale = milliseconds
         if (version == 1) {
-            mvhd.writeLong(duration);
+            mvhd.writeLong(getMovieDuration());
         } else {
-            mvhd.writeInt((int) duration);
+            mvhd.writeInt((int) getMovieDuration());
         }
         mvhd.writeInt(0x00010000); // reserved (preferred rate) 1.0 = normal
         mvhd.writeShort(0x0100); // reserved (preferred volume) 1.0 = normal
@@ -197,9 +257,9 @@ public class JavaMultiplexer extends BasicMultiplexer
         tkhd.writeInt(track+1); // Track number, index from 1
         tkhd.writeInt(0); // Reserved
         if (version == 1) {
-            tkhd.writeLong(duration);
+            tkhd.writeLong(getMovieDuration());
         } else {
-            tkhd.writeInt((int) duration);
+            tkhd.writeInt((int) getMovieDuration());
         }
         tkhd.writeLong(0); // Reserved
         tkhd.writeShort(0); // Layer
@@ -243,10 +303,10 @@ public class JavaMultiplexer extends BasicMultiplexer
             AudioFormat af = (AudioFormat) format;
             mdhd.writeInt((int) af.getSampleRate());
         }
-        long dur = duration; // in millisecs
+        long dur = getMovieDuration(); // in millisecs
         if (format instanceof AudioFormat) {
             AudioFormat af = (AudioFormat) format;
-            dur = (long) ((duration / 1000) * af.getSampleRate());
+            dur = (long) ((dur / 1000) * af.getSampleRate());
         }
         if (version == 1) {
             mdhd.writeLong(dur);
@@ -458,9 +518,9 @@ public class JavaMultiplexer extends BasicMultiplexer
         stts.write(0); // Version
         stts.writeInt24(0); // Flags
         stts.writeInt(durations[track].size());
-        for (Duration duration : durations[track]) {
-            stts.writeInt(duration.getCount());
-            stts.writeInt((int) duration.getDuration());
+        for (int i = 0; i < durations[track].size(); i++) {
+            stts.writeInt(durationCounts[track].get(i));
+            stts.writeInt(durations[track].get(i));
         }
         return stts;
     }
@@ -470,8 +530,8 @@ public class JavaMultiplexer extends BasicMultiplexer
         stss.write(0); // Version
         stss.writeInt24(0); // Flags
         stss.writeInt(keyFrames[track].size());
-        for (int sample : keyFrames[track]) {
-            stss.writeInt(sample + 1);
+        for (int i = 0; i < keyFrames[track].size(); i++) {
+            stss.writeInt(keyFrames[track].get(i) + 1);
         }
         return stss;
     }
@@ -481,9 +541,9 @@ public class JavaMultiplexer extends BasicMultiplexer
         stsc.write(0); // Version
         stsc.writeInt24(0); // Flags
         stsc.writeInt(chunkNoSamples[track].size());
-        for (Chunk chunk : chunkNoSamples[track]) {
-            stsc.writeInt(chunk.getFirstChunk() + 1);
-            stsc.writeInt(chunk.getNoSamples());
+        for (int i = 0; i < chunkNoSamples[track].size(); i++) {
+            stsc.writeInt(chunkFirst[track].get(i) + 1);
+            stsc.writeInt(chunkNoSamples[track].get(i));
             stsc.writeInt(0x1); // Sample description ID
         }
         return stsc;
@@ -499,8 +559,8 @@ public class JavaMultiplexer extends BasicMultiplexer
         } else {
             stsz.writeInt(0);
             stsz.writeInt(sampleSize[track].size());
-            for (int size : sampleSize[track]) {
-                stsz.writeInt(size);
+            for (int i = 0; i < sampleSize[track].size(); i++) {
+                stsz.writeInt(sampleSize[track].get(i));
             }
         }
         return stsz;
@@ -518,11 +578,11 @@ public class JavaMultiplexer extends BasicMultiplexer
         stco.write(0); // Version
         stco.writeInt24(0); // Flags
         stco.writeInt(chunkOffsets[track].size());
-        for (long offset : chunkOffsets[track]) {
+        for (int i = 0; i < chunkOffsets[track].size(); i++) {
             if (large) {
-                stco.writeLong(offset);
+                stco.writeLong(chunkOffsets[track].get(i));
             } else {
-                stco.writeInt((int) offset);
+                stco.writeInt((int) chunkOffsets[track].get(i));
             }
         }
         return stco;
@@ -587,9 +647,250 @@ public class JavaMultiplexer extends BasicMultiplexer
             }
             moov.write(getTrak(i, time, version, format, size, trackHeader[i]));
         }
+        if (fragmented) {
+            moov.write(getMvex());
+        }
         return moov;
     }
 
+    private Atom getTrex(int track) throws IOException {
+        Atom trex = new Atom("trex");
+        trex.write(0); // Version
+        trex.writeInt24(0); // Flags
+        trex.writeInt(track + 1); // Track id
+        trex.writeInt(1); // Sample description ID
+        trex.writeInt(0); // Default sample duration
+        trex.writeInt(0); // Default sample size
+        trex.writeInt(0); // Default sample flags
+        return trex;
+    }
+
+    private Atom getMvex() throws IOException {
+        Atom mvex = new Atom("mvex");
+        for (int i = 0; i < getNoTracks(); i++) {
+            mvex.write(getTrex(i));
+        }
+        return mvex;
+    }
+
+    private Atom getMfhd() throws IOException {
+        Atom mfhd = new Atom("mfhd");
+        mfhd.write(0); // Version
+        mfhd.writeInt24(0); // Flags
+        mfhd.writeInt(sequenceNumber);
+        return mfhd;
+    }
+
+    private Atom getTfhd(int track) throws IOException {
+        Atom tfhd = new Atom("tfhd");
+        tfhd.write(0); // Version
+        tfhd.writeInt24(0x020000); // Flags, 0x020000 = offsets from moof
+        tfhd.writeInt(track + 1); // Track id
+        return tfhd;
+    }
+
+    private Atom getTfdt(long baseTime) throws IOException {
+        Atom tfdt = new Atom("tfdt");
+        tfdt.write(1); // Version
+        tfdt.writeInt24(0); // Flags
+        tfdt.writeLong(baseTime); // Decode time of the first sample
+        return tfdt;
+    }
+
+    private Atom getTrun(int track, long[] times, int dataOffset)
+            throws IOException {
+        Atom trun = new Atom("trun");
+        trun.write(0); // Version
+        trun.writeInt24(0x000701); // Flags, 0x701 = offset, duration, size
+                                   // and flags present
+        trun.writeInt(fragmentSizes[track].size());
+        trun.writeInt(dataOffset);
+        for (int i = 0; i < fragmentSizes[track].size(); i++) {
+            trun.writeInt((int) Math.max(0, times[i + 1] - times[i]));
+            trun.writeInt(fragmentSizes[track].get(i));
+            trun.writeInt(fragmentFlags[track].get(i));
+        }
+        return trun;
+    }
+
+    private Atom getTraf(int track, int dataOffset, long endTimestamp)
+            throws IOException {
+        long[] times = getFragmentTimes(track, endTimestamp);
+        Atom traf = new Atom("traf");
+        traf.write(getTfhd(track));
+        traf.write(getTfdt(times[0]));
+        traf.write(getTrun(track, times, dataOffset));
+        return traf;
+    }
+
+    private Atom getMoof(int dataOffset, long endTimestamp)
+            throws IOException {
+        Atom moof = new Atom("moof");
+        moof.write(getMfhd());
+        for (int i = 0; i < getNoTracks(); i++) {
+            if (!fragmentSizes[i].isEmpty()) {
+                moof.write(getTraf(i, dataOffset, endTimestamp));
+                dataOffset += fragmentDataLength[i];
+            }
+        }
+        return moof;
+    }
+
+    // Works out the decode time of each sample of a track in the fragment in
+    // the timescale of the track, followed by the end time of the last sample.
+    // The end timestamp is in ns; if it is not after the last sample, the
+    // last sample lasts as long as the one before it.
+    private long[] getFragmentTimes(int track, long endTimestamp) {
+        int count = fragmentTimestamps[track].size();
+        long[] times = new long[count + 1];
+        Format format = getTrackFormat(track);
+        if (format instanceof AudioFormat) {
+            AudioFormat af = (AudioFormat) format;
+            long sampleDuration = af.getFrameSizeInBits()
+                / af.getSampleSizeInBits() / af.getChannels();
+            times[0] = (long) ((fragmentTimestamps[track].get(0)
+                    / 1000000000.0) * af.getSampleRate());
+            for (int i = 1; i <= count; i++) {
+                times[i] = times[i - 1] + sampleDuration;
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                times[i] = fragmentTimestamps[track].get(i) / 1000000;
+            }
+            long end = endTimestamp / 1000000;
+            if (end <= times[count - 1]) {
+                end = times[count - 1];
+                if (count > 1) {
+                    end += times[count - 1] - times[count - 2];
+                }
+            }
+            times[count] = end;
+        }
+        return times;
+    }
+
+    private boolean hasFragmentSamples() {
+        for (int i = 0; i < getNoTracks(); i++) {
+            if (!fragmentSizes[i].isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Decides if the fragment should be written before a buffer is added.
+    // Fragments end before a video key frame once they are long enough, so
+    // that each can be played on its own, or before any sample if there is
+    // no key frame for too long.
+    private boolean isFragmentFull(Buffer buffer) {
+        if (fragmentDuration <= 0) {
+            return false;
+        }
+        long first = Long.MAX_VALUE;
+        boolean hasVideo = false;
+        for (int i = 0; i < getNoTracks(); i++) {
+            if (!fragmentTimestamps[i].isEmpty()) {
+                first = Math.min(first, fragmentTimestamps[i].get(0));
+            }
+            hasVideo |= getTrackFormat(i) instanceof VideoFormat;
+        }
+        if (first == Long.MAX_VALUE) {
+            return false;
+        }
+        long length = buffer.getTimeStamp() - first;
+        if (length >= (fragmentDuration * 4)) {
+            return true;
+        }
+        if (length < fragmentDuration) {
+            return false;
+        }
+        if (!hasVideo) {
+            return true;
+        }
+        return (buffer.getFormat() instanceof VideoFormat)
+            && ((buffer.getFlags() & Buffer.FLAG_KEY_FRAME) > 0);
+    }
+
+    // Writes the fragment built so far, preceded by the ftyp and moov if
+    // they have not been written.  The moof has to be written before the
+    // samples, so the samples are kept until the fragment is complete.  The
+    // end timestamp is where the fragment is cut in ns, and ends the last
+    // sample of every track.
+    private byte[] getFragment(long endTimestamp) throws IOException {
+        HeaderOutputStream output = new HeaderOutputStream(0, 0);
+        if (!headerWritten) {
+            output.write(getFtyp().getBytes());
+            output.write(getMoov(getTime(), 0).getBytes());
+            headerWritten = true;
+        }
+
+        if (hasFragmentSamples()) {
+            int moofSize = getMoof(0, endTimestamp).getSize();
+            output.write(getMoof(moofSize + 8, endTimestamp).getBytes());
+            Atom mdat = new Atom("mdat");
+            for (int i = 0; i < getNoTracks(); i++) {
+                mdat.write(fragmentData[i], 0, fragmentDataLength[i]);
+            }
+            output.write(mdat.getBytes());
+            sequenceNumber += 1;
+        }
+
+        for (int i = 0; i < getNoTracks(); i++) {
+            fragmentDataLength[i] = 0;
+            fragmentSizes[i].clear();
+            fragmentTimestamps[i].clear();
+            fragmentFlags[i].clear();
+        }
+        return output.getBytes();
+    }
+
+    private int readFragmentSample(Buffer buffer, int track) {
+        Format format = buffer.getFormat();
+        setInputFormat(format, track);
+        Object header = buffer.getHeader();
+        if ((header != null) && (header instanceof byte[])
+                && (trackHeader[track] == null)) {
+            trackHeader[track] = (byte[]) header;
+        }
+
+        int length = buffer.getLength();
+        int dataLength = fragmentDataLength[track];
+        if ((dataLength + length) > fragmentData[track].length) {
+            byte[] data = new byte[Math.max(fragmentData[track].length * 2,
+                    dataLength + length)];
+            System.arraycopy(fragmentData[track], 0, data, 0, dataLength);
+            fragmentData[track] = data;
+        }
+        System.arraycopy(buffer.getData(), buffer.getOffset(),
+                fragmentData[track], dataLength, length);
+        fragmentDataLength[track] += length;
+        fragmentSizes[track].add(length);
+        fragmentTimestamps[track].add(buffer.getTimeStamp());
+        if (!(format instanceof VideoFormat)
+                || ((buffer.getFlags() & Buffer.FLAG_KEY_FRAME) > 0)) {
+            fragmentFlags[track].add(SYNC_SAMPLE);
+        } else {
+            fragmentFlags[track].add(NON_SYNC_SAMPLE);
+        }
+        setResult(BUFFER_PROCESSED_OK, true);
+        return 0;
+    }
+
+    private int readPending(byte[] buf, int off, int len) {
+        int size = pendingSize;
+        if (size > len) {
+            size = len;
+        }
+        System.arraycopy(pending, pending.length - pendingSize, buf, off, size);
+        pendingSize -= size;
+        return size;
+    }
+
+    // The current time in seconds since 1904
+    private long getTime() {
+        return (System.currentTimeMillis() / 1000) + (((1904L * 365) + 17) * 60 * 60 * 24);
+    }
+
     private void writeHeader(DataOutputStream out) throws IOException {
 
         // Find the bitrate and file length
@@ -617,6 +918,18 @@ public class JavaMultiplexer extends BasicMultiplexer
 
     protected int read(byte[] buf, int off, int len, Buffer buffer, int track)
             throws IOException {
+        if (fragmented) {
+            if (pendingSize > 0) {
+                return readPending(buf, off, len);
+            }
+            if (isFragmentFull(buffer)) {
+                pending = getFragment(buffer.getTimeStamp());
+                pendingSize = pending.length;
+                return readPending(buf, off, len);
+            }
+            return readFragmentSample(buffer, track);
+        }
+
         if (!headerWritten) {
             ByteArrayOutputStream bytes = new ByteArrayOutputStream(buf, off,
                     len);
@@ -671,16 +984,18 @@ public class JavaMultiplexer extends BasicMultiplexer
             chunkOffsets[track].add(bytesWritten);
             maxOffset = Math.max(maxOffset, bytesWritten);
             if (chunkNoSamples[track].isEmpty()
-                    || (chunkNoSamples[track].getLast().getNoSamples()
-                            != noSamples)) {
-                chunkNoSamples[track].addLast(new Chunk(noChunks[track],
-                        noSamples));
+                    || (chunkNoSamples[track].getLast() != noSamples)) {
+                chunkFirst[track].add(noChunks[track]);
+                chunkNoSamples[track].add(noSamples);
             }
             if (durations[track].isEmpty()
-                    || (durations[track].getLast().getDuration() != duration)) {
-                durations[track].addLast(new Duration(duration));
+                    || (durations[track].getLast() != duration)) {
+                durations[track].add((int) duration);
+                durationCounts[track].add(1);
             } else {
-                durations[track].getLast().increment(noSamples);
+                int last = durationCounts[track].size() - 1;
+                durationCounts[track].set(last,
+                        durationCounts[track].get(last) + noSamples);
             }
 
             if (isKeyFrame) {
@@ -711,6 +1026,18 @@ public class JavaMultiplexer extends BasicMultiplexer
     }
 
     protected int readLast(byte[] buf, int off, int len) throws IOException {
+        if (fragmented) {
+            if ((pendingSize == 0)
+                    && (!headerWritten || hasFragmentSamples())) {
+                pending = getFragment(offset + (duration * 1000000));
+                pendingSize = pending.length;
+            }
+            if (pendingSize > 0) {
+                return readPending(buf, off, len);
+            }
+            return -1;
+        }
+
         if (dataSize > 0) {
             long size = dataSize;
             if (size > len) {
@@ -722,7 +1049,7 @@ public class JavaMultiplexer extends BasicMultiplexer
         }
 
         if (moov == null) {
-            long time = (System.currentTimeMillis() / 1000) + (((1904L * 365) + 17) * 60 * 60 * 24);
+            long time = getTime();
             int version = 0;
             if (duration >= Math.pow(2, 32)) {
                 version = 1;
@@ -755,6 +1082,18 @@ public class JavaMultiplexer extends BasicMultiplexer
         this.duration = duration.getNanoseconds() / 1000000;
     }
 
+    public void setFragmented(boolean fragmented) {
+        this.fragmented = fragmented;
+    }
+
+    public void setFirstSequenceNumber(int sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    public void setFragmentDuration(Time duration) {
+        this.fragmentDuration = duration.getNanoseconds();
+    }
+
     public Component getControlComponent() {
         return null;
     }
@@ -763,6 +1102,9 @@ public class JavaMultiplexer extends BasicMultiplexer
         if (s.equals(SetDurationControl.class.getName())) {
             return this;
         }
+        if (s.equals(FragmentControl.class.getName())) {
+            return this;
+        }
         return null;
     }
 
@@ -79,6 +79,39 @@ public class Bits {
         return bits;
     }
 
+    /**
+     * Reads a big-endian unsigned short from an array
+     * @param data The array to read from
+     * @param offset The offset of the short in the array
+     * @return The value of the short
+     */
+    public static int readUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Reads a big-endian int from an array
+     * @param data The array to read from
+     * @param offset The offset of the int in the array
+     * @return The value of the int
+     */
+    public static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24)
+            | ((data[offset + 1] & 0xFF) << 16)
+            | ((data[offset + 2] & 0xFF) << 8)
+            | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Reads a big-endian unsigned int from an array
+     * @param data The array to read from
+     * @param offset The offset of the int in the array
+     * @return The value of the int
+     */
+    public static long readUnsignedInt(byte[] data, int offset) {
+        return readInt(data, offset) & 0xFFFFFFFFL;
+    }
+
     /**
      * Converts a number to a string in binary
      * @param c The number to convert
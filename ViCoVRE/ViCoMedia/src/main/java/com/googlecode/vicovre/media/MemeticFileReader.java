@@ -34,16 +34,10 @@
 
 package com.googlecode.vicovre.media;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.Vector;
 
 import javax.media.Buffer;
 import javax.media.Format;
@@ -51,6 +45,8 @@ import javax.media.format.AudioFormat;
 import javax.media.format.VideoFormat;
 
 import com.googlecode.vicovre.media.protocol.memetic.RecordingConstants;
+import com.googlecode.vicovre.media.protocol.memetic.StreamFileCursor;
+import com.googlecode.vicovre.media.protocol.memetic.StreamIndex;
 import com.googlecode.vicovre.media.rtp.RTPHeader;
 import com.googlecode.vicovre.repositories.rtptype.RTPType;
 import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
@@ -63,8 +59,6 @@ import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
  */
 public class MemeticFileReader {
 
-    private static final int BUFFER_SIZE = 10000;
-
     // The number of usecs per ms
     private static final int USECS_PER_MS = 1000;
 
@@ -74,13 +68,26 @@ public class MemeticFileReader {
     private static final HashMap<Integer, Integer> PREFRAME_MAP =
         new HashMap<Integer, Integer>();
 
-    private DataInputStream input = null;
+    // The time in ms to start reading before a seek for formats where the
+    // picture is built up over time, when there is no key frame near it
+    private static final HashMap<String, Long> PRE_SEEK =
+        new HashMap<String, Long>();
+    static {
+        PRE_SEEK.put("h261/rtp", 30000L);
+        PRE_SEEK.put("h261as/rtp", 30000L);
+    }
+
+    // The furthest in ms to look back before a seek for a key frame
+    private static final long MAX_KEY_FRAME_LOOKBACK = 30000;
 
-    private FileInputStream fileInput = null;
+    // Reads the packets from the file
+    private StreamFileCursor cursor = null;
 
-    private FileChannel channel = null;
+    // The array holding the current packet
+    private byte[] data = null;
 
-    private byte[] data = new byte[BUFFER_SIZE];
+    // The position of the current packet in the data
+    private int dataOffset = 0;
 
     private int length = 0;
 
@@ -116,15 +123,16 @@ public class MemeticFileReader {
 
     private long startTime = 0;
 
-    private RTPHeader header = null;
+    // The header of the current packet, reused for each packet
+    private RTPHeader header = new RTPHeader();
 
     private RTPType rtpType = null;
 
-    // A vector of positions of packets in the stream file
-    private Vector<Long> packetPositions = new Vector<Long>();
+    // The offsets and positions of packets in the stream file
+    private StreamIndex index = StreamIndex.EMPTY;
 
-    // A vector of offsets of packets in the stream file
-    private Vector<Long> packetOffsets = new Vector<Long>();
+    // The offsets and positions of key frames, or null if not known
+    private StreamIndex keyFrameIndex = null;
 
     // An RTP type repository
     private RtpTypeRepository typeRepository = null;
@@ -143,9 +151,7 @@ public class MemeticFileReader {
         if (!new File(filename).isFile()) {
             throw new IOException("File " + filename + " is not a file");
         }
-        fileInput = new FileInputStream(filename);
-        input = new DataInputStream(fileInput);
-        channel = fileInput.getChannel();
+        cursor = new StreamFileCursor(new File(filename));
         readHeader();
         readIndexFile(filename);
         streamSeek(0);
@@ -179,21 +185,21 @@ public class MemeticFileReader {
         boolean read = false;
         try {
             while (!read) {
-                length = input.readShort() & RTPHeader.USHORT_TO_INT_CONVERT;
-                int ptype = input.readShort() & RTPHeader.USHORT_TO_INT_CONVERT;
-                offset = input.readInt() & RTPHeader.UINT_TO_LONG_CONVERT;
+                cursor.readPacketHeader();
+                length = cursor.getPacketLength();
+                int ptype = cursor.getPacketType();
+                offset = cursor.getPacketOffset();
 
                 if ((ptype != RecordingConstants.RTP_PACKET)
                         || (length < RTPHeader.SIZE)) {
-                    channel.position(channel.position() + length);
+                    cursor.skipPacketData();
                 } else {
-                    if (data.length < length) {
-                        data = new byte[length];
-                    }
-                    input.readFully(data, 0, length);
+                    cursor.readPacketData();
+                    data = cursor.getData();
+                    dataOffset = cursor.getDataOffset();
 
                     flags = 0;
-                    header = new RTPHeader(data, 0, length);
+                    header.parse(data, dataOffset, length);
                     this.type = header.getPacketType();
                     rtpType = typeRepository.findRtpType(this.type);
                     timestamp = header.getTimestamp();
@@ -260,58 +266,88 @@ public class MemeticFileReader {
      * @throws IOException
      */
     public void streamSeek(long seek) throws IOException {
-        int offsetPos = Collections.binarySearch(packetOffsets, seek);
+        int offsetPos = index.binarySearch(seek);
         if (offsetPos < 0) {
             offsetPos = (offsetPos + 1) * -1;
         }
 
-        if (offsetPos >= packetPositions.size()) {
-            channel.position(new File(filename).length());
+        if (offsetPos >= index.size()) {
+            cursor.position(new File(filename).length());
         } else {
-            channel.position(packetPositions.get(offsetPos));
+            cursor.position(index.getPosition(offsetPos));
             firstTimestamp = -1;
             lastTimestamp = -1;
             lastSequence = -1;
-            offset = packetOffsets.get(offsetPos);
-            firstOffset = (packetOffsets.get(offsetPos) - seek) * 1000000;
+            offset = index.getOffset(offsetPos);
+            firstOffset = (index.getOffset(offsetPos) - seek) * 1000000;
         }
     }
 
-    private void readIndexFile(String streamSpec) {
-        try {
+    /**
+     * Determines if the key frames of the stream are known
+     * @return True if there is a key frame index for the stream
+     */
+    public boolean hasKeyFrameIndex() {
+        return keyFrameIndex != null;
+    }
 
-            // Open the index file
-            String fname = streamSpec + RecordingConstants.STREAM_INDEX;
-            if (!new File(fname).exists()) {
-                fname = streamSpec + RecordingConstants.STREAM_INDEX2;
-            }
-            DataInputStream indexFile = new DataInputStream(
-                    new BufferedInputStream(new FileInputStream(fname)));
-
-            try {
-                while (true) {
-                    long off = indexFile.readLong();
-                    long pos = indexFile.readLong();
-
-                    if ((packetOffsets.size() == 0)
-                            || (off > packetOffsets
-                                    .get(packetOffsets.size() - 1))) {
-                        packetOffsets.add(new Long(off));
-                        packetPositions.add(new Long(pos));
-                    }
+    /**
+     * Gets the offset to start reading from to have a complete picture by
+     * an offset.  This is the nearest key frame at or before the offset,
+     * if there is one within MAX_KEY_FRAME_LOOKBACK of it; otherwise it is
+     * a fixed time before the offset for formats that build up the picture
+     * over time (such as H.261), or the offset itself for other formats.
+     * Reading from a stream without any recent key frame (which is usual
+     * for conditional replenishment) is therefore still bounded.
+     *
+     * @param seek The offset to find the key frame for in milliseconds
+     * @return The offset to start reading from in milliseconds
+     */
+    public long getKeyFrameOffset(long seek) {
+        if (keyFrameIndex != null) {
+            int entry = keyFrameIndex.floorSearch(seek);
+            if (entry >= 0) {
+                long keyFrameOffset = keyFrameIndex.getOffset(entry);
+                if (keyFrameOffset >= (seek - MAX_KEY_FRAME_LOOKBACK)) {
+                    return keyFrameOffset;
                 }
-            } catch (EOFException e) {
-                indexFile.close();
             }
+        }
+        return seek - getPreSeek();
+    }
 
+    /**
+     * Gets the time to start reading before a seek when there is no key
+     * frame near it
+     * @return The time in milliseconds
+     */
+    public long getPreSeek() {
+        Format format = getFormat();
+        if (format != null) {
+            Long preSeek = PRE_SEEK.get(format.getEncoding());
+            if (preSeek != null) {
+                return preSeek;
+            }
+        }
+        return 0;
+    }
+
+    private void readIndexFile(String streamSpec) {
+        try {
+            index = StreamIndex.getIndexOfStream(
+                    streamSpec).getIncreasingIndex();
+            keyFrameIndex = StreamIndex.getKeyFrameIndexOfStream(streamSpec);
+            if (keyFrameIndex != null) {
+                keyFrameIndex = keyFrameIndex.getIncreasingIndex();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     private void readHeader() throws IOException {
-        long seconds = (input.readInt() & RTPHeader.UINT_TO_LONG_CONVERT);
-        long uSeconds = (input.readInt() & RTPHeader.UINT_TO_LONG_CONVERT);
+        long seconds = (cursor.readInt() & RTPHeader.UINT_TO_LONG_CONVERT);
+        long uSeconds = (cursor.readInt() & RTPHeader.UINT_TO_LONG_CONVERT);
         startTime = (seconds * MS_PER_SEC) + (uSeconds / USECS_PER_MS);
     }
 
@@ -373,13 +409,23 @@ public class MemeticFileReader {
     }
 
     /**
-     * Gets the data of the packet
+     * Gets the array holding the data of the packet.  The packet starts at
+     * getDataOffset and the array is only valid until the next packet is
+     * read.
      * @return The data
      */
     public byte[] getData() {
         return data;
     }
 
+    /**
+     * Gets the position of the packet in the array returned by getData
+     * @return The offset of the packet
+     */
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
     /**
      * Gets a JMF buffer of the packet
      * @return A new JMF buffer
@@ -389,7 +435,7 @@ public class MemeticFileReader {
         // Read the frame into the buffer
         Buffer inputBuffer = new Buffer();
         inputBuffer.setData(data);
-        inputBuffer.setOffset(RTPHeader.SIZE);
+        inputBuffer.setOffset(dataOffset + RTPHeader.SIZE);
         inputBuffer.setLength(length - RTPHeader.SIZE);
         inputBuffer.setTimeStamp(getTimestamp());
         inputBuffer.setSequenceNumber(header.getSequence());
@@ -415,8 +461,7 @@ public class MemeticFileReader {
      */
     public void close() {
         try {
-            input.close();
-            fileInput.close();
+            cursor.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -425,7 +470,7 @@ public class MemeticFileReader {
 
     public double getProgress() {
         try {
-            return channel.position() / channel.size();
+            return cursor.position() / cursor.size();
         } catch (IOException e) {
             return 0;
         }
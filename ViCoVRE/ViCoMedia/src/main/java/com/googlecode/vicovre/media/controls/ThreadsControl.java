@@ -30,28 +30,26 @@
  *
  */
 
-package com.googlecode.vicovre.codecs.multiplexers.mp4;
+package com.googlecode.vicovre.media.controls;
 
-public class Chunk {
+import javax.media.Control;
 
-    private int firstChunk = 0;
-
-    private int noSamples = 0;
-
-    public Chunk(int firstChunk, int noSamples) {
-        this.firstChunk = firstChunk;
-        this.noSamples = noSamples;
-    }
-
-    public void increment(int noSamples) {
-        this.noSamples += noSamples;
-    }
-
-    public int getFirstChunk() {
-        return firstChunk;
-    }
-
-    public int getNoSamples() {
-        return noSamples;
-    }
+/**
+ * An interface for setting the number of threads used by a codec
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public interface ThreadsControl extends Control {
+
+    /**
+     * Sets the number of threads that the codec uses for each frame
+     * @param threads The number of threads
+     */
+    void setThreads(int threads);
+
+    /**
+     * Gets the number of threads that the codec uses for each frame
+     * @return The number of threads
+     */
+    int getThreads();
 }
@@ -37,7 +37,6 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
-import java.util.HashMap;
 
 import javax.imageio.ImageIO;
 import javax.media.Buffer;
@@ -52,13 +51,6 @@ import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
 
 public class PreviewGenerator implements Renderer {
 
-    private static final HashMap<String, Long> PRE_SEEK =
-        new HashMap<String, Long>();
-    static {
-        PRE_SEEK.put("h261/rtp", 30000000000L);
-        PRE_SEEK.put("h261as/rtp", 30000000000L);
-    }
-
     private DecimalFormat FORMAT = new DecimalFormat("00");
 
     private Format[] inputFormats = null;
@@ -152,21 +144,18 @@ public class PreviewGenerator implements Renderer {
         PreviewGenerator generator = new PreviewGenerator(directory, prefix);
         MemeticFileReader reader = new MemeticFileReader(
                 streamFile, typeRepository);
-        Long preSeek = PRE_SEEK.get(reader.getFormat().getEncoding());
-        if (preSeek == null) {
-            preSeek = 0L;
-        }
-
         for (int i = 0; i < noImages; i++) {
             SimpleProcessor processor = new SimpleProcessor(reader.getFormat(),
                     generator.getSupportedInputFormats()[0]);
             long seekTime = nsBetweenImages * i;
-            reader.streamSeek((seekTime - preSeek) / 1000000);
+            long startTime = reader.getKeyFrameOffset(
+                    seekTime / 1000000) * 1000000;
+            reader.streamSeek(startTime / 1000000);
             if (reader.readNextPacket()) {
                 Buffer inputBuffer = reader.getBuffer();
                 int result = processor.process(inputBuffer);
 
-                reader.setTimestampOffset(seekTime - preSeek);
+                reader.setTimestampOffset(startTime);
                 while ((inputBuffer.getTimeStamp() < seekTime)
                         && reader.readNextPacket()) {
                     inputBuffer = reader.getBuffer();
@@ -0,0 +1,431 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.media.preview;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.util.LinkedList;
+
+import javax.imageio.ImageIO;
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.PlugIn;
+import javax.media.format.RGBFormat;
+import javax.media.format.UnsupportedFormatException;
+
+import com.googlecode.vicovre.media.MemeticFileReader;
+import com.googlecode.vicovre.media.processor.SimpleProcessor;
+import com.googlecode.vicovre.media.protocol.memetic.RecordingConstants;
+import com.googlecode.vicovre.media.rtp.RTPHeader;
+import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
+
+/**
+ * Generates sprite sheets for scrubbing through a video stream.  The video
+ * is decoded and a small tile is taken at a fixed interval.  The tiles are
+ * put together into JPEG sheets of rows and columns, and the offset of each
+ * tile is written to an index.
+ *
+ * The index is a text file; the first line has the tile width, tile height,
+ * number of columns and number of rows of each sheet, and each line after
+ * has the offset of a tile in milliseconds.  Tile n is in sheet
+ * n / (columns * rows).
+ *
+ * While recording, packets are decoded in a separate thread so that the
+ * writing of the packets is not held up; if the decoding falls behind,
+ * whole frames are dropped, so that the decoder never sees part of a frame.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class SpriteSheetGenerator extends Thread {
+
+    /**
+     * The default time between tiles in milliseconds
+     */
+    public static final long DEFAULT_INTERVAL = 10000;
+
+    /**
+     * The default width of a tile
+     */
+    public static final int DEFAULT_TILE_WIDTH = 160;
+
+    /**
+     * The number of columns of tiles in a sheet
+     */
+    public static final int COLUMNS = 10;
+
+    /**
+     * The number of rows of tiles in a sheet
+     */
+    public static final int ROWS = 10;
+
+    // The number of packets that can wait to be decoded
+    private static final int MAX_QUEUED_PACKETS = 1000;
+
+    private File directory = null;
+
+    private String ssrc = null;
+
+    private Format format = null;
+
+    // Decodes the packets
+    private SimpleProcessor processor = null;
+
+    // Converts the decoded frames that are taken as tiles to RGB
+    private SimpleProcessor toRGBProcessor = null;
+
+    private long interval = DEFAULT_INTERVAL;
+
+    private int tileWidth = DEFAULT_TILE_WIDTH;
+
+    private int tileHeight = 0;
+
+    // The offset at which the next tile should be taken
+    private long nextTileTime = 0;
+
+    // The offsets of all the tiles taken
+    private LinkedList<Long> tileOffsets = new LinkedList<Long>();
+
+    // The sheet being filled
+    private BufferedImage sheet = null;
+
+    // The number of tiles in the sheets that have been written
+    private int tilesWritten = 0;
+
+    private LinkedList<Buffer> queue = new LinkedList<Buffer>();
+
+    private LinkedList<Long> queueOffsets = new LinkedList<Long>();
+
+    private LinkedList<Buffer> freeBuffers = new LinkedList<Buffer>();
+
+    private boolean closed = false;
+
+    private long droppedPackets = 0;
+
+    // True while the packets of a frame are being dropped
+    private boolean dropping = false;
+
+    // The RTP timestamp of the frame being dropped
+    private long droppingTimestamp = 0;
+
+    private Integer queueSync = new Integer(0);
+
+    /**
+     * Creates a new SpriteSheetGenerator
+     * @param directory The directory of the stream
+     * @param ssrc The ssrc of the stream
+     * @param format The format of the packets of the stream
+     * @throws UnsupportedFormatException if the stream cannot be decoded
+     */
+    public SpriteSheetGenerator(File directory, String ssrc, Format format)
+            throws UnsupportedFormatException {
+        this.directory = directory;
+        this.ssrc = ssrc;
+        this.format = format;
+        processor = new SimpleProcessor(format, (Format) null);
+        toRGBProcessor = new SimpleProcessor(processor.getOutputFormat(),
+                new RGBFormat(null, Format.NOT_SPECIFIED, Format.intArray,
+                        Format.NOT_SPECIFIED, 32, 0xFF0000, 0xFF00, 0xFF, 1,
+                        Format.NOT_SPECIFIED, Format.FALSE,
+                        Format.NOT_SPECIFIED));
+    }
+
+    /**
+     * Sets the time between tiles
+     * @param interval The time in milliseconds
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Sets the width of the tiles; the height is set from the video
+     * @param tileWidth The width
+     */
+    public void setTileWidth(int tileWidth) {
+        this.tileWidth = tileWidth;
+    }
+
+    /**
+     * Gets the number of packets that were dropped because the decoding
+     * fell behind
+     * @return The number of packets
+     */
+    public long getDroppedPackets() {
+        synchronized (queueSync) {
+            return droppedPackets;
+        }
+    }
+
+    /**
+     * Queues a received packet to be decoded.  This does not wait.
+     * @param header The header of the packet
+     * @param packet The packet
+     * @param offset The offset of the packet in the stream in milliseconds
+     */
+    public void process(RTPHeader header, DatagramPacket packet, long offset) {
+        synchronized (queueSync) {
+            if (closed) {
+                return;
+            }
+            long timestamp = header.getTimestamp();
+            if (dropping && (timestamp != droppingTimestamp)) {
+                dropping = false;
+            }
+            if (!dropping && (queue.size() >= MAX_QUEUED_PACKETS)) {
+
+                // Drop the frame, including any part of it already queued
+                dropping = true;
+                droppingTimestamp = timestamp;
+                while (!queue.isEmpty()
+                        && (queue.getLast().getTimeStamp() == timestamp)) {
+                    freeBuffers.addLast(queue.removeLast());
+                    queueOffsets.removeLast();
+                    droppedPackets += 1;
+                }
+            }
+            if (dropping) {
+                droppedPackets += 1;
+                if (header.getMarker() == 1) {
+                    dropping = false;
+                }
+                return;
+            }
+            Buffer buffer = null;
+            if (!freeBuffers.isEmpty()) {
+                buffer = freeBuffers.removeFirst();
+            } else {
+                buffer = new Buffer();
+            }
+            int length = packet.getLength() - RTPHeader.SIZE;
+            byte[] data = (byte[]) buffer.getData();
+            if ((data == null) || (data.length < length)) {
+                data = new byte[length];
+            }
+            System.arraycopy(packet.getData(),
+                    packet.getOffset() + RTPHeader.SIZE, data, 0, length);
+            buffer.setData(data);
+            buffer.setOffset(0);
+            buffer.setLength(length);
+            buffer.setTimeStamp(timestamp);
+            buffer.setSequenceNumber(header.getSequence());
+            int flags = Buffer.FLAG_RTP_TIME;
+            if (header.getMarker() == 1) {
+                flags |= Buffer.FLAG_RTP_MARKER;
+            }
+            buffer.setFlags(flags);
+            buffer.setFormat(format);
+            queue.addLast(buffer);
+            queueOffsets.addLast(offset);
+            queueSync.notifyAll();
+        }
+    }
+
+    /**
+     *
+     * @see java.lang.Thread#run()
+     */
+    public void run() {
+        boolean done = false;
+        while (!done) {
+            Buffer buffer = null;
+            long offset = 0;
+            synchronized (queueSync) {
+                while (!closed && queue.isEmpty()) {
+                    try {
+                        queueSync.wait();
+                    } catch (InterruptedException e) {
+                        // Do Nothing
+                    }
+                }
+                if (!queue.isEmpty()) {
+                    buffer = queue.removeFirst();
+                    offset = queueOffsets.removeFirst();
+                } else {
+                    done = true;
+                }
+            }
+            if (buffer != null) {
+                processPacket(buffer, offset);
+                synchronized (queueSync) {
+                    freeBuffers.addLast(buffer);
+                }
+            }
+        }
+        finish();
+    }
+
+    /**
+     * Stops taking packets, and writes the remaining tiles once the
+     * packets already queued have been decoded
+     */
+    public void close() {
+        synchronized (queueSync) {
+            closed = true;
+            queueSync.notifyAll();
+        }
+    }
+
+    // Decodes a packet, taking a tile if one is due; only the frames
+    // taken as tiles are converted to RGB
+    private void processPacket(Buffer buffer, long offset) {
+        int result = processor.process(buffer, false);
+        if ((offset >= nextTileTime)
+                && ((result == PlugIn.BUFFER_PROCESSED_OK)
+                        || (result == PlugIn.INPUT_BUFFER_NOT_CONSUMED))) {
+            result = toRGBProcessor.process(processor.getOutputBuffer(),
+                    false);
+            if ((result == PlugIn.BUFFER_PROCESSED_OK)
+                    || (result == PlugIn.INPUT_BUFFER_NOT_CONSUMED)) {
+                try {
+                    addTile(toRGBProcessor.getOutputBuffer(), offset);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                nextTileTime = ((offset / interval) + 1) * interval;
+            }
+        }
+    }
+
+    private void addTile(Buffer frame, long offset) throws IOException {
+        RGBFormat format = (RGBFormat) frame.getFormat();
+        Dimension size = format.getSize();
+        BufferedImage image = new BufferedImage(size.width, size.height,
+                BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, size.width, size.height, (int[]) frame.getData(),
+                frame.getOffset(), size.width);
+
+        if (sheet == null) {
+            if (tileHeight == 0) {
+                tileHeight = Math.max(1,
+                        (tileWidth * size.height) / size.width);
+            }
+            sheet = new BufferedImage(tileWidth * COLUMNS, tileHeight * ROWS,
+                    BufferedImage.TYPE_INT_RGB);
+        }
+
+        int tile = tileOffsets.size() - tilesWritten;
+        Graphics2D g = sheet.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, (tile % COLUMNS) * tileWidth,
+                (tile / COLUMNS) * tileHeight, tileWidth, tileHeight, null);
+        g.dispose();
+        tileOffsets.addLast(offset);
+
+        if ((tile + 1) == (COLUMNS * ROWS)) {
+            writeSheet();
+        }
+    }
+
+    // Writes the current sheet and then the index, so that the index only
+    // refers to tiles that have been written
+    private void writeSheet() throws IOException {
+        if (sheet == null) {
+            return;
+        }
+        int sheetNumber = tilesWritten / (COLUMNS * ROWS);
+        File sheetFile = new File(directory, ssrc
+                + RecordingConstants.STREAM_SPRITE_SHEET + sheetNumber + ".jpg");
+        File tempFile = new File(directory, sheetFile.getName() + ".part");
+        ImageIO.write(sheet, "jpg", tempFile);
+        sheetFile.delete();
+        tempFile.renameTo(sheetFile);
+
+        File indexFile = new File(directory,
+                ssrc + RecordingConstants.STREAM_SPRITES);
+        File tempIndex = new File(directory, indexFile.getName() + ".part");
+        PrintWriter index = new PrintWriter(new FileWriter(tempIndex));
+        index.println(tileWidth + " " + tileHeight + " " + COLUMNS + " "
+                + ROWS);
+        for (long offset : tileOffsets) {
+            index.println(offset);
+        }
+        index.close();
+        indexFile.delete();
+        tempIndex.renameTo(indexFile);
+
+        if ((tileOffsets.size() % (COLUMNS * ROWS)) == 0) {
+            tilesWritten = tileOffsets.size();
+            sheet = null;
+        }
+    }
+
+    private void finish() {
+        try {
+            writeSheet();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        processor.close();
+        toRGBProcessor.close();
+        if (droppedPackets > 0) {
+            System.err.println("Sprite sheets of " + ssrc + " dropped "
+                    + droppedPackets + " packets");
+        }
+    }
+
+    /**
+     * Generates the sprite sheets of a stream that has already been recorded
+     * @param directory The directory of the stream
+     * @param ssrc The ssrc of the stream
+     * @param typeRepository The RTP type repository
+     * @throws IOException
+     * @throws UnsupportedFormatException
+     */
+    public static void generate(File directory, String ssrc,
+            RtpTypeRepository typeRepository)
+            throws IOException, UnsupportedFormatException {
+        MemeticFileReader reader = new MemeticFileReader(
+                new File(directory, ssrc).getAbsolutePath(), typeRepository);
+        try {
+            SpriteSheetGenerator generator = new SpriteSheetGenerator(
+                    directory, ssrc, reader.getFormat());
+            reader.streamSeek(0);
+            while (reader.readNextPacket()) {
+                generator.processPacket(reader.getBuffer(),
+                        reader.getOffset());
+            }
+            generator.finish();
+        } finally {
+            reader.close();
+        }
+    }
+}
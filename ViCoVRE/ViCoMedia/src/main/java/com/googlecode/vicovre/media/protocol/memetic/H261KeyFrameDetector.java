@@ -0,0 +1,377 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.media.protocol.memetic;
+
+import java.util.Arrays;
+
+import com.googlecode.vicovre.media.rtp.RTPHeader;
+
+/**
+ * Detects H.261 and H.261AS key frames.  These streams are sent with
+ * conditional replenishment, so there are no marked key frames; instead a
+ * frame is a key frame when every macroblock of the picture is coded in it
+ * using intra coding, as happens when the encoder refreshes the whole
+ * picture.  The packets are parsed just far enough to find the macroblocks;
+ * the coefficients are skipped without being decoded.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class H261KeyFrameDetector extends KeyFrameDetector {
+
+    // The size of the H.261 and H.261AS payload headers
+    private static final int HEADER_SIZE = 4;
+
+    // The number of macroblocks in a GOB
+    private static final int MBS_PER_GOB = 33;
+
+    // The number of GOBs in a CIF picture
+    private static final int CIF_GOBS = 12;
+
+    // The number of GOBs in a QCIF picture
+    private static final int QCIF_GOBS = 3;
+
+    // The bit of the picture type that is set for a CIF picture
+    private static final int PTYPE_CIF = 0x4;
+
+    // The maximum length of an MBA code
+    private static final int MBA_MAX_LEN = 16;
+
+    // The maximum length of a TCOEFF code
+    private static final int TCOEFF_MAX_LEN = 14;
+
+    // The number of bits in an escaped TCOEFF after the escape code
+    private static final int TCOEFF_ESCAPE_BITS = 6 + 8;
+
+    // The number of blocks in a macroblock
+    private static final int BLOCKS_PER_MB = 6;
+
+    // The number of bits in the DC coefficient of an intra block
+    private static final int DC_BITS = 8;
+
+    // The number of zeros before an intra MTYPE
+    private static final int MTYPE_INTRA_ZEROS = 3;
+
+    // The number of zeros before an intra MTYPE with MQUANT
+    private static final int MTYPE_INTRA_MQUANT_ZEROS = 6;
+
+    // The value of the start of a picture or GOB header
+    private static final int START = -1;
+
+    // The value of stuffing
+    private static final int STUFFING = -2;
+
+    // The value of a code that is not known
+    private static final int ILLEGAL = -3;
+
+    // The value of a coefficient
+    private static final int COEFFICIENT = 0;
+
+    // The value of the end of a block
+    private static final int EOB = -1;
+
+    // The value of an escaped coefficient
+    private static final int ESCAPE = -2;
+
+    // The code and length of each MBA difference
+    private static final int[] MBA_CODES = new int[] {
+        1, 1, 3, 3, 2, 3, 3, 4, 2, 4, 3, 5, 2, 5, 7, 7, 6, 7,
+        11, 8, 10, 8, 9, 8, 8, 8, 7, 8, 6, 8,
+        23, 10, 22, 10, 21, 10, 20, 10, 19, 10, 18, 10,
+        35, 11, 34, 11, 33, 11, 32, 11, 31, 11, 30, 11, 29, 11, 28, 11,
+        27, 11, 26, 11, 25, 11, 24, 11
+    };
+
+    // The code and length of each positive TCOEFF, including the sign bit
+    private static final int[] TCOEFF_CODES = new int[] {
+        0x6, 3, 0x8, 5, 0xA, 6, 0xC, 8, 0x4C, 9, 0x42, 9, 0x14, 11,
+        0x3A, 13, 0x30, 13, 0x26, 13, 0x20, 13, 0x34, 14, 0x32, 14,
+        0x30, 14, 0x2E, 14,
+        0x6, 4, 0xC, 7, 0x4A, 9, 0x18, 11, 0x36, 13, 0x2C, 14, 0x2A, 14,
+        0xA, 5, 0x8, 8, 0x16, 11, 0x28, 13, 0x28, 14,
+        0xE, 6, 0x48, 9, 0x38, 13, 0x26, 14,
+        0xC, 6, 0x1E, 11, 0x24, 13,
+        0xE, 7, 0x12, 11, 0x24, 14,
+        0xA, 7, 0x3C, 13,
+        0x8, 7, 0x2A, 13,
+        0xE, 8, 0x22, 13,
+        0xA, 8, 0x22, 14,
+        0x4E, 9, 0x20, 14,
+        0x46, 9, 0x44, 9, 0x40, 9, 0x1C, 11, 0x1A, 11, 0x10, 11,
+        0x3E, 13, 0x34, 13, 0x32, 13, 0x2E, 13, 0x2C, 13,
+        0x3E, 14, 0x3C, 14, 0x3A, 14, 0x38, 14, 0x36, 14
+    };
+
+    // The MBA lookup table, indexed by the next MBA_MAX_LEN bits
+    private static final short[] MBA_TABLE = new short[1 << MBA_MAX_LEN];
+
+    // The TCOEFF lookup table, indexed by the next TCOEFF_MAX_LEN bits
+    private static final short[] TCOEFF_TABLE =
+        new short[1 << TCOEFF_MAX_LEN];
+
+    static {
+        Arrays.fill(MBA_TABLE, (short) ((ILLEGAL << 5) | MBA_MAX_LEN));
+        for (int i = 0; i < MBA_CODES.length; i += 2) {
+            addCode(MBA_TABLE, MBA_MAX_LEN, MBA_CODES[i], MBA_CODES[i + 1],
+                    i / 2);
+        }
+        addCode(MBA_TABLE, MBA_MAX_LEN, 0xF, 11, STUFFING);
+        addCode(MBA_TABLE, MBA_MAX_LEN, 0x1, 16, START);
+
+        Arrays.fill(TCOEFF_TABLE, (short) ((ILLEGAL << 5) | TCOEFF_MAX_LEN));
+        for (int i = 0; i < TCOEFF_CODES.length; i += 2) {
+            addCode(TCOEFF_TABLE, TCOEFF_MAX_LEN, TCOEFF_CODES[i],
+                    TCOEFF_CODES[i + 1], COEFFICIENT);
+            addCode(TCOEFF_TABLE, TCOEFF_MAX_LEN, TCOEFF_CODES[i] | 1,
+                    TCOEFF_CODES[i + 1], COEFFICIENT);
+        }
+        addCode(TCOEFF_TABLE, TCOEFF_MAX_LEN, 0x2, 2, EOB);
+        addCode(TCOEFF_TABLE, TCOEFF_MAX_LEN, 0x1, 6, ESCAPE);
+    }
+
+    // True if the stream is H.261AS rather than H.261
+    private boolean annexS = false;
+
+    // The macroblocks that have been coded in the current frame
+    private boolean[] coded = new boolean[CIF_GOBS * MBS_PER_GOB];
+
+    // The number of macroblocks coded in the current frame
+    private int codedCount = 0;
+
+    // The number of macroblocks in the picture
+    private int mbCount = CIF_GOBS * MBS_PER_GOB;
+
+    // True if the current frame cannot be a key frame
+    private boolean failed = false;
+
+    // The sequence number expected for the next packet of the frame
+    private int nextSequence = -1;
+
+    // The data being parsed
+    private byte[] data = null;
+
+    // The position of the next bit to parse
+    private int bitPos = 0;
+
+    // The position after the last bit to parse
+    private int bitEnd = 0;
+
+    /**
+     * Creates a new H261KeyFrameDetector
+     * @param annexS True if the stream is H.261AS, false if H.261
+     */
+    public H261KeyFrameDetector(boolean annexS) {
+        this.annexS = annexS;
+    }
+
+    private static void addCode(short[] table, int maxLen, int code,
+            int length, int value) {
+        int nbit = maxLen - length;
+        int map = (value << 5) | length;
+        code = code << nbit;
+        for (int n = (1 << nbit) - 1; n >= 0; n--) {
+            table[code | n] = (short) map;
+        }
+    }
+
+    protected void startFrame() {
+        Arrays.fill(coded, false);
+        codedCount = 0;
+        failed = false;
+        nextSequence = -1;
+    }
+
+    protected boolean processPayload(RTPHeader header, byte[] data,
+            int offset, int length) {
+        if ((nextSequence != -1) && (header.getSequence() != nextSequence)) {
+            failed = true;
+        }
+        nextSequence = (header.getSequence() + 1) & RTPHeader.MAX_SEQUENCE;
+        if (failed || (length <= HEADER_SIZE)) {
+            return false;
+        }
+
+        this.data = data;
+        bitEnd = (offset + length) * 8;
+        int gob = 0;
+        int mba = 0;
+        if (annexS) {
+            bitPos = (offset + HEADER_SIZE) * 8;
+            bitEnd -= (data[offset] >> 5) & 0x7;
+            int width = ((((data[offset + 1] & 0xFF) << 4)
+                    | ((data[offset + 2] & 0xFF) >> 4)) + 1) << 4;
+            int height = ((((data[offset + 2] & 0xF) << 8)
+                    | (data[offset + 3] & 0xFF)) + 1) << 4;
+            setMbCount((width / 16) * (height / 16));
+        } else {
+            bitPos = ((offset + HEADER_SIZE) * 8) + ((data[offset] >> 5) & 0x7);
+            bitEnd -= (data[offset] >> 2) & 0x7;
+            gob = (data[offset + 1] >> 4) & 0xF;
+
+            // MBAP is sent biased by -1 (RFC 4587)
+            mba = (((data[offset + 1] & 0xF) << 1)
+                | ((data[offset + 2] >> 7) & 0x1)) + 1;
+        }
+
+        while (!failed && (bitPos < bitEnd)) {
+            int mbaCode = MBA_TABLE[peekBits(MBA_MAX_LEN)];
+            int mbaDiff = mbaCode >> 5;
+            bitPos += mbaCode & 0x1F;
+            if (mbaDiff == START) {
+                if (annexS) {
+                    gob = (readBits(10) << 10) | readBits(10);
+                    readBits(5);
+                } else {
+                    gob = readBits(4);
+                    if (gob == 0) {
+                        readBits(5);
+                        if ((readBits(6) & PTYPE_CIF) > 0) {
+                            setMbCount(CIF_GOBS * MBS_PER_GOB);
+                        } else {
+                            setMbCount(QCIF_GOBS * MBS_PER_GOB);
+                        }
+                    } else {
+                        readBits(5);
+                    }
+                    while (readBits(1) == 1) {
+                        readBits(8);
+                    }
+                }
+                mba = 0;
+            } else if (mbaDiff >= 0) {
+                mba += mbaDiff + 1;
+                if ((mba > MBS_PER_GOB) || (!annexS && (gob == 0))) {
+                    failed = true;
+                } else {
+                    readMacroblock(gob, mba);
+                }
+            } else if (mbaDiff != STUFFING) {
+                failed = true;
+            }
+        }
+        this.data = null;
+        return !failed && (codedCount == mbCount);
+    }
+
+    // Sets the number of macroblocks in the picture
+    private void setMbCount(int count) {
+        if (count != mbCount) {
+            mbCount = count;
+            if (coded.length < count) {
+                coded = new boolean[count];
+            }
+            Arrays.fill(coded, false);
+            codedCount = 0;
+        }
+    }
+
+    // Reads an intra macroblock, failing if the macroblock is not intra
+    private void readMacroblock(int gob, int mba) {
+        int zeros = 0;
+        while ((bitPos < bitEnd) && (readBits(1) == 0)) {
+            zeros += 1;
+        }
+        if (zeros == MTYPE_INTRA_MQUANT_ZEROS) {
+            readBits(5);
+        } else if (zeros != MTYPE_INTRA_ZEROS) {
+            failed = true;
+            return;
+        }
+
+        for (int i = 0; (i < BLOCKS_PER_MB) && !failed; i++) {
+            bitPos += DC_BITS;
+            boolean eob = false;
+            while (!eob && !failed) {
+                int code = TCOEFF_TABLE[peekBits(TCOEFF_MAX_LEN)];
+                int value = code >> 5;
+                bitPos += code & 0x1F;
+                if (value == EOB) {
+                    eob = true;
+                } else if (value == ESCAPE) {
+                    bitPos += TCOEFF_ESCAPE_BITS;
+                } else if (value != COEFFICIENT) {
+                    failed = true;
+                }
+                if (bitPos > bitEnd) {
+                    failed = true;
+                }
+            }
+        }
+        if (failed) {
+            return;
+        }
+
+        int block = 0;
+        if (annexS) {
+            block = (gob * MBS_PER_GOB) + (mba - 1);
+        } else if (mbCount == (QCIF_GOBS * MBS_PER_GOB)) {
+            block = (((gob - 1) / 2) * MBS_PER_GOB) + (mba - 1);
+        } else {
+            block = ((gob - 1) * MBS_PER_GOB) + (mba - 1);
+        }
+        if (block >= mbCount) {
+            failed = true;
+        } else if (!coded[block]) {
+            coded[block] = true;
+            codedCount += 1;
+        }
+    }
+
+    // Gets the next bits without moving on; bits after the end are zero
+    private int peekBits(int n) {
+        int byteIndex = bitPos >> 3;
+        int bits = (getByte(byteIndex) << 16) | (getByte(byteIndex + 1) << 8)
+            | getByte(byteIndex + 2);
+        bits = (bits >> (24 - (bitPos & 0x7) - n)) & ((1 << n) - 1);
+        int over = (bitPos + n) - bitEnd;
+        if (over > 0) {
+            bits &= ~((1 << over) - 1);
+        }
+        return bits;
+    }
+
+    // Reads up to 16 bits
+    private int readBits(int n) {
+        int bits = peekBits(n);
+        bitPos += n;
+        return bits;
+    }
+
+    // Gets a byte of the data, or 0 after the end of the data
+    private int getByte(int index) {
+        if (index >= ((bitEnd + 7) >> 3)) {
+            return 0;
+        }
+        return data[index] & 0xFF;
+    }
+}
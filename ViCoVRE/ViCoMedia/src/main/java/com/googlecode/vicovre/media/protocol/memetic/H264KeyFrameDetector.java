@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.media.protocol.memetic;
+
+import com.googlecode.vicovre.media.rtp.RTPHeader;
+
+/**
+ * Detects H.264 key frames (RFC 3984 payloads).  A frame is a key frame if
+ * it contains an IDR slice, whether sent as a single NAL unit, within an
+ * aggregation packet or as a fragment.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class H264KeyFrameDetector extends KeyFrameDetector {
+
+    // The mask of the NAL unit type
+    private static final int NAL_TYPE_MASK = 0x1F;
+
+    // The NAL unit type of an IDR slice
+    private static final int NAL_IDR = 5;
+
+    // The last NAL unit type that is sent as a single NAL unit
+    private static final int NAL_LAST_SINGLE = 23;
+
+    // Single-time aggregation packet type A
+    private static final int NAL_STAP_A = 24;
+
+    // Single-time aggregation packet type B (with decoding order number)
+    private static final int NAL_STAP_B = 25;
+
+    // Fragmentation unit type A
+    private static final int NAL_FU_A = 28;
+
+    // Fragmentation unit type B (with decoding order number)
+    private static final int NAL_FU_B = 29;
+
+    // The size of the size of a NAL unit in an aggregation packet
+    private static final int STAP_SIZE_LENGTH = 2;
+
+    // The size of a decoding order number
+    private static final int DON_LENGTH = 2;
+
+    protected void startFrame() {
+        // Does Nothing
+    }
+
+    protected boolean processPayload(RTPHeader header, byte[] data,
+            int offset, int length) {
+        int type = data[offset] & NAL_TYPE_MASK;
+        if ((type > 0) && (type <= NAL_LAST_SINGLE)) {
+            return type == NAL_IDR;
+        }
+        if ((type == NAL_FU_A) || (type == NAL_FU_B)) {
+            return (length > 1) && ((data[offset + 1] & NAL_TYPE_MASK)
+                    == NAL_IDR);
+        }
+        if ((type == NAL_STAP_A) || (type == NAL_STAP_B)) {
+            int pos = offset + 1;
+            if (type == NAL_STAP_B) {
+                pos += DON_LENGTH;
+            }
+            int end = offset + length;
+            while ((pos + STAP_SIZE_LENGTH) < end) {
+                int size = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+                pos += STAP_SIZE_LENGTH;
+                if ((size > 0) && ((data[pos] & NAL_TYPE_MASK) == NAL_IDR)) {
+                    return true;
+                }
+                pos += size;
+            }
+        }
+        return false;
+    }
+}
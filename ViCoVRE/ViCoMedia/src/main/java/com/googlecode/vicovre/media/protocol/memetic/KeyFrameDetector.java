@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.media.protocol.memetic;
+
+import javax.media.Format;
+
+import com.googlecode.vicovre.media.rtp.RTPHeader;
+
+/**
+ * Detects the RTP packets of a stream that complete a key frame, i.e. a frame
+ * from which a decoder can start without any earlier data.  Packets are
+ * given in the order in which they are recorded and a frame is identified by
+ * its RTP timestamp.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public abstract class KeyFrameDetector {
+
+    // The timestamp of the current frame
+    private long frameTimestamp = -1;
+
+    // True if the current frame has already been detected as a key frame
+    private boolean frameDetected = false;
+
+    /**
+     * Gets a detector for a format
+     * @param format The format of the stream
+     * @return A new detector, or null if key frames cannot be detected in
+     *     the format
+     */
+    public static KeyFrameDetector getDetector(Format format) {
+        if (format == null) {
+            return null;
+        }
+        String encoding = format.getEncoding().toLowerCase();
+        if (encoding.equals("h261/rtp")) {
+            return new H261KeyFrameDetector(false);
+        } else if (encoding.equals("h261as/rtp")) {
+            return new H261KeyFrameDetector(true);
+        } else if (encoding.equals("h264/rtp")) {
+            return new H264KeyFrameDetector();
+        }
+        return null;
+    }
+
+    /**
+     * Processes an RTP packet
+     * @param header The parsed header of the packet
+     * @param data The data of the packet
+     * @param offset The offset of the packet in the data
+     * @param length The length of the packet
+     * @return True if this packet makes the frame to which it belongs a key
+     *     frame.  This is true for at most one packet of each frame.
+     */
+    public boolean isKeyFrame(RTPHeader header, byte[] data, int offset,
+            int length) {
+        if (header.getTimestamp() != frameTimestamp) {
+            frameTimestamp = header.getTimestamp();
+            frameDetected = false;
+            startFrame();
+        }
+        if (frameDetected || (length <= RTPHeader.SIZE)) {
+            return false;
+        }
+        frameDetected = processPayload(header, data, offset + RTPHeader.SIZE,
+                length - RTPHeader.SIZE);
+        return frameDetected;
+    }
+
+    /**
+     * Called when the first packet of a new frame is seen
+     */
+    protected abstract void startFrame();
+
+    /**
+     * Processes the payload of a packet of the current frame
+     * @param header The parsed header of the packet
+     * @param data The data of the payload
+     * @param offset The offset of the payload in the data
+     * @param length The length of the payload
+     * @return True if the frame is now known to be a key frame
+     */
+    protected abstract boolean processPayload(RTPHeader header, byte[] data,
+            int offset, int length);
+}
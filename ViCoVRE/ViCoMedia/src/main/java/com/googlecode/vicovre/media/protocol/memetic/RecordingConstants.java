@@ -119,6 +119,22 @@ public interface RecordingConstants {
      */
     String STREAM_INDEX2 = "_index";
 
+    /**
+     * The postfix for the index of the key frames of a stream file
+     */
+    String STREAM_KEY_FRAME_INDEX = ".keyframes";
+
+    /**
+     * The postfix for the index of the sprite sheets of a stream file
+     */
+    String STREAM_SPRITES = ".sprites";
+
+    /**
+     * The part of the name of a sprite sheet after the stream file name,
+     * followed by the number of the sheet
+     */
+    String STREAM_SPRITE_SHEET = "_sprites_";
+
     String ANNOTATIONS = ".annotations";
 
     /**
@@ -0,0 +1,300 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.media.protocol.memetic;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.googlecode.vicovre.media.Bits;
+
+/**
+ * Reads the packets of a recorded stream file through a large read-ahead
+ * window.  The data of each packet is returned as a slice of the window
+ * rather than being copied; the slice is only valid until the next packet
+ * is read.  Seeking within the window and skipping packets does not read
+ * from the file.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class StreamFileCursor {
+
+    /**
+     * The default size of the read-ahead window in bytes
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+
+    // The size of the header of each packet (2 shorts and an int)
+    private static final int PACKET_HEADER_SIZE = 8;
+
+    // The stream being read
+    private FileInputStream input = null;
+
+    // The channel of the file
+    private FileChannel channel = null;
+
+    // The window of data read from the file
+    private byte[] window = null;
+
+    // A buffer wrapping the window, used to fill it
+    private ByteBuffer windowBuffer = null;
+
+    // The position in the file of the start of the window
+    private long windowStart = 0;
+
+    // The number of valid bytes in the window
+    private int windowEnd = 0;
+
+    // The current position in the window
+    private int pos = 0;
+
+    // The length of the current packet
+    private int packetLength = 0;
+
+    // The type of the current packet
+    private int packetType = 0;
+
+    // The offset of the current packet in milliseconds
+    private long packetOffset = 0;
+
+    // The position of the data of the current packet in the window
+    private int dataOffset = 0;
+
+    /**
+     * Creates a new StreamFileCursor with the default window size
+     * @param file The stream file to read
+     * @throws IOException
+     */
+    public StreamFileCursor(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Creates a new StreamFileCursor
+     * @param file The stream file to read
+     * @param windowSize The size of the read-ahead window in bytes
+     * @throws IOException
+     */
+    public StreamFileCursor(File file, int windowSize) throws IOException {
+        input = new FileInputStream(file);
+        channel = input.getChannel();
+        setWindow(new byte[Math.max(windowSize, PACKET_HEADER_SIZE)]);
+    }
+
+    private void setWindow(byte[] window) {
+        this.window = window;
+        this.windowBuffer = ByteBuffer.wrap(window);
+    }
+
+    // Makes sure that the given number of bytes are in the window from the
+    // current position
+    private void ensure(int bytes) throws IOException {
+        if ((windowEnd - pos) >= bytes) {
+            return;
+        }
+
+        // Move the remaining data to the start of the window
+        int remaining = windowEnd - pos;
+        if (bytes > window.length) {
+            byte[] newWindow = new byte[bytes];
+            System.arraycopy(window, pos, newWindow, 0, remaining);
+            setWindow(newWindow);
+        } else {
+            System.arraycopy(window, pos, window, 0, remaining);
+        }
+        windowStart += pos;
+        windowEnd = remaining;
+        pos = 0;
+
+        // Fill the window as far as possible
+        while (windowEnd < bytes) {
+            windowBuffer.limit(window.length);
+            windowBuffer.position(windowEnd);
+            int read = channel.read(windowBuffer, windowStart + windowEnd);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            windowEnd += read;
+        }
+    }
+
+    /**
+     * Reads a big-endian int
+     * @return The int
+     * @throws IOException
+     */
+    public int readInt() throws IOException {
+        ensure(4);
+        int value = Bits.readInt(window, pos);
+        pos += 4;
+        return value;
+    }
+
+    /**
+     * Reads a big-endian unsigned short
+     * @return The short
+     * @throws IOException
+     */
+    public int readUnsignedShort() throws IOException {
+        ensure(2);
+        int value = Bits.readUnsignedShort(window, pos);
+        pos += 2;
+        return value;
+    }
+
+    /**
+     * Skips some bytes
+     * @param bytes The number of bytes to skip
+     * @throws IOException
+     */
+    public void skip(int bytes) throws IOException {
+        position(position() + bytes);
+    }
+
+    /**
+     * Reads the header of the next packet
+     * @throws IOException
+     * @throws EOFException if there are no more packets
+     */
+    public void readPacketHeader() throws IOException {
+        ensure(PACKET_HEADER_SIZE);
+        packetLength = Bits.readUnsignedShort(window, pos);
+        packetType = Bits.readUnsignedShort(window, pos + 2);
+        packetOffset = Bits.readUnsignedInt(window, pos + 4);
+        pos += PACKET_HEADER_SIZE;
+    }
+
+    /**
+     * Reads the data of the packet whose header was last read.  The data
+     * can then be found in getData from getDataOffset for getPacketLength
+     * bytes.
+     * @throws IOException
+     */
+    public void readPacketData() throws IOException {
+        ensure(packetLength);
+        dataOffset = pos;
+        pos += packetLength;
+    }
+
+    /**
+     * Skips the data of the packet whose header was last read
+     * @throws IOException
+     */
+    public void skipPacketData() throws IOException {
+        skip(packetLength);
+    }
+
+    /**
+     * Gets the length of the current packet
+     * @return The length in bytes
+     */
+    public int getPacketLength() {
+        return packetLength;
+    }
+
+    /**
+     * Gets the type of the current packet
+     * @return RecordingConstants.RTP_PACKET or RecordingConstants.RTCP_PACKET
+     */
+    public int getPacketType() {
+        return packetType;
+    }
+
+    /**
+     * Gets the offset of the current packet from the start of the stream
+     * @return The offset in milliseconds
+     */
+    public long getPacketOffset() {
+        return packetOffset;
+    }
+
+    /**
+     * Gets the array holding the data of the current packet
+     * @return The array, valid until the next packet is read
+     */
+    public byte[] getData() {
+        return window;
+    }
+
+    /**
+     * Gets the position of the current packet in the data array
+     * @return The offset in the array
+     */
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * Gets the position in the file
+     * @return The position in bytes
+     */
+    public long position() {
+        return windowStart + pos;
+    }
+
+    /**
+     * Moves to a position in the file
+     * @param position The position in bytes
+     */
+    public void position(long position) {
+        if ((position >= windowStart)
+                && (position <= (windowStart + windowEnd))) {
+            pos = (int) (position - windowStart);
+        } else {
+            windowStart = position;
+            windowEnd = 0;
+            pos = 0;
+        }
+    }
+
+    /**
+     * Gets the size of the file
+     * @return The size in bytes
+     * @throws IOException
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Closes the file
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        input.close();
+    }
+}
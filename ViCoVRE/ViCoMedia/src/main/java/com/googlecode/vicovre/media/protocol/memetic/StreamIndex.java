@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.media.protocol.memetic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The index of a recorded stream, mapping the offset of each new timestamp
+ * to its position in the stream file.  The entries are held in primitive
+ * arrays and indexes are cached, so readers of the same stream share one
+ * copy for as long as the index file is unchanged.  The index of the key
+ * frames of a stream has the same form, with an entry for each key frame.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class StreamIndex {
+
+    /**
+     * An index with no entries
+     */
+    public static final StreamIndex EMPTY =
+        new StreamIndex(new long[0], new long[0], 0);
+
+    // The size of an index entry in bytes (2 longs)
+    private static final int ENTRY_SIZE = 16;
+
+    // The maximum number of entries to keep in the cache
+    private static final long MAX_CACHED_ENTRIES = 4 * 1024 * 1024;
+
+    // The cached indexes, with the least recently used first
+    private static final LinkedHashMap<String, StreamIndex> CACHE =
+        new LinkedHashMap<String, StreamIndex>(16, 0.75f, true);
+
+    // The number of entries in the cached indexes
+    private static long cachedEntries = 0;
+
+    // The offsets of the entries in milliseconds
+    private long[] offsets = null;
+
+    // The positions of the entries in the stream file
+    private long[] positions = null;
+
+    // The number of entries
+    private int size = 0;
+
+    // The length of the index file when read
+    private long fileLength = 0;
+
+    // The modification time of the index file when read
+    private long fileModified = 0;
+
+    // The entries with increasing offsets, created when first needed
+    private StreamIndex increasingIndex = null;
+
+    private StreamIndex(long[] offsets, long[] positions, int size) {
+        this.offsets = offsets;
+        this.positions = positions;
+        this.size = size;
+    }
+
+    /**
+     * Gets the index of a stream
+     * @param streamFilename The name of the stream file
+     * @return The index
+     * @throws IOException
+     */
+    public static StreamIndex getIndexOfStream(String streamFilename)
+            throws IOException {
+        File file = new File(streamFilename + RecordingConstants.STREAM_INDEX);
+        if (!file.exists()) {
+            file = new File(streamFilename + RecordingConstants.STREAM_INDEX2);
+        }
+        return getIndex(file);
+    }
+
+    /**
+     * Gets the index of the key frames of a stream
+     * @param streamFilename The name of the stream file
+     * @return The index, or null if the stream has no key frame index
+     * @throws IOException
+     */
+    public static StreamIndex getKeyFrameIndexOfStream(String streamFilename)
+            throws IOException {
+        File file = new File(streamFilename
+                + RecordingConstants.STREAM_KEY_FRAME_INDEX);
+        if (!file.exists()) {
+            return null;
+        }
+        return getIndex(file);
+    }
+
+    /**
+     * Gets an index, reading it from the file only if it is not cached or
+     * the file has changed since it was cached
+     * @param file The index file
+     * @return The index
+     * @throws IOException
+     */
+    public static StreamIndex getIndex(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long modified = file.lastModified();
+        synchronized (CACHE) {
+            StreamIndex index = CACHE.get(key);
+            if ((index != null) && (index.fileLength == length)
+                    && (index.fileModified == modified)) {
+                return index;
+            }
+        }
+
+        StreamIndex index = readIndex(file);
+        index.fileLength = length;
+        index.fileModified = modified;
+        synchronized (CACHE) {
+            StreamIndex old = CACHE.put(key, index);
+            if (old != null) {
+                cachedEntries -= old.size;
+            }
+            cachedEntries += index.size;
+            Iterator<StreamIndex> iter = CACHE.values().iterator();
+            while ((cachedEntries > MAX_CACHED_ENTRIES) && iter.hasNext()) {
+                StreamIndex eldest = iter.next();
+                if (eldest != index) {
+                    cachedEntries -= eldest.size;
+                    iter.remove();
+                }
+            }
+        }
+        return index;
+    }
+
+    // Reads all the entries of an index file
+    private static StreamIndex readIndex(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            int count = (int) (channel.size() / ENTRY_SIZE);
+            ByteBuffer buffer = ByteBuffer.allocate(count * ENTRY_SIZE);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            count = buffer.remaining() / ENTRY_SIZE;
+            long[] offsets = new long[count];
+            long[] positions = new long[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = buffer.getLong();
+                positions[i] = buffer.getLong();
+            }
+            return new StreamIndex(offsets, positions, count);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Gets the entries of this index whose offsets are greater than all of
+     * those before them, so that the offsets are strictly increasing
+     * @return The index of increasing entries
+     */
+    public synchronized StreamIndex getIncreasingIndex() {
+        if (increasingIndex == null) {
+            long[] incOffsets = new long[size];
+            long[] incPositions = new long[size];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if ((count == 0) || (offsets[i] > incOffsets[count - 1])) {
+                    incOffsets[count] = offsets[i];
+                    incPositions[count] = positions[i];
+                    count += 1;
+                }
+            }
+            if (count == size) {
+                increasingIndex = this;
+            } else {
+                increasingIndex = new StreamIndex(
+                        Arrays.copyOf(incOffsets, count),
+                        Arrays.copyOf(incPositions, count), count);
+            }
+        }
+        return increasingIndex;
+    }
+
+    /**
+     * Searches for an offset in the index
+     * @param offset The offset to search for in milliseconds
+     * @return The position of the offset in the index if it exists,
+     *     otherwise (-(insertion point) - 1) as for Arrays.binarySearch
+     */
+    public int binarySearch(long offset) {
+        return Arrays.binarySearch(offsets, 0, size, offset);
+    }
+
+    /**
+     * Finds the last entry with an offset at or before a given offset
+     * @param offset The offset to search for in milliseconds
+     * @return The entry number, or -1 if all entries are after the offset
+     */
+    public int floorSearch(long offset) {
+        int entry = binarySearch(offset);
+        if (entry < 0) {
+            entry = -entry - 2;
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the number of entries in the index
+     * @return The number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the offset of an entry
+     * @param entry The entry number
+     * @return The offset in milliseconds
+     */
+    public long getOffset(int entry) {
+        if (entry >= size) {
+            throw new ArrayIndexOutOfBoundsException(entry);
+        }
+        return offsets[entry];
+    }
+
+    /**
+     * Gets the position of an entry in the stream file
+     * @param entry The entry number
+     * @return The position in bytes
+     */
+    public long getPosition(int entry) {
+        if (entry >= size) {
+            throw new ArrayIndexOutOfBoundsException(entry);
+        }
+        return positions[entry];
+    }
+}
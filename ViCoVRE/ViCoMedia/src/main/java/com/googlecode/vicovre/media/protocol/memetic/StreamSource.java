@@ -31,15 +31,10 @@
 
 package com.googlecode.vicovre.media.protocol.memetic;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.nio.channels.FileChannel;
-import java.util.Collections;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
@@ -63,9 +58,6 @@ public class StreamSource {
     // The number of ms per second
     private static final int MS_PER_SEC = 1000;
 
-    // The mask for a short from an int
-    private static final int SHORT_MASK = 0x0000FFFF;
-
     // The second last item in an array
     private static final int SECOND_LAST = 2;
 
@@ -99,11 +91,8 @@ public class StreamSource {
     // True if an RTP packet was found in the file
     private boolean qFoundRtpPacket = false;
 
-    // The data channel of the stream file
-    private DataInputStream streamFile = null;
-
-    // The control channel of the stream file
-    private FileChannel streamFileControl = null;
+    // The reader of the stream file
+    private StreamFileCursor streamFile = null;
 
     // The first timestamp in this stream
     private long startTime = 0;
@@ -135,13 +124,10 @@ public class StreamSource {
     // The speed at which packets are played back
     private double scale = 1.0;
 
-    // A vector of positions of packets in the stream file
-    private Vector<Long> packetPositions = new Vector<Long>();
-
-    // A vector of offsets of packets in the stream file
-    private Vector<Long> packetOffsets = new Vector<Long>();
+    // The offsets and positions of packets in the stream file
+    private StreamIndex index = StreamIndex.EMPTY;
 
-    // The current position in the packetPositions vector
+    // The current entry in the index
     private int currentPos = 0;
 
     // The number of packets sent
@@ -168,6 +154,9 @@ public class StreamSource {
     // The format of the streams
     private int rtpFormat = 0;
 
+    // The header of the packet being read, reused for each packet
+    private RTPHeader header = new RTPHeader();
+
     /**
      * Sets up the stream to be sent
      * @param dataSource The datasource that this stream will be used in
@@ -322,21 +311,20 @@ public class StreamSource {
         long actualSeek = seek - offsetShift;
         int offsetPos = 0;
         firstOffset = seek;
-        offsetPos = Collections.binarySearch(packetOffsets, new Long(
-                actualSeek));
+        offsetPos = index.binarySearch(actualSeek);
         if (offsetPos < 0) {
             offsetPos = (-1 * offsetPos) + 1;
         }
         currentPos = offsetPos;
         try {
-            if ((currentPos >= (packetOffsets.size() - 1)) && (scale < 0)) {
-                currentPos = packetOffsets.size() - SECOND_LAST;
+            if ((currentPos >= (index.size() - 1)) && (scale < 0)) {
+                currentPos = index.size() - SECOND_LAST;
                 int packetType = 1;
                 while (packetType != 0) {
-                    long pos = packetPositions.get(currentPos);
-                    streamFileControl.position(pos);
-                    streamFile.readShort();
-                    packetType = streamFile.readShort() & SHORT_MASK;
+                    long pos = index.getPosition(currentPos);
+                    streamFile.position(pos);
+                    streamFile.readUnsignedShort();
+                    packetType = streamFile.readUnsignedShort();
                     currentPos--;
                 }
             }
@@ -367,9 +355,7 @@ public class StreamSource {
         boolean qSuccess = true;
 
         try {
-            FileInputStream stream = new FileInputStream(file);
-            streamFile = new DataInputStream(stream);
-            streamFileControl = stream.getChannel();
+            streamFile = new StreamFileCursor(file);
         } catch (IOException e) {
             e.printStackTrace();
             qSuccess = false;
@@ -390,11 +376,10 @@ public class StreamSource {
             long uSeconds =
                 (streamFile.readInt() & RTPHeader.UINT_TO_LONG_CONVERT);
 
-            byte[] addr = new byte[IP_ADDRESS_SIZE];
             startTime = (seconds * MS_PER_SEC) + (uSeconds / USECS_PER_MS);
 
-            // Read the sender of the original stream
-            streamFile.read(addr, 0, IP_ADDRESS_SIZE);
+            // Skip the sender of the original stream
+            streamFile.skip(IP_ADDRESS_SIZE);
             streamFile.readUnsignedShort();
         } catch (IOException e) {
             e.printStackTrace();
@@ -412,22 +397,9 @@ public class StreamSource {
     public void readIndexFile(File file) {
         try {
 
-            // Open the index file
+            // Get the index, which may already have been read by another reader
             file = new File(file.getParentFile(), file.getName() + ".index");
-            DataInputStream indexFile = new DataInputStream(
-                    new BufferedInputStream(new FileInputStream(file)));
-
-            try {
-                while (true) {
-                    long off = indexFile.readLong();
-                    long pos = indexFile.readLong();
-
-                    packetOffsets.add(new Long(off));
-                    packetPositions.add(new Long(pos));
-                }
-            } catch (EOFException e) {
-                indexFile.close();
-            }
+            index = StreamIndex.getIndex(file);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -449,12 +421,12 @@ public class StreamSource {
                 qEof = false;
 
                 // Move into the next position
-                if (currentPos >= packetPositions.size() || currentPos < 0) {
+                if (currentPos >= index.size() || currentPos < 0) {
                     qEof = true;
                     return;
                 }
-                pos = packetPositions.get(currentPos);
-                streamFileControl.position(pos);
+                pos = index.getPosition(currentPos);
+                streamFile.position(pos);
                 currentPos += Double.valueOf(scale).intValue();
                 lowestSequence = -1;
 
@@ -467,21 +439,22 @@ public class StreamSource {
                     byte[] packetBuffer = packetData[packets.size()];
                     packet = new DatagramPacket(packetBuffer,
                             packetBuffer.length);
-                    int length = streamFile.readShort()
-                        & RTPHeader.USHORT_TO_INT_CONVERT;
-                    type = streamFile.readShort()
-                        & RTPHeader.USHORT_TO_INT_CONVERT;
-                    offset = streamFile.readInt()
-                        & RTPHeader.UINT_TO_LONG_CONVERT;
+                    streamFile.readPacketHeader();
+                    int length = streamFile.getPacketLength();
+                    type = streamFile.getPacketType();
+                    offset = streamFile.getPacketOffset();
                     offset += offsetShift;
 
-                    // calculate packet body size and read it
-                    streamFile.readFully(packetBuffer, 0, length);
+                    // Read the packet body and copy it into the queue, as
+                    // the cursor window is reused by the next read
+                    streamFile.readPacketData();
+                    System.arraycopy(streamFile.getData(),
+                            streamFile.getDataOffset(), packetBuffer, 0,
+                            length);
 
                     // If this is an RTP packet, set it up to be read
                     if (type == RTP_PACKET) {
-                        RTPHeader header = new RTPHeader(packetBuffer, 0,
-                                length);
+                        header.parse(packetBuffer, 0, length);
                         rtpFormat = header.getPacketType();
                         packetTimestamp = header.getTimestamp();
                         if ((packetTimestamp == lastReadTimestamp)
@@ -656,7 +629,7 @@ public class StreamSource {
      * @return The current time
      */
     public long getCurrentTime() {
-        return packetOffsets.get(currentPos) + offsetShift;
+        return index.getOffset(currentPos) + offsetShift;
     }
 
     /**
@@ -664,6 +637,6 @@ public class StreamSource {
      * @return The length og the stream in milliseconds
      */
     public long getDuration() {
-        return packetOffsets.get(packetOffsets.size() - 1);
+        return index.getOffset(index.size() - 1);
     }
 }
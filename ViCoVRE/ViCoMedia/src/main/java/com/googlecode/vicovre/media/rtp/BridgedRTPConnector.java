@@ -35,6 +35,7 @@
 
 package com.googlecode.vicovre.media.rtp;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.util.HashMap;
@@ -404,11 +405,15 @@ public class BridgedRTPConnector implements RTPConnector {
             try {
                 long ssrc = 0;
                 if (isRtp) {
-                    RTPHeader header = new RTPHeader(data, offset, length);
-                    ssrc = header.getSsrc();
+                    if (length < RTPHeader.SIZE) {
+                        throw new EOFException("RTP packet too short");
+                    }
+                    ssrc = RTPHeader.getSsrc(data, offset);
                 } else {
-                    RTCPHeader header = new RTCPHeader(data, offset, length);
-                    ssrc = header.getSsrc();
+                    if (length < RTCPHeader.SIZE) {
+                        throw new EOFException("RTCP packet too short");
+                    }
+                    ssrc = RTCPHeader.getSsrc(data, offset);
                 }
                 NetworkLocation location = streamLocationMap.get(ssrc);
                 if ((location == null) && (locations != null)
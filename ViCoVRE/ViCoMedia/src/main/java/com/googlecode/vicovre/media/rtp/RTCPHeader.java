@@ -34,13 +34,16 @@
 
 package com.googlecode.vicovre.media.rtp;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.DatagramPacket;
 
+import com.googlecode.vicovre.media.Bits;
+
 /**
- * Represents and parses an RTCP header
+ * Represents and parses an RTCP header.  A header can be reused for many
+ * packets by calling parse; the static methods read single fields straight
+ * from the packet data without creating a header at all.
  *
  * @author Andrew G D Rowley
  * @version 2-0-alpha
@@ -224,6 +227,12 @@ public class RTCPHeader {
     // The shift for the reception count from a byte
     private static final int RCOUNT_SHIFT = 0;
 
+    // The position of the length in the header
+    private static final int LENGTH_POS = 2;
+
+    // The position of the ssrc in the header
+    private static final int SSRC_POS = 4;
+
     // The first 8 bits
     private short flags;
 
@@ -236,6 +245,13 @@ public class RTCPHeader {
     // The third and fourth 16 bits
     private long ssrc;
 
+    /**
+     * Creates a new empty RTCPHeader, to be filled in with parse
+     */
+    public RTCPHeader() {
+        // Does Nothing
+    }
+
     /**
      * Creates a new RTCPHeader
      *
@@ -259,14 +275,38 @@ public class RTCPHeader {
      * @throws IOException
      */
     public RTCPHeader(byte[] data, int offset, int length) throws IOException {
-        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(
-                data, offset, length));
+        parse(data, offset, length);
+    }
+
+    /**
+     * Replaces the values of this header with those of a packet
+     *
+     * @param packet The packet from which to parse the header
+     * @throws EOFException if the packet is too short to hold a header
+     */
+    public void parse(DatagramPacket packet) throws EOFException {
+        parse(packet.getData(), packet.getOffset(), packet.getLength());
+    }
+
+    /**
+     * Replaces the values of this header with those in some data
+     *
+     * @param data The data to read the header from
+     * @param offset The offset in the data to start
+     * @param length The length of the data to read
+     * @throws EOFException if the data is too short to hold a header
+     */
+    public void parse(byte[] data, int offset, int length)
+            throws EOFException {
+        if (Math.min(length, data.length - offset) < SIZE) {
+            throw new EOFException();
+        }
 
         // Read the header values
-        this.flags = (short) stream.readUnsignedByte();
-        this.type = (short) stream.readUnsignedByte();
-        this.length = stream.readUnsignedShort();
-        this.ssrc = stream.readInt() & RTPHeader.UINT_TO_LONG_CONVERT;
+        this.flags = (short) (data[offset + POS_1] & INT_TO_BYTE);
+        this.type = getPacketType(data, offset);
+        this.length = getLength(data, offset);
+        this.ssrc = getSsrc(data, offset);
     }
 
     /**
@@ -384,6 +424,48 @@ public class RTCPHeader {
             (byte) ((ssrc >> INT4_TO_BYTE_SHIFT) & INT_TO_BYTE);
     }
 
+    /**
+     * Reads the RTP version number of a packet.  The caller must ensure that
+     * the data is at least SIZE bytes long.
+     * @param data The packet data
+     * @param offset The offset of the packet in the data
+     * @return The RTP version implemented
+     */
+    public static short getVersion(byte[] data, int offset) {
+        return (short) ((data[offset + POS_1] & VERSION_MASK)
+                >> VERSION_SHIFT);
+    }
+
+    /**
+     * Reads the RTCP packet type of a packet
+     * @param data The packet data
+     * @param offset The offset of the packet in the data
+     * @return The type of the RTCP packet
+     */
+    public static short getPacketType(byte[] data, int offset) {
+        return (short) (data[offset + POS_2] & INT_TO_BYTE);
+    }
+
+    /**
+     * Reads the length of a packet
+     * @param data The packet data
+     * @param offset The offset of the packet in the data
+     * @return The length of the RTCP packet in 32-bit words - 1
+     */
+    public static int getLength(byte[] data, int offset) {
+        return Bits.readUnsignedShort(data, offset + LENGTH_POS);
+    }
+
+    /**
+     * Reads the first ssrc of a packet
+     * @param data The packet data
+     * @param offset The offset of the packet in the data
+     * @return The ssrc being described
+     */
+    public static long getSsrc(byte[] data, int offset) {
+        return Bits.readUnsignedInt(data, offset + SSRC_POS);
+    }
+
     /**
      * Returns the RTCP Length from the length in bytes
      * @param length The length in bytes
@@ -34,13 +34,16 @@
 
 package com.googlecode.vicovre.media.rtp;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.DatagramPacket;
 
+import com.googlecode.vicovre.media.Bits;
+
 /**
- * Represents the header of an RTP packet
+ * Represents the header of an RTP packet.  A header can be reused for many
+ * packets by calling parse; the static methods read single fields straight
+ * from the packet data without creating a header at all.
  *
  * @author Andrew G D Rowley
  * @version 2-0-alpha
@@ -113,6 +116,15 @@ public class RTPHeader {
     // The shift to extract the type from a short
     private static final int TYPE_SHIFT = 0;
 
+    // The position of the sequence number in the header
+    private static final int SEQUENCE_POS = 2;
+
+    // The position of the timestamp in the header
+    private static final int TIMESTAMP_POS = 4;
+
+    // The position of the ssrc in the header
+    private static final int SSRC_POS = 8;
+
     // The first 16 bits of the header
     private int flags;
 
@@ -125,6 +137,13 @@ public class RTPHeader {
     // The fifth and sixth 16 bits of the header
     private long ssrc;
 
+    /**
+     * Creates a new empty RTPHeader, to be filled in with parse
+     */
+    public RTPHeader() {
+        // Does Nothing
+    }
+
     /**
      * Creates a new RTPHeader
      *
@@ -146,14 +165,38 @@ public class RTPHeader {
      * @throws IOException
      */
     public RTPHeader(byte[] data, int offset, int length) throws IOException {
-        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(
-                data, offset, length));
+        parse(data, offset, length);
+    }
+
+    /**
+     * Replaces the values of this header with those of a packet
+     *
+     * @param packet The packet to parse the header from
+     * @throws EOFException if the packet is too short to hold a header
+     */
+    public void parse(DatagramPacket packet) throws EOFException {
+        parse(packet.getData(), packet.getOffset(), packet.getLength());
+    }
+
+    /**
+     * Replaces the values of this header with those in some data
+     *
+     * @param data The packet to parse the header from
+     * @param offset The offset where to start in the data
+     * @param length The length of the data to read
+     * @throws EOFException if the data is too short to hold a header
+     */
+    public void parse(byte[] data, int offset, int length)
+            throws EOFException {
+        if (Math.min(length, data.length - offset) < SIZE) {
+            throw new EOFException();
+        }
 
         // Read the header values
-        this.flags = stream.readUnsignedShort();
-        this.sequence = stream.readUnsignedShort();
-        this.timestamp = stream.readInt() & UINT_TO_LONG_CONVERT;
-        this.ssrc = stream.readInt() & UINT_TO_LONG_CONVERT;
+        this.flags = getFlags(data, offset);
+        this.sequence = getSequence(data, offset);
+        this.timestamp = getTimestamp(data, offset);
+        this.ssrc = getSsrc(data, offset);
     }
 
     /**
@@ -235,4 +278,77 @@ public class RTPHeader {
     public long getSsrc() {
         return ssrc;
     }
+
+    /**
+     * Reads the header flags of a packet.  The caller must ensure that the
+     * data is at least SIZE bytes long.
+     * @param data The packet data
+     * @param offset The offset of the packet in the data
+     * @return The flags of the header
+     */
+    public static int getFlags(byte[] data, int offset) {
+        return Bits.readUnsignedShort(data, offset);
+    }
+
+    /**
+     * Reads the RTP version of a packet
+     * @param data The packet data
+     * @param offset The offset of the packet in the data
+     * @return The RTP version implemented
+     */
+    public static short getVersion(byte[] data, int offset) {
+        return (short) ((getFlags(data, offset) & VERSION_MASK)
+                >> VERSION_SHIFT);
+    }
+
+    /**
+     * Reads the marker bit of a packet
+     * @param data The packet data
+     * @param offset The offset of the packet in the data
+     * @return The marker of the packet
+     */
+    public static short getMarker(byte[] data, int offset) {
+        return (short) ((getFlags(data, offset) & MARKER_MASK)
+                >> MARKER_SHIFT);
+    }
+
+    /**
+     * Reads the RTP type of a packet
+     * @param data The packet data
+     * @param offset The offset of the packet in the data
+     * @return The type of the data in the packet
+     */
+    public static short getPacketType(byte[] data, int offset) {
+        return (short) ((getFlags(data, offset) & TYPE_MASK) >> TYPE_SHIFT);
+    }
+
+    /**
+     * Reads the sequence number of a packet
+     * @param data The packet data
+     * @param offset The offset of the packet in the data
+     * @return The sequence number of the packet
+     */
+    public static int getSequence(byte[] data, int offset) {
+        return Bits.readUnsignedShort(data, offset + SEQUENCE_POS);
+    }
+
+    /**
+     * Reads the timestamp of a packet
+     * @param data The packet data
+     * @param offset The offset of the packet in the data
+     * @return The timestamp of the packet
+     */
+    public static long getTimestamp(byte[] data, int offset) {
+        return Bits.readUnsignedInt(data, offset + TIMESTAMP_POS);
+    }
+
+    /**
+     * Reads the source id of a packet
+     * @param data The packet data
+     * @param offset The offset of the packet in the data
+     * @return The ssrc of the data source
+     */
+    public static long getSsrc(byte[] data, int offset) {
+        return Bits.readUnsignedInt(data, offset + SSRC_POS);
+    }
 }
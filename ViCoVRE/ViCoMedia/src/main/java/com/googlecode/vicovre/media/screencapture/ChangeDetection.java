@@ -21,6 +21,7 @@ import javax.media.format.RGBFormat;
 import javax.media.format.UnsupportedFormatException;
 import javax.media.format.YUVFormat;
 
+import com.googlecode.vicovre.codecs.utils.BlockDifference;
 import com.googlecode.vicovre.codecs.utils.QuickArray;
 import com.googlecode.vicovre.codecs.utils.QuickArrayAbstract;
 import com.googlecode.vicovre.codecs.utils.QuickArrayException;
@@ -127,6 +128,9 @@ public class ChangeDetection implements Renderer, Effect {
 
     private boolean immediatelyNotifyChange = false;
 
+    // Finds the blocks that have changed
+    private BlockDifference difference = null;
+
     // The listeners to screen change events
     private Vector<CaptureChangeListener> screenListeners =
         new Vector<CaptureChangeListener>();
@@ -266,125 +270,7 @@ public class ChangeDetection implements Renderer, Effect {
 
     public void getDifferences(QuickArray refbuf, QuickArrayAbstract devbuf,
             int scan, int[] crvec) {
-        int ds = width;
-        int rs = width;
-        int db = scan * ds;
-        int rb = scan * rs;
-        int w = blkw;
-        int crv = 0;
-        for (int y = 0; y < blkh; ++y) {
-            int ndb = db;
-            int nrb = rb;
-            int ncrv = crv;
-            for (int x = 0; x < blkw; x++) {
-                int left = 0;
-                int right = 0;
-                int top = 0;
-                int bottom = 0;
-                left += (devbuf.getByte(db + 0) & 0xFF)
-                      - (refbuf.getByte(rb + 0) & 0xFF);
-                left += (devbuf.getByte(db + 1) & 0xFF)
-                      - (refbuf.getByte(rb + 1) & 0xFF);
-                left += (devbuf.getByte(db + 2) & 0xFF)
-                      - (refbuf.getByte(rb + 2) & 0xFF);
-                left += (devbuf.getByte(db + 3) & 0xFF)
-                      - (refbuf.getByte(rb + 3) & 0xFF);
-                top += (devbuf.getByte(db + 0 + 1 * 4) & 0xFF)
-                     - (refbuf.getByte(rb + 0 + 1 * 4) & 0xFF);
-                top += (devbuf.getByte(db + 1 + 1 * 4) & 0xFF)
-                     - (refbuf.getByte(rb + 1 + 1 * 4) & 0xFF);
-                top += (devbuf.getByte(db + 2 + 1 * 4) & 0xFF)
-                     - (refbuf.getByte(rb + 2 + 1 * 4) & 0xFF);
-                top += (devbuf.getByte(db + 3 + 1 * 4) & 0xFF)
-                     - (refbuf.getByte(rb + 3 + 1 * 4) & 0xFF);
-                top += (devbuf.getByte(db + 0 + 2 * 4) & 0xFF)
-                     - (refbuf.getByte(rb + 0 + 2 * 4) & 0xFF);
-                top += (devbuf.getByte(db + 1 + 2 * 4) & 0xFF)
-                     - (refbuf.getByte(rb + 1 + 2 * 4) & 0xFF);
-                top += (devbuf.getByte(db + 2 + 2 * 4) & 0xFF)
-                     - (refbuf.getByte(rb + 2 + 2 * 4) & 0xFF);
-                top += (devbuf.getByte(db + 3 + 2 * 4) & 0xFF)
-                     - (refbuf.getByte(rb + 3 + 2 * 4) & 0xFF);
-                right += (devbuf.getByte(db + 0 + 3 * 4) & 0xFF)
-                       - (refbuf.getByte(rb + 0 + 3 * 4) & 0xFF);
-                right += (devbuf.getByte(db + 1 + 3 * 4) & 0xFF)
-                       - (refbuf.getByte(rb + 1 + 3 * 4) & 0xFF);
-                right += (devbuf.getByte(db + 2 + 3 * 4) & 0xFF)
-                       - (refbuf.getByte(rb + 2 + 3 * 4) & 0xFF);
-                right += (devbuf.getByte(db + 3 + 3 * 4) & 0xFF)
-                       - (refbuf.getByte(rb + 3 + 3 * 4) & 0xFF);
-                right = Math.abs(right);
-                left = Math.abs(left);
-                top = Math.abs(top);
-                db += ds << 3;
-                rb += rs << 3;
-                left += (devbuf.getByte(db + 0) & 0xFF)
-                      - (refbuf.getByte(rb + 0) & 0xFF);
-                left += (devbuf.getByte(db + 1) & 0xFF)
-                      - (refbuf.getByte(rb + 1) & 0xFF);
-                left += (devbuf.getByte(db + 2) & 0xFF)
-                      - (refbuf.getByte(rb + 2) & 0xFF);
-                left += (devbuf.getByte(db + 3) & 0xFF)
-                      - (refbuf.getByte(rb + 3) & 0xFF);
-                bottom += (devbuf.getByte(db + 0 + 1 * 4) & 0xFF)
-                        - (refbuf.getByte(rb + 0 + 1 * 4) & 0xFF);
-                bottom += (devbuf.getByte(db + 1 + 1 * 4) & 0xFF)
-                        - (refbuf.getByte(rb + 1 + 1 * 4) & 0xFF);
-                bottom += (devbuf.getByte(db + 2 + 1 * 4) & 0xFF)
-                        - (refbuf.getByte(rb + 2 + 1 * 4) & 0xFF);
-                bottom += (devbuf.getByte(db + 3 + 1 * 4) & 0xFF)
-                        - (refbuf.getByte(rb + 3 + 1 * 4) & 0xFF);
-                bottom += (devbuf.getByte(db + 0 + 2 * 4) & 0xFF)
-                        - (refbuf.getByte(rb + 0 + 2 * 4) & 0xFF);
-                bottom += (devbuf.getByte(db + 1 + 2 * 4) & 0xFF)
-                        - (refbuf.getByte(rb + 1 + 2 * 4) & 0xFF);
-                bottom += (devbuf.getByte(db + 2 + 2 * 4) & 0xFF)
-                        - (refbuf.getByte(rb + 2 + 2 * 4) & 0xFF);
-                bottom += (devbuf.getByte(db + 3 + 2 * 4) & 0xFF)
-                        - (refbuf.getByte(rb + 3 + 2 * 4) & 0xFF);
-                right += (devbuf.getByte(db + 0 + 3 * 4) & 0xFF)
-                       - (refbuf.getByte(rb + 0 + 3 * 4) & 0xFF);
-                right += (devbuf.getByte(db + 1 + 3 * 4) & 0xFF)
-                       - (refbuf.getByte(rb + 1 + 3 * 4) & 0xFF);
-                right += (devbuf.getByte(db + 2 + 3 * 4) & 0xFF)
-                       - (refbuf.getByte(rb + 2 + 3 * 4) & 0xFF);
-                right += (devbuf.getByte(db + 3 + 3 * 4) & 0xFF)
-                       - (refbuf.getByte(rb + 3 + 3 * 4) & 0xFF);
-                right = Math.abs(right);
-                left = Math.abs(left);
-                bottom = Math.abs(bottom);
-                db -= ds << 3;
-                rb -= rs << 3;
-
-                int center = 0;
-                if (left >= threshold && x > 0) {
-                    crvec[crv - 1] = 1;
-                    center = 1;
-                }
-                if (right >= threshold && x < w - 1) {
-                    crvec[crv + 1] = 1;
-                    center = 1;
-                }
-                if (bottom >= threshold && y < blkh - 1) {
-                    crvec[crv + w] = 1;
-                    center = 1;
-                }
-                if (top >= threshold && y > 0) {
-                    crvec[crv - w] = 1;
-                    center = 1;
-                }
-                if (center > 0) {
-                    crvec[crv + 0] = 1;
-                }
-
-                db += 16;
-                rb += 16;
-                ++crv;
-            }
-            db = ndb + (ds << 4);
-            rb = nrb + (rs << 4);
-            crv = ncrv + w;
-        }
+        difference.compare(devbuf, refbuf, scan, threshold, crvec, 1, null);
     }
 
     /**
@@ -408,6 +294,8 @@ public class ChangeDetection implements Renderer, Effect {
                 return BUFFER_PROCESSED_FAILED;
             }
             crvec = new int[nblk];
+            difference = new BlockDifference(size.width, size.height);
+            difference.setThreads(BlockDifference.DEFAULT_THREADS);
             lastBuffer = null;
         }
         scan = (scan + 3) & 7;
@@ -533,6 +421,9 @@ public class ChangeDetection implements Renderer, Effect {
         if ((devbuf != null) && (devbuf instanceof QuickArray)) {
             ((QuickArray) devbuf).free();
         }
+        if (difference != null) {
+            difference.close();
+        }
     }
 
     /**
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.media.video;
+
+/**
+ * Blends the pixels of one frame over another using fixed-point arithmetic.
+ * The opacity of the source is given as an alpha between 0 and ALPHA_ONE.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class Blender {
+
+    /**
+     * The number of fractional bits in an alpha value
+     */
+    public static final int ALPHA_BITS = 8;
+
+    /**
+     * The alpha value of an opaque source
+     */
+    public static final int ALPHA_ONE = 1 << ALPHA_BITS;
+
+    // Four 16-bit lanes, each holding one byte
+    private static final long LANE_MASK = 0x00FF00FF00FF00FFL;
+
+    private static final long LANE_ROUND = 0x0080008000800080L;
+
+    private static final int PIXEL_MASK = 0x00FF00FF;
+
+    private static final int PIXEL_ROUND = 0x00800080;
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private Blender() {
+        // Does Nothing
+    }
+
+    /**
+     * Converts an opacity to an alpha value
+     *
+     * @param opacity
+     *            The opacity between 0.0 and 1.0
+     * @return The alpha value between 0 and ALPHA_ONE
+     */
+    public static int getAlpha(double opacity) {
+        int alpha = (int) Math.round(opacity * ALPHA_ONE);
+        return Math.max(0, Math.min(ALPHA_ONE, alpha));
+    }
+
+    /**
+     * Blends a run of bytes over another, where each byte is a separate
+     * sample (e.g. a row of a YUV plane or of packed RGB bytes)
+     *
+     * @param src
+     *            The source samples
+     * @param srcPos
+     *            The position of the first source sample
+     * @param dst
+     *            The samples to blend over, which are replaced
+     * @param dstPos
+     *            The position of the first destination sample
+     * @param length
+     *            The number of samples to blend
+     * @param alpha
+     *            The alpha of the source
+     */
+    public static void blend(byte[] src, int srcPos, byte[] dst, int dstPos,
+            int length, int alpha) {
+        int beta = ALPHA_ONE - alpha;
+        int end = srcPos + length;
+
+        // Four samples are blended at once in the 16-bit lanes of a long;
+        // a sample multiplied by an alpha cannot exceed 16 bits, so the
+        // lanes never carry into each other
+        int end4 = srcPos + (length & ~3);
+        while (srcPos < end4) {
+            long s = (src[srcPos] & BYTE_MASK)
+                | ((long) (src[srcPos + 1] & BYTE_MASK) << 16)
+                | ((long) (src[srcPos + 2] & BYTE_MASK) << 32)
+                | ((long) (src[srcPos + 3] & BYTE_MASK) << 48);
+            long d = (dst[dstPos] & BYTE_MASK)
+                | ((long) (dst[dstPos + 1] & BYTE_MASK) << 16)
+                | ((long) (dst[dstPos + 2] & BYTE_MASK) << 32)
+                | ((long) (dst[dstPos + 3] & BYTE_MASK) << 48);
+            long v = (((s * alpha) + (d * beta) + LANE_ROUND) >>> ALPHA_BITS)
+                & LANE_MASK;
+            dst[dstPos] = (byte) v;
+            dst[dstPos + 1] = (byte) (v >>> 16);
+            dst[dstPos + 2] = (byte) (v >>> 32);
+            dst[dstPos + 3] = (byte) (v >>> 48);
+            srcPos += 4;
+            dstPos += 4;
+        }
+        while (srcPos < end) {
+            int s = src[srcPos++] & BYTE_MASK;
+            int d = dst[dstPos] & BYTE_MASK;
+            dst[dstPos++] = (byte) (((s * alpha) + (d * beta) + 128)
+                    >> ALPHA_BITS);
+        }
+    }
+
+    /**
+     * Blends a run of packed 32-bit pixels over another
+     *
+     * @param src
+     *            The source pixels
+     * @param srcPos
+     *            The position of the first source pixel
+     * @param dst
+     *            The pixels to blend over, which are replaced
+     * @param dstPos
+     *            The position of the first destination pixel
+     * @param length
+     *            The number of pixels to blend
+     * @param alpha
+     *            The alpha of the source
+     */
+    public static void blend(int[] src, int srcPos, int[] dst, int dstPos,
+            int length, int alpha) {
+        int beta = ALPHA_ONE - alpha;
+        int end = srcPos + length;
+        while (srcPos < end) {
+            int s = src[srcPos++];
+            int d = dst[dstPos];
+
+            // The first and third bytes, then the second and fourth
+            int rb = ((((s & PIXEL_MASK) * alpha) + ((d & PIXEL_MASK) * beta)
+                    + PIXEL_ROUND) >>> ALPHA_BITS) & PIXEL_MASK;
+            int ag = ((((s >>> 8) & PIXEL_MASK) * alpha)
+                    + (((d >>> 8) & PIXEL_MASK) * beta) + PIXEL_ROUND)
+                    & ~PIXEL_MASK;
+            dst[dstPos++] = rb | ag;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.media.video;
+
+/**
+ * Scales a plane of 8-bit samples using a separable filter with fixed-point
+ * weights.  When enlarging this is a bilinear filter; when reducing, the
+ * filter is widened to cover the source samples that make up each output
+ * sample, so that they are averaged rather than skipped.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class Scaler {
+
+    private static final int WEIGHT_BITS = 14;
+
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+    // The extra precision kept between the vertical and horizontal passes
+    private static final int ROW_BITS = 8;
+
+    private static final int ROW_SHIFT = WEIGHT_BITS - ROW_BITS;
+
+    private static final int OUT_SHIFT = WEIGHT_BITS + ROW_BITS;
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private int srcWidth = 0;
+
+    private int dstWidth = 0;
+
+    private int dstHeight = 0;
+
+    private int xTaps = 0;
+
+    private int[] xIndex = null;
+
+    private int[] xWeight = null;
+
+    private int yTaps = 0;
+
+    private int[] yIndex = null;
+
+    private int[] yWeight = null;
+
+    // The vertically filtered row
+    private int[] row = null;
+
+    /**
+     * Creates a new Scaler
+     *
+     * @param srcWidth
+     *            The width of the source plane
+     * @param srcHeight
+     *            The height of the source plane
+     * @param dstWidth
+     *            The width of the scaled plane
+     * @param dstHeight
+     *            The height of the scaled plane
+     */
+    public Scaler(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        this.srcWidth = srcWidth;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        xTaps = getTaps(srcWidth, dstWidth);
+        xIndex = new int[dstWidth * xTaps];
+        xWeight = new int[dstWidth * xTaps];
+        getFilter(srcWidth, dstWidth, xTaps, xIndex, xWeight);
+        yTaps = getTaps(srcHeight, dstHeight);
+        yIndex = new int[dstHeight * yTaps];
+        yWeight = new int[dstHeight * yTaps];
+        getFilter(srcHeight, dstHeight, yTaps, yIndex, yWeight);
+        row = new int[srcWidth];
+    }
+
+    private static int getTaps(int srcSize, int dstSize) {
+        double support = Math.max(1.0, (double) srcSize / dstSize);
+        return (int) Math.ceil(support * 2) + 1;
+    }
+
+    // Works out which source samples contribute to each output sample, and
+    // by how much; the weights of each output sample add up to WEIGHT_ONE
+    private static void getFilter(int srcSize, int dstSize, int taps,
+            int[] index, int[] weight) {
+        double scale = (double) srcSize / dstSize;
+        double support = Math.max(1.0, scale);
+        double[] weights = new double[taps];
+        for (int i = 0; i < dstSize; i++) {
+            double centre = ((i + 0.5) * scale) - 0.5;
+            int first = (int) Math.floor(centre - support) + 1;
+            double total = 0;
+            for (int k = 0; k < taps; k++) {
+                double w = 1.0 - (Math.abs(first + k - centre) / support);
+                weights[k] = Math.max(0.0, w);
+                total += weights[k];
+            }
+
+            int pos = i * taps;
+            int sum = 0;
+            int max = 0;
+            for (int k = 0; k < taps; k++) {
+                index[pos + k] = Math.max(0, Math.min(srcSize - 1, first + k));
+                weight[pos + k] = (int) ((weights[k] * WEIGHT_ONE) / total);
+                sum += weight[pos + k];
+                if (weight[pos + k] > weight[pos + max]) {
+                    max = k;
+                }
+            }
+            weight[pos + max] += WEIGHT_ONE - sum;
+        }
+    }
+
+    /**
+     * Scales a plane
+     *
+     * @param src
+     *            The source samples
+     * @param srcOffset
+     *            The position of the first source sample
+     * @param srcStride
+     *            The distance between the rows of the source
+     * @param dst
+     *            The array to write the scaled samples to
+     * @param dstOffset
+     *            The position of the first scaled sample
+     * @param dstStride
+     *            The distance between the rows of the scaled plane
+     */
+    public void scale(byte[] src, int srcOffset, int srcStride, byte[] dst,
+            int dstOffset, int dstStride) {
+        for (int y = 0; y < dstHeight; y++) {
+
+            // Filter the source rows into a single row
+            int ypos = y * yTaps;
+            for (int x = 0; x < srcWidth; x++) {
+                row[x] = 0;
+            }
+            for (int k = 0; k < yTaps; k++) {
+                int w = yWeight[ypos + k];
+                if (w != 0) {
+                    int pos = srcOffset + (yIndex[ypos + k] * srcStride);
+                    for (int x = 0; x < srcWidth; x++) {
+                        row[x] += (src[pos + x] & BYTE_MASK) * w;
+                    }
+                }
+            }
+            int round = 1 << (ROW_SHIFT - 1);
+            for (int x = 0; x < srcWidth; x++) {
+                row[x] = (row[x] + round) >> ROW_SHIFT;
+            }
+
+            // Filter the row across into the output
+            int pos = dstOffset + (y * dstStride);
+            int xpos = 0;
+            for (int x = 0; x < dstWidth; x++) {
+                int value = 1 << (OUT_SHIFT - 1);
+                for (int k = 0; k < xTaps; k++) {
+                    value += row[xIndex[xpos]] * xWeight[xpos];
+                    xpos += 1;
+                }
+                dst[pos + x] = (byte) (value >> OUT_SHIFT);
+            }
+        }
+    }
+}
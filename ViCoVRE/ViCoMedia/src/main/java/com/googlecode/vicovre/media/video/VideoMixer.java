@@ -44,6 +44,7 @@ import javax.media.format.UnsupportedFormatException;
 import javax.media.format.VideoFormat;
 import javax.media.format.YUVFormat;
 
+import com.googlecode.vicovre.codecs.utils.ChangedBlocks;
 import com.googlecode.vicovre.media.MemeticFileReader;
 
 public class VideoMixer {
@@ -62,6 +63,23 @@ public class VideoMixer {
 
     private boolean[] sourceFinished = null;
 
+    // The area of the output covered by each source
+    private Rectangle[] regions = null;
+
+    private double[] opacities = null;
+
+    // The macroblocks of the output changed by the last read
+    private ChangedBlocks changedBlocks = null;
+
+    // True if every block is to be marked as changed by the next read
+    private boolean allChanged = true;
+
+    private byte backgroundY = 0;
+
+    private byte backgroundU = 0;
+
+    private byte backgroundV = 0;
+
     private long minStartTime = 0;
 
     private long currentTimestamp = 0;
@@ -72,12 +90,109 @@ public class VideoMixer {
 
     private boolean firstFrameRead = false;
 
+    // Decodes each source in its own thread when there is more than one
+    private Decoder[] decoders = null;
+
+    // Decodes the frames of one source in a separate thread
+    private static class Decoder extends Thread {
+
+        private VideoSource source = null;
+
+        private boolean force = false;
+
+        private boolean working = false;
+
+        private boolean result = false;
+
+        private IOException error = null;
+
+        private boolean closed = false;
+
+        private Decoder(VideoSource source, int index) {
+            super("VideoMixer Decoder " + index);
+            this.source = source;
+            setDaemon(true);
+        }
+
+        // Starts decoding the next frame
+        private synchronized void decode(boolean force) {
+            this.force = force;
+            this.error = null;
+            working = true;
+            notifyAll();
+        }
+
+        // Waits for the frame to be decoded
+        private synchronized boolean getResult() throws IOException {
+            while (working && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Do Nothing
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+
+        // Stops the thread, waiting for any decode in progress
+        private void close() {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                join();
+            } catch (InterruptedException e) {
+                // Do Nothing
+            }
+        }
+
+        public void run() {
+            while (true) {
+                boolean decodeForce = false;
+                synchronized (this) {
+                    while (!working && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // Do Nothing
+                        }
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    decodeForce = force;
+                }
+
+                boolean decodeResult = false;
+                IOException decodeError = null;
+                try {
+                    decodeResult = source.prepareNextBuffer(decodeForce);
+                } catch (IOException e) {
+                    decodeError = e;
+                }
+
+                synchronized (this) {
+                    result = decodeResult;
+                    error = decodeError;
+                    working = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
     public VideoMixer(MemeticFileReader[] sources, Rectangle[] positions,
             double[] opacity, int backgroundColour, boolean forceFillFirstFrame,
             Dimension outputSize)
             throws UnsupportedFormatException {
         this.sources = new VideoSource[sources.length];
         sourceFinished = new boolean[sources.length];
+        regions = new Rectangle[sources.length];
+        opacities = opacity;
         minStartTime = Long.MAX_VALUE;
         for (MemeticFileReader source : sources) {
             if (source.getStartTime() < minStartTime) {
@@ -135,9 +250,24 @@ public class VideoMixer {
             this.sources[i] = new VideoSource(sources[i], convertFormat,
                     minStartTime, (int) (positions[i].x * scaleWidth),
                     (int) (positions[i].y * scaleHeight), opacity[i]);
+            regions[i] = new Rectangle((int) (positions[i].x * scaleWidth),
+                    (int) (positions[i].y * scaleHeight), posWidth, posHeight);
             sourceFinished[i] = false;
         }
 
+        // The sources already decode at the same time, so the processors
+        // are shared out between them rather than each decoder using all
+        if (sources.length > 1) {
+            int decodeThreads = Math.max(1,
+                    Runtime.getRuntime().availableProcessors()
+                        / sources.length);
+            decoders = new Decoder[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+                this.sources[i].setDecodeThreads(decodeThreads);
+                decoders[i] = new Decoder(this.sources[i], i);
+                decoders[i].start();
+            }
+        }
 
         int ysize = outSize.width * outSize.height;
         int csize = ysize / 4;
@@ -160,12 +290,18 @@ public class VideoMixer {
         Arrays.fill(data, 0, ysize - 1, y);
         Arrays.fill(data, ysize, ysize + csize - 1, (byte) (cr - 128));
         Arrays.fill(data, ysize + csize, maxdatalength - 1, (byte) (cb - 128));
+        backgroundY = y;
+        backgroundU = (byte) (cr - 128);
+        backgroundV = (byte) (cb - 128);
+
+        changedBlocks = new ChangedBlocks(outSize.width, outSize.height);
 
         buffer = new Buffer();
         buffer.setData(data);
         buffer.setOffset(0);
         buffer.setLength(data.length);
         buffer.setFormat(format);
+        buffer.setHeader(changedBlocks);
 
         firstFrameRead = !forceFillFirstFrame;
     }
@@ -174,6 +310,7 @@ public class VideoMixer {
         for (int i = 0; i < sources.length; i++) {
             sources[i].seek(offset);
         }
+        allChanged = true;
     }
 
     public long getStartTime() {
@@ -206,25 +343,150 @@ public class VideoMixer {
         return format;
     }
 
+    /**
+     * Gets the number of frames of all the sources that were decoded but
+     * not converted as they would not have been shown
+     * @return The number of frames skipped
+     */
+    public long getSkippedFrames() {
+        long skipped = 0;
+        for (int i = 0; i < sources.length; i++) {
+            skipped += sources[i].getSkippedFrames();
+        }
+        return skipped;
+    }
+
+    /**
+     * Gets the number of frames of all the sources that were converted
+     * @return The number of frames converted
+     */
+    public long getConvertedFrames() {
+        long converted = 0;
+        for (int i = 0; i < sources.length; i++) {
+            converted += sources[i].getConvertedFrames();
+        }
+        return converted;
+    }
+
     public boolean readNextBuffer() throws IOException {
         boolean force = false;
         if (!firstFrameRead) {
             force = true;
             firstFrameRead = true;
         }
+
+        // Decode the sources together, then copy them in order so that
+        // overlapping sources are drawn the same way each time
+        boolean[] finished = new boolean[sources.length];
+        if (decoders != null) {
+            for (int i = 0; i < sources.length; i++) {
+                if (!sourceFinished[i]) {
+                    decoders[i].decode(force);
+                }
+            }
+            IOException error = null;
+            for (int i = 0; i < sources.length; i++) {
+                if (!sourceFinished[i]) {
+                    try {
+                        finished[i] = !decoders[i].getResult();
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        } else {
+            for (int i = 0; i < sources.length; i++) {
+                if (!sourceFinished[i]) {
+                    finished[i] = !sources[i].prepareNextBuffer(force);
+                }
+            }
+        }
+        boolean[] draw = new boolean[sources.length];
         for (int i = 0; i < sources.length; i++) {
             if (!sourceFinished[i]) {
-                boolean finished = !sources[i].readNextBuffer(buffer, force);
-                if (finished && !sourceFinished[i]) {
+                if (finished[i]) {
                     sourceFinished[i] = true;
-                    sources[i].readNextBuffer(buffer, true);
+                    sources[i].prepareNextBuffer(true);
                 }
+                draw[i] = sources[i].isCopyPending();
+            }
+        }
+
+        // Only the sources with a new frame need to be drawn, but drawing a
+        // source covers those under it, so those over it must be drawn
+        // again.  A translucent source is drawn over the background, so
+        // anything overlapping it must be drawn again.
+        boolean redrawn = true;
+        while (redrawn) {
+            redrawn = false;
+            for (int i = 0; i < sources.length; i++) {
+                if (draw[i]) {
+                    for (int j = 0; j < sources.length; j++) {
+                        if (!draw[j] && ((j > i) || (opacities[i] < 1.0))
+                                && regions[i].intersects(regions[j])
+                                && sources[j].redraw()) {
+                            draw[j] = true;
+                            redrawn = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (allChanged) {
+            changedBlocks.setAllChanged();
+            allChanged = false;
+        } else {
+            changedBlocks.clear();
+        }
+        for (int i = 0; i < sources.length; i++) {
+            if (draw[i] && (opacities[i] < 1.0)) {
+                fillBackground(regions[i]);
+            }
+        }
+        for (int i = 0; i < sources.length; i++) {
+            if (draw[i]) {
+                sources[i].copyNextBuffer(buffer);
+                changedBlocks.setChanged(regions[i].x, regions[i].y,
+                        regions[i].width, regions[i].height);
             }
         }
 
         return true;
     }
 
+    private void fillBackground(Rectangle region) {
+        YUVFormat yuv = (YUVFormat) format;
+        fillPlane(yuv.getOffsetY(), yuv.getStrideY(), region.x, region.y,
+                region.width, region.height, backgroundY);
+        fillPlane(yuv.getOffsetU(), yuv.getStrideUV(), region.x / 2,
+                region.y / 2, region.width / 2, region.height / 2,
+                backgroundU);
+        fillPlane(yuv.getOffsetV(), yuv.getStrideUV(), region.x / 2,
+                region.y / 2, region.width / 2, region.height / 2,
+                backgroundV);
+    }
+
+    private void fillPlane(int offset, int stride, int x, int y, int width,
+            int height, byte value) {
+        for (int i = 0; i < height; i++) {
+            int pos = offset + ((y + i) * stride) + x;
+            Arrays.fill(data, pos, pos + width, value);
+        }
+    }
+
+    /**
+     * Gets the macroblocks of the output changed by the last read; this is
+     * also set as the header of the buffer
+     * @return The changed blocks
+     */
+    public ChangedBlocks getChangedBlocks() {
+        return changedBlocks;
+    }
+
     /**
      * Reads the next buffer
      * @return The next buffer
@@ -240,6 +502,11 @@ public class VideoMixer {
      *
      */
     public void close() {
+        if (decoders != null) {
+            for (int i = 0; i < decoders.length; i++) {
+                decoders[i].close();
+            }
+        }
         for (int i = 0; i < sources.length; i++) {
             sources[i].close();
             sources[i] = null;
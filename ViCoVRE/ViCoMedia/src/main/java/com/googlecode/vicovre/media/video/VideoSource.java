@@ -38,6 +38,7 @@ import java.lang.reflect.Array;
 import java.util.Arrays;
 
 import javax.media.Buffer;
+import javax.media.Format;
 import javax.media.PlugIn;
 import javax.media.format.RGBFormat;
 import javax.media.format.UnsupportedFormatException;
@@ -45,6 +46,7 @@ import javax.media.format.VideoFormat;
 import javax.media.format.YUVFormat;
 
 import com.googlecode.vicovre.media.MemeticFileReader;
+import com.googlecode.vicovre.media.controls.ThreadsControl;
 import com.googlecode.vicovre.media.processor.SimpleProcessor;
 
 public class VideoSource {
@@ -69,6 +71,8 @@ public class VideoSource {
 
     private double bufferEndOffset = 0;
 
+    private boolean bufferConverted = false;
+
     private VideoFormat format = null;
 
     private VideoFormat convertFormat = null;
@@ -77,16 +81,49 @@ public class VideoSource {
 
     private SimpleProcessor outputProcessor = null;
 
+    // True once the conversion of the decoded frames has been set up
+    private boolean outputCreated = false;
+
+    // The format of the frames to be scaled
+    private YUVFormat scaleFormat = null;
+
+    private Scaler lumaScaler = null;
+
+    private Scaler chromaScaler = null;
+
+    private Buffer scaledBuffer = null;
+
     private boolean isFinished = false;
 
+    // True if the first packet of the next frame has already been read
+    private boolean packetRead = false;
+
+    // True if the source finished when looking for the next frame
+    private boolean sourceFinished = false;
+
+    // The timestamp of the frame in nextBuffer
+    private long nextTimestamp = 0;
+
+    // True if the frame in nextBuffer has been converted to convertFormat
+    private boolean nextConverted = false;
+
+    private long convertedFrames = 0;
+
+    private long skippedFrames = 0;
+
     private boolean frameCopied = false;
 
+    // True if the current frame is to be copied by copyNextBuffer
+    private boolean copyPending = false;
+
     private int x = 0;
 
     private int y = 0;
 
     private double opacity = 1.0;
 
+    private int alpha = Blender.ALPHA_ONE;
+
     public VideoSource(MemeticFileReader source, VideoFormat convertFormat,
             long minStartTime, int x, int y, double opacity)
     throws UnsupportedFormatException {
@@ -97,6 +134,7 @@ public class VideoSource {
         this.y = y;
         this.convertFormat = convertFormat;
         this.opacity = opacity;
+        this.alpha = Blender.getAlpha(opacity);
         inputProcessor = new SimpleProcessor(source.getFormat(),
                 (VideoFormat) null);
         format = (VideoFormat) inputProcessor.getOutputFormat();
@@ -104,7 +142,13 @@ public class VideoSource {
     }
 
     public void seek(long offset) throws IOException {
-        source.streamSeek(offset - offsetShift);
+
+        // Start from a nearby preceding key frame if known, or a bounded
+        // time before the offset if not; frames before the offset are then
+        // decoded but skipped by readBuffer
+        source.streamSeek(source.getKeyFrameOffset(offset - offsetShift));
+        packetRead = false;
+        sourceFinished = false;
         currentOffset = offset - msPerRead;
         sourceOffset = source.getOffset() + offsetShift;
     }
@@ -119,7 +163,13 @@ public class VideoSource {
 
     private void readNextBuffer() throws IOException {
         nextBuffer = null;
-        isFinished = !source.readNextPacket();
+        nextConverted = false;
+        if (packetRead) {
+            packetRead = false;
+            isFinished = sourceFinished;
+        } else {
+            isFinished = !source.readNextPacket();
+        }
         if (!isFinished) {
             int result = PlugIn.OUTPUT_BUFFER_NOT_FILLED;
             while (!isFinished
@@ -136,20 +186,128 @@ public class VideoSource {
             if ((result == PlugIn.BUFFER_PROCESSED_OK)
                     || (result == PlugIn.INPUT_BUFFER_NOT_CONSUMED)) {
                 Buffer inputBuffer = inputProcessor.getOutputBuffer();
-                if (outputProcessor == null) {
-                    try {
-                        outputProcessor = new SimpleProcessor(
-                                inputBuffer.getFormat(), convertFormat);
-                        format = (VideoFormat)
-                            outputProcessor.getOutputFormat();
-                    } catch (UnsupportedFormatException e) {
-                        e.printStackTrace();
-                    }
+                nextBuffer = inputBuffer;
+                nextTimestamp = source.getTimestamp();
+
+                // The frame lasts until the next one starts, so read the
+                // next packet to find out if the frame will be shown.  A
+                // frame that ends before the current offset is skipped by
+                // readBuffer, as is one that starts after the current offset
+                // but ends before the next; these only need to be decoded
+                // (to keep the reference frames of the codec up to date),
+                // not converted
+                double startOffset = sourceOffset + (nextTimestamp / 1000000);
+                double endOffset = startOffset + msPerRead;
+                sourceFinished = !source.readNextPacket();
+                packetRead = true;
+                if (!sourceFinished) {
+                    endOffset = sourceOffset
+                        + (source.getTimestamp() / 1000000);
+                }
+                if ((endOffset < currentOffset)
+                        || ((startOffset >= currentOffset)
+                            && (endOffset < (currentOffset + msPerRead)))) {
+                    skippedFrames += 1;
+                    return;
+                }
+
+                if (!outputCreated) {
+                    createOutput((VideoFormat) inputBuffer.getFormat());
+                    outputCreated = true;
+                }
+                Buffer convertedBuffer = inputBuffer;
+                if (outputProcessor != null) {
+                    outputProcessor.process(inputBuffer);
+                    convertedBuffer = outputProcessor.getOutputBuffer();
+                }
+                if (lumaScaler != null) {
+                    scale(convertedBuffer);
+                    nextBuffer = scaledBuffer;
+                } else {
+                    nextBuffer = convertedBuffer;
+                }
+                nextConverted = true;
+                convertedFrames += 1;
+            }
+        }
+    }
+
+    // Sets up the conversion of the decoded frames.  Where the frames are
+    // to be YUV 4:2:0 at a different size, the colour conversion is done
+    // at the size of the input, and the frames are then scaled by a
+    // Scaler; otherwise the codecs do both.
+    private void createOutput(VideoFormat inputFormat) {
+        Dimension inputSize = inputFormat.getSize();
+        Dimension size = convertFormat.getSize();
+        if ((convertFormat instanceof YUVFormat)
+                && (((YUVFormat) convertFormat).getYuvType()
+                        == YUVFormat.YUV_420)
+                && (convertFormat.getDataType() == Format.byteArray)
+                && (inputSize != null) && (size != null)
+                && !inputSize.equals(size)
+                && ((inputSize.width % 2) == 0)
+                && ((inputSize.height % 2) == 0)) {
+            int ysize = inputSize.width * inputSize.height;
+            int csize = ysize / 4;
+            YUVFormat sourceFormat = new YUVFormat(inputSize,
+                    ysize + (csize * 2), Format.byteArray,
+                    convertFormat.getFrameRate(), YUVFormat.YUV_420,
+                    inputSize.width, inputSize.width / 2, 0, ysize,
+                    ysize + csize);
+            try {
+                if (inputFormat.matches(sourceFormat)) {
+                    scaleFormat = (YUVFormat) inputFormat;
+                } else {
+                    outputProcessor = new SimpleProcessor(inputFormat,
+                            sourceFormat);
+                    scaleFormat = (YUVFormat)
+                        outputProcessor.getOutputFormat();
                 }
-                outputProcessor.process(inputBuffer);
-                nextBuffer = outputProcessor.getOutputBuffer();
+                lumaScaler = new Scaler(inputSize.width, inputSize.height,
+                        size.width, size.height);
+                chromaScaler = new Scaler(inputSize.width / 2,
+                        inputSize.height / 2, size.width / 2,
+                        size.height / 2);
+                scaledBuffer = new Buffer();
+                scaledBuffer.setData(
+                        new byte[convertFormat.getMaxDataLength()]);
+                scaledBuffer.setOffset(0);
+                scaledBuffer.setLength(convertFormat.getMaxDataLength());
+                scaledBuffer.setFormat(convertFormat);
+                format = convertFormat;
+                return;
+            } catch (UnsupportedFormatException e) {
+
+                // Fall back to letting the codecs scale
+                outputProcessor = null;
+                lumaScaler = null;
+                chromaScaler = null;
             }
         }
+
+        try {
+            outputProcessor = new SimpleProcessor(inputFormat, convertFormat);
+            format = (VideoFormat) outputProcessor.getOutputFormat();
+        } catch (UnsupportedFormatException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void scale(Buffer input) {
+        byte[] in = (byte[]) input.getData();
+        int offset = input.getOffset();
+        byte[] out = (byte[]) scaledBuffer.getData();
+        YUVFormat outFormat = (YUVFormat) convertFormat;
+        lumaScaler.scale(in, offset + scaleFormat.getOffsetY(),
+                scaleFormat.getStrideY(), out, outFormat.getOffsetY(),
+                outFormat.getStrideY());
+        chromaScaler.scale(in, offset + scaleFormat.getOffsetU(),
+                scaleFormat.getStrideUV(), out, outFormat.getOffsetU(),
+                outFormat.getStrideUV());
+        chromaScaler.scale(in, offset + scaleFormat.getOffsetV(),
+                scaleFormat.getStrideUV(), out, outFormat.getOffsetV(),
+                outFormat.getStrideUV());
+        scaledBuffer.setTimeStamp(input.getTimeStamp());
     }
 
     private void readBuffer() throws IOException {
@@ -159,24 +317,79 @@ public class VideoSource {
         do {
             if (nextBuffer != null) {
                 buffer = nextBuffer;
+                bufferConverted = nextConverted;
                 bufferStartOffset = sourceOffset
-                    + (source.getTimestamp() / 1000000);
+                    + (nextTimestamp / 1000000);
 
                 readNextBuffer();
                 if (!isFinished) {
                     bufferEndOffset = sourceOffset
-                        + (source.getTimestamp() / 1000000);
+                        + (nextTimestamp / 1000000);
                 } else {
                     bufferEndOffset = bufferStartOffset + msPerRead;
                 }
             } else {
                 buffer = null;
             }
-        } while ((buffer != null) && (bufferEndOffset < currentOffset));
+        } while ((buffer != null) && ((bufferEndOffset < currentOffset)
+                || !bufferConverted));
+    }
+
+    /**
+     * Gets the number of frames that have been decoded and converted
+     * @return The number of frames converted
+     */
+    public long getConvertedFrames() {
+        return convertedFrames;
     }
 
+    /**
+     * Gets the number of frames that were decoded but not converted as they
+     * ended before they were due to be shown
+     * @return The number of frames skipped
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * Sets the number of threads that the decoder of the source uses for
+     * each frame, if it can use more than one
+     * @param threads The number of threads
+     */
+    public void setDecodeThreads(int threads) {
+        ThreadsControl control = (ThreadsControl) inputProcessor.getControl(
+                ThreadsControl.class.getName());
+        if (control != null) {
+            control.setThreads(threads);
+        }
+    }
+
+    /**
+     * Reads the next frame and copies it into a buffer if it has changed
+     * @param bufferToFill The buffer to copy the frame into
+     * @param force True to copy the frame even if it has not changed
+     * @return False if the source has finished
+     * @throws IOException
+     */
     public boolean readNextBuffer(Buffer bufferToFill, boolean force)
             throws IOException {
+        boolean result = prepareNextBuffer(force);
+        copyNextBuffer(bufferToFill);
+        return result;
+    }
+
+    /**
+     * Reads and decodes the next frame without touching the output.  This
+     * only uses the state of this source, so different sources can be
+     * prepared at the same time; copyNextBuffer must then be called to
+     * finish the read.
+     * @param force True to copy the frame even if it has not changed
+     * @return False if the source has finished
+     * @throws IOException
+     */
+    public boolean prepareNextBuffer(boolean force) throws IOException {
+        copyPending = false;
         if (!force) {
             currentOffset += msPerRead;
         }
@@ -186,7 +399,6 @@ public class VideoSource {
             readBuffer();
             frameCopied = false;
         }
-        frameCopied = false;
 
         if (!force && ((buffer == null)
                 || (currentOffset < bufferStartOffset)
@@ -199,6 +411,40 @@ public class VideoSource {
     	}
 
         frameCopied = true;
+        copyPending = true;
+        return true;
+    }
+
+    /**
+     * Determines if prepareNextBuffer found a frame to be copied
+     * @return True if copyNextBuffer will copy a frame
+     */
+    public boolean isCopyPending() {
+        return copyPending;
+    }
+
+    /**
+     * Marks the current frame to be copied again by copyNextBuffer, for
+     * when the area under it has been redrawn
+     * @return True if there is a frame to copy
+     */
+    public boolean redraw() {
+        if (buffer != null) {
+            copyPending = true;
+        }
+        return copyPending;
+    }
+
+    /**
+     * Copies the frame read by prepareNextBuffer into a buffer, if there is
+     * one to copy
+     * @param bufferToFill The buffer to copy the frame into
+     */
+    public void copyNextBuffer(Buffer bufferToFill) {
+        if (!copyPending) {
+            return;
+        }
+        copyPending = false;
 
         VideoFormat bufferFormat = (VideoFormat) bufferToFill.getFormat();
         Dimension targetSize = bufferFormat.getSize();
@@ -229,26 +475,19 @@ public class VideoSource {
                 int srcPos = offset
                     + (size.width * i * rgb.getPixelStride());
                 int destPos = bufferToFill.getOffset()
-                    + (targetSize.width * (x + i)
+                    + (targetSize.width * (y + i)
                             * targetRgb.getPixelStride())
-                    + (y * targetRgb.getPixelStride());
+                    + (x * targetRgb.getPixelStride());
+                int length = size.width * rgb.getPixelStride();
                 if (opacity == 1.0) {
-                    int length = size.width * rgb.getPixelStride();
                     System.arraycopy(data, srcPos,
                         targetData, destPos, length);
-                } else {
-                    if (data instanceof byte[]) {
-                        byte[] bData = (byte[]) data;
-                        byte[] bTargetData = (byte[]) targetData;
-                        for (int j = 0; j < (size.width * rgb.getPixelStride());
-                                j++) {
-                            bTargetData[destPos + j] = (byte)
-                                (bTargetData[destPos + j]
-                                            * (1.0 - opacity));
-                            bTargetData[destPos + j] += (byte)
-                                (bData[srcPos + j] * opacity);
-                        }
-                    }
+                } else if (data instanceof byte[]) {
+                    Blender.blend((byte[]) data, srcPos,
+                            (byte[]) targetData, destPos, length, alpha);
+                } else if (data instanceof int[]) {
+                    Blender.blend((int[]) data, srcPos,
+                            (int[]) targetData, destPos, length, alpha);
                 }
             }
         } else if (bufferFormat instanceof YUVFormat) {
@@ -298,21 +537,14 @@ public class VideoSource {
                             System.arraycopy(data, srcPos,
                                 targetData, destPos, stride);
                         } else {
-                            byte[] bData = (byte[]) data;
-                            byte[] bTargetData = (byte[]) targetData;
-                            for (int k = 0; k < stride; k++) {
-                                int val = bTargetData[destPos + k] & 0xFF;
-                                int sVal = bData[srcPos + k] & 0xFF;
-                                val = (int) ((val * (1 - opacity))
-                                        + (sVal * opacity));
-                                bTargetData[destPos + k] = (byte) (val & 0xFF);
-                            }
+                            Blender.blend((byte[]) data, srcPos,
+                                    (byte[]) targetData, destPos, stride,
+                                    alpha);
                         }
                     }
                 }
             }
         }
-        return true;
     }
 
     public void close() {
@@ -322,6 +554,9 @@ public class VideoSource {
         if (outputProcessor != null) {
             outputProcessor.close();
         }
+        if (scaledBuffer != null) {
+            scaledBuffer.setData(null);
+        }
     }
 
 }
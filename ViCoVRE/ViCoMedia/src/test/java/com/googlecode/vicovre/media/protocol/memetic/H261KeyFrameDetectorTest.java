@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.media.protocol.memetic;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Vector;
+
+import org.junit.Test;
+
+import com.googlecode.vicovre.media.rtp.RTPHeader;
+
+/**
+ * Tests the detection of H.261 key frames sent in several packets
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class H261KeyFrameDetectorTest {
+
+    // The number of macroblocks in a GOB
+    private static final int MBS_PER_GOB = 33;
+
+    // The GOB numbers of a QCIF picture
+    private static final int[] QCIF_GOBS = new int[]{1, 3, 5};
+
+    private static final int QUANT = 8;
+
+    private static final int H261_PT = 31;
+
+    private static final long TIMESTAMP = 90000;
+
+    // Writes bits most significant first
+    private static class BitWriter {
+
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private int current = 0;
+
+        private int bits = 0;
+
+        private void write(int value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                current = (current << 1) | ((value >> i) & 0x1);
+                bits += 1;
+                if (bits == 8) {
+                    bytes.write(current);
+                    current = 0;
+                    bits = 0;
+                }
+            }
+        }
+
+        // Gets the number of unused bits at the end of the last byte
+        private int getEndBits() {
+            return (8 - bits) % 8;
+        }
+
+        private byte[] toByteArray() {
+            if (bits > 0) {
+                bytes.write(current << (8 - bits));
+                current = 0;
+                bits = 0;
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    // A packet of the frame being built
+    private static class Packet {
+
+        private BitWriter writer = new BitWriter();
+
+        private int gob = 0;
+
+        private int mbap = 0;
+    }
+
+    private static void writePictureHeader(BitWriter writer) {
+        writer.write(0x10, 20);
+        writer.write(0, 5);
+        writer.write(0, 6);
+        writer.write(0, 1);
+    }
+
+    private static void writeGobHeader(BitWriter writer, int gob) {
+        writer.write(0x1, 16);
+        writer.write(gob, 4);
+        writer.write(QUANT, 5);
+        writer.write(0, 1);
+    }
+
+    // Writes an intra macroblock that follows the previous one with only
+    // its DC coefficients
+    private static void writeIntraMacroblock(BitWriter writer) {
+        writer.write(0x1, 1);
+        writer.write(0x1, 4);
+        for (int i = 0; i < 6; i++) {
+            writer.write(0x80, 8);
+            writer.write(0x2, 2);
+        }
+    }
+
+    /**
+     * Builds the packets of an intra QCIF frame
+     * @param splitAfter The macroblock after which each GOB is split into a
+     *                   new packet, or 0 to not split the GOBs
+     * @param lastMb The last macroblock of the last GOB to send
+     * @return The RTP packets
+     */
+    private static List<byte[]> buildFrame(int splitAfter, int lastMb) {
+        List<Packet> packets = new Vector<Packet>();
+        Packet packet = new Packet();
+        packets.add(packet);
+        writePictureHeader(packet.writer);
+        for (int g = 0; g < QCIF_GOBS.length; g++) {
+            int gob = QCIF_GOBS[g];
+            if (g > 0) {
+                packet = new Packet();
+                packets.add(packet);
+            }
+            writeGobHeader(packet.writer, gob);
+            int mbs = MBS_PER_GOB;
+            if (g == (QCIF_GOBS.length - 1)) {
+                mbs = lastMb;
+            }
+            for (int mb = 1; mb <= mbs; mb++) {
+                if ((splitAfter > 0) && (mb == (splitAfter + 1))) {
+                    packet = new Packet();
+                    packet.gob = gob;
+                    packet.mbap = splitAfter - 1;
+                    packets.add(packet);
+                }
+                writeIntraMacroblock(packet.writer);
+            }
+        }
+
+        List<byte[]> rtpPackets = new Vector<byte[]>();
+        int sequence = 1;
+        for (Packet p : packets) {
+            int ebit = p.writer.getEndBits();
+            byte[] payload = p.writer.toByteArray();
+            byte[] data = new byte[RTPHeader.SIZE + 4 + payload.length];
+            data[0] = (byte) 0x80;
+            data[1] = (byte) H261_PT;
+            data[2] = (byte) (sequence >> 8);
+            data[3] = (byte) sequence;
+            data[4] = (byte) (TIMESTAMP >> 24);
+            data[5] = (byte) (TIMESTAMP >> 16);
+            data[6] = (byte) (TIMESTAMP >> 8);
+            data[7] = (byte) TIMESTAMP;
+            int h = RTPHeader.SIZE;
+            data[h] = (byte) ((ebit << 2) | 0x2);
+            data[h + 1] = (byte) ((p.gob << 4) | (p.mbap >> 1));
+            data[h + 2] = (byte) (((p.mbap & 0x1) << 7) | (QUANT << 2));
+            data[h + 3] = 0;
+            System.arraycopy(payload, 0, data, h + 4, payload.length);
+            rtpPackets.add(data);
+            sequence += 1;
+        }
+        return rtpPackets;
+    }
+
+    // Gets the index of the packet detected as completing a key frame, or
+    // -1 if none
+    private static int detect(List<byte[]> packets) throws Exception {
+        H261KeyFrameDetector detector = new H261KeyFrameDetector(false);
+        int detected = -1;
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] data = packets.get(i);
+            RTPHeader header = new RTPHeader(data, 0, data.length);
+            if (detector.isKeyFrame(header, data, 0, data.length)) {
+                assertTrue("Key frame detected twice", detected == -1);
+                detected = i;
+            }
+        }
+        return detected;
+    }
+
+    /**
+     * Tests that an intra frame with one packet per GOB is detected
+     * @throws Exception
+     */
+    @Test
+    public void testPacketPerGob() throws Exception {
+        List<byte[]> packets = buildFrame(0, MBS_PER_GOB);
+        assertTrue(detect(packets) == (packets.size() - 1));
+    }
+
+    /**
+     * Tests that an intra frame with GOBs split across packets is detected
+     * @throws Exception
+     */
+    @Test
+    public void testGobsSplitAcrossPackets() throws Exception {
+        List<byte[]> packets = buildFrame(10, MBS_PER_GOB);
+        assertTrue(packets.size() == 6);
+        assertTrue(detect(packets) == (packets.size() - 1));
+    }
+
+    /**
+     * Tests that a frame without the last macroblock is not detected
+     * @throws Exception
+     */
+    @Test
+    public void testMissingMacroblock() throws Exception {
+        assertFalse(detect(buildFrame(10, MBS_PER_GOB - 1)) != -1);
+        assertFalse(detect(buildFrame(0, MBS_PER_GOB - 1)) != -1);
+    }
+
+    /**
+     * Tests that a frame with a lost packet is not detected
+     * @throws Exception
+     */
+    @Test
+    public void testLostPacket() throws Exception {
+        List<byte[]> packets = buildFrame(10, MBS_PER_GOB);
+        packets.remove(1);
+        assertFalse(detect(packets) != -1);
+    }
+}
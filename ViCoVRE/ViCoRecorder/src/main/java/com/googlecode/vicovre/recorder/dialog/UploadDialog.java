@@ -524,6 +524,7 @@ public class UploadDialog extends JDialog implements ActionListener,
         Vector<File> files = new Vector<File>();
         Vector<Long> crcs = new Vector<Long>();
         String[] exts = new String[]{"", RecordingConstants.STREAM_INDEX,
+                RecordingConstants.STREAM_KEY_FRAME_INDEX,
                 RecordingConstants.STREAM_METADATA};
         for (Stream stream : recording.getStreams()) {
             for (String ext : exts) {
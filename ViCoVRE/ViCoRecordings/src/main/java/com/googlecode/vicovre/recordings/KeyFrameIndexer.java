@@ -0,0 +1,220 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.recordings;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.googlecode.vicovre.media.protocol.memetic.KeyFrameDetector;
+import com.googlecode.vicovre.media.protocol.memetic.RecordingConstants;
+import com.googlecode.vicovre.media.protocol.memetic.StreamFileCursor;
+import com.googlecode.vicovre.media.rtp.RTPHeader;
+import com.googlecode.vicovre.repositories.rtptype.RTPType;
+import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
+import com.googlecode.vicovre.repositories.rtptype.impl.RtpTypeRepositoryXmlImpl;
+import com.googlecode.vicovre.utils.ExtensionFilter;
+
+/**
+ * Writes key frame indexes for streams that were recorded before key frames
+ * were indexed by StreamArchive.  The stream files are scanned in the same
+ * way as they are when recorded, so the index is the same as it would have
+ * been.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class KeyFrameIndexer {
+
+    // The size of the header of a stream file (2 ints, an address and a short)
+    private static final int FILE_HEADER_SIZE = 4 + 4 + 4 + 2;
+
+    private KeyFrameIndexer() {
+        // Does Nothing
+    }
+
+    /**
+     * Writes the key frame index of a stream, unless there is already one
+     * that is newer than the stream
+     * @param streamFile The stream file
+     * @param typeRepository The RTP type repository
+     * @return True if an index was written, false if the stream already has
+     *     an index or the key frames of its format cannot be detected
+     * @throws IOException
+     */
+    public static boolean indexStream(File streamFile,
+            RtpTypeRepository typeRepository) throws IOException {
+        File indexFile = new File(streamFile.getAbsolutePath()
+                + RecordingConstants.STREAM_KEY_FRAME_INDEX);
+        if (indexFile.exists()
+                && (indexFile.lastModified() >= streamFile.lastModified())) {
+            return false;
+        }
+
+        StreamFileCursor cursor = new StreamFileCursor(streamFile);
+        File tempFile = new File(indexFile.getAbsolutePath() + ".part");
+        DataOutputStream output = null;
+        RTPHeader header = new RTPHeader();
+        KeyFrameDetector detector = null;
+        int type = -1;
+        long lastTimestamp = -1;
+        long frameOffset = 0;
+        long framePosition = 0;
+        try {
+            cursor.skip(FILE_HEADER_SIZE);
+            while (true) {
+                long position = cursor.position();
+                cursor.readPacketHeader();
+                int length = cursor.getPacketLength();
+                if ((cursor.getPacketType() != RecordingConstants.RTP_PACKET)
+                        || (length < RTPHeader.SIZE)) {
+                    cursor.skipPacketData();
+                    continue;
+                }
+                cursor.readPacketData();
+                header.parse(cursor.getData(), cursor.getDataOffset(), length);
+                if (type == -1) {
+                    type = header.getPacketType();
+                    RTPType rtpType = typeRepository.findRtpType(type);
+                    if (rtpType != null) {
+                        detector = KeyFrameDetector.getDetector(
+                                rtpType.getFormat());
+                    }
+                    if (detector == null) {
+                        return false;
+                    }
+                    output = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(tempFile)));
+                }
+                if (header.getPacketType() != type) {
+                    continue;
+                }
+                if (header.getTimestamp() != lastTimestamp) {
+                    lastTimestamp = header.getTimestamp();
+                    frameOffset = cursor.getPacketOffset();
+                    framePosition = position;
+                }
+                if (detector.isKeyFrame(header, cursor.getData(),
+                        cursor.getDataOffset(), length)) {
+                    output.writeLong(frameOffset);
+                    output.writeLong(framePosition);
+                }
+            }
+        } catch (EOFException e) {
+            // Do Nothing - the end of the stream
+        } finally {
+            cursor.close();
+            if (output != null) {
+                output.close();
+            }
+        }
+
+        if (output == null) {
+            return false;
+        }
+        indexFile.delete();
+        if (!tempFile.renameTo(indexFile)) {
+            tempFile.delete();
+            throw new IOException("Could not create " + indexFile);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the key frame indexes of the streams in a directory
+     * @param directory The directory containing the streams
+     * @param typeRepository The RTP type repository
+     * @param recursive True to also index the streams in subdirectories
+     * @return The number of indexes written
+     */
+    public static int indexDirectory(File directory,
+            RtpTypeRepository typeRepository, boolean recursive) {
+        int count = 0;
+        File[] indexFiles = directory.listFiles(
+                new ExtensionFilter(RecordingConstants.STREAM_INDEX));
+        if (indexFiles != null) {
+            for (File file : indexFiles) {
+                String name = file.getName();
+                File streamFile = new File(directory, name.substring(0,
+                        name.indexOf(RecordingConstants.STREAM_INDEX)));
+                if (streamFile.isFile()) {
+                    try {
+                        if (indexStream(streamFile, typeRepository)) {
+                            count += 1;
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Warning: error indexing "
+                                + streamFile);
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        if (recursive) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        count += indexDirectory(file, typeRepository, true);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the key frame indexes of all the recordings in a set of
+     * directories from the command line
+     * @param args The directories to index
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: KeyFrameIndexer <directory>"
+                    + " [directory...]");
+            System.exit(1);
+        }
+        RtpTypeRepository typeRepository =
+            new RtpTypeRepositoryXmlImpl("/rtptypes.xml");
+        for (String directory : args) {
+            int count = indexDirectory(new File(directory), typeRepository,
+                    true);
+            System.err.println("Indexed " + count + " streams in "
+                    + directory);
+        }
+    }
+}
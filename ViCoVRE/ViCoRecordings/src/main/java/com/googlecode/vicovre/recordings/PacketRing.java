@@ -0,0 +1,381 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.recordings;
+
+import java.net.DatagramPacket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, preallocated queue of RTP and RTCP packets.  The packet bytes,
+ * arrival time and packet kind are held in primitive slots that are reused,
+ * so queueing a packet does not allocate.  Any number of threads may offer
+ * packets, but only a single thread may take them.
+ *
+ * @author Andrew G D Rowley
+ * @version 2-0-alpha
+ */
+public class PacketRing {
+
+    /**
+     * When the ring is full, discard the oldest queued packet
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+
+    /**
+     * When the ring is full, wait until there is space
+     */
+    public static final int OVERFLOW_BLOCK = 1;
+
+    /**
+     * The default number of slots in the ring
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The default size of each slot in bytes
+     */
+    public static final int DEFAULT_SLOT_SIZE = 2048;
+
+    // The time to wait in ns between checks for space when blocking
+    private static final long BLOCK_WAIT = 100000;
+
+    // The number of slots (a power of 2)
+    private final int capacity;
+
+    // The mask to convert a position to a slot
+    private final int mask;
+
+    // The packet data of each slot
+    private final byte[][] data;
+
+    // The length of the packet in each slot
+    private final int[] lengths;
+
+    // The arrival time of the packet in each slot
+    private final long[] times;
+
+    // True if the packet in each slot is RTP
+    private final boolean[] isRTP;
+
+    // The sequence of each slot, used to hand slots between threads
+    private final AtomicLongArray sequences;
+
+    // The next position to be written
+    private final AtomicLong enqueuePos = new AtomicLong(0);
+
+    // The next position to be read
+    private final AtomicLong dequeuePos = new AtomicLong(0);
+
+    // The highest number of packets queued at once
+    private final AtomicLong highWaterMark = new AtomicLong(0);
+
+    // The number of packets dropped
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    // What to do when the ring is full
+    private final int overflowPolicy;
+
+    // True when no more packets are to be accepted
+    private volatile boolean closed = false;
+
+    // The consumer thread if it is waiting for a packet
+    private volatile Thread waitingConsumer = null;
+
+    /**
+     * A packet taken from the ring.  This is reused by the consumer between
+     * calls to take, so the packet data is only valid until the next call.
+     */
+    public static class Entry {
+
+        // The packet
+        private DatagramPacket packet = null;
+
+        // The time the packet arrived
+        private long time = 0;
+
+        // True if the packet is RTP
+        private boolean isRTP = false;
+
+        /**
+         * Creates a new Entry
+         * @param size The initial size of the packet buffer
+         */
+        public Entry(int size) {
+            packet = new DatagramPacket(new byte[size], size);
+        }
+
+        /**
+         * Gets the packet
+         * @return The packet
+         */
+        public DatagramPacket getPacket() {
+            return packet;
+        }
+
+        /**
+         * Gets the time at which the packet arrived
+         * @return The time in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Determines if the packet is RTP or RTCP
+         * @return True if the packet is RTP
+         */
+        public boolean isRTP() {
+            return isRTP;
+        }
+    }
+
+    /**
+     * Creates a new PacketRing with the default settings
+     */
+    public PacketRing() {
+        this(DEFAULT_CAPACITY, DEFAULT_SLOT_SIZE, OVERFLOW_DROP_OLDEST);
+    }
+
+    /**
+     * Creates a new PacketRing
+     * @param capacity The number of packets that can be queued (rounded up
+     *     to a power of 2)
+     * @param slotSize The number of bytes to preallocate for each packet
+     * @param overflowPolicy One of OVERFLOW_DROP_OLDEST or OVERFLOW_BLOCK
+     */
+    public PacketRing(int capacity, int slotSize, int overflowPolicy) {
+        if ((overflowPolicy != OVERFLOW_DROP_OLDEST)
+                && (overflowPolicy != OVERFLOW_BLOCK)) {
+            throw new IllegalArgumentException("Unknown overflow policy "
+                    + overflowPolicy);
+        }
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        data = new byte[size][slotSize];
+        lengths = new int[size];
+        times = new long[size];
+        isRTP = new boolean[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds a packet to the ring.  The packet data is copied, so the packet
+     * can be reused as soon as this returns.
+     *
+     * @param packet The packet to add
+     * @param rtp True if the packet is RTP, false if RTCP
+     * @param time The time at which the packet arrived
+     * @return True if the packet was queued, false if the ring is closed
+     */
+    public boolean offer(DatagramPacket packet, boolean rtp, long time) {
+        while (!closed) {
+            long pos = enqueuePos.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (enqueuePos.compareAndSet(pos, pos + 1)) {
+                    int length = packet.getLength();
+                    if (data[index].length < length) {
+                        data[index] = new byte[length];
+                    }
+                    System.arraycopy(packet.getData(), packet.getOffset(),
+                            data[index], 0, length);
+                    lengths[index] = length;
+                    times[index] = time;
+                    isRTP[index] = rtp;
+                    sequences.set(index, pos + 1);
+                    updateHighWaterMark((pos + 1) - dequeuePos.get());
+
+                    Thread consumer = waitingConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (diff < 0) {
+
+                // The ring is full
+                if (overflowPolicy == OVERFLOW_DROP_OLDEST) {
+                    if (dequeue(null)) {
+                        dropped.incrementAndGet();
+                    }
+                } else {
+                    LockSupport.parkNanos(BLOCK_WAIT);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the next packet from the ring, waiting if there are none.  Must
+     * only be called by a single thread at a time.
+     *
+     * @param entry The entry to fill in with the packet
+     * @return True if a packet was taken, false if the ring has been closed
+     *     and there are no packets left
+     */
+    public boolean take(Entry entry) {
+        while (true) {
+            if (dequeue(entry)) {
+                return true;
+            }
+            if (closed) {
+                return dequeue(entry);
+            }
+            waitingConsumer = Thread.currentThread();
+            if (isEmpty() && !closed) {
+                LockSupport.park(this);
+            }
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * Takes the next packet from the ring if there is one
+     * @param entry The entry to fill in with the packet
+     * @return True if a packet was taken
+     */
+    public boolean poll(Entry entry) {
+        return dequeue(entry);
+    }
+
+    // Removes the packet at the head of the ring, copying it into the entry
+    // if not null
+    private boolean dequeue(Entry entry) {
+        while (true) {
+            long pos = dequeuePos.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (dequeuePos.compareAndSet(pos, pos + 1)) {
+                    if (entry != null) {
+                        int length = lengths[index];
+                        byte[] buffer = entry.packet.getData();
+                        if (buffer.length < length) {
+                            buffer = new byte[length];
+                        }
+                        System.arraycopy(data[index], 0, buffer, 0, length);
+                        entry.packet.setData(buffer, 0, length);
+                        entry.time = times[index];
+                        entry.isRTP = isRTP[index];
+                    }
+                    sequences.set(index, pos + capacity);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    private void updateHighWaterMark(long depth) {
+        long current = highWaterMark.get();
+        while ((depth > current)
+                && !highWaterMark.compareAndSet(current, depth)) {
+            current = highWaterMark.get();
+        }
+    }
+
+    /**
+     * Stops any more packets from being added and wakes the consumer.
+     * Packets already queued can still be taken.
+     */
+    public void close() {
+        closed = true;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Determines if the ring has been closed
+     * @return True if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Determines if there are any packets in the ring
+     * @return True if there are no packets
+     */
+    public boolean isEmpty() {
+        long pos = dequeuePos.get();
+        return (sequences.get((int) (pos & mask)) - (pos + 1)) < 0;
+    }
+
+    /**
+     * Gets the number of packets currently queued
+     * @return The depth of the queue
+     */
+    public int getDepth() {
+        long depth = enqueuePos.get() - dequeuePos.get();
+        return (int) Math.max(0, Math.min(depth, capacity));
+    }
+
+    /**
+     * Gets the highest number of packets that have been queued at once
+     * @return The high-water mark
+     */
+    public int getHighWaterMark() {
+        return (int) Math.min(highWaterMark.get(), capacity);
+    }
+
+    /**
+     * Gets the number of packets dropped because the ring was full
+     * @return The number of dropped packets
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the number of packets that can be queued
+     * @return The capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -34,7 +34,6 @@
 
 package com.googlecode.vicovre.recordings;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -42,7 +41,6 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Vector;
 
 import com.googlecode.vicovre.media.protocol.memetic.RecordingConstants;
@@ -60,8 +58,7 @@ import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
  * @author Andrew G D Rowley
  * @version 2-0-alpha
  */
-public class RecordArchiveManager extends Thread implements RTPPacketSink,
-        RTCPPacketSink {
+public class RecordArchiveManager implements RTPPacketSink, RTCPPacketSink {
 
     /**
      * The format to use for the date in ids
@@ -72,6 +69,12 @@ public class RecordArchiveManager extends Thread implements RTPPacketSink,
     // The maximum RTP type in the RTCP - RTP conflict range
     private static final int MAX_RTCP_CONFLICT = 76;
 
+    /**
+     * The default number of threads writing streams to disk
+     */
+    public static final int DEFAULT_WORKERS = Math.max(1,
+            Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
     // The minimum RTP type in the RTCP - RTP conflict range
     private static final int MIN_RTCP_CONFLICT = 72;
 
@@ -86,28 +89,16 @@ public class RecordArchiveManager extends Thread implements RTPPacketSink,
     private File touchFile = null;
 
     // True if we are currently recording
-    private boolean recordFlag = false;
+    private volatile boolean recordFlag = false;
 
     // The streams that have been stopped
     private Vector<Long> stoppedStreams = new Vector<Long>();
 
-    // A queue of packets to be handled
-    private LinkedList<DatagramPacket> queue = new LinkedList<DatagramPacket>();
-
-    // The time that a packet was queued
-    private LinkedList<Long> queueTime = new LinkedList<Long>();
-
-    // Queues if a packet is RTP or not
-    private LinkedList<Boolean> queueIsRTP = new LinkedList<Boolean>();
-
-    // The time that the current packet was recieved
-    private long packetRecievedTime = 0;
-
-    // True if the current packet is RTP
-    private boolean packetIsRTP = false;
+    // The threads that write the streams, each handling a set of ssrcs
+    private Worker[] workers = null;
 
-    // True when the thread is to be stopped
-    private boolean done = false;
+    // True when the workers are to be stopped
+    private volatile boolean done = false;
 
     // A listing of streams added since the last request for new streams
     private Vector<String> newStreams = new Vector<String>();
@@ -118,9 +109,6 @@ public class RecordArchiveManager extends Thread implements RTPPacketSink,
     // The RtpTypeRepository
     private RtpTypeRepository typeRepository = null;
 
-    // Synchronises the processing of the queue
-    private Integer processSync = new Integer(0);
-
     // The times at which the recording has been paused
     private Vector<Long> pauseTimes = new Vector<Long>();
 
@@ -130,6 +118,59 @@ public class RecordArchiveManager extends Thread implements RTPPacketSink,
     // The time to subtract to take account of pauses
     private long subtractTime = 0;
 
+    // When the stream archives force their data to disk
+    private int durability = StreamArchiveWriter.DURABILITY_ON_CLOSE;
+
+    // Writes the streams whose ssrcs map to its queue
+    private class Worker extends Thread {
+
+        // A queue of packets to be handled
+        private PacketRing queue = null;
+
+        // The packet currently being handled
+        private PacketRing.Entry currentPacket = null;
+
+        private Worker(int index, int queueCapacity, int overflowPolicy) {
+            super("RecordArchiveManager-" + recording.getId() + "-" + index);
+            queue = new PacketRing(queueCapacity,
+                    PacketRing.DEFAULT_SLOT_SIZE, overflowPolicy);
+            currentPacket = new PacketRing.Entry(PacketRing.DEFAULT_SLOT_SIZE);
+        }
+
+        /**
+         * Processes incoming packets until the queue is closed and empty
+         *
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            while (queue.take(currentPacket)) {
+                if (currentPacket.isRTP()) {
+                    processRTPPacket(currentPacket.getPacket(),
+                            currentPacket.getTime());
+                } else {
+                    processRTCPPacket(currentPacket.getPacket(),
+                            currentPacket.getTime());
+                }
+            }
+        }
+
+        // Stops accepting packets and waits for the queue to be written
+        private void finish() {
+            queue.close();
+            boolean interrupted = false;
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     public static final String generateId(Date date) {
        return DATE_FORMAT.format(date)
                 + (int) (Math.random() * RecordingConstants.ID_NORMALIZATION);
@@ -142,77 +183,78 @@ public class RecordArchiveManager extends Thread implements RTPPacketSink,
     public RecordArchiveManager(LayoutRepository layoutRepository,
             RtpTypeRepository typeRepository,
             String folder, String recordingId, File directory) {
+        this(layoutRepository, typeRepository, folder, recordingId, directory,
+                PacketRing.DEFAULT_CAPACITY, PacketRing.OVERFLOW_DROP_OLDEST,
+                DEFAULT_WORKERS);
+    }
+
+    /**
+     * Creates a new RecordArchiveManager
+     * @param typeRepository The RTPTypes to use
+     * @param queueCapacity The number of packets that can be queued in total
+     * @param overflowPolicy What to do when the queue is full; one of
+     *     PacketRing.OVERFLOW_DROP_OLDEST or PacketRing.OVERFLOW_BLOCK
+     * @param workerCount The number of threads writing streams to disk.
+     *     Each stream is always written by the same thread, so the packets
+     *     of a stream are written in the order they arrived
+     */
+    public RecordArchiveManager(LayoutRepository layoutRepository,
+            RtpTypeRepository typeRepository,
+            String folder, String recordingId, File directory,
+            int queueCapacity, int overflowPolicy, int workerCount) {
+        this(layoutRepository, typeRepository, folder, recordingId, directory,
+                queueCapacity, overflowPolicy, workerCount,
+                StreamArchiveWriter.DURABILITY_ON_CLOSE);
+    }
+
+    /**
+     * Creates a new RecordArchiveManager
+     * @param typeRepository The RTPTypes to use
+     * @param queueCapacity The number of packets that can be queued in total
+     * @param overflowPolicy What to do when the queue is full; one of
+     *     PacketRing.OVERFLOW_DROP_OLDEST or PacketRing.OVERFLOW_BLOCK
+     * @param workerCount The number of threads writing streams to disk
+     * @param durability When the streams are forced to disk; one of
+     *     StreamArchiveWriter.DURABILITY_NONE, DURABILITY_ON_CLOSE or
+     *     DURABILITY_ON_COMMIT
+     */
+    public RecordArchiveManager(LayoutRepository layoutRepository,
+            RtpTypeRepository typeRepository,
+            String folder, String recordingId, File directory,
+            int queueCapacity, int overflowPolicy, int workerCount,
+            int durability) {
+        this.durability = durability;
         this.typeRepository = typeRepository;
         recording = new InsecureRecording(folder, recordingId, directory,
                 layoutRepository, typeRepository);
         this.directory = directory;
         touchFile = new File(directory,
                 RecordingConstants.RECORDING_INPROGRESS);
-        start();
-    }
 
-    // Adds a packet to the queue
-    private void addPacket(DatagramPacket packet, boolean isRTP, long time) {
-        synchronized (queue) {
-            if (!done) {
-                queue.addLast(packet);
-                queueTime.addLast(new Long(time));
-                queueIsRTP.addLast(new Boolean(isRTP));
-                queue.notifyAll();
-            }
+        workerCount = Math.max(1, workerCount);
+        int workerCapacity = Math.max(1,
+                (queueCapacity + workerCount - 1) / workerCount);
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, workerCapacity, overflowPolicy);
+            workers[i].start();
         }
     }
 
-    // Retrieves a packet from the queue
-    private DatagramPacket nextPacket() {
-        DatagramPacket returnPacket = null;
-        synchronized (queue) {
-            while (!done && queue.isEmpty()) {
-                try {
-                    queue.wait();
-                } catch (InterruptedException e) {
-
-                    // Do Nothing
-                }
-            }
-
-            if (!queue.isEmpty()) {
-                packetRecievedTime = queueTime.removeFirst();
-                packetIsRTP = queueIsRTP.removeFirst();
-                returnPacket = queue.removeFirst();
-            }
-        }
-        return returnPacket;
-    }
-
-    private void processNextPacket() {
-
-        // Get the next packet
-        DatagramPacket packet = nextPacket();
-
-        // Process the packet, depending on its type
-        if (packet != null) {
-            if (packetIsRTP) {
-                processRTPPacket(packet, packetRecievedTime);
-            } else {
-                processRTCPPacket(packet, packetRecievedTime);
-            }
-        }
-    }
-
-    /**
-     * Processes incoming packets
-     *
-     * @see java.lang.Runnable#run()
-     */
-    public void run() {
-        done = false;
-
-        // Only stop when signalled
-        synchronized (processSync) {
-            while (!done) {
-                processNextPacket();
+    // Adds a packet to the queue of the worker handling its ssrc
+    private void addPacket(DatagramPacket packet, boolean isRTP, long time) {
+        if (!done) {
+            long ssrc = 0;
+            if (isRTP && (packet.getLength() >= RTPHeader.SIZE)) {
+                ssrc = RTPHeader.getSsrc(packet.getData(), packet.getOffset());
+            } else if (!isRTP && (packet.getLength() >= RTCPHeader.SIZE)) {
+                ssrc = RTCPHeader.getSsrc(packet.getData(),
+                        packet.getOffset());
             }
+            int hash = (int) (ssrc ^ (ssrc >>> 16));
+            Worker worker = workers[(hash & Integer.MAX_VALUE)
+                                    % workers.length];
+            worker.queue.offer(packet, isRTP, time);
         }
     }
 
@@ -252,26 +294,35 @@ public class RecordArchiveManager extends Thread implements RTPPacketSink,
             long packetRecievedTime) {
 
         try {
-            RTPHeader packetHeader = new RTPHeader(packet);
+
+            // Ignore packets too short to have a header
+            if (packet.getLength() < RTPHeader.SIZE) {
+                return;
+            }
 
             // If we are not recording, do nothing
             if (!recordFlag) {
                 return;
             }
+
+            // Read the header fields straight from the packet
+            byte[] data = packet.getData();
+            int offset = packet.getOffset();
+            int packetType = RTPHeader.getPacketType(data, offset);
+
             // If this is RTP version 2 and the type is valid
-            if ((packetHeader.getVersion() == RTPHeader.VERSION)
-                    && (packetHeader.getPacketType() <= RTPHeader.MAX_PAYLOAD)
-                            && ((packetHeader.getPacketType()
-                                    < MIN_RTCP_CONFLICT)
-                                    || (packetHeader.getPacketType()
-                                            > MAX_RTCP_CONFLICT))) {
+            if ((RTPHeader.getVersion(data, offset) == RTPHeader.VERSION)
+                    && (packetType <= RTPHeader.MAX_PAYLOAD)
+                            && ((packetType < MIN_RTCP_CONFLICT)
+                                    || (packetType > MAX_RTCP_CONFLICT))) {
+                long ssrc = RTPHeader.getSsrc(data, offset);
 
                 // Get the stream archive for this ssrc
                 StreamArchive streamArchive = null;
                 boolean isStopped = false;
                 synchronized (streamMap) {
-                    streamArchive = streamMap.get(packetHeader.getSsrc());
-                    isStopped = stoppedStreams.contains(packetHeader.getSsrc());
+                    streamArchive = streamMap.get(ssrc);
+                    isStopped = stoppedStreams.contains(ssrc);
                 }
 
                 // If it doesn't exist and has not been stopped, create it
@@ -284,9 +335,9 @@ public class RecordArchiveManager extends Thread implements RTPPacketSink,
                                 "Warning: can't create in-progress file");
                     }
                     streamArchive = new StreamArchive(this, directory,
-                            packetHeader.getSsrc(), typeRepository);
+                            ssrc, typeRepository, durability);
                     synchronized (streamMap) {
-                        streamMap.put(packetHeader.getSsrc(), streamArchive);
+                        streamMap.put(ssrc, streamArchive);
                     }
                 } else if (streamArchive != null) {
 
@@ -294,8 +345,6 @@ public class RecordArchiveManager extends Thread implements RTPPacketSink,
                     streamArchive.handleRTPPacket(packet, packetRecievedTime);
                 }
             }
-        } catch (EOFException e) {
-            // Do Nothing
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -319,35 +368,38 @@ public class RecordArchiveManager extends Thread implements RTPPacketSink,
     public void processRTCPPacket(DatagramPacket packet,
             long packetRecievedTime) {
 
-        try {
-            RTCPHeader packetHeader = new RTCPHeader(packet);
-
-            // If we are not recording, do nothing
-            if (!recordFlag) {
-                return;
-            }
+        // Ignore packets too short to have a header
+        if (packet.getLength() < RTCPHeader.SIZE) {
+            return;
+        }
 
-            // If the packet is the correct version and is a sender report
-            if ((packetHeader.getVersion() == RTCPHeader.VERSION)
-                    && ((packetHeader.getPacketType() == RTCPHeader.PT_SR)
-                           || (packetHeader.getPacketType()
-                                   == RTCPHeader.PT_RR))) {
+        // If we are not recording, do nothing
+        if (!recordFlag) {
+            return;
+        }
 
-                // Get the archive
-                StreamArchive streamArchive = null;
-                synchronized (streamMap) {
-                    streamArchive = streamMap
-                            .get(new Long(packetHeader.getSsrc()));
-                }
+        // Read the header fields straight from the packet
+        byte[] data = packet.getData();
+        int offset = packet.getOffset();
+        int packetType = RTCPHeader.getPacketType(data, offset);
+
+        // If the packet is the correct version and is a sender report
+        if ((RTCPHeader.getVersion(data, offset) == RTCPHeader.VERSION)
+                && ((packetType == RTCPHeader.PT_SR)
+                       || (packetType == RTCPHeader.PT_RR))) {
+
+            // Get the archive
+            StreamArchive streamArchive = null;
+            synchronized (streamMap) {
+                streamArchive = streamMap.get(
+                        RTCPHeader.getSsrc(data, offset));
+            }
 
-                if (streamArchive != null) {
+            if (streamArchive != null) {
 
-                    // Handle the packet
-                    streamArchive.handleRTCPPacket(packet, packetRecievedTime);
-                }
+                // Handle the packet
+                streamArchive.handleRTCPPacket(packet, packetRecievedTime);
             }
-        } catch (IOException e) {
-            // Do Nothing
         }
     }
 
@@ -400,14 +452,8 @@ public class RecordArchiveManager extends Thread implements RTPPacketSink,
 
         // Finish processing of queued packets
         done = true;
-        synchronized (queue) {
-            queue.notifyAll();
-        }
-
-        synchronized (processSync) {
-            while (!queue.isEmpty()) {
-                processNextPacket();
-            }
+        for (Worker worker : workers) {
+            worker.finish();
         }
 
         // Stop each of the archivers
@@ -457,4 +503,50 @@ public class RecordArchiveManager extends Thread implements RTPPacketSink,
     public InsecureRecording getRecording() {
         return recording;
     }
+
+    /**
+     * Gets the number of packets waiting to be processed
+     * @return The depth of the packet queue
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Worker worker : workers) {
+            depth += worker.queue.getDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * Gets the largest number of packets that have waited to be processed
+     * by any one writer thread
+     * @return The high-water mark of the packet queues
+     */
+    public int getQueueHighWaterMark() {
+        int highWaterMark = 0;
+        for (Worker worker : workers) {
+            highWaterMark = Math.max(highWaterMark,
+                    worker.queue.getHighWaterMark());
+        }
+        return highWaterMark;
+    }
+
+    /**
+     * Gets the number of packets dropped because a queue was full
+     * @return The number of dropped packets
+     */
+    public long getDroppedPackets() {
+        long dropped = 0;
+        for (Worker worker : workers) {
+            dropped += worker.queue.getDropped();
+        }
+        return dropped;
+    }
+
+    /**
+     * Gets the number of threads writing streams to disk
+     * @return The number of writer threads
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }
 }
@@ -32,15 +32,16 @@
 
 package com.googlecode.vicovre.recordings;
 
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.nio.channels.FileChannel;
 import java.util.Date;
 
+import javax.media.format.VideoFormat;
+
+import com.googlecode.vicovre.media.preview.SpriteSheetGenerator;
+import com.googlecode.vicovre.media.protocol.memetic.KeyFrameDetector;
 import com.googlecode.vicovre.media.protocol.memetic.RecordingConstants;
 import com.googlecode.vicovre.media.rtp.RTCPHeader;
 import com.googlecode.vicovre.media.rtp.RTCPSDES;
@@ -66,9 +67,6 @@ public class StreamArchive {
     // The number of bytes in an address
     private static final int BYTES_PER_ADDRESS = 4;
 
-    // The number of milliseconds in a second
-    private static final int MS_PER_SEC = 1000;
-
     // The number of bytes in a word
     private static final int BYTES_PER_WORD = 4;
 
@@ -116,17 +114,23 @@ public class StreamArchive {
 
     private File directory = null;
 
-    // The control channel of the stream file
-    private FileChannel streamFileControl = null;
-
-    // The data channel of the stream file
-    private DataOutputStream streamFile = null;
-
     // The name of the index of the stream
     private String indexFilename = "";
 
-    // The data channel of the index file
-    private DataOutputStream indexFile = null;
+    // The name of the index of the key frames of the stream
+    private String keyFrameIndexFilename = "";
+
+    // Detects key frames in the stream, or null if they are not detected
+    private KeyFrameDetector keyFrameDetector = null;
+
+    // The offset of the first packet of the current frame
+    private long frameOffset = 0;
+
+    // The position of the first packet of the current frame in the file
+    private long framePosition = 0;
+
+    // The writer of the stream and index files
+    private StreamArchiveWriter writer = null;
 
     // True if output writing has started
     private boolean writingOutput = false;
@@ -148,6 +152,18 @@ public class StreamArchive {
 
     private ScreenChangeDetector changeDetector = null;
 
+    // Generates sprite sheets of video streams for scrubbing
+    private SpriteSheetGenerator spriteGenerator = null;
+
+    // The header of the current RTP packet, reused for each packet
+    private RTPHeader packetHeader = new RTPHeader();
+
+    // The header of the current RTCP subpacket, reused for each subpacket
+    private RTCPHeader rtcpHeader = new RTCPHeader();
+
+    // When the written data is forced to disk
+    private int durability = StreamArchiveWriter.DURABILITY_ON_CLOSE;
+
 
     /**
      * Creates a new StreamArchive
@@ -160,7 +176,31 @@ public class StreamArchive {
      */
     public StreamArchive(RecordArchiveManager archiveMgr, File directory,
             long ssrc, RtpTypeRepository typeRepository) {
+        this(archiveMgr, directory, ssrc, typeRepository,
+                StreamArchiveWriter.DURABILITY_ON_CLOSE);
+    }
+
+    /**
+     * Creates a new StreamArchive
+     *
+     * @param archiveMgr The manager of this archive
+     * @param directory The directory to store in
+     * @param ssrc The RTP stream id to record
+     * @param typeRepository The RTP Type repository
+     * @param durability When the written data is forced to disk; one of
+     *     StreamArchiveWriter.DURABILITY_NONE, DURABILITY_ON_CLOSE or
+     *     DURABILITY_ON_COMMIT
+     */
+    public StreamArchive(RecordArchiveManager archiveMgr, File directory,
+            long ssrc, RtpTypeRepository typeRepository, int durability) {
+        if ((durability != StreamArchiveWriter.DURABILITY_NONE)
+                && (durability != StreamArchiveWriter.DURABILITY_ON_CLOSE)
+                && (durability != StreamArchiveWriter.DURABILITY_ON_COMMIT)) {
+            throw new IllegalArgumentException("Unknown durability "
+                    + durability);
+        }
 
+        this.durability = durability;
         this.stream = new Stream(typeRepository);
         this.archiveMgr = archiveMgr;
         this.ssrc = ssrc;
@@ -172,6 +212,8 @@ public class StreamArchive {
         streamFilename = directory.getAbsolutePath() + slash + ssrc;
         indexFilename = directory.getAbsolutePath() + slash + ssrc
             + RecordingConstants.STREAM_INDEX;
+        keyFrameIndexFilename = directory.getAbsolutePath() + slash + ssrc
+            + RecordingConstants.STREAM_KEY_FRAME_INDEX;
     }
 
     /**
@@ -180,22 +222,22 @@ public class StreamArchive {
      */
     public void terminate() throws IOException {
 
-        // Close the actual data archive file
-        if (streamFile != null) {
-            streamFile.close();
+        // Commit and close the archive and index files
+        if (writer != null) {
+            writer.close();
         }
 
         // Write final data
         writeFinalInfo();
 
-        // Close the index file
-        if (indexFile != null) {
-            indexFile.close();
-        }
-
         if (changeDetector != null) {
             changeDetector.close();
         }
+
+        // The remaining packets are decoded in the background
+        if (spriteGenerator != null) {
+            spriteGenerator.close();
+        }
     }
 
     private void calculateMissedPackets(RTPHeader packetHeader) {
@@ -235,7 +277,7 @@ public class StreamArchive {
     public void handleRTPPacket(DatagramPacket packet, long time)
             throws IOException {
 
-        RTPHeader packetHeader = new RTPHeader(packet);
+        packetHeader.parse(packet);
 
         // Reject packets that have invalid data in them
         if ((packetHeader.getPacketType() >= MIN_RTCP_CONFLICT)
@@ -279,6 +321,19 @@ public class StreamArchive {
             type = packetHeader.getPacketType();
             RTPType rtpType = typeRepository.findRtpType(type);
             stream.setRtpType(rtpType);
+            if ((rtpType != null)
+                    && (rtpType.getFormat() instanceof VideoFormat)) {
+                try {
+                    spriteGenerator = new SpriteSheetGenerator(directory,
+                            String.valueOf(ssrc), rtpType.getFormat());
+                    spriteGenerator.start();
+                } catch (Throwable e) {
+                    System.err.println(
+                        "Could not initialize SpriteSheetGenerator: "
+                        + e.getMessage());
+                    spriteGenerator = null;
+                }
+            }
             /*if (rtpType.getFormat() instanceof VideoFormat) {
                 try {
                     changeDetector =
@@ -307,6 +362,10 @@ public class StreamArchive {
                     changeDetector = null;
                 }
             }
+
+            if (spriteGenerator != null) {
+                spriteGenerator.process(packetHeader, packet, offset);
+            }
         }
 
     }
@@ -337,12 +396,12 @@ public class StreamArchive {
         try {
             while (offset < (packet.getLength()
                     + packet.getOffset())) {
-                RTCPHeader header = new RTCPHeader(packet.getData(),
-                        offset, packet.getLength() - read);
-                int length = (header.getLength() + 1) * BYTES_PER_WORD;
+                rtcpHeader.parse(packet.getData(), offset,
+                        packet.getLength() - read);
+                int length = (rtcpHeader.getLength() + 1) * BYTES_PER_WORD;
                 read += RTCPHeader.SIZE;
                 offset += RTCPHeader.SIZE;
-                processSubpacket(header, packet.getData(), offset);
+                processSubpacket(rtcpHeader, packet.getData(), offset);
                 offset += length - RTCPHeader.SIZE;
                 read += length - RTCPHeader.SIZE;
             }
@@ -412,20 +471,10 @@ public class StreamArchive {
 
     // Spit out info we know about the start of the stream
     private void writeInitialInfo() {
-        try {
-            FileOutputStream indexFileO = new FileOutputStream(indexFilename,
-                    true);
-
-            // Store the ssrc and start time of the stream
-            stream.setSsrc(String.valueOf(ssrc));
-            stream.setStartTime(new Date(startTime));
 
-            // Start the index file
-            indexFile = new DataOutputStream(indexFileO);
-        } catch (IOException e) {
-            e.printStackTrace();
-            bBadFileIO = true;
-        }
+        // Store the ssrc and start time of the stream
+        stream.setSsrc(String.valueOf(ssrc));
+        stream.setStartTime(new Date(startTime));
     }
 
     // Spit out the end-of-stream summary information:
@@ -436,14 +485,25 @@ public class StreamArchive {
         stream.setBytes(totalBytes);
     }
 
-    // Opens the stream file for writing
+    // Opens the stream and index files for writing
     private void openFile() {
         try {
-            if (streamFile == null) {
-                FileOutputStream streamFileO = new FileOutputStream(
-                        streamFilename, true);
-                streamFile = new DataOutputStream(streamFileO);
-                streamFileControl = streamFileO.getChannel();
+            if (writer == null) {
+                RTPType rtpType = typeRepository.findRtpType(
+                        packetHeader.getPacketType());
+                File keyFrameIndexFile = null;
+                if (rtpType != null) {
+                    keyFrameDetector = KeyFrameDetector.getDetector(
+                            rtpType.getFormat());
+                }
+                if (keyFrameDetector != null) {
+                    keyFrameIndexFile = new File(keyFrameIndexFilename);
+                }
+                writer = new StreamArchiveWriter(new File(streamFilename),
+                        new File(indexFilename), keyFrameIndexFile,
+                        StreamArchiveWriter.DEFAULT_BATCH_SIZE,
+                        StreamArchiveWriter.DEFAULT_COMMIT_INTERVAL,
+                        durability);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -458,13 +518,10 @@ public class StreamArchive {
             // If we're writing output to the stream file
             if (writingOutput && packetTimestamp != lastTimestamp) {
 
-                // figure out where we are in the main file
-                long pos = streamFileControl.position();
-
-                // Write our index
-                indexFile.writeLong(offset);
-                indexFile.writeLong(pos);
-                indexFile.flush();
+                // Write our index at the current position in the main file
+                writer.writeIndex(offset);
+                frameOffset = offset;
+                framePosition = writer.getPosition();
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -475,18 +532,13 @@ public class StreamArchive {
     // Writes the header of the stream file
     private void writeFileHeader() {
         try {
-            long seconds = 0;
-            long uSeconds = 0;
-            byte[] ipaddress = new byte[BYTES_PER_ADDRESS];
             startTime = packetRecievedTime;
             openFile();
+            if (bBadFileIO) {
+                return;
+            }
 
-            seconds = (startTime / MS_PER_SEC);
-            uSeconds = ((startTime - (seconds * MS_PER_SEC)) * MS_PER_SEC);
-            streamFile.writeInt((int) seconds);
-            streamFile.writeInt((int) uSeconds);
-            streamFile.write(ipaddress, 0, BYTES_PER_ADDRESS);
-            streamFile.writeShort(0);
+            writer.writeFileHeader(startTime);
 
             // Add to the file size 2 ints, 4 bytes and a short
             fileSize += BYTES_PER_INT + BYTES_PER_INT + BYTES_PER_ADDRESS
@@ -501,7 +553,7 @@ public class StreamArchive {
     // Writes a packet to disk
     private void writePacket(DatagramPacket packet, int type, long offset) {
         if (((archiveMgr != null) && !archiveMgr.isRecording())
-                || (packet.getLength() == 0)) {
+                || (packet.getLength() == 0) || (writer == null)) {
             return;
         }
 
@@ -509,15 +561,20 @@ public class StreamArchive {
             if (type == 0) {
                 writeIndex(offset);
             }
-            streamFile.writeShort(packet.getLength());
-            streamFile.writeShort(type);
-            streamFile.writeInt((int) offset);
+            writer.writePacket(type, offset, packet.getData(),
+                    packet.getOffset(), packet.getLength());
+
+            // Index the frame if this packet completes a key frame
+            if ((type == RecordingConstants.RTP_PACKET)
+                    && (keyFrameDetector != null)
+                    && keyFrameDetector.isKeyFrame(packetHeader,
+                            packet.getData(), packet.getOffset(),
+                            packet.getLength())) {
+                writer.writeKeyFrameIndex(frameOffset, framePosition);
+            }
 
-            // Add 2 shorts and an int to the file
+            // Add 2 shorts, an int and the packet to the file
             fileSize += BYTES_PER_SHORT + BYTES_PER_SHORT + BYTES_PER_INT;
-
-            streamFile.write(packet.getData(), packet.getOffset(),
-                    packet.getLength());
             fileSize += packet.getLength();
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,403 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.recordings;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Writes the stream, index and key frame index files of a StreamArchive in
+ * batches.  Packet headers and data are gathered into a direct buffer and
+ * committed to disk when the buffer fills or when the commit interval has
+ * passed, whichever happens first.  The files written are identical to those
+ * written one packet at a time.
+ *
+ * @author Andrew G D Rowley
+ * @version 2-0-alpha
+ */
+public class StreamArchiveWriter {
+
+    /**
+     * Never force data to disk; leave it to the operating system
+     */
+    public static final int DURABILITY_NONE = 0;
+
+    /**
+     * Force data to disk when the writer is closed
+     */
+    public static final int DURABILITY_ON_CLOSE = 1;
+
+    /**
+     * Force data to disk every time a batch is committed
+     */
+    public static final int DURABILITY_ON_COMMIT = 2;
+
+    /**
+     * The default size of a batch of stream data in bytes
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256 * 1024;
+
+    /**
+     * The default maximum time between commits in milliseconds
+     */
+    public static final long DEFAULT_COMMIT_INTERVAL = 1000;
+
+    // The size of a batch of index data in bytes
+    private static final int INDEX_BATCH_SIZE = 16 * 1024;
+
+    // The size of a batch of key frame index data in bytes
+    private static final int KEY_FRAME_BATCH_SIZE = 1024;
+
+    // The number of milliseconds in a second
+    private static final int MS_PER_SEC = 1000;
+
+    // The number of bytes in an address
+    private static final int BYTES_PER_ADDRESS = 4;
+
+    // The size of the header of the file (2 ints, an address and a short)
+    private static final int FILE_HEADER_SIZE = 4 + 4 + BYTES_PER_ADDRESS + 2;
+
+    // The size of the header of each packet (2 shorts and an int)
+    private static final int PACKET_HEADER_SIZE = 2 + 2 + 4;
+
+    // The size of each index entry (2 longs)
+    private static final int INDEX_ENTRY_SIZE = 8 + 8;
+
+    // The timer that commits batches that have been waiting too long
+    private static final Timer COMMIT_TIMER =
+        new Timer("StreamArchiveWriter", true);
+
+    // The channel of the stream file
+    private FileChannel streamChannel = null;
+
+    // The channel of the index file
+    private FileChannel indexChannel = null;
+
+    // The batch of stream data waiting to be written
+    private ByteBuffer streamBatch = null;
+
+    // The batch of index data waiting to be written
+    private ByteBuffer indexBatch = null;
+
+    // The channel of the key frame index file, or null if not written
+    private FileChannel keyFrameChannel = null;
+
+    // The batch of key frame index data waiting to be written
+    private ByteBuffer keyFrameBatch = null;
+
+    // The position in the stream file including data not yet written
+    private long position = 0;
+
+    // The maximum time between commits
+    private long commitInterval = 0;
+
+    // The time of the last commit
+    private long lastCommitTime = 0;
+
+    // When to force data to disk
+    private int durability = 0;
+
+    // Commits the batch if it has been waiting for too long
+    private TimerTask commitTask = null;
+
+    // True if the writer has been closed
+    private boolean closed = false;
+
+    /**
+     * Creates a new StreamArchiveWriter with the default settings
+     * @param streamFile The file to write the stream to
+     * @param indexFile The file to write the index to
+     * @throws IOException
+     */
+    public StreamArchiveWriter(File streamFile, File indexFile)
+            throws IOException {
+        this(streamFile, indexFile, null);
+    }
+
+    /**
+     * Creates a new StreamArchiveWriter with the default settings
+     * @param streamFile The file to write the stream to
+     * @param indexFile The file to write the index to
+     * @param keyFrameIndexFile The file to write the key frame index to, or
+     *     null if key frames are not to be indexed
+     * @throws IOException
+     */
+    public StreamArchiveWriter(File streamFile, File indexFile,
+            File keyFrameIndexFile) throws IOException {
+        this(streamFile, indexFile, keyFrameIndexFile, DEFAULT_BATCH_SIZE,
+                DEFAULT_COMMIT_INTERVAL, DURABILITY_ON_CLOSE);
+    }
+
+    /**
+     * Creates a new StreamArchiveWriter
+     * @param streamFile The file to write the stream to
+     * @param indexFile The file to write the index to
+     * @param batchSize The number of bytes of stream data to gather before
+     *     committing
+     * @param commitInterval The maximum time in milliseconds between commits
+     * @param durability When to force data to disk; one of DURABILITY_NONE,
+     *     DURABILITY_ON_CLOSE or DURABILITY_ON_COMMIT
+     * @throws IOException
+     */
+    public StreamArchiveWriter(File streamFile, File indexFile, int batchSize,
+            long commitInterval, int durability) throws IOException {
+        this(streamFile, indexFile, null, batchSize, commitInterval,
+                durability);
+    }
+
+    /**
+     * Creates a new StreamArchiveWriter
+     * @param streamFile The file to write the stream to
+     * @param indexFile The file to write the index to
+     * @param keyFrameIndexFile The file to write the key frame index to, or
+     *     null if key frames are not to be indexed
+     * @param batchSize The number of bytes of stream data to gather before
+     *     committing
+     * @param commitInterval The maximum time in milliseconds between commits
+     * @param durability When to force data to disk; one of DURABILITY_NONE,
+     *     DURABILITY_ON_CLOSE or DURABILITY_ON_COMMIT
+     * @throws IOException
+     */
+    public StreamArchiveWriter(File streamFile, File indexFile,
+            File keyFrameIndexFile, int batchSize, long commitInterval,
+            int durability) throws IOException {
+        if ((durability != DURABILITY_NONE)
+                && (durability != DURABILITY_ON_CLOSE)
+                && (durability != DURABILITY_ON_COMMIT)) {
+            throw new IllegalArgumentException("Unknown durability "
+                    + durability);
+        }
+        this.commitInterval = commitInterval;
+        this.durability = durability;
+        streamChannel = new FileOutputStream(streamFile, true).getChannel();
+        indexChannel = new FileOutputStream(indexFile, true).getChannel();
+        streamBatch = ByteBuffer.allocateDirect(
+                Math.max(batchSize, FILE_HEADER_SIZE));
+        indexBatch = ByteBuffer.allocateDirect(INDEX_BATCH_SIZE);
+        if (keyFrameIndexFile != null) {
+            keyFrameChannel = new FileOutputStream(
+                    keyFrameIndexFile, true).getChannel();
+            keyFrameBatch = ByteBuffer.allocate(KEY_FRAME_BATCH_SIZE);
+        }
+        position = streamChannel.position();
+        lastCommitTime = System.currentTimeMillis();
+
+        if (commitInterval > 0) {
+            commitTask = new TimerTask() {
+                public void run() {
+                    try {
+                        commitIfDue();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            COMMIT_TIMER.schedule(commitTask, commitInterval, commitInterval);
+        }
+    }
+
+    /**
+     * Writes the header of the stream file
+     * @param startTime The start time of the stream in milliseconds
+     * @throws IOException
+     */
+    public synchronized void writeFileHeader(long startTime)
+            throws IOException {
+        long seconds = (startTime / MS_PER_SEC);
+        long uSeconds = ((startTime - (seconds * MS_PER_SEC)) * MS_PER_SEC);
+        ensureSpace(streamBatch, FILE_HEADER_SIZE);
+        streamBatch.putInt((int) seconds);
+        streamBatch.putInt((int) uSeconds);
+        for (int i = 0; i < BYTES_PER_ADDRESS; i++) {
+            streamBatch.put((byte) 0);
+        }
+        streamBatch.putShort((short) 0);
+        position += FILE_HEADER_SIZE;
+    }
+
+    /**
+     * Adds an entry to the index pointing at the current stream position
+     * @param offset The offset of the next packet in milliseconds
+     * @throws IOException
+     */
+    public synchronized void writeIndex(long offset) throws IOException {
+        ensureSpace(indexBatch, INDEX_ENTRY_SIZE);
+        indexBatch.putLong(offset);
+        indexBatch.putLong(position);
+    }
+
+    /**
+     * Adds an entry to the key frame index.  This is ignored if key frames
+     * are not being indexed.
+     * @param offset The offset of the key frame in milliseconds
+     * @param position The position of the first packet of the key frame in
+     *     the stream file
+     * @throws IOException
+     */
+    public synchronized void writeKeyFrameIndex(long offset, long position)
+            throws IOException {
+        if (keyFrameBatch == null) {
+            return;
+        }
+        ensureSpace(keyFrameBatch, INDEX_ENTRY_SIZE);
+        keyFrameBatch.putLong(offset);
+        keyFrameBatch.putLong(position);
+    }
+
+    /**
+     * Writes a packet to the stream
+     * @param type The type of the packet (RTP or RTCP)
+     * @param offset The offset of the packet in milliseconds
+     * @param data The packet data
+     * @param dataOffset The offset of the packet in the data
+     * @param length The length of the packet
+     * @throws IOException
+     */
+    public synchronized void writePacket(int type, long offset, byte[] data,
+            int dataOffset, int length) throws IOException {
+        ensureSpace(streamBatch, PACKET_HEADER_SIZE);
+        streamBatch.putShort((short) length);
+        streamBatch.putShort((short) type);
+        streamBatch.putInt((int) offset);
+        if (length <= streamBatch.remaining()) {
+            streamBatch.put(data, dataOffset, length);
+        } else {
+            commit();
+            if (length <= streamBatch.remaining()) {
+                streamBatch.put(data, dataOffset, length);
+            } else {
+                writeFully(streamChannel,
+                        ByteBuffer.wrap(data, dataOffset, length));
+            }
+        }
+        position += PACKET_HEADER_SIZE + length;
+        if ((System.currentTimeMillis() - lastCommitTime) >= commitInterval) {
+            commit();
+        }
+    }
+
+    /**
+     * Gets the position in the stream file, including data not yet committed
+     * @return The position in bytes
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Writes any batched data to the files.  The stream data is written
+     * before the index data so that the indexes never point beyond the end
+     * of the stream on disk.
+     * @throws IOException
+     */
+    public synchronized void commit() throws IOException {
+        if (closed) {
+            return;
+        }
+        streamBatch.flip();
+        writeFully(streamChannel, streamBatch);
+        streamBatch.clear();
+        indexBatch.flip();
+        writeFully(indexChannel, indexBatch);
+        indexBatch.clear();
+        if (keyFrameBatch != null) {
+            keyFrameBatch.flip();
+            writeFully(keyFrameChannel, keyFrameBatch);
+            keyFrameBatch.clear();
+        }
+        if (durability == DURABILITY_ON_COMMIT) {
+            streamChannel.force(false);
+            indexChannel.force(false);
+            if (keyFrameChannel != null) {
+                keyFrameChannel.force(false);
+            }
+        }
+        lastCommitTime = System.currentTimeMillis();
+    }
+
+    // Commits the batch if the commit interval has passed
+    private synchronized void commitIfDue() throws IOException {
+        if ((System.currentTimeMillis() - lastCommitTime) >= commitInterval) {
+            commit();
+        }
+    }
+
+    /**
+     * Commits any batched data and closes the files
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (commitTask != null) {
+            commitTask.cancel();
+        }
+        try {
+            commit();
+            if (durability != DURABILITY_NONE) {
+                streamChannel.force(false);
+                indexChannel.force(false);
+                if (keyFrameChannel != null) {
+                    keyFrameChannel.force(false);
+                }
+            }
+        } finally {
+            closed = true;
+            streamChannel.close();
+            indexChannel.close();
+            if (keyFrameChannel != null) {
+                keyFrameChannel.close();
+            }
+        }
+    }
+
+    // Commits the batch if there is not enough space in the buffer
+    private void ensureSpace(ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            commit();
+        }
+    }
+
+    private void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
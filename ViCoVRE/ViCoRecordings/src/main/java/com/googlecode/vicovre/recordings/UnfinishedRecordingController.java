@@ -92,6 +92,14 @@ public class UnfinishedRecordingController
     private HashMap<UnfinishedRecording, Timer> stopTimers =
         new HashMap<UnfinishedRecording, Timer>();
 
+    private int packetQueueCapacity = PacketRing.DEFAULT_CAPACITY;
+
+    private int packetQueueOverflowPolicy = PacketRing.OVERFLOW_DROP_OLDEST;
+
+    private int writerThreads = RecordArchiveManager.DEFAULT_WORKERS;
+
+    private int archiveDurability = StreamArchiveWriter.DURABILITY_ON_CLOSE;
+
     private class StartRecording extends TimerTask {
 
         private UnfinishedRecording recording = null;
@@ -128,6 +136,40 @@ public class UnfinishedRecordingController
         database.addUnfinishedRecordingListener(this);
     }
 
+    /**
+     * Sets the number of packets each recording can queue before writing
+     * @param packetQueueCapacity The number of packets
+     */
+    public void setPacketQueueCapacity(int packetQueueCapacity) {
+        this.packetQueueCapacity = packetQueueCapacity;
+    }
+
+    /**
+     * Sets what happens when the packet queue of a recording is full
+     * @param packetQueueOverflowPolicy PacketRing.OVERFLOW_DROP_OLDEST or
+     *     PacketRing.OVERFLOW_BLOCK
+     */
+    public void setPacketQueueOverflowPolicy(int packetQueueOverflowPolicy) {
+        this.packetQueueOverflowPolicy = packetQueueOverflowPolicy;
+    }
+
+    /**
+     * Sets the number of threads each recording uses to write its streams
+     * @param writerThreads The number of threads
+     */
+    public void setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * Sets when the streams of a recording are forced to disk
+     * @param archiveDurability StreamArchiveWriter.DURABILITY_NONE,
+     *     DURABILITY_ON_CLOSE or DURABILITY_ON_COMMIT
+     */
+    public void setArchiveDurability(int archiveDurability) {
+        this.archiveDurability = archiveDurability;
+    }
+
     public void startRecording(UnfinishedRecording recording) {
         Timer startTimer = startTimers.remove(recording);
         if (startTimer != null) {
@@ -140,7 +182,9 @@ public class UnfinishedRecordingController
         File directory = new File(database.getFile(recording.getFolder()), id);
         RecordArchiveManager manager = new RecordArchiveManager(
                 layoutRepository, typeRepository,
-                recording.getFolder(), id, directory);
+                recording.getFolder(), id, directory,
+                packetQueueCapacity, packetQueueOverflowPolicy,
+                writerThreads, archiveDurability);
         managers.put(recording, manager);
         try {
             NetworkLocation[] addrs = recording.getAddresses();
@@ -134,9 +134,7 @@ public class AGVCRWriter {
             for (int i = 0; i < readers.length; i++) {
                 while ((readers[i].getTimestamp() == minTimestamp)
                         && !readerFinished[i]) {
-                    Buffer buffer = readers[i].getBuffer();
-                    Buffer clone = (Buffer) buffer.clone();
-                    buffers.add(clone);
+                    buffers.add(copyPacket(readers[i].getBuffer()));
                     indices.add(i);
                     rtpTypes.add(streams[i].getRtpType().getId());
                     realTimestamps.add(readers[i].getRealTimestamp());
@@ -322,6 +320,23 @@ public class AGVCRWriter {
         return position + noPackets;
     }
 
+    // Copies the packet of a buffer; the data of the buffer is the window
+    // that the reader reads ahead into, so only the packet itself is copied
+    private Buffer copyPacket(Buffer buffer) {
+        byte[] data = new byte[buffer.getLength()];
+        System.arraycopy(buffer.getData(), buffer.getOffset(), data, 0,
+                data.length);
+        Buffer copy = new Buffer();
+        copy.setData(data);
+        copy.setOffset(0);
+        copy.setLength(data.length);
+        copy.setFormat(buffer.getFormat());
+        copy.setFlags(buffer.getFlags());
+        copy.setTimeStamp(buffer.getTimeStamp());
+        copy.setSequenceNumber(buffer.getSequenceNumber());
+        return copy;
+    }
+
     private void writeFileHeader(long minStartTime)
             throws IOException {
         out.writeByte(4); // VERSION
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.play;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Vector;
+
+import javax.media.Buffer;
+import javax.media.Multiplexer;
+import javax.media.PlugIn;
+import javax.media.PlugInManager;
+import javax.media.ResourceUnavailableException;
+import javax.media.Time;
+import javax.media.format.UnsupportedFormatException;
+import javax.media.protocol.ContentDescriptor;
+
+import com.googlecode.vicovre.codecs.ffmpeg.audio.AudioMixer;
+import com.googlecode.vicovre.media.MemeticFileReader;
+import com.googlecode.vicovre.media.controls.SetDurationControl;
+import com.googlecode.vicovre.media.processor.OutputStreamDataSink;
+import com.googlecode.vicovre.media.processor.SimpleProcessor;
+import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
+
+/**
+ * Extracts audio alone from Memetic streams.  Unlike VideoExtractor, there
+ * is nothing to interleave, so the mixed audio is encoded and multiplexed
+ * in the calling thread as fast as it can be generated.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class AudioExtractor {
+
+    private Multiplexer multiplexer = null;
+
+    private AudioMixer audioMixer = null;
+
+    private SimpleProcessor processor = null;
+
+    private long audioOffset = 0;
+
+    // The timestamp of the last audio sent to the multiplexer in ns
+    private volatile long audioTimestamp = 0;
+
+    // The timestamp at which the transfer will end in ns
+    private volatile long endTimestamp = 0;
+
+    /**
+     * Creates a new AudioExtractor
+     *
+     * @param contentType The contentType of the output
+     * @param audioFilenames The files from which to extract audio
+     * @param syncFilenames The files that should be synched with
+     * @param rtpTypeRepository The RTP Type Repository
+     * @throws IOException
+     * @throws UnsupportedFormatException
+     * @throws ResourceUnavailableException
+     */
+    public AudioExtractor(String contentType, String[] audioFilenames,
+            String[] syncFilenames, RtpTypeRepository rtpTypeRepository)
+            throws IOException, UnsupportedFormatException,
+            ResourceUnavailableException {
+
+        Vector<?> muxers = PlugInManager.getPlugInList(null,
+                new ContentDescriptor(contentType),
+                PlugInManager.MULTIPLEXER);
+        if (muxers.size() == 0) {
+            throw new UnsupportedFormatException(
+                    "No muxer found for content type " + contentType,
+                    new ContentDescriptor(contentType));
+        }
+        String muxerClassName = (String) muxers.get(0);
+        try {
+            Class<?> muxerClass = Class.forName(muxerClassName);
+            multiplexer = (Multiplexer) muxerClass.newInstance();
+            multiplexer.setContentDescriptor(
+                    new ContentDescriptor(contentType));
+        } catch (Exception e) {
+            throw new UnsupportedFormatException(e.getMessage(),
+                    new ContentDescriptor(contentType));
+        }
+        multiplexer.setNumTracks(1);
+
+        MemeticFileReader[] audioReaders = new MemeticFileReader[0];
+        if (audioFilenames != null) {
+            audioReaders = new MemeticFileReader[audioFilenames.length];
+            for (int i = 0; i < audioFilenames.length; i++) {
+                audioReaders[i] = new MemeticFileReader(audioFilenames[i],
+                        rtpTypeRepository);
+            }
+        }
+        audioMixer = new AudioMixer(audioReaders);
+        processor = new SimpleProcessor(audioMixer.getFormat(), multiplexer,
+                0);
+
+        long earliestStart = audioMixer.getStartTime();
+        if (syncFilenames != null) {
+            for (int i = 0; i < syncFilenames.length; i++) {
+                MemeticFileReader sync =
+                    new MemeticFileReader(syncFilenames[i], rtpTypeRepository);
+                if (sync.getStartTime() < earliestStart) {
+                    earliestStart = sync.getStartTime();
+                }
+                sync.close();
+            }
+        }
+        audioOffset = (audioMixer.getStartTime() - earliestStart) * 1000000L;
+    }
+
+    public void setAutoGain(boolean autoGain) {
+        audioMixer.setAutoGain(autoGain);
+    }
+
+    /**
+     * Gets a control of the multiplexer, e.g. to change the output
+     * @param className The class name of the control
+     * @return The control, or null if the multiplexer does not have it
+     */
+    public Object getControl(String className) {
+        return multiplexer.getControl(className);
+    }
+
+    /**
+     * Gets the amount of audio generated so far
+     * @return The time of the audio in milliseconds
+     */
+    public long getAudioTimeGenerated() {
+        return audioTimestamp / 1000000;
+    }
+
+    /**
+     * Gets how far through the transfer the generation is
+     * @return The fraction of the transfer generated, between 0 and 1
+     */
+    public double getProgress() {
+        if (endTimestamp <= 0) {
+            return 0;
+        }
+        return Math.min(1.0, (double) audioTimestamp / endTimestamp);
+    }
+
+    /**
+     * Transfers the data read to an output stream (all times in milliseconds)
+     * @param outputStream The outputstream to write to
+     * @param startOffset The offset of the start of the audio in the
+     *                    recording
+     * @param offset The offset from startOffset to start from
+     * @param duration The duration of the audio from offset
+     * @throws IOException
+     */
+    public void transferToStream(OutputStream outputStream, long startOffset,
+            long offset, long duration) throws IOException {
+        SetDurationControl setDurationControl = (SetDurationControl)
+            multiplexer.getControl(SetDurationControl.class.getName());
+        if (setDurationControl != null) {
+            setDurationControl.setOffset(new Time(offset * 1000000L));
+            setDurationControl.setDuration(new Time(duration * 1000000L));
+        }
+        OutputStreamDataSink dataSink = new OutputStreamDataSink(
+                multiplexer.getDataOutput(), 0, outputStream);
+        dataSink.start();
+
+        endTimestamp = duration * 1000000L;
+        audioMixer.streamSeek(offset - (audioOffset / 1000000L)
+                + startOffset);
+        long audioOffsetShift =
+            (audioMixer.getOffset() - offset - startOffset) * 1000000;
+        audioMixer.setTimestampOffset(audioOffset + audioOffsetShift);
+
+        try {
+            while (!dataSink.isDone() && audioMixer.readNextBuffer()) {
+                Buffer buffer = audioMixer.getBuffer();
+                long timestamp = buffer.getTimeStamp();
+                if (timestamp > endTimestamp) {
+                    break;
+                }
+                buffer.setTimeStamp(timestamp + (offset * 1000000L));
+                if (processor.process(buffer)
+                        == PlugIn.BUFFER_PROCESSED_FAILED) {
+                    throw new IOException("Error encoding audio");
+                }
+                audioTimestamp = timestamp;
+            }
+        } finally {
+            audioMixer.close();
+            multiplexer.close();
+            processor.close();
+        }
+        while (!dataSink.isDone()) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                // Do Nothing
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.play;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of finished downloads on disk.  Each file is named after a hash of
+ * the recording directory and a hash of everything that went into generating
+ * it, so a download that has been generated before can be sent again
+ * directly.  The least recently used files are deleted when the cache
+ * grows over its quota.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class DownloadCache {
+
+    /**
+     * The default maximum size of the cache in bytes
+     */
+    public static final long DEFAULT_QUOTA = 2L * 1024 * 1024 * 1024;
+
+    private static final String TEMP_PREFIX = "download";
+
+    private static final String TEMP_SUFFIX = ".part";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private File directory = null;
+
+    private long quota = 0;
+
+    private long size = 0;
+
+    // The lengths of the cached files, least recently used first
+    private LinkedHashMap<String, Long> entries =
+        new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /**
+     * Creates a new DownloadCache
+     * @param directory The directory to store the files in
+     * @param quota The maximum size of the files in bytes
+     */
+    public DownloadCache(File directory, long quota) {
+        this.directory = directory;
+        this.quota = quota;
+        directory.mkdirs();
+
+        // Pick up the files from before, oldest first
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    long diff = f1.lastModified() - f2.lastModified();
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    file.delete();
+                } else if (file.isFile()) {
+                    entries.put(file.getName(), file.length());
+                    size += file.length();
+                }
+            }
+            evict(0);
+        }
+    }
+
+    private static String hash(String text) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest(text.getBytes("UTF-8"));
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+                hex[(i * 2) + 1] = HEX[hash[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String getPrefix(File recordingDirectory) {
+        return hash(recordingDirectory.getAbsolutePath()) + "-";
+    }
+
+    /**
+     * Gets the key of a download
+     * @param recordingDirectory The directory of the recording
+     * @param description A description of everything used to generate the
+     *                    download
+     * @return The key
+     */
+    public static String getKey(File recordingDirectory, String description) {
+        return getPrefix(recordingDirectory) + hash(description);
+    }
+
+    /**
+     * Gets a cached download
+     * @param key The key of the download
+     * @return The file, or null if the download is not cached
+     */
+    public synchronized File get(String key) {
+        Long length = entries.get(key);
+        if (length == null) {
+            return null;
+        }
+        File file = new File(directory, key);
+        if (!file.isFile()) {
+            entries.remove(key);
+            size -= length;
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Creates a file to generate a download into
+     * @return The file
+     * @throws IOException
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, directory);
+    }
+
+    /**
+     * Adds a generated download to the cache.  The file is moved into the
+     * cache, or deleted if it cannot be cached.
+     * @param key The key of the download
+     * @param tempFile The file created by createTempFile holding the download
+     */
+    public synchronized void put(String key, File tempFile) {
+        long length = tempFile.length();
+        if (entries.containsKey(key) || (length > quota)) {
+            tempFile.delete();
+            return;
+        }
+        evict(length);
+        File file = new File(directory, key);
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return;
+        }
+        entries.put(key, length);
+        size += length;
+    }
+
+    /**
+     * Removes all the downloads of a recording
+     * @param recordingDirectory The directory of the recording
+     */
+    public synchronized void invalidate(File recordingDirectory) {
+        String prefix = getPrefix(recordingDirectory);
+        Iterator<Map.Entry<String, Long>> iterator =
+            entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                size -= entry.getValue();
+                new File(directory, entry.getKey()).delete();
+                iterator.remove();
+            }
+        }
+    }
+
+    // Deletes the least recently used files until there is enough space
+    private void evict(long space) {
+        Iterator<Map.Entry<String, Long>> iterator =
+            entries.entrySet().iterator();
+        while (((size + space) > quota) && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            size -= entry.getValue();
+            new File(directory, entry.getKey()).delete();
+            iterator.remove();
+        }
+    }
+}
@@ -36,13 +36,19 @@ import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.List;
 
+import javax.media.Time;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -51,14 +57,13 @@ import org.springframework.web.servlet.mvc.Controller;
 import org.xml.sax.SAXException;
 
 import com.googlecode.vicovre.media.Misc;
+import com.googlecode.vicovre.media.controls.FragmentControl;
 import com.googlecode.vicovre.recordings.Recording;
 import com.googlecode.vicovre.recordings.ReplayLayout;
-import com.googlecode.vicovre.recordings.ReplayLayoutPosition;
 import com.googlecode.vicovre.recordings.Stream;
 import com.googlecode.vicovre.recordings.db.RecordingDatabase;
+import com.googlecode.vicovre.recordings.db.insecure.RecordingListener;
 import com.googlecode.vicovre.repositories.layout.EditableLayoutRepository;
-import com.googlecode.vicovre.repositories.layout.Layout;
-import com.googlecode.vicovre.repositories.layout.LayoutPosition;
 import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
 import com.googlecode.vicovre.security.UnauthorizedException;
 import com.googlecode.vicovre.security.db.SecurityDatabase;
@@ -68,9 +73,10 @@ import com.sun.jersey.api.json.JSONConfiguration;
 import com.sun.jersey.api.json.JSONJAXBContext;
 import com.sun.jersey.api.json.JSONMarshaller;
 
-public class DownloadRecordingController implements Controller {
+public class DownloadRecordingController implements Controller,
+        RecordingListener {
 
-    private static final HashMap<String, String> FORMAT_EXT_MAP =
+    static final HashMap<String, String> FORMAT_EXT_MAP =
         new HashMap<String, String>();
     static {
         FORMAT_EXT_MAP.put("audio/mpeg", "mp3");
@@ -88,6 +94,13 @@ public class DownloadRecordingController implements Controller {
 
     private RtpTypeRepository typeRepository = null;
 
+    private File cacheDirectory = new File(System.getProperty("java.io.tmpdir"),
+            "vicovre-downloads");
+
+    private long cacheQuota = DownloadCache.DEFAULT_QUOTA;
+
+    private DownloadCache cache = null;
+
     public DownloadRecordingController(RecordingDatabase database,
             SecurityDatabase securityDatabase,
             EditableLayoutRepository layoutRepository,
@@ -99,6 +112,139 @@ public class DownloadRecordingController implements Controller {
         this.securityDatabase = securityDatabase;
         this.layoutRepository = layoutRepository;
         this.typeRepository = typeRepository;
+        database.addRecordingListener(this);
+    }
+
+    /**
+     * Sets the directory in which generated downloads are cached
+     * @param cacheDirectory The directory
+     */
+    public void setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = new File(cacheDirectory);
+    }
+
+    /**
+     * Sets the maximum size of the download cache
+     * @param cacheQuota The size in bytes
+     */
+    public void setCacheQuota(long cacheQuota) {
+        this.cacheQuota = cacheQuota;
+    }
+
+    private synchronized DownloadCache getCache() {
+        if (cache == null) {
+            cache = new DownloadCache(cacheDirectory, cacheQuota);
+        }
+        return cache;
+    }
+
+    // Sends a cached download, honouring a single byte range if requested
+    private void sendFile(File file, HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        long length = file.length();
+        long first = 0;
+        long last = length - 1;
+        response.setHeader("Accept-Ranges", "bytes");
+
+        String range = request.getHeader("Range");
+        if ((range != null) && range.startsWith("bytes=")
+                && (range.indexOf(',') == -1)) {
+            String spec = range.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            try {
+                if (dash == 0) {
+                    first = Math.max(0,
+                            length - Long.parseLong(spec.substring(1)));
+                } else if (dash > 0) {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash < (spec.length() - 1)) {
+                        last = Math.min(last,
+                                Long.parseLong(spec.substring(dash + 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                first = 0;
+                last = length - 1;
+                range = null;
+            }
+            if ((range != null) && ((first > last) || (first >= length))) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(
+                        HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (range != null) {
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range",
+                        "bytes " + first + "-" + last + "/" + length);
+            }
+        } else {
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+        response.setHeader("Content-Length", String.valueOf(last - first + 1));
+
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            WritableByteChannel output = Channels.newChannel(
+                    response.getOutputStream());
+            long position = first;
+            long remaining = (last - first) + 1;
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, output);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    // Determines if a range is requested that does not start at the start
+    // of the file; such a range needs the whole file to be generated first
+    private boolean isMidFileRange(HttpServletRequest request) {
+        String range = request.getHeader("Range");
+        if ((range == null) || !range.startsWith("bytes=")) {
+            return false;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash <= 0) {
+            return dash == 0;
+        }
+        try {
+            return Long.parseLong(spec.substring(0, dash).trim()) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Gets a stream that writes to the output, keeping a copy for the cache
+    private OutputStream getCopyingStream(final OutputStream output,
+            final OutputStream copy, final boolean[] failed) {
+        return new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len)
+                    throws IOException {
+                try {
+                    copy.write(b, off, len);
+                    output.write(b, off, len);
+                } catch (IOException e) {
+                    failed[0] = true;
+                    throw e;
+                }
+            }
+
+            public void flush() throws IOException {
+                output.flush();
+            }
+        };
     }
 
     private long getMaxDuration(Recording recording, String[] audioStreams,
@@ -156,34 +302,21 @@ public class DownloadRecordingController implements Controller {
             String strt = request.getParameter("start");
             String dur = request.getParameter("duration");
 
+            Rectangle[] rects = null;
+            double[] opacities = null;
             if ((videoStreams == null) && (audioStreams == null)
                     && (syncStreams == null)) {
-                ReplayLayout replayLayout = recording.getReplayLayouts().get(0);
-                if (replayLayout != null) {
-                    audioStreams = replayLayout.getAudioStreamIds().toArray(
-                            new String[0]);
+                List<ReplayLayout> replayLayouts =
+                    recording.getReplayLayouts();
+                if ((replayLayouts != null) && !replayLayouts.isEmpty()) {
+                    ReplayLayout replayLayout = replayLayouts.get(0);
+                    LayoutStreams streams = new LayoutStreams(recording,
+                            replayLayout, layoutRepository);
+                    videoStreams = streams.getVideoStreams();
+                    rects = streams.getPositions();
+                    opacities = streams.getOpacities();
+                    audioStreams = streams.getAudioStreams();
                     syncStreams = new String[0];
-                    List<ReplayLayoutPosition> positions =
-                        replayLayout.getLayoutPositions();
-                    videoStreams = new String[positions.size()];
-                    widths = new String[positions.size()];
-                    heights = new String[positions.size()];
-                    xs = new String[positions.size()];
-                    ys = new String[positions.size()];
-                    opacity = new String[positions.size()];
-                    Layout layout = layoutRepository.findLayout(
-                            replayLayout.getName());
-                    for (int i = 0; i < positions.size(); i++) {
-                        ReplayLayoutPosition pos = positions.get(i);
-                        LayoutPosition layoutPos = layout.findStreamPosition(
-                                pos.getName());
-                        videoStreams[i] = pos.getStreamId();
-                        widths[i] = String.valueOf(layoutPos.getWidth());
-                        heights[i] = String.valueOf(layoutPos.getHeight());
-                        xs[i] = String.valueOf(layoutPos.getX());
-                        ys[i] = String.valueOf(layoutPos.getY());
-                        opacity[i] = String.valueOf(layoutPos.getOpacity());
-                    }
                     strt = String.valueOf(replayLayout.getTime());
                     dur = String.valueOf(replayLayout.getEndTime()
                             - replayLayout.getTime());
@@ -225,16 +358,20 @@ public class DownloadRecordingController implements Controller {
 
             System.err.println("Downloading, duration = " + duration + " start = " + start + " offset = " + offset);
 
-            Rectangle[] rects = new Rectangle[videoStreams.length];
-            double[] opacities = new double[videoStreams.length];
+            if (rects == null) {
+                rects = new Rectangle[videoStreams.length];
+                opacities = new double[videoStreams.length];
+                for (int i = 0; i < videoStreams.length; i++) {
+                    rects[i] = new Rectangle(
+                            Integer.parseInt(xs[i]), Integer.parseInt(ys[i]),
+                            Integer.parseInt(widths[i]),
+                            Integer.parseInt(heights[i]));
+                    opacities[i] = Double.parseDouble(opacity[i]);
+                }
+            }
             for (int i = 0; i < videoStreams.length; i++) {
                 videoStreams[i] = new File(recording.getDirectory(),
                         videoStreams[i]).getAbsolutePath();
-                rects[i] = new Rectangle(
-                        Integer.parseInt(xs[i]), Integer.parseInt(ys[i]),
-                        Integer.parseInt(widths[i]),
-                        Integer.parseInt(heights[i]));
-                opacities[i] = Double.parseDouble(opacity[i]);
             }
             for (int i = 0; i < audioStreams.length; i++) {
                 audioStreams[i] = new File(recording.getDirectory(),
@@ -279,23 +416,116 @@ public class DownloadRecordingController implements Controller {
                 agc = autoGain.equals("true");
             }
 
+            // Fragments let the download be played while it is streamed
+            String fragment = request.getParameter("fragment");
+            long fragmentDuration = 0;
+            if (fragment != null) {
+                double fragmentSeconds = 0;
+                try {
+                    fragmentSeconds = Double.parseDouble(fragment);
+                } catch (NumberFormatException e) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "Invalid fragment " + fragment);
+                    return;
+                }
+                if (!(fragmentSeconds >= 0)
+                        || Double.isInfinite(fragmentSeconds)) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "Invalid fragment " + fragment);
+                    return;
+                }
+                fragmentDuration = (long) (fragmentSeconds * 1000);
+            }
+
+            // Describe everything that affects the output, including the
+            // state of the stream files, for the cache
+            StringBuilder description = new StringBuilder();
+            description.append(format + ";" + start + ";" + offset + ";"
+                    + duration + ";" + backgroundColour + ";" + agc + ";"
+                    + outSize + ";" + fragmentDuration + ";");
+            LayoutStreams.describeFiles(description, videoStreams);
+            for (int i = 0; i < videoStreams.length; i++) {
+                description.append(rects[i] + ";" + opacities[i] + ";");
+            }
+            LayoutStreams.describeFiles(description, audioStreams);
+            LayoutStreams.describeFiles(description, syncStreams);
+            DownloadCache cache = getCache();
+            String key = DownloadCache.getKey(recording.getDirectory(),
+                    description.toString());
+
+            response.setContentType(format);
+            response.setHeader("Content-Disposition",
+                    "attachment; filename=\""
+                    + recording.getMetadata().getPrimaryValue()
+                    + "." + FORMAT_EXT_MAP.get(format) + "\";");
+
+            File cachedFile = cache.get(key);
+            if (cachedFile != null) {
+                try {
+                    sendFile(cachedFile, request, response);
+                } catch (IOException e) {
+                    System.err.println("User disconnected");
+                }
+                return;
+            }
+
+            File tempFile = cache.createTempFile();
+            FileOutputStream tempOutput = new FileOutputStream(tempFile);
+            final boolean[] failed = new boolean[]{false};
+            boolean complete = false;
             try {
-                VideoExtractor extractor = new VideoExtractor(format,
-                        videoStreams, rects, opacities, audioStreams,
-                        syncStreams, backgroundColour, typeRepository, outSize);
-                extractor.setAutoGain(agc);
-                extractor.setGenerationSpeed(generationSpeed);
-                response.setContentType(format);
-                response.setStatus(HttpServletResponse.SC_OK);
-                response.setHeader("Content-Disposition",
-                        "attachment; filename=\""
-                        + recording.getMetadata().getPrimaryValue()
-                        + "." + FORMAT_EXT_MAP.get(format) + "\";");
-
-                // Generate the stream
-                response.flushBuffer();
-                extractor.transferToStream(response.getOutputStream(),
-                        start, offset, duration - offset);
+                if ((videoStreams.length == 0) && format.startsWith("audio/")) {
+
+                    // Audio alone does not need the video pipeline
+                    AudioExtractor extractor = new AudioExtractor(format,
+                            audioStreams, syncStreams, typeRepository);
+                    extractor.setAutoGain(agc);
+                    if (isMidFileRange(request)) {
+
+                        // This is quick to generate, so generate it all and
+                        // then send the range requested.  A range from the
+                        // start is streamed as it is generated instead, as
+                        // players ask for one before playing anything
+                        extractor.transferToStream(tempOutput, start, offset,
+                                duration - offset);
+                        tempOutput.close();
+                        complete = true;
+                        sendFile(tempFile, request, response);
+                    } else {
+                        response.setStatus(HttpServletResponse.SC_OK);
+                        response.setHeader("Accept-Ranges", "bytes");
+                        response.flushBuffer();
+                        extractor.transferToStream(getCopyingStream(
+                                response.getOutputStream(), tempOutput,
+                                failed), start, offset, duration - offset);
+                        complete = !failed[0];
+                    }
+                } else {
+                    VideoExtractor extractor = new VideoExtractor(format,
+                            videoStreams, rects, opacities, audioStreams,
+                            syncStreams, backgroundColour, typeRepository,
+                            outSize);
+                    extractor.setAutoGain(agc);
+                    extractor.setGenerationSpeed(generationSpeed);
+                    if (fragmentDuration > 0) {
+                        FragmentControl fragmentControl = (FragmentControl)
+                            extractor.getControl(
+                                    FragmentControl.class.getName());
+                        if (fragmentControl != null) {
+                            fragmentControl.setFragmented(true);
+                            fragmentControl.setFragmentDuration(
+                                    new Time(fragmentDuration * 1000000L));
+                        }
+                    }
+                    response.setStatus(HttpServletResponse.SC_OK);
+
+                    // Generate the stream, keeping a copy for the cache
+                    response.flushBuffer();
+                    extractor.transferToStream(getCopyingStream(
+                            response.getOutputStream(), tempOutput, failed),
+                            start, offset, duration - offset);
+                    complete = !failed[0];
+                }
             } catch (EOFException e) {
                 System.err.println("User disconnected");
             } catch (SocketException e) {
@@ -309,6 +539,13 @@ public class DownloadRecordingController implements Controller {
                     e.printStackTrace();
                     throw new IOException(e.getMessage());
                 }
+            } finally {
+                tempOutput.close();
+                if (complete) {
+                    cache.put(key, tempFile);
+                } else {
+                    tempFile.delete();
+                }
             }
         }
     }
@@ -369,4 +606,28 @@ public class DownloadRecordingController implements Controller {
         return modelAndView;
     }
 
+    public void recordingAdded(Recording recording) {
+        // Does Nothing
+    }
+
+    public void recordingMetadataUpdated(Recording recording) {
+        // Does Nothing
+    }
+
+    public void recordingLifetimeUpdated(Recording recording) {
+        // Does Nothing
+    }
+
+    public void recordingLayoutsUpdated(Recording recording) {
+        getCache().invalidate(recording.getDirectory());
+    }
+
+    public void recordingDeleted(Recording recording) {
+        getCache().invalidate(recording.getDirectory());
+    }
+
+    public void recordingMoved(Recording oldRecording, Recording newRecording) {
+        getCache().invalidate(oldRecording.getDirectory());
+    }
+
 }
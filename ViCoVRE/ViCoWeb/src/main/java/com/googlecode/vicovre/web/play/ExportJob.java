@@ -0,0 +1,301 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.play;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.googlecode.vicovre.recordings.Recording;
+import com.googlecode.vicovre.recordings.ReplayLayout;
+import com.googlecode.vicovre.repositories.layout.LayoutRepository;
+import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
+
+/**
+ * An export of a recording to a file, run by the ExportService
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class ExportJob {
+
+    /**
+     * The status of a job waiting to be run
+     */
+    public static final String QUEUED = "queued";
+
+    /**
+     * The status of a job that is running
+     */
+    public static final String RUNNING = "running";
+
+    /**
+     * The status of a job that has finished successfully
+     */
+    public static final String COMPLETED = "completed";
+
+    /**
+     * The status of a job that has failed
+     */
+    public static final String FAILED = "failed";
+
+    private static final String TEMP_SUFFIX = ".part";
+
+    private String id = null;
+
+    // The user who submitted the job, or null if not submitted by a user
+    private String owner = null;
+
+    private String folder = null;
+
+    private String recordingId = null;
+
+    private String format = null;
+
+    private File outputFile = null;
+
+    private String[] videoFiles = null;
+
+    private Rectangle[] positions = null;
+
+    private double[] opacities = null;
+
+    private String[] audioFiles = null;
+
+    private long start = 0;
+
+    private long duration = 0;
+
+    private String status = QUEUED;
+
+    private String error = null;
+
+    private long startTime = 0;
+
+    private long endTime = 0;
+
+    private VideoExtractor extractor = null;
+
+    /**
+     * Creates a new ExportJob that exports the first layout of a recording.
+     * Everything needed from the recording is read here, so the job can be
+     * run without access to the database.
+     *
+     * @param id The id of the job
+     * @param owner The user who submitted the job, or null if none
+     * @param recording The recording to export
+     * @param layoutRepository The repository of layouts
+     * @param format The content type to export to
+     * @param outputFile The file to export to
+     * @throws IOException if the recording cannot be exported
+     */
+    public ExportJob(String id, String owner, Recording recording,
+            LayoutRepository layoutRepository, String format,
+            File outputFile) throws IOException {
+        this.id = id;
+        this.owner = owner;
+        this.folder = recording.getFolder();
+        this.recordingId = recording.getId();
+        this.format = format;
+        this.outputFile = outputFile;
+
+        List<ReplayLayout> replayLayouts = recording.getReplayLayouts();
+        if ((replayLayouts == null) || replayLayouts.isEmpty()) {
+            throw new IOException("Recording " + recordingId
+                    + " has no layout to export");
+        }
+        LayoutStreams streams = new LayoutStreams(recording,
+                replayLayouts.get(0), layoutRepository);
+        videoFiles = streams.getVideoFiles();
+        positions = streams.getPositions();
+        opacities = streams.getOpacities();
+        audioFiles = streams.getAudioFiles();
+        start = streams.getStart();
+        duration = streams.getDuration();
+    }
+
+    /**
+     * Runs the export, without pacing the generation
+     * @param typeRepository The RTP type repository
+     */
+    public void run(RtpTypeRepository typeRepository) {
+        synchronized (this) {
+            status = RUNNING;
+            startTime = System.currentTimeMillis();
+        }
+
+        File tempFile = null;
+        FileOutputStream output = null;
+        try {
+            outputFile.getParentFile().mkdirs();
+            tempFile = File.createTempFile(outputFile.getName() + ".",
+                    TEMP_SUFFIX, outputFile.getParentFile());
+            output = new FileOutputStream(tempFile);
+            VideoExtractor videoExtractor = new VideoExtractor(format,
+                    videoFiles, positions, opacities, audioFiles,
+                    new String[0], 0x000000, typeRepository, null);
+            videoExtractor.setGenerationSpeed(0);
+            synchronized (this) {
+                extractor = videoExtractor;
+            }
+            videoExtractor.transferToStream(output, start, 0, duration);
+            output.close();
+            output = null;
+            outputFile.delete();
+            if (!tempFile.renameTo(outputFile)) {
+                throw new IOException("Could not move export to "
+                        + outputFile);
+            }
+            synchronized (this) {
+                status = COMPLETED;
+            }
+        } catch (Throwable t) {
+
+            // Errors from the native codecs must fail the job, not leave it
+            // running
+            t.printStackTrace();
+            synchronized (this) {
+                status = FAILED;
+                error = t.getMessage();
+                if (error == null) {
+                    error = t.toString();
+                }
+            }
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // Do Nothing
+                }
+            }
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+            synchronized (this) {
+                endTime = System.currentTimeMillis();
+            }
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getFolder() {
+        return folder;
+    }
+
+    public String getRecordingId() {
+        return recordingId;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public synchronized String getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets the reason that the job failed
+     * @return The error message, or null if the job has not failed
+     */
+    public synchronized String getError() {
+        return error;
+    }
+
+    /**
+     * Gets the time that the job has been running for
+     * @return The time in milliseconds
+     */
+    public synchronized long getElapsedTime() {
+        if (startTime == 0) {
+            return 0;
+        }
+        if (endTime == 0) {
+            return System.currentTimeMillis() - startTime;
+        }
+        return endTime - startTime;
+    }
+
+    /**
+     * Gets how far through the export the job is
+     * @return The fraction exported, between 0 and 1
+     */
+    public synchronized double getProgress() {
+        if (status == COMPLETED) {
+            return 1.0;
+        }
+        if (extractor == null) {
+            return 0;
+        }
+        return extractor.getProgress();
+    }
+
+    /**
+     * Gets the number of video frames generated per second of running time
+     * @return The frame rate
+     */
+    public synchronized double getFramesPerSecond() {
+        long elapsed = getElapsedTime();
+        if ((extractor == null) || (elapsed == 0)) {
+            return 0;
+        }
+        return (extractor.getVideoFrameCount() * 1000.0) / elapsed;
+    }
+
+    /**
+     * Gets the number of seconds of audio generated per second of running
+     * time
+     * @return The audio rate
+     */
+    public synchronized double getAudioSecondsPerSecond() {
+        long elapsed = getElapsedTime();
+        if ((extractor == null) || (elapsed == 0)) {
+            return 0;
+        }
+        return (double) extractor.getAudioTimeGenerated() / elapsed;
+    }
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.play;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+
+import org.xml.sax.SAXException;
+
+import com.googlecode.vicovre.media.Misc;
+import com.googlecode.vicovre.recordings.Recording;
+import com.googlecode.vicovre.recordings.db.RecordingDatabase;
+import com.googlecode.vicovre.recordings.db.insecure.InsecureRecordingDatabase;
+import com.googlecode.vicovre.repositories.harvestFormat.impl.HarvestFormatRepositoryXmlImpl;
+import com.googlecode.vicovre.repositories.layout.LayoutRepository;
+import com.googlecode.vicovre.repositories.layout.impl.EditableLayoutRepositoryXmlImpl;
+import com.googlecode.vicovre.repositories.layout.impl.LayoutRepositoryXmlImpl;
+import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
+import com.googlecode.vicovre.repositories.rtptype.impl.RtpTypeRepositoryXmlImpl;
+
+/**
+ * Exports recordings to files in the background.  Jobs are queued and run by
+ * a pool of workers as fast as possible, rather than at the pace needed for
+ * streaming.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class ExportService {
+
+    /**
+     * The default number of jobs to run at once.  Each job already uses
+     * several threads, so this is less than the number of processors.
+     */
+    public static final int DEFAULT_WORKERS = Math.max(1,
+            Runtime.getRuntime().availableProcessors() / 2);
+
+    private static final long STATUS_INTERVAL = 5000;
+
+    private LayoutRepository layoutRepository = null;
+
+    private RtpTypeRepository typeRepository = null;
+
+    private File outputDirectory = null;
+
+    private LinkedList<ExportJob> queue = new LinkedList<ExportJob>();
+
+    private LinkedHashMap<String, ExportJob> jobs =
+        new LinkedHashMap<String, ExportJob>();
+
+    private long nextId = 0;
+
+    private boolean done = false;
+
+    private Worker[] workers = null;
+
+    private class Worker extends Thread {
+
+        private Worker(int index) {
+            super("ExportService Worker " + index);
+        }
+
+        public void run() {
+            ExportJob job = takeJob();
+            while (job != null) {
+                System.err.println("Exporting " + job.getFolder() + "/"
+                        + job.getRecordingId() + " to "
+                        + job.getOutputFile());
+                try {
+                    job.run(typeRepository);
+                } catch (Throwable t) {
+
+                    // Keep the worker going for the other jobs
+                    t.printStackTrace();
+                }
+                System.err.println("Export " + job.getId() + " "
+                        + job.getStatus() + " in " + job.getElapsedTime()
+                        + "ms (" + job.getFramesPerSecond() + " frames/s, "
+                        + job.getAudioSecondsPerSecond() + " audio s/s)");
+                job = takeJob();
+            }
+        }
+    }
+
+    /**
+     * Creates a new ExportService
+     * @param layoutRepository The repository of layouts
+     * @param typeRepository The RTP type repository
+     * @param outputDirectory The directory to export into
+     * @param workerCount The number of jobs to run at once
+     * @throws IOException
+     * @throws SAXException
+     */
+    public ExportService(LayoutRepository layoutRepository,
+            RtpTypeRepository typeRepository, String outputDirectory,
+            int workerCount) throws IOException, SAXException {
+        if (!Misc.isCodecsConfigured()) {
+            Misc.configureCodecs("/knownCodecs.xml");
+        }
+        this.layoutRepository = layoutRepository;
+        this.typeRepository = typeRepository;
+        this.outputDirectory = new File(outputDirectory);
+        workers = new Worker[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Creates a new ExportService with the default number of workers
+     * @param layoutRepository The repository of layouts
+     * @param typeRepository The RTP type repository
+     * @param outputDirectory The directory to export into
+     * @throws IOException
+     * @throws SAXException
+     */
+    public ExportService(LayoutRepository layoutRepository,
+            RtpTypeRepository typeRepository, String outputDirectory)
+            throws IOException, SAXException {
+        this(layoutRepository, typeRepository, outputDirectory,
+                DEFAULT_WORKERS);
+    }
+
+    private synchronized ExportJob takeJob() {
+        while (!done && queue.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Do Nothing
+            }
+        }
+        if (done) {
+            return null;
+        }
+        return queue.removeFirst();
+    }
+
+    /**
+     * Queues the export of a recording.  If the same user already has the
+     * same export queued or running, that job is returned instead.
+     * @param recording The recording to export
+     * @param format The content type to export to
+     * @param owner The user submitting the job, or null if none
+     * @return The job
+     * @throws IOException if the recording cannot be exported
+     */
+    public synchronized ExportJob submit(Recording recording, String format,
+            String owner) throws IOException {
+        String extension = DownloadRecordingController.FORMAT_EXT_MAP.get(
+                format);
+        if (extension == null) {
+            throw new IOException("Unknown export format " + format);
+        }
+        File folder = new File(outputDirectory, recording.getFolder());
+        File outputFile = new File(folder,
+                recording.getId() + "." + extension);
+        for (ExportJob job : jobs.values()) {
+            String status = job.getStatus();
+            boolean sameOwner = (owner == null) ? (job.getOwner() == null)
+                    : owner.equals(job.getOwner());
+            if (sameOwner && job.getOutputFile().equals(outputFile)
+                    && (status.equals(ExportJob.QUEUED)
+                            || status.equals(ExportJob.RUNNING))) {
+                return job;
+            }
+        }
+        String id = String.valueOf(nextId++);
+        ExportJob job = new ExportJob(id, owner, recording, layoutRepository,
+                format, outputFile);
+        jobs.put(id, job);
+        queue.addLast(job);
+        notifyAll();
+        return job;
+    }
+
+    /**
+     * Queues the export of all the recordings in a folder.  Recordings that
+     * cannot be exported are skipped, as are sub-folders that the current
+     * user cannot write to.
+     * @param database The database to get the recordings from
+     * @param folder The folder to export
+     * @param format The content type to export to
+     * @param recursive True to include the sub-folders
+     * @param owner The user submitting the jobs, or null if none
+     * @return The jobs queued
+     */
+    public List<ExportJob> submitFolder(RecordingDatabase database,
+            String folder, String format, boolean recursive, String owner) {
+        List<ExportJob> folderJobs = new Vector<ExportJob>();
+        List<Recording> recordings = database.getRecordings(folder);
+        if (recordings != null) {
+            for (Recording recording : recordings) {
+                try {
+                    folderJobs.add(submit(recording, format, owner));
+                } catch (IOException e) {
+                    System.err.println("Not exporting " + recording.getId()
+                            + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    System.err.println("Not exporting " + recording.getId()
+                            + ":");
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (recursive) {
+            List<String> subFolders = database.getSubFolders(folder);
+            if (subFolders != null) {
+                for (String subFolder : subFolders) {
+                    String path = folder + "/" + subFolder;
+                    if (database.canWriteFolder(path)) {
+                        folderJobs.addAll(submitFolder(database, path, format,
+                                true, owner));
+                    }
+                }
+            }
+        }
+        return folderJobs;
+    }
+
+    /**
+     * Gets a job
+     * @param id The id of the job
+     * @return The job or null if it doesn't exist
+     */
+    public synchronized ExportJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Gets all the jobs, in the order they were submitted
+     * @return The jobs
+     */
+    public synchronized List<ExportJob> getJobs() {
+        return new Vector<ExportJob>(jobs.values());
+    }
+
+    /**
+     * Gets the jobs submitted by a user, in the order they were submitted
+     * @param owner The user
+     * @return The jobs
+     */
+    public synchronized List<ExportJob> getJobs(String owner) {
+        List<ExportJob> ownerJobs = new Vector<ExportJob>();
+        for (ExportJob job : jobs.values()) {
+            if (owner.equals(job.getOwner())) {
+                ownerJobs.add(job);
+            }
+        }
+        return ownerJobs;
+    }
+
+    /**
+     * Removes the jobs that have completed or failed
+     */
+    public void clearFinishedJobs() {
+        clearFinishedJobs(null);
+    }
+
+    /**
+     * Removes the jobs of a user that have completed or failed
+     * @param owner The user, or null to remove the jobs of all users
+     */
+    public synchronized void clearFinishedJobs(String owner) {
+        List<ExportJob> finished = new Vector<ExportJob>();
+        for (ExportJob job : jobs.values()) {
+            String status = job.getStatus();
+            if (((owner == null) || owner.equals(job.getOwner()))
+                    && (status.equals(ExportJob.COMPLETED)
+                            || status.equals(ExportJob.FAILED))) {
+                finished.add(job);
+            }
+        }
+        for (ExportJob job : finished) {
+            jobs.remove(job.getId());
+        }
+    }
+
+    /**
+     * Waits until all the queued jobs have been run
+     */
+    public void waitForJobs() {
+        for (ExportJob job : getJobs()) {
+            while (job.getStatus().equals(ExportJob.QUEUED)
+                    || job.getStatus().equals(ExportJob.RUNNING)) {
+                try {
+                    Thread.sleep(STATUS_INTERVAL);
+                } catch (InterruptedException e) {
+                    // Do Nothing
+                }
+                if (job.getStatus().equals(ExportJob.RUNNING)) {
+                    System.err.println("Export " + job.getId() + " "
+                            + (int) (job.getProgress() * 100) + "% ("
+                            + job.getFramesPerSecond() + " frames/s, "
+                            + job.getAudioSecondsPerSecond() + " audio s/s)");
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the workers once their current jobs have finished
+     */
+    public void shutdown() {
+        synchronized (this) {
+            done = true;
+            queue.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Exports all the recordings in a folder from the command line
+     * @param args recordingDirectory layoutDirectory outputDirectory format
+     *             [folder] [workers]
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: ExportService <recordingDirectory>"
+                    + " <layoutDirectory> <outputDirectory> <format>"
+                    + " [folder] [workers]");
+            System.exit(1);
+        }
+        String folder = "";
+        if (args.length > 4) {
+            folder = args[4];
+        }
+        int workerCount = DEFAULT_WORKERS;
+        if (args.length > 5) {
+            workerCount = Integer.parseInt(args[5]);
+        }
+
+        RtpTypeRepository typeRepository =
+            new RtpTypeRepositoryXmlImpl("/rtptypes.xml");
+        LayoutRepository layoutRepository =
+            new EditableLayoutRepositoryXmlImpl(
+                    new LayoutRepositoryXmlImpl("/layouts.xml"), args[1]);
+        RecordingDatabase database = new InsecureRecordingDatabase(args[0],
+                typeRepository, layoutRepository,
+                new HarvestFormatRepositoryXmlImpl("/harvestFormats.xml"),
+                true, 0);
+
+        ExportService service = new ExportService(layoutRepository,
+                typeRepository, args[2], workerCount);
+        List<ExportJob> folderJobs = service.submitFolder(database, folder,
+                args[3], true, null);
+        System.err.println("Exporting " + folderJobs.size() + " recordings");
+        service.waitForJobs();
+        service.shutdown();
+
+        int failed = 0;
+        for (ExportJob job : folderJobs) {
+            if (job.getStatus().equals(ExportJob.FAILED)) {
+                System.err.println("Export of " + job.getFolder() + "/"
+                        + job.getRecordingId() + " failed: " + job.getError());
+                failed += 1;
+            }
+        }
+        System.exit(failed == 0 ? 0 : 2);
+    }
+}
@@ -36,6 +36,7 @@ import java.awt.Rectangle;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.SocketException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -63,6 +64,8 @@ public class FlvController implements Controller {
 
     private RecordingDatabase database = null;
 
+    private RenditionRegistry renditions = new RenditionRegistry();
+
     public FlvController(RecordingDatabase database,
             RtpTypeRepository rtpTypeRepository)
             throws IOException, SAXException {
@@ -74,6 +77,20 @@ public class FlvController implements Controller {
 
     }
 
+    /**
+     * Sets the size of the buffer shared by the viewers of each rendition
+     * @param bufferSize The size in bytes
+     */
+    public void setRenditionBufferSize(int bufferSize) {
+        renditions.setBufferSize(bufferSize);
+    }
+
+    // Adds a parameter to a rendition key
+    private void addToKey(StringBuilder key, Object value) {
+        key.append(value);
+        key.append(';');
+    }
+
     public ModelAndView handleRequest(HttpServletRequest request,
             HttpServletResponse response) throws IOException {
         String sessionId = request.getParameter("id");
@@ -167,18 +184,64 @@ public class FlvController implements Controller {
             contentType = "video/x-flv";
         }
 
+        // Viewers asking for exactly the same output share one transcode
+        StringBuilder key = new StringBuilder();
+        addToKey(key, contentType);
+        addToKey(key, path.getAbsolutePath());
+        addToKey(key, start);
+        addToKey(key, duration);
+        addToKey(key, offsetShift);
+        for (int i = 0; i < videoStreams.length; i++) {
+            addToKey(key, videoStreams[i]);
+            addToKey(key, rects[i]);
+            addToKey(key, opacities[i]);
+        }
+        addToKey(key, audioStreams.length);
+        for (int i = 0; i < audioStreams.length; i++) {
+            addToKey(key, audioStreams[i]);
+        }
+        addToKey(key, syncStreams.length);
+        for (int i = 0; i < syncStreams.length; i++) {
+            addToKey(key, syncStreams[i]);
+        }
+        addToKey(key, outSize);
+        addToKey(key, generationSpeed);
+        addToKey(key, backgroundColour);
+
+        final String fContentType = contentType;
+        final String[] fVideoStreams = videoStreams;
+        final Rectangle[] fRects = rects;
+        final double[] fOpacities = opacities;
+        final String[] fAudioStreams = audioStreams;
+        final String[] fSyncStreams = syncStreams;
+        final int fBackgroundColour = backgroundColour;
+        final Dimension fOutSize = outSize;
+        final double fGenerationSpeed = generationSpeed;
+        final long fOffsetShift = offsetShift;
+        final long fStart = start;
+        final long fDuration = duration;
+        RenditionRegistry.Viewer viewer = renditions.attach(
+                key.toString(), new RenditionRegistry.Transcoder() {
+            public void transferToStream(OutputStream output)
+                    throws Exception {
+                VideoExtractor extractor = new VideoExtractor(fContentType,
+                        fVideoStreams, fRects, fOpacities, fAudioStreams,
+                        fSyncStreams, fBackgroundColour, rtpTypeRepository,
+                        fOutSize);
+                extractor.setGenerationSpeed(fGenerationSpeed);
+                extractor.transferToStream(output, fOffsetShift, fStart,
+                        fDuration - fStart);
+            }
+        });
+
         try {
-            VideoExtractor extractor = new VideoExtractor(contentType,
-                    videoStreams, rects, opacities, audioStreams, syncStreams,
-                    backgroundColour, rtpTypeRepository, outSize);
-            extractor.setGenerationSpeed(generationSpeed);
+            viewer.waitForData();
             response.setContentType(contentType);
             response.setStatus(HttpServletResponse.SC_OK);
 
-            // Generate the stream
+            // Send the stream
             response.flushBuffer();
-            extractor.transferToStream(response.getOutputStream(),
-                    offsetShift, start, duration - start);
+            viewer.transferTo(response.getOutputStream());
         } catch (EOFException e) {
             System.err.println("User disconnected");
         } catch (SocketException e) {
@@ -192,6 +255,8 @@ public class FlvController implements Controller {
                 e.printStackTrace();
                 throw new IOException(e.getMessage());
             }
+        } finally {
+            viewer.detach();
         }
         return null;
     }
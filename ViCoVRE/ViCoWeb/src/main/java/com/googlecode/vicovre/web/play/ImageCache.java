@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.play;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of encoded images.  The most recently used images are kept in
+ * memory, backed by a larger cache on disk, so that an image can be sent
+ * again without being decoded, scaled or encoded.  Keys are made from a
+ * description of the source files and the size, so they can also be used
+ * as ETags.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class ImageCache {
+
+    /**
+     * The default maximum size of the images in memory in bytes
+     */
+    public static final long DEFAULT_MEMORY_QUOTA = 16L * 1024 * 1024;
+
+    /**
+     * The default maximum size of the images on disk in bytes
+     */
+    public static final long DEFAULT_DISK_QUOTA = 256L * 1024 * 1024;
+
+    private long memoryQuota = 0;
+
+    private long memorySize = 0;
+
+    // The images in memory, least recently used first
+    private LinkedHashMap<String, byte[]> images =
+        new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    private DownloadCache diskCache = null;
+
+    /**
+     * Creates a new ImageCache
+     * @param directory The directory to store the images in on disk
+     * @param memoryQuota The maximum size of the images in memory in bytes
+     * @param diskQuota The maximum size of the images on disk in bytes
+     */
+    public ImageCache(File directory, long memoryQuota, long diskQuota) {
+        this.memoryQuota = memoryQuota;
+        diskCache = new DownloadCache(directory, diskQuota);
+    }
+
+    /**
+     * Gets the key of an image
+     * @param recordingDirectory The directory of the recording
+     * @param description A description of everything used to generate the
+     *                    image
+     * @return The key
+     */
+    public static String getKey(File recordingDirectory, String description) {
+        return DownloadCache.getKey(recordingDirectory, description);
+    }
+
+    /**
+     * Adds a file to the description of an image, including its state so that
+     * the image changes when the file does
+     * @param description The description to add to
+     * @param file The file
+     */
+    public static void describeFile(StringBuilder description, File file) {
+        description.append(file.getAbsolutePath());
+        description.append(',');
+        description.append(file.length());
+        description.append(',');
+        description.append(file.lastModified());
+        description.append(';');
+    }
+
+    /**
+     * Gets the ETag of an image
+     * @param key The key of the image
+     * @return The ETag
+     */
+    public static String getETag(String key) {
+        return "\"" + key + "\"";
+    }
+
+    /**
+     * Determines if the client already has an image
+     * @param ifNoneMatch The If-None-Match header of the request, or null
+     * @param etag The ETag of the image
+     * @return True if the ETag is matched
+     */
+    public static boolean isMatched(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String[] tags = ifNoneMatch.split(",");
+        for (int i = 0; i < tags.length; i++) {
+            String tag = tags[i].trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized byte[] getFromMemory(String key) {
+        return images.get(key);
+    }
+
+    private synchronized void putInMemory(String key, byte[] image) {
+        if ((image.length > memoryQuota) || images.containsKey(key)) {
+            return;
+        }
+        Iterator<Map.Entry<String, byte[]>> iterator =
+            images.entrySet().iterator();
+        while (((memorySize + image.length) > memoryQuota)
+                && iterator.hasNext()) {
+            memorySize -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+        images.put(key, image);
+        memorySize += image.length;
+    }
+
+    /**
+     * Gets an image
+     * @param key The key of the image
+     * @return The encoded image, or null if it is not cached
+     */
+    public byte[] get(String key) {
+        byte[] image = getFromMemory(key);
+        if (image != null) {
+            return image;
+        }
+
+        File file = diskCache.get(key);
+        if (file == null) {
+            return null;
+        }
+        try {
+            image = new byte[(int) file.length()];
+            FileInputStream input = new FileInputStream(file);
+            try {
+                int read = 0;
+                while (read < image.length) {
+                    int bytesRead = input.read(image, read,
+                            image.length - read);
+                    if (bytesRead == -1) {
+                        return null;
+                    }
+                    read += bytesRead;
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+
+            // The file has just been evicted
+            return null;
+        }
+        putInMemory(key, image);
+        return image;
+    }
+
+    /**
+     * Adds an image to the cache
+     * @param key The key of the image
+     * @param image The encoded image
+     */
+    public void put(String key, byte[] image) {
+        putInMemory(key, image);
+        try {
+            File tempFile = diskCache.createTempFile();
+            FileOutputStream output = new FileOutputStream(tempFile);
+            try {
+                output.write(image);
+            } finally {
+                output.close();
+            }
+            diskCache.put(key, tempFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -30,10 +30,10 @@
  */
 
 package com.googlecode.vicovre.web.play;
-
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -55,7 +55,8 @@ import com.googlecode.vicovre.recordings.Recording;
 import com.googlecode.vicovre.recordings.db.RecordingDatabase;
 
 /**
- * A controller for getting images
+ * A controller for getting images.  Scaled images are cached, and the
+ * common sizes are made whenever an image has to be decoded.
  *
  * @author Andrew G D Rowley
  * @version 1.0
@@ -64,60 +65,70 @@ public class ImageController implements Controller {
 
     private RecordingDatabase database = null;
 
+    private int[] commonWidths = new int[]{80, 160, 320};
+
+    private File cacheDirectory = new File(System.getProperty("java.io.tmpdir"),
+            "vicovre-images");
+
+    private long memoryQuota = ImageCache.DEFAULT_MEMORY_QUOTA;
+
+    private long cacheQuota = ImageCache.DEFAULT_DISK_QUOTA;
+
+    private ImageCache cache = null;
+
     public ImageController(RecordingDatabase database) {
         this.database = database;
     }
 
-    public ModelAndView handleRequest(HttpServletRequest request,
-            HttpServletResponse response) throws IOException {
-        String sessionId = request.getParameter("id");
-        String streamId = request.getParameter("ssrc");
-        String folder = request.getParameter("folder");
+    /**
+     * Sets the widths of the images to make each time an image is decoded
+     * @param commonWidths The widths
+     */
+    public void setCommonWidths(int[] commonWidths) {
+        this.commonWidths = commonWidths;
+    }
 
-        Recording recording = database.getRecording(folder, sessionId);
+    /**
+     * Sets the directory in which images are cached
+     * @param cacheDirectory The directory
+     */
+    public void setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = new File(cacheDirectory);
+    }
 
-        String comp = request.getParameter("compression");
-        if (comp == null) {
-            comp = "0.5";
-        }
-        float compression = Float.valueOf(comp);
-        String h = request.getParameter("height");
-        String w = request.getParameter("width");
-        if (h == null) {
-            h = "-1";
-        }
-        if (w == null) {
-            w = "-1";
-        }
-        int width = Integer.parseInt(w);
-        int height = Integer.parseInt(h);
-        String off = request.getParameter("offset");
-        if (off == null) {
-            off = "0";
-        }
-        long offset = Long.parseLong(off);
+    /**
+     * Sets the maximum size of the images cached in memory
+     * @param memoryQuota The size in bytes
+     */
+    public void setMemoryQuota(long memoryQuota) {
+        this.memoryQuota = memoryQuota;
+    }
 
-        System.err.println("Finding image at offset " + offset + " for stream " + streamId);
+    /**
+     * Sets the maximum size of the images cached on disk
+     * @param cacheQuota The size in bytes
+     */
+    public void setCacheQuota(long cacheQuota) {
+        this.cacheQuota = cacheQuota;
+    }
 
-        File file = new File(recording.getDirectory(),
-                streamId + "_" + offset + ".png");
-        if (!file.exists()) {
-            file = new File(recording.getDirectory(),
-                    streamId + "_" + offset + ".jpg");
+    private synchronized ImageCache getCache() {
+        if (cache == null) {
+            cache = new ImageCache(cacheDirectory, memoryQuota, cacheQuota);
         }
-        BufferedImage image = ImageIO.read(file);
-        OutputStream output = response.getOutputStream();
-        ImageOutputStream ios = ImageIO.createImageOutputStream(output);
-        ImageWriter writer = null;
-        //ImageWriteParam param = new ImageWriteParam(Locale.getDefault());
-        Iterator<ImageWriter> iter = null;
-        //param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        //param.setCompressionQuality(compression);
-        response.setHeader("Cache-Control", "max-age=86400");
-        response.setContentType("image/png");
-        response.setHeader("Content-Disposition", "inline; filename="
-                + streamId + "_" + offset + ".png" + ";");
-        response.flushBuffer();
+        return cache;
+    }
+
+    private String getKey(Recording recording, File file, int width,
+            int height) {
+        StringBuilder description = new StringBuilder();
+        ImageCache.describeFile(description, file);
+        description.append(width + ";" + height + ";");
+        return ImageCache.getKey(recording.getDirectory(),
+                description.toString());
+    }
+
+    private BufferedImage scale(BufferedImage image, int width, int height) {
         if ((height != -1) || (width != -1)) {
             double scaleX = 0;
             double scaleY = 0;
@@ -144,6 +155,17 @@ public class ImageController implements Controller {
             g.drawRenderedImage(oldImage, xform);
             g.dispose();
         }
+        return image;
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(output);
+        ImageWriter writer = null;
+        //ImageWriteParam param = new ImageWriteParam(Locale.getDefault());
+        Iterator<ImageWriter> iter = null;
+        //param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        //param.setCompressionQuality(compression);
         iter = ImageIO.getImageWritersByFormatName("png");
         if (iter.hasNext()) {
             writer = iter.next();
@@ -153,6 +175,85 @@ public class ImageController implements Controller {
         ios.flush();
         writer.dispose();
         ios.close();
+        return output.toByteArray();
+    }
+
+    public ModelAndView handleRequest(HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        String sessionId = request.getParameter("id");
+        String streamId = request.getParameter("ssrc");
+        String folder = request.getParameter("folder");
+
+        Recording recording = database.getRecording(folder, sessionId);
+
+        String comp = request.getParameter("compression");
+        if (comp == null) {
+            comp = "0.5";
+        }
+        float compression = Float.valueOf(comp);
+        String h = request.getParameter("height");
+        String w = request.getParameter("width");
+        if (h == null) {
+            h = "-1";
+        }
+        if (w == null) {
+            w = "-1";
+        }
+        int width = Integer.parseInt(w);
+        int height = Integer.parseInt(h);
+        String off = request.getParameter("offset");
+        if (off == null) {
+            off = "0";
+        }
+        long offset = Long.parseLong(off);
+
+        File file = new File(recording.getDirectory(),
+                streamId + "_" + offset + ".png");
+        if (!file.exists()) {
+            file = new File(recording.getDirectory(),
+                    streamId + "_" + offset + ".jpg");
+        }
+
+        // The key only needs the state of the file, so the client can be
+        // told it has the image without reading it
+        String key = getKey(recording, file, width, height);
+        String etag = ImageCache.getETag(key);
+        response.setHeader("Cache-Control", "max-age=86400");
+        response.setHeader("ETag", etag);
+        if (ImageCache.isMatched(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
+
+        ImageCache cache = getCache();
+        byte[] data = cache.get(key);
+        if (data == null) {
+            System.err.println("Finding image at offset " + offset + " for stream " + streamId);
+            BufferedImage image = ImageIO.read(file);
+            data = encode(scale(image, width, height));
+            cache.put(key, data);
+
+            // Make the common sizes while the image is decoded
+            for (int i = 0; i < commonWidths.length; i++) {
+                if ((commonWidths[i] < image.getWidth())
+                        && ((commonWidths[i] != width) || (height != -1))) {
+                    String commonKey = getKey(recording, file,
+                            commonWidths[i], -1);
+                    if (cache.get(commonKey) == null) {
+                        cache.put(commonKey, encode(scale(image,
+                                commonWidths[i], -1)));
+                    }
+                }
+            }
+        }
+
+        response.setContentType("image/png");
+        response.setHeader("Content-Disposition", "inline; filename="
+                + streamId + "_" + offset + ".png" + ";");
+        response.setContentLength(data.length);
+        OutputStream output = response.getOutputStream();
+        output.write(data);
+        output.flush();
 
         return null;
     }
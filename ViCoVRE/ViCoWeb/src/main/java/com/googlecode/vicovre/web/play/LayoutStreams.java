@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.play;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.googlecode.vicovre.recordings.Recording;
+import com.googlecode.vicovre.recordings.ReplayLayout;
+import com.googlecode.vicovre.recordings.ReplayLayoutPosition;
+import com.googlecode.vicovre.recordings.Stream;
+import com.googlecode.vicovre.repositories.layout.Layout;
+import com.googlecode.vicovre.repositories.layout.LayoutPosition;
+import com.googlecode.vicovre.repositories.layout.LayoutRepository;
+
+/**
+ * The streams of a replay layout of a recording, with the position of each
+ * video stream in the layout and the time span that the streams cover
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class LayoutStreams {
+
+    private String[] videoStreams = null;
+
+    private String[] videoFiles = null;
+
+    private Rectangle[] positions = null;
+
+    private double[] opacities = null;
+
+    private String[] audioStreams = null;
+
+    private String[] audioFiles = null;
+
+    private long start = 0;
+
+    private long duration = 0;
+
+    /**
+     * Creates a new LayoutStreams
+     * @param recording The recording
+     * @param replayLayout The replay layout of the recording
+     * @param layoutRepository The repository of layouts
+     * @throws IOException if the layout or one of the streams is not found
+     */
+    public LayoutStreams(Recording recording, ReplayLayout replayLayout,
+            LayoutRepository layoutRepository) throws IOException {
+        Layout layout = layoutRepository.findLayout(replayLayout.getName());
+        if (layout == null) {
+            throw new IOException("Layout " + replayLayout.getName()
+                    + " not found");
+        }
+
+        List<ReplayLayoutPosition> layoutPositions =
+            replayLayout.getLayoutPositions();
+        videoStreams = new String[layoutPositions.size()];
+        videoFiles = new String[layoutPositions.size()];
+        positions = new Rectangle[layoutPositions.size()];
+        opacities = new double[layoutPositions.size()];
+        long minStart = Long.MAX_VALUE;
+        long maxEnd = 0;
+        for (int i = 0; i < layoutPositions.size(); i++) {
+            ReplayLayoutPosition pos = layoutPositions.get(i);
+            LayoutPosition layoutPos = layout.findStreamPosition(
+                    pos.getName());
+            if (layoutPos == null) {
+                throw new IOException("Layout " + layout.getName()
+                        + " has no position " + pos.getName());
+            }
+            videoStreams[i] = pos.getStreamId();
+            videoFiles[i] = new File(recording.getDirectory(),
+                    pos.getStreamId()).getAbsolutePath();
+            positions[i] = new Rectangle(layoutPos.getX(), layoutPos.getY(),
+                    layoutPos.getWidth(), layoutPos.getHeight());
+            opacities[i] = layoutPos.getOpacity();
+            Stream stream = getStream(recording, pos.getStreamId());
+            minStart = Math.min(minStart, stream.getStartTime().getTime());
+            maxEnd = Math.max(maxEnd, stream.getEndTime().getTime());
+        }
+
+        List<String> audioStreamIds = replayLayout.getAudioStreamIds();
+        audioStreams = audioStreamIds.toArray(new String[0]);
+        audioFiles = new String[audioStreams.length];
+        for (int i = 0; i < audioStreams.length; i++) {
+            audioFiles[i] = new File(recording.getDirectory(),
+                    audioStreams[i]).getAbsolutePath();
+            Stream stream = getStream(recording, audioStreams[i]);
+            minStart = Math.min(minStart, stream.getStartTime().getTime());
+            maxEnd = Math.max(maxEnd, stream.getEndTime().getTime());
+        }
+
+        start = replayLayout.getTime();
+        duration = Math.max(0, Math.min(replayLayout.getEndTime() - start,
+                (maxEnd - minStart) - start));
+    }
+
+    private static Stream getStream(Recording recording, String streamId)
+            throws IOException {
+        Stream stream = recording.getStream(streamId);
+        if (stream == null) {
+            throw new IOException("Stream " + streamId + " of recording "
+                    + recording.getId() + " not found");
+        }
+        return stream;
+    }
+
+    /**
+     * Gets the ids of the video streams
+     * @return The ids
+     */
+    public String[] getVideoStreams() {
+        return videoStreams;
+    }
+
+    /**
+     * Gets the files of the video streams
+     * @return The absolute paths of the files
+     */
+    public String[] getVideoFiles() {
+        return videoFiles;
+    }
+
+    /**
+     * Gets the positions of the video streams in the layout
+     * @return The positions
+     */
+    public Rectangle[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * Gets the opacities of the video streams
+     * @return The opacities
+     */
+    public double[] getOpacities() {
+        return opacities;
+    }
+
+    /**
+     * Gets the ids of the audio streams
+     * @return The ids
+     */
+    public String[] getAudioStreams() {
+        return audioStreams;
+    }
+
+    /**
+     * Gets the files of the audio streams
+     * @return The absolute paths of the files
+     */
+    public String[] getAudioFiles() {
+        return audioFiles;
+    }
+
+    /**
+     * Gets the start of the layout
+     * @return The start in milliseconds from the start of the recording
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Gets the duration of the layout, limited to the end of the streams
+     * @return The duration in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Adds the files used to generate some output to a description of it,
+     * so that a change to any of the files changes the description
+     * @param description The description to add to
+     * @param files The paths of the files
+     */
+    public static void describeFiles(StringBuilder description,
+            String[] files) {
+        description.append(files.length);
+        description.append(';');
+        for (int i = 0; i < files.length; i++) {
+            File file = new File(files[i]);
+            description.append(files[i]);
+            description.append(',');
+            description.append(file.length());
+            description.append(',');
+            description.append(file.lastModified());
+            description.append(';');
+        }
+    }
+}
@@ -33,6 +33,8 @@
 package com.googlecode.vicovre.web.play;
 
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.LinkedList;
 
 import javax.media.Buffer;
 import javax.media.Format;
@@ -46,6 +48,12 @@ import com.googlecode.vicovre.media.processor.SimpleProcessor;
 
 public abstract class MediaSource extends Thread implements ProcessorListener {
 
+    /**
+     * The default number of processed buffers that can be waiting to be
+     * multiplexed
+     */
+    public static final int DEFAULT_QUEUE_LENGTH = 8;
+
     private SimpleProcessor processor = null;
 
     private Multiplexer multiplexer = null;
@@ -56,8 +64,18 @@ public abstract class MediaSource extends Thread implements ProcessorListener {
 
     private Buffer outputBuffer = null;
 
+    // Copies of processed buffers waiting to be multiplexed
+    private LinkedList<Buffer> queue = new LinkedList<Buffer>();
+
+    // Buffers that have been multiplexed, to be reused
+    private LinkedList<Buffer> freeBuffers = new LinkedList<Buffer>();
+
+    private int queueLength = DEFAULT_QUEUE_LENGTH;
+
     private boolean sourceFinished = false;
 
+    private boolean closed = false;
+
     private IOException sourceReadException = null;
 
     private boolean started = false;
@@ -80,66 +98,127 @@ public abstract class MediaSource extends Thread implements ProcessorListener {
         this.timestampOffset = timestampOffset;
     }
 
+    /**
+     * Sets the number of processed buffers that can be waiting to be
+     * multiplexed.  This lets the source work ahead of the multiplexer.
+     * @param queueLength The number of buffers
+     */
+    public void setQueueLength(int queueLength) {
+        this.queueLength = Math.max(1, queueLength);
+    }
+
     public void run() {
-        while (!sourceFinished) {
+        boolean finished = false;
+        while (!finished) {
             try {
-                sourceFinished = !readNextBuffer();
+                finished = !readNextBuffer();
             } catch (IOException e) {
-                sourceFinished = true;
+                finished = true;
                 sourceReadException = e;
             }
-            if (!sourceFinished) {
+            if (!finished) {
                 Buffer buffer = getBuffer();
                 processor.process(buffer, false);
             }
+            synchronized (processSync) {
+                finished = finished || closed;
+            }
         }
         synchronized (processSync) {
+            sourceFinished = true;
             processSync.notifyAll();
         }
     }
 
     public void close() {
         synchronized (processSync) {
-            sourceFinished = true;
+            closed = true;
             outputBuffer = null;
+            queue.clear();
             processSync.notifyAll();
         }
+
+        // Wait for the source to stop using the processor
+        if (started && (Thread.currentThread() != this)) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                // Do Nothing
+            }
+        }
+    }
+
+    // Copies a buffer, including its data, so that the processor can reuse
+    // the original
+    private void copyBuffer(Buffer buffer, Buffer copy) {
+        Object data = buffer.getData();
+        Object copyData = copy.getData();
+        copy.copy(buffer);
+        if ((data != null) && data.getClass().isArray()) {
+            int length = buffer.getLength();
+            if ((copyData == null)
+                    || (copyData.getClass() != data.getClass())
+                    || (Array.getLength(copyData) < length)) {
+                copyData = Array.newInstance(
+                        data.getClass().getComponentType(), length);
+            }
+            System.arraycopy(data, buffer.getOffset(), copyData, 0, length);
+            copy.setData(copyData);
+            copy.setOffset(0);
+        }
     }
 
     public void finishedProcessing(Buffer buffer) {
         synchronized (processSync) {
-            outputBuffer = buffer;
-            processSync.notifyAll();
-
-            while (outputBuffer != null) {
+            while (!closed && (queue.size() >= queueLength)) {
                 try {
                     processSync.wait();
                 } catch (InterruptedException e) {
                     // Do Nothing
                 }
             }
+            if (closed) {
+                return;
+            }
+
+            Buffer copy = null;
+            if (!freeBuffers.isEmpty()) {
+                copy = freeBuffers.removeFirst();
+            } else {
+                copy = new Buffer();
+            }
+            copyBuffer(buffer, copy);
+            queue.addLast(copy);
+            processSync.notifyAll();
         }
     }
 
     public boolean readNext() throws IOException {
         synchronized (processSync) {
-            outputBuffer = null;
-            processSync.notifyAll();
+            if (outputBuffer != null) {
+                freeBuffers.addLast(outputBuffer);
+                outputBuffer = null;
+            }
             if (!started) {
                 start();
                 started = true;
             }
-            while (!sourceFinished && (outputBuffer == null)) {
+            while (!closed && !sourceFinished && queue.isEmpty()) {
                 try {
                     processSync.wait();
                 } catch (InterruptedException e) {
                     // Do Nothing
                 }
             }
+            if (!closed && !queue.isEmpty()) {
+                outputBuffer = queue.removeFirst();
+                processSync.notifyAll();
+                return true;
+            }
             if (sourceReadException != null) {
                 throw sourceReadException;
             }
-            return !sourceFinished;
+            return false;
         }
     }
 
@@ -152,22 +231,17 @@ public abstract class MediaSource extends Thread implements ProcessorListener {
     }
 
     public void process() {
+        Buffer buffer = null;
         synchronized (processSync) {
-            while (!sourceFinished && (outputBuffer == null)) {
-                try {
-                    processSync.wait();
-                } catch (InterruptedException e) {
-                    // Do Nothing
-                }
-            }
+            buffer = outputBuffer;
+        }
 
-            if (!sourceFinished) {
-                int result = PlugIn.INPUT_BUFFER_NOT_CONSUMED;
-                while (result == PlugIn.INPUT_BUFFER_NOT_CONSUMED) {
-                    outputBuffer.setTimeStamp(outputBuffer.getTimeStamp()
-                            + timestampOffset);
-                    result = multiplexer.process(outputBuffer, track);
-                }
+        if (buffer != null) {
+            int result = PlugIn.INPUT_BUFFER_NOT_CONSUMED;
+            while (result == PlugIn.INPUT_BUFFER_NOT_CONSUMED) {
+                buffer.setTimeStamp(buffer.getTimeStamp()
+                        + timestampOffset);
+                result = multiplexer.process(buffer, track);
             }
         }
     }
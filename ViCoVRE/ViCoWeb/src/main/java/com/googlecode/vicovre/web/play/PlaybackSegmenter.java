@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.play;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.googlecode.vicovre.media.controls.FragmentControl;
+import com.googlecode.vicovre.recordings.Recording;
+import com.googlecode.vicovre.recordings.ReplayLayout;
+import com.googlecode.vicovre.repositories.layout.LayoutRepository;
+import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
+
+/**
+ * Cuts a layout of a recording into fixed-duration fragmented MP4 segments.
+ * Each segment is generated separately, starting with a fresh encoder and
+ * from a key frame of each stream, so any segment can be played after the
+ * initialization segment without the ones before it.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class PlaybackSegmenter {
+
+    /**
+     * The content type of the segments
+     */
+    public static final String CONTENT_TYPE = "video/mp4";
+
+    private String layoutName = null;
+
+    private String[] videoFiles = null;
+
+    private Rectangle[] positions = null;
+
+    private double[] opacities = null;
+
+    private String[] audioFiles = null;
+
+    private long start = 0;
+
+    private long duration = 0;
+
+    private long segmentDuration = 0;
+
+    /**
+     * Creates a new PlaybackSegmenter
+     *
+     * @param recording The recording to segment
+     * @param layoutName The name of the replay layout to use, or null to use
+     *                   the first layout of the recording
+     * @param layoutRepository The repository of layouts
+     * @param segmentDuration The duration of each segment in milliseconds
+     * @throws IOException if the layout or one of its streams cannot be
+     *                     found
+     */
+    public PlaybackSegmenter(Recording recording, String layoutName,
+            LayoutRepository layoutRepository, long segmentDuration)
+            throws IOException {
+        this.segmentDuration = segmentDuration;
+
+        ReplayLayout replayLayout = null;
+        List<ReplayLayout> replayLayouts = recording.getReplayLayouts();
+        if (replayLayouts != null) {
+            for (ReplayLayout l : replayLayouts) {
+                if ((layoutName == null) || l.getName().equals(layoutName)) {
+                    replayLayout = l;
+                    break;
+                }
+            }
+        }
+        if (replayLayout == null) {
+            throw new IOException("Recording " + recording.getId()
+                    + " has no layout " + layoutName);
+        }
+        this.layoutName = replayLayout.getName();
+        LayoutStreams streams = new LayoutStreams(recording, replayLayout,
+                layoutRepository);
+        videoFiles = streams.getVideoFiles();
+        positions = streams.getPositions();
+        opacities = streams.getOpacities();
+        audioFiles = streams.getAudioFiles();
+        start = streams.getStart();
+        duration = streams.getDuration();
+    }
+
+    /**
+     * Gets the name of the layout being segmented
+     * @return The name
+     */
+    public String getLayoutName() {
+        return layoutName;
+    }
+
+    /**
+     * Gets the duration of the whole layout
+     * @return The duration in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Gets the duration of the segments, except maybe the last
+     * @return The duration in milliseconds
+     */
+    public long getSegmentDuration() {
+        return segmentDuration;
+    }
+
+    /**
+     * Gets the number of segments
+     * @return The number of segments
+     */
+    public int getSegmentCount() {
+        return (int) ((duration + segmentDuration - 1) / segmentDuration);
+    }
+
+    /**
+     * Gets the duration of a segment
+     * @param segment The index of the segment
+     * @return The duration in milliseconds
+     */
+    public long getSegmentDuration(int segment) {
+        return Math.min(segmentDuration,
+                duration - (segment * segmentDuration));
+    }
+
+    /**
+     * Describes everything that affects the segments, including the state of
+     * the stream files, so that segments can be cached
+     * @return The description
+     */
+    public String getDescription() {
+        StringBuilder description = new StringBuilder();
+        description.append(CONTENT_TYPE + ";" + start + ";" + duration + ";"
+                + segmentDuration + ";");
+        LayoutStreams.describeFiles(description, videoFiles);
+        for (int i = 0; i < videoFiles.length; i++) {
+            description.append(positions[i] + ";" + opacities[i] + ";");
+        }
+        LayoutStreams.describeFiles(description, audioFiles);
+        return description.toString();
+    }
+
+    /**
+     * Generates a segment.  The output starts with the initialization
+     * segment (ftyp and moov), followed by a single fragment.
+     *
+     * @param output The stream to write the segment to
+     * @param segment The index of the segment
+     * @param typeRepository The RTP type repository
+     * @throws IOException
+     */
+    public void writeSegment(OutputStream output, int segment,
+            RtpTypeRepository typeRepository) throws IOException {
+        if ((segment < 0) || (segment >= getSegmentCount())) {
+            throw new IOException("Segment " + segment + " out of range");
+        }
+        try {
+            VideoExtractor extractor = new VideoExtractor(CONTENT_TYPE,
+                    videoFiles, positions, opacities, audioFiles,
+                    new String[0], 0x000000, typeRepository, null);
+            extractor.setGenerationSpeed(0);
+            FragmentControl fragmentControl = (FragmentControl)
+                extractor.getControl(FragmentControl.class.getName());
+            if (fragmentControl == null) {
+                throw new IOException("Cannot fragment " + CONTENT_TYPE);
+            }
+            fragmentControl.setFragmented(true);
+            fragmentControl.setFirstSequenceNumber(segment + 1);
+            extractor.transferToStream(output, start,
+                    segment * segmentDuration, getSegmentDuration(segment));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Finds where the initialization segment ends in a generated segment
+     * @param segment The segment data
+     * @return The offset of the first moof box, or the length of the data
+     *         if there is no fragment
+     */
+    public static int getInitializationLength(byte[] segment) {
+        int offset = 0;
+        while ((offset + 8) <= segment.length) {
+            long size = ((segment[offset] & 0xFFL) << 24)
+                | ((segment[offset + 1] & 0xFF) << 16)
+                | ((segment[offset + 2] & 0xFF) << 8)
+                | (segment[offset + 3] & 0xFF);
+            String type = new String(segment, offset + 4, 4);
+            if (type.equals("moof") || (size < 8)) {
+                return offset;
+            }
+            offset += size;
+        }
+        return Math.min(offset, segment.length);
+    }
+}
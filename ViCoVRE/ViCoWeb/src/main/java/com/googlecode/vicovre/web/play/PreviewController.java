@@ -34,7 +34,9 @@ package com.googlecode.vicovre.web.play;
 
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -61,12 +63,98 @@ public class PreviewController implements Controller {
 
     private RtpTypeRepository typeRepository = null;
 
+    private File cacheDirectory = new File(System.getProperty("java.io.tmpdir"),
+            "vicovre-previews");
+
+    private long memoryQuota = ImageCache.DEFAULT_MEMORY_QUOTA;
+
+    private long cacheQuota = ImageCache.DEFAULT_DISK_QUOTA;
+
+    private ImageCache cache = null;
+
     public PreviewController(RecordingDatabase database,
             RtpTypeRepository typeRepository) {
         this.database = database;
         this.typeRepository = typeRepository;
     }
 
+    /**
+     * Sets the directory in which previews are cached
+     * @param cacheDirectory The directory
+     */
+    public void setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = new File(cacheDirectory);
+    }
+
+    /**
+     * Sets the maximum size of the previews cached in memory
+     * @param memoryQuota The size in bytes
+     */
+    public void setMemoryQuota(long memoryQuota) {
+        this.memoryQuota = memoryQuota;
+    }
+
+    /**
+     * Sets the maximum size of the previews cached on disk
+     * @param cacheQuota The size in bytes
+     */
+    public void setCacheQuota(long cacheQuota) {
+        this.cacheQuota = cacheQuota;
+    }
+
+    private synchronized ImageCache getCache() {
+        if (cache == null) {
+            cache = new ImageCache(cacheDirectory, memoryQuota, cacheQuota);
+        }
+        return cache;
+    }
+
+    private byte[] getPreview(File[] files, int width, int height)
+            throws IOException {
+        BufferedImage finalImage = null;
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            BufferedImage image = ImageIO.read(file);
+
+            double scaleX = 0;
+            double scaleY = 0;
+            Graphics2D g = null;
+            scaleX = width / (double) image.getWidth();
+            scaleY = height / (double) image.getHeight();
+            if (height == -1) {
+                scaleY = scaleX;
+                height = (int) (image.getHeight() * scaleY);
+            } else if (width == -1) {
+                scaleX = scaleY;
+                width = (int) (image.getWidth() * scaleX);
+            }
+
+            if (finalImage == null) {
+                finalImage = new BufferedImage(width, height * files.length,
+                        BufferedImage.TYPE_INT_RGB);
+            }
+
+            g = finalImage.createGraphics();
+            g.drawImage(image, 0, height * i, width, height, null);
+            g.dispose();
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(output);
+        ImageWriter writer = null;
+        Iterator<ImageWriter> iter = null;
+        iter = ImageIO.getImageWritersByFormatName("png");
+        if (iter.hasNext()) {
+            writer = iter.next();
+        }
+        writer.setOutput(ios);
+        writer.write(new IIOImage(finalImage, null, null));
+        ios.flush();
+        writer.dispose();
+        ios.close();
+        return output.toByteArray();
+    }
+
     public ModelAndView handleRequest(HttpServletRequest request,
             HttpServletResponse response) throws Exception {
         String folder = request.getRequestURI().substring(
@@ -107,52 +195,35 @@ public class PreviewController implements Controller {
 
         Arrays.sort(files);
 
-        BufferedImage finalImage = null;
+        StringBuilder description = new StringBuilder();
         for (int i = 0; i < files.length; i++) {
-            File file = files[i];
-            BufferedImage image = ImageIO.read(file);
-
-            double scaleX = 0;
-            double scaleY = 0;
-            Graphics2D g = null;
-            scaleX = width / (double) image.getWidth();
-            scaleY = height / (double) image.getHeight();
-            if (height == -1) {
-                scaleY = scaleX;
-                height = (int) (image.getHeight() * scaleY);
-            } else if (width == -1) {
-                scaleX = scaleY;
-                width = (int) (image.getWidth() * scaleX);
-            }
-
-            if (finalImage == null) {
-                finalImage = new BufferedImage(width, height * files.length,
-                        BufferedImage.TYPE_INT_RGB);
-            }
+            ImageCache.describeFile(description, files[i]);
+        }
+        description.append(width + ";" + height + ";");
+        String key = ImageCache.getKey(recording.getDirectory(),
+                description.toString());
+        String etag = ImageCache.getETag(key);
+        response.setHeader("Cache-Control", "max-age=86400");
+        response.setHeader("ETag", etag);
+        if (ImageCache.isMatched(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
 
-            g = finalImage.createGraphics();
-            g.drawImage(image, 0, height * i, width, height, null);
-            g.dispose();
+        ImageCache cache = getCache();
+        byte[] data = cache.get(key);
+        if (data == null) {
+            data = getPreview(files, width, height);
+            cache.put(key, data);
         }
 
-        OutputStream output = response.getOutputStream();
-        ImageOutputStream ios = ImageIO.createImageOutputStream(output);
-        ImageWriter writer = null;
-        Iterator<ImageWriter> iter = null;
-        response.setHeader("Cache-Control", "max-age=86400");
         response.setContentType("image/png");
         response.setHeader("Content-Disposition", "inline; filename="
                 + streamId + "_preview.png" + ";");
-        response.flushBuffer();
-        iter = ImageIO.getImageWritersByFormatName("png");
-        if (iter.hasNext()) {
-            writer = iter.next();
-        }
-        writer.setOutput(ios);
-        writer.write(new IIOImage(finalImage, null, null));
-        ios.flush();
-        writer.dispose();
-        ios.close();
+        response.setContentLength(data.length);
+        OutputStream output = response.getOutputStream();
+        output.write(data);
+        output.flush();
 
         return null;
     }
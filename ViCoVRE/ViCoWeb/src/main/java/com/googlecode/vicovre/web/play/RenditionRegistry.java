@@ -0,0 +1,364 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.play;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Shares a transcode between all the viewers that ask for the same
+ * rendition of a recording.  One transcode is run per key, and its output is
+ * kept in a bounded buffer from which each viewer is sent the data.  A
+ * viewer that falls a full buffer behind is disconnected, so that it does
+ * not hold up the others; it can then join a new transcode.  A viewer can
+ * join a running transcode as long as the start of the data is still in the
+ * buffer; otherwise a new transcode is started for them.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class RenditionRegistry {
+
+    /**
+     * The default maximum size of the buffer of each rendition
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    // The amount of data to send to a viewer at once
+    private static final int TRANSFER_SIZE = 64 * 1024;
+
+    /**
+     * Produces the data of a rendition
+     */
+    public static interface Transcoder {
+
+        /**
+         * Writes the rendition to a stream
+         * @param output The stream to write to
+         * @throws Exception
+         */
+        void transferToStream(OutputStream output) throws Exception;
+    }
+
+    private HashMap<String, Rendition> renditions =
+        new HashMap<String, Rendition>();
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    /**
+     * Sets the maximum size of the buffer kept for each rendition.  This
+     * bounds how far into a rendition a viewer can join it, and how far a
+     * viewer can fall behind before it is disconnected.
+     * @param bufferSize The size in bytes
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Gets the number of renditions currently being generated
+     * @return The number of renditions
+     */
+    public int getRenditionCount() {
+        synchronized (renditions) {
+            return renditions.size();
+        }
+    }
+
+    /**
+     * Attaches a viewer to a rendition, starting it if necessary.  The viewer
+     * must be detached from the rendition when it is finished with it.
+     * @param key The key of the rendition, made from all of its parameters
+     * @param transcoder The transcoder to use if the rendition is started
+     * @return The viewer of the rendition
+     */
+    public Viewer attach(String key, Transcoder transcoder) {
+        synchronized (renditions) {
+            Rendition rendition = renditions.get(key);
+            if (rendition != null) {
+                Viewer viewer = rendition.addViewer();
+                if (viewer != null) {
+                    return viewer;
+                }
+            }
+            rendition = new Rendition(key, transcoder, bufferSize);
+            Viewer viewer = rendition.addViewer();
+            renditions.put(key, rendition);
+            rendition.start();
+            return viewer;
+        }
+    }
+
+    private void remove(Rendition rendition) {
+        synchronized (renditions) {
+            if (renditions.get(rendition.key) == rendition) {
+                renditions.remove(rendition.key);
+            }
+        }
+    }
+
+    /**
+     * A viewer of a rendition
+     */
+    public class Viewer {
+
+        private Rendition rendition = null;
+
+        // The number of bytes read so far
+        private long position = 0;
+
+        // True if the viewer fell too far behind to be sent the data
+        private boolean evicted = false;
+
+        private Viewer(Rendition rendition) {
+            this.rendition = rendition;
+        }
+
+        /**
+         * Waits until the rendition has produced some data
+         * @throws IOException if the rendition failed before producing any
+         */
+        public void waitForData() throws IOException {
+            rendition.waitForData();
+        }
+
+        /**
+         * Sends the rendition to the viewer from the start
+         * @param output The stream to send the data to
+         * @throws IOException
+         */
+        public void transferTo(OutputStream output) throws IOException {
+            byte[] data = new byte[TRANSFER_SIZE];
+            int bytesRead = rendition.read(this, data);
+            while (bytesRead != -1) {
+                output.write(data, 0, bytesRead);
+                bytesRead = rendition.read(this, data);
+            }
+            output.flush();
+        }
+
+        /**
+         * Detaches the viewer from the rendition.  The transcode is stopped
+         * once there are no viewers left.
+         */
+        public void detach() {
+            rendition.detach(this);
+        }
+    }
+
+    /**
+     * A single rendition being generated
+     */
+    public class Rendition extends Thread {
+
+        private String key = null;
+
+        private Transcoder transcoder = null;
+
+        // The last bytes written, indexed by position modulo the length.
+        // This grows as data is written until it reaches maxBufferSize, and
+        // until then holds all the data from the start
+        private byte[] buffer = null;
+
+        private int maxBufferSize = 0;
+
+        // The number of bytes written so far
+        private long head = 0;
+
+        private LinkedList<Viewer> viewers = new LinkedList<Viewer>();
+
+        // True once the last viewer has detached
+        private boolean stopped = false;
+
+        private boolean finished = false;
+
+        private Exception error = null;
+
+        private Rendition(String key, Transcoder transcoder,
+                int maxBufferSize) {
+            super("Rendition " + key.hashCode());
+            this.key = key;
+            this.transcoder = transcoder;
+            this.maxBufferSize = maxBufferSize;
+            this.buffer = new byte[Math.min(maxBufferSize, TRANSFER_SIZE)];
+            setDaemon(true);
+        }
+
+        // Adds a viewer if the start of the data is still available
+        private synchronized Viewer addViewer() {
+            if (finished || stopped || (head > maxBufferSize)) {
+                return null;
+            }
+            Viewer viewer = new Viewer(this);
+            viewers.add(viewer);
+            return viewer;
+        }
+
+        private void detach(Viewer viewer) {
+            boolean noViewers = false;
+            synchronized (this) {
+                viewers.remove(viewer);
+                noViewers = viewers.isEmpty();
+                stopped = stopped || noViewers;
+                notifyAll();
+            }
+            if (noViewers) {
+                remove(this);
+            }
+        }
+
+        private synchronized void waitForData() throws IOException {
+            while ((head == 0) && !finished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Do Nothing
+                }
+            }
+            if ((head == 0) && (error != null)) {
+                throw new IOException(error.getMessage());
+            }
+        }
+
+        // Reads the next data of a viewer into an array, waiting for it if
+        // needed
+        private synchronized int read(Viewer viewer, byte[] data)
+                throws IOException {
+            while ((viewer.position >= head) && !finished
+                    && !viewer.evicted) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Do Nothing
+                }
+            }
+            if (viewer.evicted) {
+                throw new EOFException("Viewer fell too far behind");
+            }
+            if (viewer.position >= head) {
+                if (error != null) {
+                    throw new IOException(error.getMessage());
+                }
+                return -1;
+            }
+            int length = (int) Math.min(head - viewer.position, data.length);
+            int start = (int) (viewer.position % buffer.length);
+            int first = Math.min(length, buffer.length - start);
+            System.arraycopy(buffer, start, data, 0, first);
+            System.arraycopy(buffer, 0, data, first, length - first);
+            viewer.position += length;
+            return length;
+        }
+
+        // Disconnects the viewers that have still to read data before a
+        // position, as that data is about to be overwritten
+        private void evictBefore(long position) {
+            Iterator<Viewer> iterator = viewers.iterator();
+            while (iterator.hasNext()) {
+                Viewer viewer = iterator.next();
+                if (viewer.position < position) {
+                    viewer.evicted = true;
+                    iterator.remove();
+                }
+            }
+        }
+
+        // Grows the buffer, if it has not yet reached its maximum size, to
+        // hold the data up to a position
+        private void ensureCapacity(long size) {
+            if ((size > buffer.length) && (buffer.length < maxBufferSize)) {
+                int length = (int) Math.min(maxBufferSize,
+                        Math.max(size, (long) buffer.length * 2));
+                byte[] newBuffer = new byte[length];
+                System.arraycopy(buffer, 0, newBuffer, 0, (int) head);
+                buffer = newBuffer;
+            }
+        }
+
+        // Adds data written by the transcoder, disconnecting any viewer that
+        // is left a full buffer behind; this never waits for a viewer
+        private synchronized void write(byte[] data, int offset, int length)
+                throws IOException {
+            while (length > 0) {
+                ensureCapacity(head + length);
+                int start = (int) (head % buffer.length);
+                int count = Math.min(length, buffer.length - start);
+                evictBefore(head + count - buffer.length);
+                if (viewers.isEmpty()) {
+                    throw new EOFException("No viewers left");
+                }
+                System.arraycopy(data, offset, buffer, start, count);
+                offset += count;
+                length -= count;
+                head += count;
+                notifyAll();
+            }
+        }
+
+        /**
+         *
+         * @see java.lang.Thread#run()
+         */
+        public void run() {
+            try {
+                transcoder.transferToStream(new OutputStream() {
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    public void write(byte[] b, int off, int len)
+                            throws IOException {
+                        Rendition.this.write(b, off, len);
+                    }
+                });
+            } catch (Exception e) {
+                if (!(e instanceof EOFException)) {
+                    e.printStackTrace();
+                }
+                synchronized (this) {
+                    error = e;
+                }
+            } finally {
+                synchronized (this) {
+                    finished = true;
+                    notifyAll();
+                }
+                remove(this);
+            }
+        }
+    }
+}
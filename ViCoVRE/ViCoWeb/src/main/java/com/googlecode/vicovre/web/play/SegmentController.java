@@ -0,0 +1,391 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.play;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URLEncoder;
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.mvc.Controller;
+import org.xml.sax.SAXException;
+
+import com.googlecode.vicovre.media.Misc;
+import com.googlecode.vicovre.recordings.Recording;
+import com.googlecode.vicovre.recordings.db.RecordingDatabase;
+import com.googlecode.vicovre.recordings.db.insecure.RecordingListener;
+import com.googlecode.vicovre.repositories.layout.LayoutRepository;
+import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
+
+/**
+ * Serves a layout of a recording as fragmented MP4 segments, with an HLS
+ * playlist and a DASH manifest to play them.  Segments are generated when
+ * first requested and then cached, so seeking only fetches a segment and
+ * the same segment is sent to every viewer.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class SegmentController implements Controller, RecordingListener {
+
+    /**
+     * The default duration of a segment in milliseconds
+     */
+    public static final long DEFAULT_SEGMENT_DURATION = 6000;
+
+    // The bandwidth advertised in the DASH manifest, as there is only one
+    private static final int BANDWIDTH = 1000000;
+
+    private static final String INIT = "init";
+
+    private RecordingDatabase database = null;
+
+    private LayoutRepository layoutRepository = null;
+
+    private RtpTypeRepository typeRepository = null;
+
+    private long segmentDuration = DEFAULT_SEGMENT_DURATION;
+
+    private File cacheDirectory = new File(System.getProperty("java.io.tmpdir"),
+            "vicovre-segments");
+
+    private long cacheQuota = DownloadCache.DEFAULT_QUOTA;
+
+    private DownloadCache cache = null;
+
+    // Locks so that each segment is only generated once at a time
+    private HashMap<String, SegmentLock> generating =
+        new HashMap<String, SegmentLock>();
+
+    // A lock on a segment, kept until the last request holding it is done
+    private static class SegmentLock {
+
+        private int holders = 0;
+    }
+
+    public SegmentController(RecordingDatabase database,
+            LayoutRepository layoutRepository,
+            RtpTypeRepository typeRepository) throws IOException, SAXException {
+        if (!Misc.isCodecsConfigured()) {
+            Misc.configureCodecs("/knownCodecs.xml");
+        }
+        this.database = database;
+        this.layoutRepository = layoutRepository;
+        this.typeRepository = typeRepository;
+        database.addRecordingListener(this);
+    }
+
+    /**
+     * Sets the duration of the segments
+     * @param segmentDuration The duration in milliseconds
+     */
+    public void setSegmentDuration(long segmentDuration) {
+        this.segmentDuration = segmentDuration;
+    }
+
+    /**
+     * Sets the directory in which generated segments are cached
+     * @param cacheDirectory The directory
+     */
+    public void setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = new File(cacheDirectory);
+    }
+
+    /**
+     * Sets the maximum size of the segment cache
+     * @param cacheQuota The size in bytes
+     */
+    public void setCacheQuota(long cacheQuota) {
+        this.cacheQuota = cacheQuota;
+    }
+
+    private synchronized DownloadCache getCache() {
+        if (cache == null) {
+            cache = new DownloadCache(cacheDirectory, cacheQuota);
+        }
+        return cache;
+    }
+
+    private String getKey(Recording recording, PlaybackSegmenter segmenter,
+            String segment) {
+        return DownloadCache.getKey(recording.getDirectory(),
+                segmenter.getDescription() + segment);
+    }
+
+    private void cacheBytes(String key, byte[] data, int offset, int length)
+            throws IOException {
+        DownloadCache cache = getCache();
+        File tempFile = cache.createTempFile();
+        FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            output.write(data, offset, length);
+        } finally {
+            output.close();
+        }
+        cache.put(key, tempFile);
+    }
+
+    // Generates a segment, caching the initialization segment that starts it
+    // and the fragment separately
+    private void generateSegment(Recording recording,
+            PlaybackSegmenter segmenter, int segment) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        segmenter.writeSegment(output, segment, typeRepository);
+        byte[] data = output.toByteArray();
+        int initLength = PlaybackSegmenter.getInitializationLength(data);
+        String initKey = getKey(recording, segmenter, INIT);
+        if (getCache().get(initKey) == null) {
+            cacheBytes(initKey, data, 0, initLength);
+        }
+        cacheBytes(getKey(recording, segmenter, String.valueOf(segment)),
+                data, initLength, data.length - initLength);
+    }
+
+    // Gets a cached segment, generating it if it is not yet cached
+    private File getSegment(Recording recording, PlaybackSegmenter segmenter,
+            int segment) throws IOException {
+        String key = null;
+        if (segment == -1) {
+            key = getKey(recording, segmenter, INIT);
+        } else {
+            key = getKey(recording, segmenter, String.valueOf(segment));
+        }
+        File file = getCache().get(key);
+        if (file != null) {
+            return file;
+        }
+
+        SegmentLock lock = null;
+        synchronized (generating) {
+            lock = generating.get(key);
+            if (lock == null) {
+                lock = new SegmentLock();
+                generating.put(key, lock);
+            }
+            lock.holders += 1;
+        }
+        try {
+            synchronized (lock) {
+                file = getCache().get(key);
+                if (file == null) {
+                    generateSegment(recording, segmenter,
+                            Math.max(segment, 0));
+                    file = getCache().get(key);
+                }
+            }
+        } finally {
+            synchronized (generating) {
+                lock.holders -= 1;
+                if (lock.holders == 0) {
+                    generating.remove(key);
+                }
+            }
+        }
+        if (file == null) {
+            throw new IOException("Segment " + segment + " could not be cached");
+        }
+        return file;
+    }
+
+    private void sendFile(File file, HttpServletResponse response)
+            throws IOException {
+        response.setContentType(PlaybackSegmenter.CONTENT_TYPE);
+        response.setHeader("Cache-Control", "max-age=86400");
+        response.setHeader("Content-Length", String.valueOf(file.length()));
+        OutputStream output = response.getOutputStream();
+        FileInputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int bytesRead = input.read(buffer);
+            while (bytesRead != -1) {
+                output.write(buffer, 0, bytesRead);
+                bytesRead = input.read(buffer);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private String getSegmentUrl(PlaybackSegmenter segmenter, String type)
+            throws IOException {
+        return "segments.do?layout=" + URLEncoder.encode(
+                segmenter.getLayoutName(), "UTF-8") + "&type=" + type;
+    }
+
+    private void sendPlaylist(PlaybackSegmenter segmenter,
+            HttpServletResponse response) throws IOException {
+        response.setContentType("application/vnd.apple.mpegurl");
+        PrintWriter writer = response.getWriter();
+        writer.print("#EXTM3U\n");
+        writer.print("#EXT-X-VERSION:7\n");
+        writer.print("#EXT-X-TARGETDURATION:"
+                + ((segmenter.getSegmentDuration() + 999) / 1000) + "\n");
+        writer.print("#EXT-X-MEDIA-SEQUENCE:0\n");
+        writer.print("#EXT-X-PLAYLIST-TYPE:VOD\n");
+        writer.print("#EXT-X-INDEPENDENT-SEGMENTS\n");
+        writer.print("#EXT-X-MAP:URI=\"" + getSegmentUrl(segmenter, INIT)
+                + "\"\n");
+        for (int i = 0; i < segmenter.getSegmentCount(); i++) {
+            writer.print("#EXTINF:" + String.format("%.3f",
+                    segmenter.getSegmentDuration(i) / 1000.0) + ",\n");
+            writer.print(getSegmentUrl(segmenter, "segment") + "&segment="
+                    + i + "\n");
+        }
+        writer.print("#EXT-X-ENDLIST\n");
+        writer.flush();
+    }
+
+    private void sendManifest(PlaybackSegmenter segmenter,
+            HttpServletResponse response) throws IOException {
+        response.setContentType("application/dash+xml");
+        PrintWriter writer = response.getWriter();
+        writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        writer.println("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\""
+                + " profiles=\"urn:mpeg:dash:profile:isoff-live:2011\""
+                + " type=\"static\""
+                + " mediaPresentationDuration=\"PT" + String.format("%.3f",
+                        segmenter.getDuration() / 1000.0) + "S\""
+                + " minBufferTime=\"PT"
+                + ((segmenter.getSegmentDuration() + 999) / 1000) + "S\">");
+        writer.println("  <Period start=\"PT0S\">");
+        writer.println("    <AdaptationSet segmentAlignment=\"true\">");
+        writer.println("      <Representation id=\"0\" mimeType=\""
+                + PlaybackSegmenter.CONTENT_TYPE + "\" bandwidth=\""
+                + BANDWIDTH + "\">");
+        writer.println("        <SegmentTemplate timescale=\"1000\""
+                + " duration=\"" + segmenter.getSegmentDuration() + "\""
+                + " startNumber=\"0\""
+                + " initialization=\"" + getSegmentUrl(segmenter,
+                        INIT).replace("&", "&amp;") + "\""
+                + " media=\"" + getSegmentUrl(segmenter,
+                        "segment").replace("&", "&amp;")
+                + "&amp;segment=$Number$\"/>");
+        writer.println("      </Representation>");
+        writer.println("    </AdaptationSet>");
+        writer.println("  </Period>");
+        writer.println("</MPD>");
+        writer.flush();
+    }
+
+    public ModelAndView handleRequest(HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        String folder = request.getRequestURI().substring(
+                request.getContextPath().length());
+        File path = new File(folder);
+        String id = path.getParentFile().getName();
+        folder = path.getParentFile().getParent();
+
+        Recording recording = database.getRecording(folder, id);
+        if (recording == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "Recording " + id + " not found");
+            return null;
+        }
+
+        PlaybackSegmenter segmenter = null;
+        try {
+            segmenter = new PlaybackSegmenter(recording,
+                    request.getParameter("layout"), layoutRepository,
+                    segmentDuration);
+        } catch (IOException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    e.getMessage());
+            return null;
+        }
+
+        String type = request.getParameter("type");
+        if ((type == null) || type.equals("hls")) {
+            sendPlaylist(segmenter, response);
+        } else if (type.equals("dash")) {
+            sendManifest(segmenter, response);
+        } else if (type.equals(INIT)) {
+            if (segmenter.getSegmentCount() == 0) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                        "Recording " + id + " is empty");
+                return null;
+            }
+            sendFile(getSegment(recording, segmenter, -1), response);
+        } else if (type.equals("segment")) {
+            int segment = -1;
+            try {
+                segment = Integer.parseInt(request.getParameter("segment"));
+            } catch (NumberFormatException e) {
+                // Do Nothing
+            }
+            if ((segment < 0) || (segment >= segmenter.getSegmentCount())) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                        "No segment " + request.getParameter("segment"));
+                return null;
+            }
+            sendFile(getSegment(recording, segmenter, segment), response);
+        } else {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Unknown type " + type);
+        }
+        return null;
+    }
+
+    public void recordingAdded(Recording recording) {
+        // Does Nothing
+    }
+
+    public void recordingMetadataUpdated(Recording recording) {
+        // Does Nothing
+    }
+
+    public void recordingLifetimeUpdated(Recording recording) {
+        // Does Nothing
+    }
+
+    public void recordingLayoutsUpdated(Recording recording) {
+        getCache().invalidate(recording.getDirectory());
+    }
+
+    public void recordingDeleted(Recording recording) {
+        getCache().invalidate(recording.getDirectory());
+    }
+
+    public void recordingMoved(Recording oldRecording, Recording newRecording) {
+        getCache().invalidate(oldRecording.getDirectory());
+    }
+
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.play;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import javax.media.format.VideoFormat;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.mvc.Controller;
+
+import com.googlecode.vicovre.media.preview.SpriteSheetGenerator;
+import com.googlecode.vicovre.media.protocol.memetic.RecordingConstants;
+import com.googlecode.vicovre.recordings.Recording;
+import com.googlecode.vicovre.recordings.Stream;
+import com.googlecode.vicovre.recordings.db.RecordingDatabase;
+import com.googlecode.vicovre.repositories.rtptype.RtpTypeRepository;
+
+/**
+ * A controller for getting the sprite sheets used to scrub through a video
+ * stream.  Without a sheet parameter, the index of the sheets is returned
+ * (see SpriteSheetGenerator).  The sheets are generated during recording;
+ * those of older recordings are generated in the background when first
+ * requested, and until they are ready a 503 response is returned.
+ *
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+public class SpriteController implements Controller {
+
+    // The seconds after which to ask again while sprites are generated
+    private static final int RETRY_AFTER = 5;
+
+    private RecordingDatabase database = null;
+
+    private RtpTypeRepository typeRepository = null;
+
+    // The generators running, by the index file that they will write
+    private HashMap<String, Generator> generating =
+        new HashMap<String, Generator>();
+
+    // The index files that could not be generated
+    private HashSet<String> failed = new HashSet<String>();
+
+    private class Generator extends Thread {
+
+        private Recording recording = null;
+
+        private String streamId = null;
+
+        private String key = null;
+
+        private Generator(Recording recording, String streamId, String key) {
+            super("SpriteController Generator " + streamId);
+            this.recording = recording;
+            this.streamId = streamId;
+            this.key = key;
+            setDaemon(true);
+        }
+
+        public void run() {
+            boolean succeeded = false;
+            try {
+                SpriteSheetGenerator.generate(recording.getDirectory(),
+                        streamId, typeRepository);
+                succeeded = true;
+            } catch (Throwable t) {
+                System.err.println("Could not generate sprites of "
+                        + streamId + " in " + recording.getDirectory());
+                t.printStackTrace();
+            } finally {
+                synchronized (generating) {
+                    generating.remove(key);
+                    if (!succeeded) {
+                        failed.add(key);
+                    }
+                }
+            }
+        }
+    }
+
+    public SpriteController(RecordingDatabase database,
+            RtpTypeRepository typeRepository) {
+        this.database = database;
+        this.typeRepository = typeRepository;
+    }
+
+    // Starts generating the sprites of a stream unless they are already
+    // being generated; returns false if they could not be generated before
+    private boolean generateSprites(Recording recording, String streamId,
+            File index) {
+        String key = index.getAbsolutePath();
+        synchronized (generating) {
+            if (failed.contains(key)) {
+                return false;
+            }
+            if (!generating.containsKey(key) && !index.exists()) {
+                Generator generator = new Generator(recording, streamId, key);
+                generating.put(key, generator);
+                generator.start();
+            }
+        }
+        return true;
+    }
+
+    public ModelAndView handleRequest(HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        String folder = request.getRequestURI().substring(
+                request.getContextPath().length());
+        File path = new File(folder);
+        String id = path.getParentFile().getName();
+        folder = path.getParentFile().getParent();
+
+        Recording recording = database.getRecording(folder, id);
+        String streamId = request.getParameter("ssrc");
+        Stream stream = null;
+        if ((recording != null) && (streamId != null)) {
+            stream = recording.getStream(streamId);
+        }
+        if (stream == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "Stream " + streamId + " not found");
+            return null;
+        }
+
+        File index = new File(recording.getDirectory(),
+                streamId + RecordingConstants.STREAM_SPRITES);
+        boolean inProgress = new File(recording.getDirectory(),
+                RecordingConstants.RECORDING_INPROGRESS).exists();
+        String sheet = request.getParameter("sheet");
+        int sheetNumber = 0;
+        if (sheet != null) {
+            try {
+                sheetNumber = Integer.parseInt(sheet);
+            } catch (NumberFormatException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "Invalid sheet " + sheet);
+                return null;
+            }
+            if (sheetNumber < 0) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                        "No sheet " + sheet);
+                return null;
+            }
+        }
+
+        if (!index.exists() && !inProgress && (stream.getRtpType() != null)
+                && (stream.getRtpType().getFormat() instanceof VideoFormat)
+                && generateSprites(recording, streamId, index)) {
+            response.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Sprites for stream " + streamId + " are not ready");
+            return null;
+        }
+
+        File file = index;
+        String contentType = "text/plain";
+        if (sheet != null) {
+            file = new File(recording.getDirectory(), streamId
+                    + RecordingConstants.STREAM_SPRITE_SHEET
+                    + sheetNumber + ".jpg");
+            contentType = "image/jpeg";
+        }
+        if (!file.exists()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "No sprites for stream " + streamId);
+            return null;
+        }
+
+        StringBuilder description = new StringBuilder();
+        ImageCache.describeFile(description, file);
+        String etag = ImageCache.getETag(ImageCache.getKey(
+                recording.getDirectory(), description.toString()));
+        if (sheet != null) {
+
+            // Sheets are not changed once written
+            response.setHeader("Cache-Control", "max-age=86400");
+        } else {
+            response.setHeader("Cache-Control", "no-cache");
+        }
+        response.setHeader("ETag", etag);
+        if (ImageCache.isMatched(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
+
+        response.setContentType(contentType);
+        response.setHeader("Content-Length", String.valueOf(file.length()));
+        OutputStream output = response.getOutputStream();
+        FileInputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int bytesRead = input.read(buffer);
+            while (bytesRead != -1) {
+                output.write(buffer, 0, bytesRead);
+                bytesRead = input.read(buffer);
+            }
+        } finally {
+            input.close();
+        }
+        return null;
+    }
+}
@@ -82,6 +82,18 @@ public class VideoExtractor {
 
     private double generationSpeed = 0;
 
+    // The number of video frames sent to the multiplexer
+    private volatile long videoFrameCount = 0;
+
+    // The timestamp of the last audio sent to the multiplexer in ns
+    private volatile long audioTimestamp = 0;
+
+    // The timestamp of the last data sent to the multiplexer in ns
+    private volatile long currentTimestamp = 0;
+
+    // The timestamp at which the transfer will end in ns
+    private volatile long endTimestamp = 0;
+
     /**
      * Creates a new VideoExtractor
      *
@@ -220,6 +232,42 @@ public class VideoExtractor {
         audioMixer.setAutoGain(autoGain);
     }
 
+    /**
+     * Gets a control of the multiplexer, e.g. to change the output
+     * @param className The class name of the control
+     * @return The control, or null if the multiplexer does not have it
+     */
+    public Object getControl(String className) {
+        return multiplexer.getControl(className);
+    }
+
+    /**
+     * Gets the number of video frames generated so far
+     * @return The number of frames
+     */
+    public long getVideoFrameCount() {
+        return videoFrameCount;
+    }
+
+    /**
+     * Gets the amount of audio generated so far
+     * @return The time of the audio in milliseconds
+     */
+    public long getAudioTimeGenerated() {
+        return audioTimestamp / 1000000;
+    }
+
+    /**
+     * Gets how far through the transfer the generation is
+     * @return The fraction of the transfer generated, between 0 and 1
+     */
+    public double getProgress() {
+        if (endTimestamp <= 0) {
+            return 0;
+        }
+        return Math.min(1.0, (double) currentTimestamp / endTimestamp);
+    }
+
     private long waitForNext(long startTime, long firstTimestamp,
             long timestamp) {
         if (generationSpeed <= 0) {
@@ -271,6 +319,7 @@ public class VideoExtractor {
         // Seek to the start of the video and audio
         long audioEndTimestamp = duration * 1000000L;
         long videoEndTimestamp = duration * 1000000L;
+        endTimestamp = duration * 1000000L;
         long videoTimestampOffset = 0;
         if (videoMixer != null) {
             videoMixer.streamSeek(offset - (videoOffset / 1000000L)
@@ -299,6 +348,7 @@ public class VideoExtractor {
             if (isVideoData) {
                 videoSource.setTimestamp(0);
                 videoSource.process();
+                videoFrameCount += 1;
                 isVideoData = videoSource.readNext();
             }
 
@@ -330,6 +380,8 @@ public class VideoExtractor {
                     firstTimestamp = waitForNext(startTime, firstTimestamp,
                             audioTimestamp);
                     audioSource.process();
+                    this.audioTimestamp = audioTimestamp;
+                    currentTimestamp = audioTimestamp;
                     isAudioData = audioSource.readNext();
                 } else {
                     isAudioData = false;
@@ -339,6 +391,8 @@ public class VideoExtractor {
                     firstTimestamp = waitForNext(startTime, firstTimestamp,
                             videoTimestamp);
                     videoSource.process();
+                    videoFrameCount += 1;
+                    currentTimestamp = videoTimestamp;
                     isVideoData = videoSource.readNext();
                 } else {
                     isVideoData = false;
@@ -346,13 +400,14 @@ public class VideoExtractor {
             }
         }
 
+        // Stop the sources before the mixers they are reading from
         if (videoMixer != null) {
-            videoMixer.close();
             videoSource.close();
+            videoMixer.close();
         }
         if (audioMixer != null) {
-            audioMixer.close();
             audioSource.close();
+            audioMixer.close();
         }
         multiplexer.close();
         while (!dataSink.isDone()) {
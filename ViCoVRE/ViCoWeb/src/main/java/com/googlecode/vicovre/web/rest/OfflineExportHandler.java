@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.rest;
+
+import java.util.List;
+import java.util.Vector;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import com.googlecode.vicovre.recordings.db.RecordingDatabase;
+import com.googlecode.vicovre.security.db.Role;
+import com.googlecode.vicovre.security.db.SecurityDatabase;
+import com.googlecode.vicovre.web.play.ExportJob;
+import com.googlecode.vicovre.web.play.ExportService;
+import com.googlecode.vicovre.web.rest.response.ExportJobResponse;
+import com.googlecode.vicovre.web.rest.response.ExportJobsResponse;
+import com.sun.jersey.spi.inject.Inject;
+
+/**
+ * Handler of offline exports of recordings to files.  Users can only see and
+ * clear the jobs that they submitted, and can only export folders that they
+ * can write to; administrators can see and clear all the jobs.
+ * @author Andrew G D Rowley
+ * @version 1.0
+ */
+@Path("/offlineexport")
+public class OfflineExportHandler extends AbstractHandler {
+
+    private ExportService exportService = null;
+
+    private SecurityDatabase securityDatabase = null;
+
+    public OfflineExportHandler(@Inject("database") RecordingDatabase database,
+            @Inject("exportService") ExportService exportService,
+            @Inject("securityDatabase") SecurityDatabase securityDatabase) {
+        super(database);
+        this.exportService = exportService;
+        this.securityDatabase = securityDatabase;
+    }
+
+    private boolean isAdministrator() {
+        return securityDatabase.hasRole(Role.ADMINISTRATOR);
+    }
+
+    // Determines if the current user can see a job
+    private boolean canAccess(ExportJob job) {
+        if (isAdministrator()) {
+            return true;
+        }
+        String username = securityDatabase.getUsername();
+        return (username != null) && username.equals(job.getOwner());
+    }
+
+    @Path("/jobs")
+    @GET
+    @Produces({"text/xml", "application/json"})
+    public Response getJobs() {
+        List<ExportJob> jobs = null;
+        String username = securityDatabase.getUsername();
+        if (isAdministrator()) {
+            jobs = exportService.getJobs();
+        } else if (username != null) {
+            jobs = exportService.getJobs(username);
+        } else {
+            jobs = new Vector<ExportJob>();
+        }
+        return Response.ok(new ExportJobsResponse(jobs)).cacheControl(
+                getNoCache()).build();
+    }
+
+    @Path("/jobs/{id}")
+    @GET
+    @Produces({"text/xml", "application/json"})
+    public Response getJob(@PathParam("id") String id) {
+        ExportJob job = exportService.getJob(id);
+        if ((job == null) || !canAccess(job)) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        return Response.ok(new ExportJobResponse(job)).cacheControl(
+                getNoCache()).build();
+    }
+
+    @Path("/jobs")
+    @DELETE
+    public Response clearFinishedJobs() {
+        if (isAdministrator()) {
+            exportService.clearFinishedJobs();
+        } else {
+            String username = securityDatabase.getUsername();
+            if (username == null) {
+                return Response.status(Status.FORBIDDEN).build();
+            }
+            exportService.clearFinishedJobs(username);
+        }
+        return Response.ok().build();
+    }
+
+    @Path("/folder/{folder: .*}")
+    @POST
+    @Produces({"text/xml", "application/json"})
+    public Response exportFolder(@PathParam("folder") String folder,
+            @DefaultValue("video/mp4") @QueryParam("format") String format,
+            @DefaultValue("false") @QueryParam("recursive") boolean recursive) {
+        String username = securityDatabase.getUsername();
+        if (!isAdministrator() && ((username == null)
+                || !getDatabase().canWriteFolder(folder))) {
+            return Response.status(Status.FORBIDDEN).build();
+        }
+        List<ExportJob> jobs = exportService.submitFolder(getDatabase(),
+                folder, format, recursive, username);
+        return Response.ok(new ExportJobsResponse(jobs)).cacheControl(
+                getNoCache()).build();
+    }
+
+    @Path("/folder")
+    @POST
+    @Produces({"text/xml", "application/json"})
+    public Response exportFolder(
+            @DefaultValue("video/mp4") @QueryParam("format") String format,
+            @DefaultValue("false") @QueryParam("recursive") boolean recursive) {
+        return exportFolder("", format, recursive);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2009, University of Manchester
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the and the University of Manchester nor the names of
+ *    its contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.googlecode.vicovre.web.rest.response;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.googlecode.vicovre.web.play.ExportJob;
+
+@XmlRootElement(name="job")
+public class ExportJobResponse {
+
+    private ExportJob job = null;
+
+    public ExportJobResponse() {
+        // Does Nothing
+    }
+
+    public ExportJobResponse(ExportJob job) {
+        this.job = job;
+    }
+
+    @XmlElement(name="id")
+    public String getId() {
+        return job.getId();
+    }
+
+    @XmlElement(name="folder")
+    public String getFolder() {
+        return job.getFolder();
+    }
+
+    @XmlElement(name="recording")
+    public String getRecordingId() {
+        return job.getRecordingId();
+    }
+
+    @XmlElement(name="format")
+    public String getFormat() {
+        return job.getFormat();
+    }
+
+    @XmlElement(name="status")
+    public String getStatus() {
+        return job.getStatus();
+    }
+
+    @XmlElement(name="error")
+    public String getError() {
+        return job.getError();
+    }
+
+    @XmlElement(name="progress")
+    public double getProgress() {
+        return job.getProgress();
+    }
+
+    @XmlElement(name="elapsedTime")
+    public long getElapsedTime() {
+        return job.getElapsedTime();
+    }
+
+    @XmlElement(name="framesPerSecond")
+    public double getFramesPerSecond() {
+        return job.getFramesPerSecond();
+    }
+
+    @XmlElement(name="audioSecondsPerSecond")
+    public double getAudioSecondsPerSecond() {
+        return job.getAudioSecondsPerSecond();
+    }
+}
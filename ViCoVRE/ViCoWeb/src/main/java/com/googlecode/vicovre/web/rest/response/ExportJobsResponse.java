@@ -30,29 +30,33 @@
  *
  */
 
-package com.googlecode.vicovre.codecs.multiplexers.mp4;
+package com.googlecode.vicovre.web.rest.response;
 
-public class Duration {
+import java.util.List;
+import java.util.Vector;
 
-    private long duration = 0;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
 
-    private int count = 0;
+import com.googlecode.vicovre.web.play.ExportJob;
 
-    public Duration(long duration) {
-        this.duration = duration;
-        this.count = 1;
-    }
+@XmlRootElement(name="jobs")
+public class ExportJobsResponse {
 
-    public void increment(int count) {
-        this.count += count;
-    }
+    private List<ExportJobResponse> jobs = new Vector<ExportJobResponse>();
 
-    public int getCount() {
-        return count;
+    public ExportJobsResponse() {
+        // Does Nothing
     }
 
-    public long getDuration() {
-        return duration;
+    public ExportJobsResponse(List<ExportJob> jobs) {
+        for (ExportJob job : jobs) {
+            this.jobs.add(new ExportJobResponse(job));
+        }
     }
 
+    @XmlElement(name="job")
+    public List<ExportJobResponse> getJobs() {
+        return jobs;
+    }
 }